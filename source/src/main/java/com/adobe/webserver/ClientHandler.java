@@ -1,21 +1,23 @@
 package com.adobe.webserver;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
-import com.adobe.webserver.handlers.GETHandler;
-import com.adobe.webserver.handlers.POSTHandler;
+import com.adobe.webserver.handlers.HTTPMethodHandler;
+import com.adobe.webserver.util.AdaptiveConcurrencyLimit;
+import com.adobe.webserver.util.ClientLimiter;
+import com.adobe.webserver.util.HTTPRequestParser;
+import com.adobe.webserver.util.HashedTimingWheel;
 import com.adobe.webserver.util.Helper;
+import com.adobe.webserver.util.RequestDeadlines;
+import com.adobe.webserver.util.ResponseWriter;
 
 /**
  * A ClientHandler takes the responsibility of dealing with HTTP clients. This
@@ -24,10 +26,10 @@ import com.adobe.webserver.util.Helper;
  * of this object, wrap it with a thread object and start the thread This class
  * is thread safe.
  * 
- * It reads HTTP request-line from client and evaluates the type of request
- * (GET/POST). It then forwards the request to appropriate Request Handler to
- * read the request Header/Body from client and then send an appropriate
- * response
+ * It reads HTTP request-line and header from client (see
+ * {@link HTTPRequestParser}) and evaluates the type of request (GET/POST). It
+ * then forwards the request to appropriate Request Handler to read the
+ * request Body from client and then send an appropriate response
  * 
  * It assumes that the Method Handler does not close InputStream/OutputStream
  * passed, and that it can throw only two types of checked exception -
@@ -37,134 +39,512 @@ import com.adobe.webserver.util.Helper;
  * In case of IllegalRequestException - It assumes that the Method handler has
  * not sent a response to client. so it sends client, a 400 Bad Request message
  * 
+ * Connections are persistent (HTTP/1.1 keep-alive). After a response, it waits
+ * up to {@link ServerParams#KEEP_ALIVE_TIMEOUT} for the next request on the
+ * same socket, unless the client or the method handler asked for the
+ * connection to be closed, or {@link ServerParams#MAX_KEEP_ALIVE_REQUESTS}
+ * requests have been served on it.
+ * 
+ * Timeouts of a socket are not SO_TIMEOUTs. Deadlines of the phases of a
+ * request (first byte, header, body idle and whole request) are tracked by
+ * {@link RequestDeadlines}, which closes the socket when one passes.
+ * 
+ * Responses are held in a {@link ResponseWriter}, so a small response
+ * leaves in one write, and the head of a big one leaves with its first chunk
+ * of body. If the client has already sent next request
+ * (pipelining), the response is held back and sent together with the
+ * responses of the following requests, in the order of requests.
+ * 
+ * If an {@link AdaptiveConcurrencyLimit} is set, it is told how long every
+ * request took.
+ * 
+ * If a {@link ClientLimiter} is set, every request after the first one (which
+ * is checked by the listener) takes a token of the client. A client out of
+ * tokens gets 429 Too Many Requests and the connection is closed.
+ * 
+ * The buffered streams, the request parser and the method handlers are taken
+ * from a pool ({@link RequestContext}) for the life of the connection, and
+ * given back when it is closed (or by {@link #releaseContext()}).
+ * 
  * At the end, it closes the connection with client
  * 
+ * When the server stops, {@link #drain()} closes the connection if it is
+ * idle, or lets the current request finish with "Connection: close".
+ * 
+ * A ClientHandler can also be created over a pair of streams (see
+ * {@link #ClientHandler(InputStream, OutputStream)}). This is used by engines
+ * which don't hand a {@link Socket} to the handler, like the nio and aio engines. Such
+ * an engine calls {@link #handleRequest(boolean)} for one request and manages
+ * the connection (and sending of held responses) itself.
+ * 
  * @author KHEMKA
  * 
  */
 public class ClientHandler implements Runnable {
 
-	private Socket client;
+	private volatile Socket client;
+	private InputStream clientIn = null;
+	private OutputStream clientOut = null;
+	private ResponseWriter responseOut = null;
 
 	private BufferedInputStream byteStreamBufferedIn = null;
-	private BufferedOutputStream byteStreamBufferedOut = null;
-	private BufferedWriter charStreamBufferedOut = null;
+	private OutputStream byteStreamBufferedOut = null;
+
+	private AdaptiveConcurrencyLimit concurrencyLimit = null;
+
+	/**
+	 * streams, request parser and method handlers, taken from the pool when
+	 * the streams are opened. null till then, and after they are released
+	 */
+	private RequestContext context = null;
+
+	/**
+	 * parser of request heads, reused for all requests of the connection
+	 */
+	private HTTPRequestParser requestParser = null;
+
+	/**
+	 * deadlines of requests on the socket. null if the streams apply their
+	 * own timeouts
+	 */
+	private RequestDeadlines deadlines = null;
+
+	/**
+	 * open connections of the listener, which this one is part of till it is
+	 * closed. null if not tracked
+	 */
+	private Set<ClientHandler> connections = null;
+
+	/**
+	 * limiter which has counted this connection of the client. null if
+	 * clients are not limited
+	 */
+	private ClientLimiter clientLimiter = null;
+	private InetAddress clientAddress = null;
+
+	/**
+	 * true while waiting for next request on a persistent connection
+	 */
+	private volatile boolean idle = false;
+	private volatile boolean draining = false;
 
 	private static Logger logger = Logger.getLogger(ClientHandler.class
 			.getName());
 
 	/**
-	 * Creates a ClientHandler to handle the input client socket
+	 * Creates a ClientHandler to handle the input client socket. Timeouts of
+	 * the socket are tracked by the shared {@link HashedTimingWheel}
 	 * 
 	 * @param client
 	 *            the socket connected to client
-	 * @throws SocketException
-	 *             raised while setting SO timeout on socket, if there is an
-	 *             error in the underlying protocol, such as a TCP error.
 	 */
-	public ClientHandler(Socket client) throws SocketException {
+	public ClientHandler(Socket client) {
 		this.client = client;
-		client.setSoTimeout(ServerParams.SocketSoTimeout);
+		this.deadlines = new RequestDeadlines(client,
+				HashedTimingWheel.getInstance());
 	}
 
 	/**
-	 * Overriding the run() method of Runnable Interface.
+	 * Creates a ClientHandler to handle a client connected through the input
+	 * streams. The streams must apply their own read/write timeouts
+	 * 
+	 * @param clientIn
+	 *            stream to read the request from
+	 * @param clientOut
+	 *            stream to write the response to
+	 */
+	public ClientHandler(InputStream clientIn, OutputStream clientOut) {
+		this.clientIn = clientIn;
+		this.clientOut = clientOut;
+	}
+
+	/**
+	 * @param concurrencyLimit
+	 *            limit to be told the latency of every request. null if
+	 *            there is no adaptive limit
+	 */
+	public void setConcurrencyLimit(AdaptiveConcurrencyLimit concurrencyLimit) {
+		this.concurrencyLimit = concurrencyLimit;
+	}
+
+	/**
+	 * @param clientLimiter
+	 *            limiter which has counted this connection. The connection
+	 *            is released from it when closed
+	 */
+	public void setClientLimiter(ClientLimiter clientLimiter) {
+		this.clientLimiter = clientLimiter;
+		this.clientAddress = client.getInetAddress();
+	}
+
+	/**
+	 * makes this connection part of the input set till it is closed
+	 * 
+	 * @param connections
+	 *            open connections of a listener
+	 */
+	void setConnections(Set<ClientHandler> connections) {
+		this.connections = connections;
+		connections.add(this);
+	}
+
+	/**
+	 * asks the connection to finish for shutdown of the server. An idle
+	 * connection is closed at once. Otherwise the request being served is
+	 * finished, with "Connection: close". Can be called from any thread
+	 */
+	void drain() {
+		draining = true;
+		if (idle) {
+			closeConnection();
+		}
+	}
+
+	/**
+	 * closes the socket, whatever the state of the connection. A read/write
+	 * blocked on it fails. Can be called from any thread
+	 */
+	void closeConnection() {
+		Socket socket = client;
+		try {
+			if (socket != null)
+				socket.close();
+		} catch (IOException e) {
+			logger.error("error in closing connection" + e.getMessage());
+		}
+	}
+
+	/**
+	 * Overriding the run() method of Runnable Interface. It serves requests
+	 * on the socket till the connection is persistent.
 	 */
 	public void run() {
 
-		OutputStream byteStreamOut = null;
 		try {
+			int requestsServed = 0;
+			boolean keepAlive = true;
+			while (keepAlive) {
+				if (!awaitNextRequest((requestsServed == 0) ? ServerParams.FIRST_BYTE_TIMEOUT
+						: ServerParams.KEEP_ALIVE_TIMEOUT)) {
+					break;
+				}
+				if (requestsServed > 0 && !admitRequest()) {
+					break;
+				}
+				requestsServed++;
+				deadlines.onRequestStart();
+				keepAlive = handleRequest(requestsServed < ServerParams.MAX_KEEP_ALIVE_REQUESTS
+						&& !draining);
 
-			byteStreamBufferedIn = new BufferedInputStream(
-					client.getInputStream());
-			byteStreamOut = client.getOutputStream();
-			// for writing headers
-			byteStreamBufferedOut = new BufferedOutputStream(byteStreamOut);
-			// for writing body
-			charStreamBufferedOut = new BufferedWriter(new OutputStreamWriter(
-					byteStreamOut, ServerParams.HTTPHeadersEncoding));
+				// response of a pipelined request is sent with the next ones
+				if (!keepAlive || !isRequestBuffered()) {
+					responseOut.send();
+				}
+				deadlines.cancel();
+			}
+		} catch (IOException e) {
+			if (draining || deadlines.isExpired()) {
+				logger.trace("connection closed for shutdown or timeout");
+			} else {
+				logger.error("error in read/write of connection" + e.getMessage());
+			}
+		} finally {
+			cleanUp();
+		}
+	}
 
-			String requestLine = Helper
-					.readRequestLineFromClient(byteStreamBufferedIn);
+	/**
+	 * reads one request from client and writes the response. The response is
+	 * flushed to the client output stream but streams are not closed.
+	 * 
+	 * @param keepAliveAllowed
+	 *            false if the connection must be closed after this request
+	 * @return true if the connection can be used for next request
+	 */
+	public boolean handleRequest(boolean keepAliveAllowed) {
+		if (concurrencyLimit == null) {
+			return serveRequest(keepAliveAllowed);
+		}
+		long startTime = concurrencyLimit.onRequestStart();
+		try {
+			return serveRequest(keepAliveAllowed);
+		} finally {
+			concurrencyLimit.onRequestComplete(startTime);
+		}
+	}
 
-			logger.trace("a request arrived with the request line - "
-					+ requestLine);
+	private boolean serveRequest(boolean keepAliveAllowed) {
 
-			String[] requestLineSplitted = requestLine.split(" ");
+		try {
+			openStreams();
 
-			if (requestLineSplitted.length < 3)
-				throw new IllegalRequestException("improper request line");
+			requestParser.parseRequest(byteStreamBufferedIn);
+			if (deadlines != null) {
+				deadlines.onHeaderComplete();
+			}
 
-			URI requestURI = null;
-			try {
-				requestURI = new URI(requestLineSplitted[1]);
-			} catch (URISyntaxException e) {
+			String method = requestParser.getMethod();
+			String requestTarget = requestParser.getRequestTarget();
+			if (logger.isTraceEnabled()) {
+				logger.trace("a request arrived with the request line - "
+						+ method + " " + requestTarget + " "
+						+ requestParser.getHttpVersion());
+			}
+
+			String requestPath = requestParser.getRequestPath();
+			if (requestPath == null) {
 				throw new IllegalRequestException(
-						"wrong request-uri in request-line - " + requestURI);
+						"wrong request-uri in request-line - " + requestTarget);
 			}
-			String requestPath = requestURI.getPath();
 			logger.info("path requested is " + requestPath);
 
-			if (requestLineSplitted[0].equals("GET")) {
-				new GETHandler(byteStreamBufferedIn, byteStreamBufferedOut,
-						charStreamBufferedOut).handle(requestPath);
-			} else if (requestLineSplitted[0].equals("POST")) {
-				new POSTHandler(byteStreamBufferedIn, byteStreamBufferedOut,
-						charStreamBufferedOut).handle(requestPath);
-
-			} else {
-
-				Helper.sendClientMessage(
-						"405",
-						"Method Not Allowed",
-						null,
-						"the <i>HTTP</i> method you requested is not supported by our server .. regret any inconvenience!"
-								+ "<hr>", charStreamBufferedOut,
-						byteStreamBufferedOut);
-
+			HTTPMethodHandler handler = context.getMethodHandler(method);
+			if (handler != null) {
+				handler.reset(requestParser.getHttpVersion(), keepAliveAllowed);
+				handler.setRequestHead(requestParser);
+				handler.handle(requestPath);
+				flush();
+				return handler.isKeepAlive();
 			}
 
+			// body of request is not read, so connection is closed
+			Helper.sendClientMessage(
+					"405",
+					"Method Not Allowed",
+					null,
+					"the <i>HTTP</i> method you requested is not supported by our server .. regret any inconvenience!"
+							+ "<hr>", byteStreamBufferedOut, false);
+
 		} catch (IOException e) {
-			logger.error("error in read/write of connection" + e.getMessage());
+			if (deadlines != null && deadlines.isExpired()) {
+				logger.trace("connection closed, " + deadlines.getExpiredPhase()
+						+ " deadline passed");
+			} else {
+				logger.error("error in read/write of connection"
+						+ e.getMessage());
+			}
 		} catch (IllegalRequestException e) {
 			logger.error("illegal request .. sending 400 bad requst .. ");
 			try {
-				charStreamBufferedOut.write(Helper
-						.createResponseMessageWithoutBody("400", "Bad Request",
-								null));
-				charStreamBufferedOut.flush();
+				Helper.writeResponseMessageWithoutBody(byteStreamBufferedOut,
+						"400", "Bad Request", null, false);
+				byteStreamBufferedOut.flush();
 			} catch (IOException e1) {
 				logger.error("error in read/write of connection"
 						+ e1.getMessage());
 			}
 
-		} finally {
-			cleanUp();
 		}
+		return false;
+	}
+
+	private void openStreams() throws IOException {
+		if (context != null) {
+			return;
+		}
+		context = RequestContext.acquire();
+		if (client != null) {
+			clientIn = deadlines.wrap(client.getInputStream());
+			responseOut = context.getResponseOutputStream(deadlines.wrap(
+					client.getOutputStream(), client.getChannel()));
+			clientOut = responseOut;
+		}
+		context.bind(clientIn, clientOut);
+
+		byteStreamBufferedIn = context.getInputStream();
+		// for writing responses, head and body
+		byteStreamBufferedOut = context.getOutputStream();
+		requestParser = context.getRequestParser();
 	}
 
-	private void cleanUp() {
+	/**
+	 * gives the streams, request parser and method handlers of the connection
+	 * back to the pool (see {@link RequestContext}), for reuse by other
+	 * connections. Bytes not flushed to the client output stream are
+	 * discarded. The client streams are not closed. Must be called by the
+	 * thread serving the connection, when it is done with it
+	 */
+	public void releaseContext() {
+		if (context == null) {
+			return;
+		}
+		byteStreamBufferedIn = null;
+		byteStreamBufferedOut = null;
+		requestParser = null;
+		if (client != null) {
+			responseOut = null;
+		}
+		RequestContext released = context;
+		context = null;
+		released.release();
+	}
+
+	/**
+	 * @return true if a complete header of next request is already received
+	 *         (pipelined)
+	 * @throws IOException
+	 *             when there is error in read
+	 */
+	public boolean isRequestBuffered() throws IOException {
+		return byteStreamBufferedIn != null
+				&& Helper.isRequestBuffered(byteStreamBufferedIn,
+						context.getLookAheadBuffer());
+	}
+
+	/**
+	 * @return the buffered stream the requests are read from. null if the
+	 *         streams are not open
+	 */
+	public BufferedInputStream getInputStream() {
+		return byteStreamBufferedIn;
+	}
+
+	private void flush() throws IOException {
+		byteStreamBufferedOut.flush();
+	}
+
+	/**
+	 * waits for the first byte of next request
+	 * 
+	 * @param timeout
+	 *            time in milliseconds to wait for
+	 * @return true if next request has arrived, false if client closed the
+	 *         connection or the connection stayed idle
+	 * @throws IOException
+	 *             when there is error in read
+	 */
+	private boolean awaitNextRequest(long timeout) throws IOException {
+		openStreams();
+		deadlines.awaitRequest(timeout);
+		idle = true;
 		try {
-			if (charStreamBufferedOut != null)
-				charStreamBufferedOut.close();
-			charStreamBufferedOut = null;
+			if (draining) {
+				return false;
+			}
+			byteStreamBufferedIn.mark(1);
+			if (byteStreamBufferedIn.read() < 0) {
+				return false;
+			}
+			byteStreamBufferedIn.reset();
 		} catch (IOException e) {
-			logger.error("error in read/write of connection" + e.getMessage());
+			if (deadlines.isExpired()) {
+				logger.trace("closing idle connection");
+				return false;
+			}
+			throw e;
+		} finally {
+			idle = false;
+		}
+		return true;
+	}
+
+	/**
+	 * takes a token of the client for the next request. If there is none,
+	 * sends the client 429 Too Many Requests (after the held responses)
+	 * 
+	 * @return true if the request can be served
+	 * @throws IOException
+	 *             when there is error in write
+	 */
+	private boolean admitRequest() throws IOException {
+		if (clientLimiter == null) {
+			return true;
+		}
+		int retryAfter = clientLimiter.tryRequest(clientAddress);
+		if (retryAfter == 0) {
+			return true;
+		}
+		logger.warn("too many requests from " + clientAddress
+				+ " .. sending 429");
+		// unread request bytes would make close reset the connection
+		int available;
+		while ((available = byteStreamBufferedIn.available()) > 0) {
+			byteStreamBufferedIn.skip(available);
 		}
+		byteStreamBufferedOut.write(Helper
+				.createTooManyRequestsMessage(retryAfter));
+		flush();
+		responseOut.send();
+		return false;
+	}
+
+	/**
+	 * tells client that server is too busy (503 Service Unavailable) and
+	 * closes the connection. It is called instead of {@link #run()} when the
+	 * handler could not be queued for a pool thread, so it does not wait for
+	 * the request
+	 */
+	public void sendServiceUnavailable() {
+		reject(Helper.createServiceUnavailableMessage());
+	}
+
+	/**
+	 * tells client that it makes requests too fast (429 Too Many Requests)
+	 * and closes the connection. It is called instead of {@link #run()}
+	 * 
+	 * @param retryAfter
+	 *            seconds after which the client may try again
+	 */
+	public void sendTooManyRequests(int retryAfter) {
+		reject(Helper.createTooManyRequestsMessage(retryAfter));
+	}
+
+	/**
+	 * writes the message without waiting for the request, and closes the
+	 * connection. The request may still be arriving, and closing a socket
+	 * with unread bytes resets it, so the socket is half closed and read for
+	 * {@link ServerParams#RejectedConnectionLinger} before it is closed. The
+	 * calling thread does not wait for it
+	 */
+	private void reject(byte[] message) {
+		final Socket socket = client;
 		try {
-			if (byteStreamBufferedOut != null)
-				byteStreamBufferedOut.close();
-			byteStreamBufferedOut = null;
+			OutputStream out = socket.getOutputStream();
+			out.write(message);
+			out.flush();
+			socket.shutdownOutput();
+			skipAvailable(socket.getInputStream());
 		} catch (IOException e) {
 			logger.error("error in read/write of connection" + e.getMessage());
+			cleanUp();
+			return;
 		}
+		HashedTimingWheel.getInstance().schedule(new Runnable() {
+			public void run() {
+				try {
+					skipAvailable(socket.getInputStream());
+				} catch (IOException e) {
+					logger.trace("rejected connection reset by client");
+				}
+				cleanUp();
+			}
+		}, ServerParams.RejectedConnectionLinger);
+	}
+
+	/**
+	 * discards the bytes which have arrived, without blocking
+	 */
+	private static void skipAvailable(InputStream in) throws IOException {
+		int available;
+		while ((available = in.available()) > 0) {
+			in.skip(available);
+		}
+	}
+
+	/**
+	 * sends the held responses, gives the streams back to the pool and closes
+	 * the socket
+	 */
+	public void cleanUp() {
 		try {
-			if (byteStreamBufferedIn != null)
-				byteStreamBufferedIn.close();
-			byteStreamBufferedIn = null;
+			if (responseOut != null && context != null) {
+				flush();
+				responseOut.send();
+			}
 		} catch (IOException e) {
 			logger.error("error in read/write of connection" + e.getMessage());
 		}
+		releaseContext();
 		try {
 			if (client != null)
 				client.close();
@@ -172,6 +552,16 @@ public class ClientHandler implements Runnable {
 		} catch (IOException e) {
 			logger.error("error in read/write of connection" + e.getMessage());
 		}
+		if (connections != null) {
+			connections.remove(this);
+		}
+		if (deadlines != null) {
+			deadlines.cancel();
+		}
+		if (clientLimiter != null) {
+			clientLimiter.closeConnection(clientAddress);
+			clientLimiter = null;
+		}
 
 	}
 
@@ -1,15 +1,24 @@
 package com.adobe.webserver;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.log4j.Logger;
 
+import com.adobe.webserver.util.AdaptiveConcurrencyLimit;
+import com.adobe.webserver.util.ClientLimiter;
 import com.adobe.webserver.util.ThreadPoolExecutorBuilder;
 
 /**
@@ -21,9 +30,21 @@ import com.adobe.webserver.util.ThreadPoolExecutorBuilder;
  * it uses a {@link ExecutorService} for running a clientHandler Thread. It relies on {@link ThreadPoolExecutorBuilder} for 
  * building an appropriate {@link ExecutorService}
  * 
- * it checks for Interrupts at every short interval indicated by {@link ServerParams.#ServerSocketSoTimeout} 
+ * Several listeners (acceptors) can accept connections for the same port, each on its own thread and with its own 
+ * {@link ExecutorService}. Use {@link #createAcceptors(int)} to create them. On Linux every acceptor binds its own 
+ * socket with SO_REUSEPORT, so the kernel spreads incoming connections among them. Elsewhere they share one socket.
  * 
- * On Interrupt it calls for {@link ThreadPoolExecutorBuilder} method to stop the {@link ExecutorService}
+ * If the {@link ExecutorService} turns a client down (server is too busy), the client gets a 503 Service Unavailable 
+ * on the listener thread, so it does not take a pool thread. 
+ * 
+ * Before a ClientHandler is created, the client is checked against the per client limits of a {@link ClientLimiter} 
+ * (shared by all acceptors). A client holding too many connections is dropped at once (reset, no response), a client 
+ * making requests too fast gets a 429 Too Many Requests on the listener thread.
+ * 
+ * On Interrupt the listening socket is closed at once (the socket is an interruptible channel), so no new connection 
+ * is accepted. Then the listener drains its connections - idle connections are closed, in-flight requests are 
+ * finished (with "Connection: close") and the {@link ExecutorService} is stopped. Connections still open after 
+ * {@link ServerParams#SHUTDOWN_TIMEOUT} are closed.
  * 
   * @author sudeepkhemka
  * 
@@ -32,16 +53,126 @@ public class Listener implements Runnable {
 
 	private static Logger logger = Logger.getLogger(Listener.class.getName());
 	ExecutorService threadPool;
+	
+	/**
+	 * adaptive limit of the thread pool. null if concurrency is fixed
+	 */
+	private AdaptiveConcurrencyLimit concurrencyLimit;
+	
+	/**
+	 * per client limits, shared by the acceptors of the port. null if clients are not limited
+	 */
+	private ClientLimiter clientLimiter;
+	
+	/**
+	 * socket bound before the listener is run. null if the listener binds its socket when run
+	 */
+	private ServerSocketChannel serverChannel;
+	
+	/**
+	 * connections accepted and not yet closed
+	 */
+	private final Set<ClientHandler> connections = Collections.newSetFromMap(new ConcurrentHashMap<ClientHandler, Boolean>());
 
 	/**
 	 * this is a default constructor
 	 */
 	public Listener() {
-		this.threadPool = ThreadPoolExecutorBuilder.newCustomThreadPool();
+		this(null, 1, ClientLimiter.newClientLimiter());
+	}
+	
+	/**
+	 * creates one of several acceptors for the server port
+	 * @param serverChannel bound socket, possibly shared with other acceptors
+	 * @param acceptors number of acceptors, among which the pool size is divided
+	 * @param clientLimiter per client limits, shared by the acceptors. null if clients are not limited
+	 */
+	private Listener(ServerSocketChannel serverChannel, int acceptors, ClientLimiter clientLimiter) {
+		this.clientLimiter = clientLimiter;
+		this.concurrencyLimit = ThreadPoolExecutorBuilder.newConcurrencyLimit(acceptors);
+		this.threadPool = ThreadPoolExecutorBuilder.newCustomThreadPool(acceptors, concurrencyLimit);
+		this.serverChannel = serverChannel;
 	}
 
 	
+	/**
+	 * creates the acceptors for the server port and binds their sockets, so the server accepts connections as 
+	 * soon as this method returns. If SO_REUSEPORT is supported, each acceptor binds its own socket, 
+	 * otherwise all acceptors share one socket
+	 * @param count number of acceptors
+	 * @return the acceptors. Each should be run on its own thread
+	 * @throws IOException if a socket could not be bound
+	 */
+	public static List<Listener> createAcceptors(int count) throws IOException {
+		count = Math.max(1, count);
+		List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>(count);
+		try {
+			if (count == 1) {
+				serverChannels.add(bind(false));
+			} else if (isReusePortSupported()) {
+				for (int i = 0; i < count; i++) {
+					serverChannels.add(bind(true));
+				}
+			} else {
+				logger.info("SO_REUSEPORT is not available .. " + count + " acceptors will share one socket");
+				ServerSocketChannel sharedServerChannel = bind(false);
+				for (int i = 0; i < count; i++) {
+					serverChannels.add(sharedServerChannel);
+				}
+			}
+		} catch (IOException e) {
+			for (ServerSocketChannel serverChannel : serverChannels) {
+				serverChannel.close();
+			}
+			throw e;
+		}
+		
+		ClientLimiter clientLimiter = ClientLimiter.newClientLimiter();
+		List<Listener> acceptors = new ArrayList<Listener>(count);
+		for (ServerSocketChannel serverChannel : serverChannels) {
+			acceptors.add(new Listener(serverChannel, count, clientLimiter));
+		}
+		return acceptors;
+	}
 	
+	/**
+	 * SO_REUSEPORT spreads connections among sockets only on Linux. 
+	 * @return true if SO_REUSEPORT should be used
+	 */
+	private static boolean isReusePortSupported() {
+		if (!System.getProperty("os.name").toLowerCase().contains("linux")) {
+			return false;
+		}
+		try {
+			ServerSocketChannel probe = ServerSocketChannel.open();
+			try {
+				return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+			} finally {
+				probe.close();
+			}
+		} catch (IOException e) {
+			return false;
+		} catch (NoSuchFieldError e) {
+			// SO_REUSEPORT is available since java 9
+			return false;
+		}
+	}
+	
+	private static ServerSocketChannel bind(boolean reusePort) throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			if (reusePort) {
+				serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			serverChannel.socket().bind((ServerParams.HOSTNAME != null) ? 
+					new InetSocketAddress(ServerParams.HOSTNAME, ServerParams.PORT) : new InetSocketAddress(ServerParams.PORT) 
+					, ServerParams.QUEUE_SIZE );
+		} catch (IOException e) {
+			serverChannel.close();
+			throw e;
+		}
+		return serverChannel;
+	}
 	
 	
 	/**
@@ -51,25 +182,11 @@ public class Listener implements Runnable {
 	public void run() {
 		ServerSocket serverSocket;
 		try {
-			serverSocket = new ServerSocket();//ServerParams.PORT , ServerParams.QUEUE_SIZE);
-			serverSocket.bind((ServerParams.HOSTNAME != null) ? 
-					new InetSocketAddress(ServerParams.HOSTNAME, ServerParams.PORT) : new InetSocketAddress(ServerParams.PORT) 
-					, ServerParams.QUEUE_SIZE );
+			serverSocket = (serverChannel != null) ? serverChannel.socket() : bind(false).socket();
 		} catch (IOException e) {
 			logger.fatal("server socket could not be created - \r\n"
 					+ e.getMessage() + "\r\n" + e.toString());
-			return;
-		}
-		try {
-			serverSocket.setSoTimeout(ServerParams.ServerSocketSoTimeout);
-		} catch (SocketException e) {
-			logger.fatal("timeout for server socket could not be set - \r\n"
-					+ e.getMessage() + "\r\n" + e.toString());
-			try {
-				serverSocket.close();
-			} catch (IOException e1) {
-				logger.error("could not cloase server socket - " + e.getMessage());
-			}
+			ThreadPoolExecutorBuilder.shutdownAndAwaitTermination(this.threadPool);
 			return;
 		}
 
@@ -77,41 +194,84 @@ public class Listener implements Runnable {
 			Socket client = null;
 			try {
 				client = serverSocket.accept();
-				ClientHandler task = new ClientHandler(
-						client);
-				this.threadPool.execute(task);
-				
-			}catch(SocketException e){
-				logger.error("client so timeout could not be set .. so closing client connection - "  + e.getMessage());
-				try {
-					client.close();
-				} catch (IOException e1) {
-					logger.error("client could not be closed properly");
-				}
-			} catch (SocketTimeoutException e) {
-				
-				if (Thread.interrupted()) {
-
-					try {
-						serverSocket.close();
-					} catch (IOException e1) {
-						logger.warn("serversocket.accept error occured - \r\n"
-								+ e1.getMessage() + "\r\n" + e1.toString());
-					}
-
-					ThreadPoolExecutorBuilder.shutdownAndAwaitTermination(this.threadPool);
-					logger.info("exiting listener thread");
-					return;
-				}
-				logger.trace("server is idle .. no incoming request ..");
 			} catch (IOException e) {
+				// closed by an interrupt, or by another acceptor sharing the socket
+				if (serverSocket.isClosed()) {
+					break;
+				}
 				logger.warn("  serversocket.accept error occured - \r\n"
 						+ e.getMessage() + "\r\n" + e.toString());
-			} finally {
-
+				continue;
+			}
+			
+			InetAddress address = client.getInetAddress();
+			if (clientLimiter != null && !clientLimiter.tryOpenConnection(address)) {
+				logger.warn("too many connections from " + address + " .. dropping connection");
+				drop(client);
+				continue;
+			}
+			
+			ClientHandler task = new ClientHandler(client);
+			task.setConcurrencyLimit(concurrencyLimit);
+			task.setConnections(connections);
+			if (clientLimiter != null) {
+				task.setClientLimiter(clientLimiter);
+				int retryAfter = clientLimiter.tryRequest(address);
+				if (retryAfter > 0) {
+					logger.warn("too many requests from " + address + " .. sending 429");
+					task.sendTooManyRequests(retryAfter);
+					continue;
+				}
+			}
+			try {
+				this.threadPool.execute(task);
+			} catch (RejectedExecutionException e) {
+				logger.warn("server is too busy .. sending 503 - " + e.getMessage());
+				task.sendServiceUnavailable();
 			}
 		}
 
+		try {
+			serverSocket.close();
+		} catch (IOException e1) {
+			logger.warn("serversocket.accept error occured - \r\n"
+					+ e1.getMessage() + "\r\n" + e1.toString());
+		}
+
+		drain();
+		logger.info("exiting listener thread");
+	}
+	
+	/**
+	 * closes a connection with a reset, so it costs neither a response nor a TIME_WAIT socket
+	 */
+	private static void drop(Socket client) {
+		try {
+			client.setSoLinger(true, 0);
+			client.close();
+		} catch (IOException e) {
+			logger.warn("error in dropping connection - " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * closes idle connections, lets in-flight requests finish and stops the thread pool. Connections still 
+	 * open after {@link ServerParams#SHUTDOWN_TIMEOUT} are closed.
+	 */
+	private void drain() {
+		// the interrupt which stopped accept must not cut the wait short
+		Thread.interrupted();
 		
+		logger.info("draining " + connections.size() + " connections");
+		for (ClientHandler connection : connections) {
+			connection.drain();
+		}
+		ThreadPoolExecutorBuilder.shutdownAndAwaitTermination(this.threadPool, new Runnable() {
+			public void run() {
+				for (ClientHandler connection : connections) {
+					connection.closeConnection();
+				}
+			}
+		});
 	}
 }
@@ -0,0 +1,251 @@
+package com.adobe.webserver;
+
+import java.io.BufferedInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.adobe.webserver.handlers.GETHandler;
+import com.adobe.webserver.handlers.HTTPMethodHandler;
+import com.adobe.webserver.handlers.POSTHandler;
+import com.adobe.webserver.util.FileTransferWriter;
+import com.adobe.webserver.util.GatheringWriter;
+import com.adobe.webserver.util.HTTPRequestParser;
+import com.adobe.webserver.util.Helper;
+import com.adobe.webserver.util.Pool;
+import com.adobe.webserver.util.ResponseWriter;
+
+/**
+ * RequestContext holds what a {@link ClientHandler} needs to serve requests
+ * of a connection - the streams over the connection, the request
+ * parser and the method handlers. Contexts are pooled (see
+ * {@link #getPool()}), so a new connection takes the buffers and objects of
+ * a closed one instead of allocating its own, and a handler serves all
+ * requests of its method on a connection.
+ * 
+ * A context is bound to the streams of a connection by
+ * {@link #bind(InputStream, OutputStream)}, which buffers the input stream of
+ * the connection in a new BufferedInputStream. When it is given back by
+ * {@link #release()}, bytes buffered but not sent are discarded, and the
+ * streams are unbound.
+ * 
+ * Responses are written straight to the {@link ResponseWriter} of the
+ * connection, which is their only buffer.
+ * 
+ * A context must be used by one thread at a time, and must not be used after
+ * it is released.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public class RequestContext {
+
+	/**
+	 * stream which drops every byte. Streams of a context not bound to a
+	 * connection write to it
+	 */
+	private static final OutputStream discard = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	/**
+	 * holds the pool, created on first use of {@link #getPool()}
+	 */
+	private static class InstanceHolder {
+		private static final Pool<RequestContext> pool = new Pool<RequestContext>(
+				ServerParams.REQUEST_CONTEXT_POOL_SIZE) {
+			@Override
+			protected RequestContext create() {
+				return new RequestContext();
+			}
+
+			@Override
+			protected boolean recycle(RequestContext context) {
+				context.unbind();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @return the pool of contexts shared by the server. Its hits and misses
+	 *         count connections which reused a context or created one
+	 */
+	public static Pool<RequestContext> getPool() {
+		return InstanceHolder.pool;
+	}
+
+	/**
+	 * stream over the client output stream, which can be moved to another
+	 * connection. The method handlers of the context write through it
+	 */
+	private static class ReusableOutputStream extends FilterOutputStream
+			implements GatheringWriter, FileTransferWriter {
+
+		ReusableOutputStream() {
+			super(discard);
+		}
+
+		void bind(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		public void write(ByteBuffer[] buffers) throws IOException {
+			if (out instanceof GatheringWriter) {
+				((GatheringWriter) out).write(buffers);
+				return;
+			}
+			for (ByteBuffer buffer : buffers) {
+				Helper.writeBuffer(buffer, out);
+			}
+		}
+
+		public boolean transferFrom(FileChannel file, long position,
+				long count) throws IOException {
+			return (out instanceof FileTransferWriter)
+					&& ((FileTransferWriter) out).transferFrom(file, position,
+							count);
+		}
+	}
+
+	/**
+	 * stream over the client input stream, created for every connection. It
+	 * is not pooled, as only BufferedInputStream itself (not a subclass)
+	 * locks without pinning a virtual thread to its carrier on java 21
+	 */
+	private BufferedInputStream byteStreamBufferedIn = null;
+	private final ReusableOutputStream clientOut = new ReusableOutputStream();
+
+	/**
+	 * holds responses of a socket. created when first needed, as the nio and
+	 * aio engines hold responses themselves
+	 */
+	private ResponseWriter responseOut = null;
+
+	/**
+	 * buffer the received bytes are scanned in for a pipelined request.
+	 * created when first needed
+	 */
+	private byte[] lookAhead = null;
+
+	private final HTTPRequestParser requestParser = new HTTPRequestParser();
+	private final GETHandler getHandler = new GETHandler(null, clientOut,
+			null, false);
+	private final POSTHandler postHandler = new POSTHandler(null, clientOut,
+			null, false);
+
+	private RequestContext() {
+	}
+
+	/**
+	 * @return a context of the pool, not bound to any connection
+	 */
+	static RequestContext acquire() {
+		return getPool().acquire();
+	}
+
+	/**
+	 * gives the context back to the pool
+	 */
+	void release() {
+		getPool().release(this);
+	}
+
+	/**
+	 * makes the streams of the context read from and write to a connection
+	 * 
+	 * @param in
+	 *            stream to read requests from
+	 * @param out
+	 *            stream to write responses to
+	 */
+	void bind(InputStream in, OutputStream out) {
+		setInputStream(new BufferedInputStream(in,
+				ServerParams.RequestBufferSize));
+		clientOut.bind(out);
+	}
+
+	private void setInputStream(BufferedInputStream in) {
+		byteStreamBufferedIn = in;
+		getHandler.setInputStream(in);
+		postHandler.setInputStream(in);
+	}
+
+	/**
+	 * discards the held bytes and unbinds the streams
+	 */
+	private void unbind() {
+		clientOut.bind(discard);
+		setInputStream(null);
+		if (responseOut != null) {
+			responseOut.reset(discard);
+		}
+	}
+
+	/**
+	 * @param socketOut
+	 *            output stream of a socket
+	 * @return the stream of the context holding responses till they are sent,
+	 *         writing to the socket
+	 */
+	ResponseWriter getResponseOutputStream(OutputStream socketOut) {
+		if (responseOut == null) {
+			responseOut = new ResponseWriter(socketOut,
+					ServerParams.ResponseBufferSize);
+		} else {
+			responseOut.reset(socketOut);
+		}
+		return responseOut;
+	}
+
+	/**
+	 * @return buffer of {@link ServerParams#PipelineLookAheadSize} bytes, to
+	 *         look ahead in the input stream through. Its content is not kept
+	 */
+	byte[] getLookAheadBuffer() {
+		if (lookAhead == null) {
+			lookAhead = new byte[ServerParams.PipelineLookAheadSize];
+		}
+		return lookAhead;
+	}
+
+	BufferedInputStream getInputStream() {
+		return byteStreamBufferedIn;
+	}
+
+	OutputStream getOutputStream() {
+		return clientOut;
+	}
+
+	HTTPRequestParser getRequestParser() {
+		return requestParser;
+	}
+
+	/**
+	 * @param method
+	 *            method of request-line
+	 * @return handler of the method, or null if the method is not supported
+	 */
+	HTTPMethodHandler getMethodHandler(String method) {
+		if (method.equals("GET")) {
+			return getHandler;
+		} else if (method.equals("POST")) {
+			return postHandler;
+		}
+		return null;
+	}
+}
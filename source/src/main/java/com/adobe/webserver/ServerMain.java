@@ -5,11 +5,22 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.InvalidPropertiesFormatException;
+import java.util.List;
 import java.util.Properties;
 
 import org.apache.log4j.Logger;
 
+import com.adobe.webserver.aio.AIOListener;
+import com.adobe.webserver.nio.NIOListener;
+import com.adobe.webserver.util.BufferPool;
+import com.adobe.webserver.util.ContentCache;
+import com.adobe.webserver.util.GzipCache;
+import com.adobe.webserver.util.MappedFileCache;
+import com.adobe.webserver.util.WebrootIndex;
+
 /** 
  * It helps you start the server. It contains the main method, so you can start
  * your server directly by this class.
@@ -30,7 +41,8 @@ import org.apache.log4j.Logger;
 public class ServerMain {
 
 	private static Logger logger = Logger.getLogger(ServerMain.class.getName());
-	Thread listenerThread;
+	List<Thread> listenerThreads = new ArrayList<Thread>();
+	private WebrootIndex webrootIndex;
 
 	
 	private String getProperty(Properties properties, String key,
@@ -70,6 +82,98 @@ public class ServerMain {
 				Integer.toString(ServerParams.THREAD_POOL_SIZE)));
 		ServerParams.HOSTNAME = getProperty(properties, "hostname",
 				ServerParams.HOSTNAME);
+		ServerParams.EXECUTOR_MODE = getProperty(properties, "executor_mode",
+				ServerParams.EXECUTOR_MODE);
+		ServerParams.VIRTUAL_THREAD_MAX_CONCURRENCY = Integer
+				.parseInt(getProperty(properties,
+						"virtual_thread_max_concurrency", Integer
+								.toString(ServerParams.VIRTUAL_THREAD_MAX_CONCURRENCY)));
+		ServerParams.KEEP_ALIVE_TIMEOUT = Integer.parseInt(getProperty(
+				properties, "keep_alive_timeout",
+				Integer.toString(ServerParams.KEEP_ALIVE_TIMEOUT)));
+		ServerParams.FIRST_BYTE_TIMEOUT = Integer.parseInt(getProperty(
+				properties, "first_byte_timeout",
+				Integer.toString(ServerParams.FIRST_BYTE_TIMEOUT)));
+		ServerParams.HEADER_TIMEOUT = Integer.parseInt(getProperty(
+				properties, "header_timeout",
+				Integer.toString(ServerParams.HEADER_TIMEOUT)));
+		ServerParams.BODY_IDLE_TIMEOUT = Integer.parseInt(getProperty(
+				properties, "body_idle_timeout",
+				Integer.toString(ServerParams.BODY_IDLE_TIMEOUT)));
+		ServerParams.REQUEST_TIMEOUT = Integer.parseInt(getProperty(
+				properties, "request_timeout",
+				Integer.toString(ServerParams.REQUEST_TIMEOUT)));
+		ServerParams.MAX_KEEP_ALIVE_REQUESTS = Integer.parseInt(getProperty(
+				properties, "max_keep_alive_requests",
+				Integer.toString(ServerParams.MAX_KEEP_ALIVE_REQUESTS)));
+		ServerParams.ENGINE = getProperty(properties, "engine",
+				ServerParams.ENGINE);
+		ServerParams.NIO_EVENT_LOOPS = Integer.parseInt(getProperty(
+				properties, "nio_event_loops",
+				Integer.toString(ServerParams.NIO_EVENT_LOOPS)));
+		ServerParams.AIO_THREADS = Integer.parseInt(getProperty(
+				properties, "aio_threads",
+				Integer.toString(ServerParams.AIO_THREADS)));
+		ServerParams.ACCEPTOR_THREADS = Integer.parseInt(getProperty(
+				properties, "acceptor_threads",
+				Integer.toString(ServerParams.ACCEPTOR_THREADS)));
+		ServerParams.ADAPTIVE_CONCURRENCY = Boolean.parseBoolean(getProperty(
+				properties, "adaptive_concurrency",
+				Boolean.toString(ServerParams.ADAPTIVE_CONCURRENCY)));
+		ServerParams.MIN_CONCURRENCY = Integer.parseInt(getProperty(
+				properties, "min_concurrency",
+				Integer.toString(ServerParams.MIN_CONCURRENCY)));
+		ServerParams.SHUTDOWN_TIMEOUT = Integer.parseInt(getProperty(
+				properties, "shutdown_timeout",
+				Integer.toString(ServerParams.SHUTDOWN_TIMEOUT)));
+		ServerParams.QUEUE_DELAY_TARGET = Integer.parseInt(getProperty(
+				properties, "queue_delay_target",
+				Integer.toString(ServerParams.QUEUE_DELAY_TARGET)));
+		ServerParams.QUEUE_DELAY_INTERVAL = Integer.parseInt(getProperty(
+				properties, "queue_delay_interval",
+				Integer.toString(ServerParams.QUEUE_DELAY_INTERVAL)));
+		ServerParams.CLIENT_MAX_CONNECTIONS = Integer.parseInt(getProperty(
+				properties, "client_max_connections",
+				Integer.toString(ServerParams.CLIENT_MAX_CONNECTIONS)));
+		ServerParams.CLIENT_REQUEST_RATE = Integer.parseInt(getProperty(
+				properties, "client_request_rate",
+				Integer.toString(ServerParams.CLIENT_REQUEST_RATE)));
+		ServerParams.CLIENT_REQUEST_BURST = Integer.parseInt(getProperty(
+				properties, "client_request_burst",
+				Integer.toString(ServerParams.CLIENT_REQUEST_BURST)));
+		ServerParams.BUFFER_POOL_SIZE = Integer.parseInt(getProperty(
+				properties, "buffer_pool_size",
+				Integer.toString(ServerParams.BUFFER_POOL_SIZE)));
+		ServerParams.REQUEST_CONTEXT_POOL_SIZE = Integer.parseInt(getProperty(
+				properties, "request_context_pool_size",
+				Integer.toString(ServerParams.REQUEST_CONTEXT_POOL_SIZE)));
+		ServerParams.CONTENT_CACHE_SIZE = Long.parseLong(getProperty(
+				properties, "content_cache_size",
+				Long.toString(ServerParams.CONTENT_CACHE_SIZE)));
+		ServerParams.CONTENT_CACHE_MAX_FILE_SIZE = Long.parseLong(getProperty(
+				properties, "content_cache_max_file_size",
+				Long.toString(ServerParams.CONTENT_CACHE_MAX_FILE_SIZE)));
+		ServerParams.CONTENT_CACHE_VALIDATE_INTERVAL = Integer.parseInt(getProperty(
+				properties, "content_cache_validate_interval",
+				Integer.toString(ServerParams.CONTENT_CACHE_VALIDATE_INTERVAL)));
+		ServerParams.MAPPED_CACHE_SIZE = Long.parseLong(getProperty(
+				properties, "mapped_cache_size",
+				Long.toString(ServerParams.MAPPED_CACHE_SIZE)));
+		ServerParams.MAPPED_FILE_MAX_SIZE = Long.parseLong(getProperty(
+				properties, "mapped_file_max_size",
+				Long.toString(ServerParams.MAPPED_FILE_MAX_SIZE)));
+		ServerParams.WEBROOT_INDEX = Boolean.parseBoolean(getProperty(
+				properties, "webroot_index",
+				Boolean.toString(ServerParams.WEBROOT_INDEX)));
+		ServerParams.GZIP_STATIC = Boolean.parseBoolean(getProperty(
+				properties, "gzip_static",
+				Boolean.toString(ServerParams.GZIP_STATIC)));
+		ServerParams.GZIP_CACHE_SIZE = Long.parseLong(getProperty(
+				properties, "gzip_cache_size",
+				Long.toString(ServerParams.GZIP_CACHE_SIZE)));
+		ServerParams.GZIP_MAX_FILE_SIZE = Long.parseLong(getProperty(
+				properties, "gzip_max_file_size",
+				Long.toString(ServerParams.GZIP_MAX_FILE_SIZE)));
 
 	}
 
@@ -80,9 +184,35 @@ public class ServerMain {
 
 		logger.trace("starting server");
 
-		Listener listener = new Listener();
-		listenerThread = new Thread(listener);
-		listenerThread.start();
+		if (ServerParams.WEBROOT_INDEX) {
+			try {
+				webrootIndex = WebrootIndex.open(new File(ServerParams.WWW_PATH));
+			} catch (IOException e) {
+				logger.error("webroot can't be watched, files are looked up on the disk - "
+						+ e);
+			}
+		}
+
+		List<? extends Runnable> listeners;
+		if (ServerParams.ENGINE.equals("nio")) {
+			listeners = Collections.singletonList(new NIOListener());
+		} else if (ServerParams.ENGINE.equals("aio")) {
+			listeners = Collections.singletonList(new AIOListener());
+		} else {
+			try {
+				listeners = Listener.createAcceptors(ServerParams.ACCEPTOR_THREADS);
+			} catch (IOException e) {
+				logger.fatal("server socket could not be created - \r\n"
+						+ e.getMessage() + "\r\n" + e.toString());
+				return;
+			}
+		}
+		
+		for (int i = 0; i < listeners.size(); i++) {
+			Thread listenerThread = new Thread(listeners.get(i), "acceptor-" + i);
+			listenerThread.start();
+			listenerThreads.add(listenerThread);
+		}
 
 		logger.info("Server listening on port - " + ServerParams.PORT);
 	}
@@ -93,8 +223,22 @@ public class ServerMain {
 	 * @throws {@link InterruptedException} if the thread is interrupted
 	 */
 	public void stop() throws InterruptedException {
-		this.listenerThread.interrupt();
-		this.listenerThread.join();
+		for (Thread listenerThread : this.listenerThreads) {
+			listenerThread.interrupt();
+		}
+		for (Thread listenerThread : this.listenerThreads) {
+			listenerThread.join();
+		}
+		this.listenerThreads.clear();
+		if (webrootIndex != null) {
+			webrootIndex.close();
+			webrootIndex = null;
+		}
+		logger.info("request context pool - " + RequestContext.getPool()
+				+ " .. buffer pool - " + BufferPool.getInstance());
+		logger.info("content cache - " + ContentCache.getInstance());
+		logger.info("mapped file cache - " + MappedFileCache.getInstance());
+		logger.info("gzip cache - " + GzipCache.getInstance());
 
 	}
 
@@ -15,11 +15,172 @@ public class ServerParams {
 	 */
 	public static int THREAD_POOL_SIZE = 50;
 	
+	/**
+	 * The kind of executor serving clients.
+	 * "fixed" - a pool of {@link #THREAD_POOL_SIZE} platform threads
+	 * "virtual" - a new virtual thread for every task (needs java 21 or later)
+	 */
+	public static String EXECUTOR_MODE = "fixed";
+	
+	/**
+	 * Maximum number of tasks running at the same time in "virtual" executor mode. 
+	 * 0 or less means no limit
+	 */
+	public static int VIRTUAL_THREAD_MAX_CONCURRENCY = 0;
+	
 	/**
 	 * Maximum number of client requests which can be queued before start of process. Beyond this all requests are ignored
 	 */
 	public static int QUEUE_SIZE = 500;
 	
+	/**
+	 * If true, the number of clients served at the same time adapts to latency of requests, between 
+	 * {@link #MIN_CONCURRENCY} and {@link #THREAD_POOL_SIZE} (or {@link #VIRTUAL_THREAD_MAX_CONCURRENCY})
+	 */
+	public static boolean ADAPTIVE_CONCURRENCY = false;
+	
+	/**
+	 * Smallest number of clients served at the same time, when {@link #ADAPTIVE_CONCURRENCY} is on
+	 */
+	public static int MIN_CONCURRENCY = 4;
+	
+	/**
+	 * Time in milliseconds for which a stopping server lets in-flight requests finish. After it, the 
+	 * remaining connections are closed
+	 */
+	public static int SHUTDOWN_TIMEOUT = 30000;
+	
+	/**
+	 * Acceptable time in milliseconds for which a client waits in queue of thread pool. 
+	 */
+	public static int QUEUE_DELAY_TARGET = 100;
+	
+	/**
+	 * Time in milliseconds for which queue delay may stay above {@link #QUEUE_DELAY_TARGET}. After it new 
+	 * clients are turned down with 503 Service Unavailable till queue delay drops
+	 */
+	public static int QUEUE_DELAY_INTERVAL = 1000;
+	
+	/**
+	 * Seconds sent in Retry-After header of 503 Service Unavailable
+	 */
+	public static final int ServiceUnavailableRetryAfter = 1;
+	
+	/**
+	 * Time (in milliseconds) for which a connection turned down (503 or 429) without reading its request 
+	 * is kept half closed, so request bytes still arriving are read before it is closed. Otherwise the 
+	 * close resets the connection, and the client may lose the response
+	 */
+	public static final int RejectedConnectionLinger = 500;
+	
+	/**
+	 * Maximum number of connections a single client (IP address) can hold open. Beyond this its new 
+	 * connections are dropped. 0 or less means no limit
+	 */
+	public static int CLIENT_MAX_CONNECTIONS = 0;
+	
+	/**
+	 * Requests per second a single client (IP address) can make in the long run. Beyond this it gets 
+	 * 429 Too Many Requests. 0 or less means no limit
+	 */
+	public static int CLIENT_REQUEST_RATE = 0;
+	
+	/**
+	 * Number of requests a single client can make at once, over {@link #CLIENT_REQUEST_RATE}. 
+	 * 0 or less means twice the rate
+	 */
+	public static int CLIENT_REQUEST_BURST = 0;
+	
+	/**
+	 * Number of stripes (each with its own lock) in which state of clients is kept for the per client limits
+	 */
+	public static final int ClientLimiterStripes = 64;
+	
+	/**
+	 * Maximum number of idle clients whose state is kept for the per client limits
+	 */
+	public static final int ClientLimiterMaxEntries = 65536;
+	
+	/**
+	 * Time (in milliseconds) after which state of a client without connections is forgotten
+	 */
+	public static final int ClientEntryTimeout = 60000;
+	
+	/**
+	 * Maximum number of idle I/O buffers kept for reuse, see {@link com.adobe.webserver.util.BufferPool}. 
+	 * 0 or less allocates a buffer for every copy
+	 */
+	public static int BUFFER_POOL_SIZE = 256;
+	
+	/**
+	 * Maximum number of idle request contexts (streams, parser and method handlers of a connection) 
+	 * kept for reuse by new connections, see {@link RequestContext}. 0 or less creates them for every connection
+	 */
+	public static int REQUEST_CONTEXT_POOL_SIZE = 64;
+	
+	/**
+	 * Most bytes of static files held in memory by the content cache, see {@link com.adobe.webserver.util.ContentCache}. 
+	 * 0 or less disables the cache
+	 */
+	public static long CONTENT_CACHE_SIZE = 64L * 1024 * 1024;
+	
+	/**
+	 * Size (in bytes) of the biggest file held by the content cache
+	 */
+	public static long CONTENT_CACHE_MAX_FILE_SIZE = 1024 * 1024;
+	
+	/**
+	 * Time (in milliseconds) for which a cached file is served without checking if it has changed. 
+	 * 0 checks on every request
+	 */
+	public static int CONTENT_CACHE_VALIDATE_INTERVAL = 1000;
+	
+	/**
+	 * Most bytes of static files memory mapped by the mapped file cache, see {@link com.adobe.webserver.util.MappedFileCache}.
+	 * 0 or less disables the cache
+	 */
+	public static long MAPPED_CACHE_SIZE = 1024L * 1024 * 1024;
+	
+	/**
+	 * Size (in bytes) of the biggest file memory mapped. Files bigger than {@link #CONTENT_CACHE_MAX_FILE_SIZE}, and 
+	 * at most this size, are mapped
+	 */
+	public static long MAPPED_FILE_MAX_SIZE = 64L * 1024 * 1024;
+	
+	/**
+	 * true to keep an index of the webroot in memory, see {@link com.adobe.webserver.util.WebrootIndex}, 
+	 * so GET requests find files without system calls. false looks files up on the disk
+	 */
+	public static boolean WEBROOT_INDEX = true;
+
+	/**
+	 * true to send the precompressed "name.gz" file placed next to a file, to clients accepting gzip,
+	 * if the file is of a compressible type (see {@link com.adobe.webserver.util.MimeTypes#isCompressible(String)})
+	 */
+	public static boolean GZIP_STATIC = true;
+
+	/**
+	 * Most bytes of gzip compressed files held in memory, see {@link com.adobe.webserver.util.GzipCache}.
+	 * Files of a compressible type without a "name.gz" are compressed in the background into this cache.
+	 * 0 or less disables the compression
+	 */
+	public static long GZIP_CACHE_SIZE = 32L * 1024 * 1024;
+
+	/**
+	 * Size (in bytes) of the biggest file compressed by the gzip cache
+	 */
+	public static long GZIP_MAX_FILE_SIZE = 4L * 1024 * 1024;
+	
+	/**
+	 * Size of the pooled buffers (in bytes) used to copy bytes between streams, e.g. a file to client
+	 */
+	public static final int IOBufferSize = 8192;
+	
+	/**
+	 * Size of the buffer (in bytes) of the request input stream of a request context
+	 */
+	public static final int RequestBufferSize = 8192;
+	
 	/**
 	 * the port on Which Server Should tun
 	 */
@@ -42,21 +203,105 @@ public class ServerParams {
 	public static String HOSTNAME = null;
 	
 	/**
-	 * The header value for the header filed Server
+	 * Number of threads accepting connections on the server port, each with its own thread pool.
+	 * Pool size is divided among them. Used by the "blocking" engine
 	 */
-	public static final String serverHeader = "Java HTTP Server 1.1";
+	public static int ACCEPTOR_THREADS = 1;
+	
+	/**
+	 * The engine used for serving connections. 
+	 * "blocking" - a {@link Listener} hands every connection to a pool thread for its whole life
+	 * "nio" - a {@link com.adobe.webserver.nio.NIOListener} reads requests on a few selector threads and hands only complete requests to the pool
+	 * "aio" - a {@link com.adobe.webserver.aio.AIOListener} waits for requests with completion handlers and hands arrived requests to the pool
+	 */
+	public static String ENGINE = "blocking";
 	
 	/**
-	 * the SO_TIMEOUT value for ServerSocket
-	 * (in milliseconds).
+	 * Number of selector (event loop) threads used by the nio engine
 	 */
-	public static final int ServerSocketSoTimeout = 10000;
+	public static int NIO_EVENT_LOOPS = 2;
+	
+	/**
+	 * Number of threads of the channel group running completion handlers in the aio engine
+	 */
+	public static int AIO_THREADS = 2;
+	
+	/**
+	 * Time (in milliseconds) for which a persistent connection is kept open waiting for next request
+	 */
+	public static int KEEP_ALIVE_TIMEOUT = 5000;
+	
+	/**
+	 * Time (in milliseconds) for which a new connection waits for first byte of its first request
+	 */
+	public static int FIRST_BYTE_TIMEOUT = 10000;
+	
+	/**
+	 * Time (in milliseconds) from first byte of a request till the end of its header
+	 */
+	public static int HEADER_TIMEOUT = 10000;
+	
+	/**
+	 * Time (in milliseconds) for which a connection may stay without any read/write, while body of a request 
+	 * is read or response is written
+	 */
+	public static int BODY_IDLE_TIMEOUT = 20000;
+	
+	/**
+	 * Time (in milliseconds) from first byte of a request till its response is written
+	 */
+	public static int REQUEST_TIMEOUT = 600000;
+	
+	/**
+	 * Maximum number of requests served on a persistent connection. The connection is closed after the last one.
+	 * 1 disables persistent connections
+	 */
+	public static int MAX_KEEP_ALIVE_REQUESTS = 100;
+	
+	/**
+	 * The header value for the header filed Server
+	 */
+	public static final String serverHeader = "Java HTTP Server 1.1";
+	
 	/**
 	 * the SO_TIMEOUT value for Client Socket
-	 * (in milliseconds).
+	 * (in milliseconds). Used by the "nio" engine, the "blocking" engine applies phase timeouts
 	 */
 	public static final int SocketSoTimeout = 20000;
 	
+	/**
+	 * Duration of a tick of the timing wheel tracking request timeouts (in milliseconds)
+	 */
+	public static final int TimerTickDuration = 100;
+	
+	/**
+	 * Number of buckets of the timing wheel tracking request timeouts
+	 */
+	public static final int TimerWheelSize = 512;
+	
+	/**
+	 * Maximum size of request-line and headers of a request (in bytes).
+	 * A client sending a bigger header gets a 400 Bad Request
+	 */
+	public static final int MaxRequestHeaderSize = 65536;
+	
+	/**
+	 * Request bodies up to this size (in bytes) are read completely by the nio event loops,
+	 * bigger bodies are streamed by the pool thread handling the request
+	 */
+	public static final int NIOMaxBufferedBodySize = 65536;
+	
+	/**
+	 * Size of the buffer (in bytes) in which a response is held till it is sent. A smaller response 
+	 * (header and body) leaves in a single write
+	 */
+	public static final int ResponseBufferSize = 32768;
+	
+	/**
+	 * Number of bytes received from client, inspected for a complete pipelined request
+	 */
+	public static final int PipelineLookAheadSize = 8192;
+	
 	/**
 	 * Number of indexes to be used for uploading files with same name
 	 */
@@ -0,0 +1,433 @@
+package com.adobe.webserver.aio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import com.adobe.webserver.ClientHandler;
+import com.adobe.webserver.ServerParams;
+import com.adobe.webserver.util.ClientLimiter;
+import com.adobe.webserver.util.Helper;
+import com.adobe.webserver.util.ResponseWriter;
+
+/**
+ * One client connection of the {@link AIOListener}.
+ * 
+ * While waiting for a request, the connection holds no thread - a read is
+ * left pending on the channel, and its completion handler (run by a thread of
+ * the channel group) reads on, without a thread, till the request head
+ * (request-line and header fields) is complete. Only then it hands the
+ * connection to a pool thread, so a client sending its head slowly does not
+ * hold a pool thread. The head must arrive in
+ * {@link ServerParams#HEADER_TIMEOUT} from its first byte, and be at most
+ * {@link ServerParams#MaxRequestHeaderSize} bytes. The pool thread
+ * serves the request with a {@link ClientHandler} over streams adapting the
+ * channel ({@link AIOInputStream}, {@link AIOOutputStream}), so the method
+ * handlers are the same as for the other engines. Reads and writes of the
+ * pool thread wait for completion up to {@link ServerParams#SocketSoTimeout}.
+ * 
+ * A request the client has already sent (pipelined) is dispatched again, like
+ * any other, as soon as the previous one is served. Responses are held till
+ * no request is left to serve, and sent together in order. Then, if the
+ * connection is persistent, it waits again for next request, up to
+ * {@link ServerParams#KEEP_ALIVE_TIMEOUT} ({@link ServerParams#FIRST_BYTE_TIMEOUT}
+ * for the first request).
+ * 
+ * The pooled streams of the handler (see
+ * {@link ClientHandler#releaseContext()}) are given back when the connection
+ * ends.
+ * 
+ * If clients are limited, every request takes a token of the client when it
+ * is dispatched. A client out of tokens gets 429 Too Many Requests (after the
+ * held responses) and the connection is closed.
+ * 
+ * @author KHEMKA
+ * 
+ */
+class AIOConnection implements CompletionHandler<Integer, Void>, Runnable,
+		Closeable {
+
+	private static Logger logger = Logger.getLogger(AIOConnection.class
+			.getName());
+
+	/**
+	 * size of the buffer in which bytes are read from channel
+	 */
+	private static final int readBufferSize = 8192;
+
+	/**
+	 * most bytes read from a connection closed without serving its request
+	 */
+	private static final int maxDrainedBytes = 65536;
+
+	private final AsynchronousSocketChannel channel;
+	private final AIOListener listener;
+	private final InetAddress address;
+	private final AIOInputStream in;
+	private final ResponseWriter responseOut;
+	private final ClientHandler handler;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private int requestsServed = 0;
+
+	/**
+	 * time when first byte of the request head being read arrived
+	 */
+	private long requestStart;
+
+	/**
+	 * true while waiting for first byte of next request
+	 */
+	private volatile boolean idle = false;
+
+	/**
+	 * @param channel
+	 *            the channel connected to client
+	 * @param address
+	 *            address of the client
+	 * @param listener
+	 *            the listener which accepted the connection
+	 */
+	AIOConnection(AsynchronousSocketChannel channel, InetAddress address,
+			AIOListener listener) {
+		this.channel = channel;
+		this.address = address;
+		this.listener = listener;
+		this.in = new AIOInputStream(this, readBufferSize);
+		this.responseOut = new ResponseWriter(new AIOOutputStream(
+				this), ServerParams.ResponseBufferSize);
+		this.handler = new ClientHandler(in, responseOut);
+		this.handler.setConcurrencyLimit(listener.getConcurrencyLimit());
+	}
+
+	AsynchronousSocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * waits for an operation of the pool thread on the channel to complete.
+	 * If it does not complete in {@link ServerParams#SocketSoTimeout}, the
+	 * connection is closed
+	 * 
+	 * @param operation
+	 *            a pending read or write
+	 * @return number of bytes read or written
+	 * @throws IOException
+	 *             if the operation failed or timed out
+	 */
+	int complete(Future<Integer> operation) throws IOException {
+		try {
+			return operation.get(ServerParams.SocketSoTimeout,
+					TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			close();
+			throw new SocketTimeoutException("client did not respond in "
+					+ ServerParams.SocketSoTimeout + " ms");
+		} catch (InterruptedException e) {
+			close();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted in read/write");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * waits, without a thread, for next request. If the client has already
+	 * sent it, it is dispatched at once
+	 */
+	void awaitRequest() {
+		requestStart = System.currentTimeMillis();
+		readHead();
+	}
+
+	/**
+	 * dispatches the request if its head is complete, otherwise reads more of
+	 * it without a thread. With no byte of the request received yet, the
+	 * connection is idle
+	 */
+	private void readHead() {
+		if (in.hasRequestHead()) {
+			dispatch();
+			return;
+		}
+		long timeout;
+		if (in.available() == 0) {
+			idle = true;
+			if (listener.isDraining()) {
+				finish();
+				return;
+			}
+			timeout = (requestsServed == 0) ? ServerParams.FIRST_BYTE_TIMEOUT
+					: ServerParams.KEEP_ALIVE_TIMEOUT;
+		} else if (in.available() >= ServerParams.MaxRequestHeaderSize) {
+			logger.error("request header too large .. sending 400 bad request");
+			handler.releaseContext();
+			sendAndClose(Helper.createResponseMessageWithoutBody("400",
+					"Bad Request", null, false));
+			return;
+		} else {
+			timeout = requestStart + ServerParams.HEADER_TIMEOUT
+					- System.currentTimeMillis();
+			if (timeout <= 0) {
+				logger.info("closing connection .. header deadline of "
+						+ ServerParams.HEADER_TIMEOUT + " ms passed");
+				finish();
+				return;
+			}
+		}
+		try {
+			channel.read(in.beginFill(), timeout, TimeUnit.MILLISECONDS, null,
+					this);
+		} catch (RuntimeException e) {
+			in.endFill();
+			logger.error("read could not be started on connection - "
+					+ e.toString());
+			finish();
+		}
+	}
+
+	/**
+	 * called by the channel group when bytes of next request have arrived
+	 */
+	public void completed(Integer count, Void attachment) {
+		in.endFill();
+		if (count < 0) {
+			idle = false;
+			finish();
+			return;
+		}
+		if (idle) {
+			idle = false;
+			requestStart = System.currentTimeMillis();
+		}
+		readHead();
+	}
+
+	/**
+	 * called by the channel group when the wait for next request failed
+	 */
+	public void failed(Throwable e, Void attachment) {
+		in.endFill();
+		if (e instanceof InterruptedByTimeoutException) {
+			logger.trace(idle ? "closing idle connection"
+					: "closing connection .. header deadline passed");
+		} else if (e instanceof AsynchronousCloseException) {
+			logger.trace("connection closed while waiting for request");
+		} else {
+			logger.error("error in read/write of connection" + e.getMessage());
+		}
+		idle = false;
+		finish();
+	}
+
+	/**
+	 * hands the connection to a pool thread, unless the client is over its
+	 * request rate or the pool is too busy. This is the only place a request
+	 * takes a token of the client
+	 */
+	private void dispatch() {
+		int retryAfter = retryAfter();
+		if (retryAfter > 0) {
+			logger.warn("too many requests from " + address
+					+ " .. sending 429");
+			refuse(Helper.createTooManyRequestsMessage(retryAfter));
+			return;
+		}
+		try {
+			listener.getWorkers().execute(this);
+		} catch (RejectedExecutionException e) {
+			logger.warn("request could not be handed to a pool thread .. sending 503");
+			refuse(Helper.createServiceUnavailableMessage());
+		}
+	}
+
+	/**
+	 * sends the held responses of pipelined requests, then the message, and
+	 * closes the connection. Responses are held only when a pool thread
+	 * dispatches next request, so a thread of the channel group never waits
+	 * here
+	 */
+	private void refuse(byte[] message) {
+		try {
+			responseOut.send();
+		} catch (IOException e) {
+			logger.error("error in read/write of connection" + e.getMessage());
+			finish();
+			return;
+		}
+		handler.releaseContext();
+		sendAndClose(message);
+	}
+
+	/**
+	 * serves the request which has arrived. Runs on a pool thread
+	 */
+	public void run() {
+		try {
+			boolean keepAlive = handler
+					.handleRequest(requestsServed + 1 < ServerParams.MAX_KEEP_ALIVE_REQUESTS
+							&& !listener.isDraining());
+			requestsServed++;
+			if (!keepAlive) {
+				responseOut.send();
+				finish();
+				return;
+			}
+			// bytes of next request read ahead by the handler are looked at
+			// by the connection
+			in.takeBack(handler.getInputStream());
+			// response of a pipelined request is sent with the next ones
+			if (!in.hasRequestHead()) {
+				responseOut.send();
+			}
+		} catch (IOException e) {
+			logger.error("error in read/write of connection" + e.getMessage());
+			finish();
+			return;
+		}
+		awaitRequest();
+	}
+
+	/**
+	 * takes a token of the client for a request
+	 * 
+	 * @return 0 if the request can be served, otherwise seconds after which
+	 *         the client may try again
+	 */
+	private int retryAfter() {
+		ClientLimiter clientLimiter = listener.getClientLimiter();
+		if (clientLimiter == null) {
+			return 0;
+		}
+		return clientLimiter.tryRequest(address);
+	}
+
+	/**
+	 * makes a best effort to write a short message, and closes the
+	 * connection. The rest of the request may still be arriving, and closing
+	 * a channel with unread bytes resets it, so the channel is half closed
+	 * and drained first (see {@link #drainAndClose(long)})
+	 */
+	private void sendAndClose(byte[] message) {
+		try {
+			channel.write(ByteBuffer.wrap(message), null,
+					new CompletionHandler<Integer, Void>() {
+						public void completed(Integer count, Void attachment) {
+							try {
+								channel.shutdownOutput();
+							} catch (IOException e) {
+								logger.error("error in read/write of connection"
+										+ e.getMessage());
+								close();
+								return;
+							}
+							drainAndClose(System.currentTimeMillis()
+									+ ServerParams.RejectedConnectionLinger);
+						}
+
+						public void failed(Throwable e, Void attachment) {
+							logger.error("error in read/write of connection"
+									+ e.getMessage());
+							close();
+						}
+					});
+		} catch (RuntimeException e) {
+			logger.error("error in read/write of connection" + e.toString());
+			close();
+		}
+	}
+
+	/**
+	 * reads and discards bytes of the half closed channel, without a thread,
+	 * till the client closes it, {@link #maxDrainedBytes} are read, or the
+	 * deadline passes. Then closes the connection
+	 * 
+	 * @param deadline
+	 *            time (in milliseconds) by which the channel is closed
+	 */
+	private void drainAndClose(final long deadline) {
+		final ByteBuffer discard = ByteBuffer.allocate(1024);
+		CompletionHandler<Integer, Void> drain = new CompletionHandler<Integer, Void>() {
+			private int drained = 0;
+
+			public void completed(Integer count, Void attachment) {
+				drained += Math.max(count, 0);
+				long timeout = deadline - System.currentTimeMillis();
+				if (count < 0 || drained >= maxDrainedBytes || timeout <= 0) {
+					close();
+					return;
+				}
+				discard.clear();
+				read(timeout);
+			}
+
+			public void failed(Throwable e, Void attachment) {
+				close();
+			}
+
+			void read(long timeout) {
+				try {
+					channel.read(discard, timeout, TimeUnit.MILLISECONDS, null,
+							this);
+				} catch (RuntimeException e) {
+					close();
+				}
+			}
+		};
+		drain.completed(0, null);
+	}
+
+	/**
+	 * asks the connection to finish for shutdown of the server. An idle
+	 * connection is closed at once. Otherwise the request being served is
+	 * finished, with "Connection: close". Can be called from any thread
+	 */
+	void drain() {
+		if (idle) {
+			close();
+		}
+	}
+
+	/**
+	 * closes the connection from the flow serving it (a pool thread, or the
+	 * completion handler of its read), giving the pooled streams of the
+	 * handler back
+	 */
+	private void finish() {
+		handler.releaseContext();
+		close();
+	}
+
+	/**
+	 * closes the channel. A pending read or write fails. Can be called from
+	 * any thread, more than once
+	 */
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error("error in closing connection" + e.getMessage());
+		}
+		if (closed.compareAndSet(false, true)) {
+			listener.onClosed(this, address);
+		}
+	}
+}
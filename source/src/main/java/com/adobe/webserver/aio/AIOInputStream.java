@@ -0,0 +1,178 @@
+package com.adobe.webserver.aio;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream over the asynchronous channel of an {@link AIOConnection}.
+ * 
+ * Bytes are read into a buffer, either by the connection while it waits
+ * (without a thread) for next request, or by the reading thread itself, which
+ * then waits for the read to complete.
+ * 
+ * While the connection waits for a request head, the buffer grows to hold the
+ * whole head (see {@link #hasRequestHead()}). It goes back to its size once
+ * its bytes are read.
+ * 
+ * @author KHEMKA
+ * 
+ */
+class AIOInputStream extends InputStream {
+
+	private final AIOConnection connection;
+	private final int size;
+
+	/**
+	 * bytes read from channel and not yet returned. Kept ready for get
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * number of bytes not yet returned which have been looked at for the end
+	 * of a request head
+	 */
+	private int scanned = 0;
+
+	AIOInputStream(AIOConnection connection, int size) {
+		this.connection = connection;
+		this.size = size;
+		this.buffer = ByteBuffer.allocate(size);
+		this.buffer.flip();
+	}
+
+	/**
+	 * makes room for an asynchronous read. Bytes not yet returned are kept,
+	 * and the buffer is made bigger if they fill it. Must be followed by
+	 * {@link #endFill()} once the read completes
+	 * 
+	 * @return the buffer to read into
+	 */
+	ByteBuffer beginFill() {
+		if (buffer.remaining() == buffer.capacity()) {
+			ensureCapacity(2 * buffer.capacity());
+		}
+		buffer.compact();
+		return buffer;
+	}
+
+	/**
+	 * makes the bytes read by an asynchronous read available
+	 */
+	void endFill() {
+		buffer.flip();
+	}
+
+	/**
+	 * looks in the bytes not yet returned for the end of a request head (an
+	 * empty line after the request-line and header fields). Only bytes
+	 * not seen by the previous call are scanned
+	 * 
+	 * @return true if a complete request head is buffered
+	 */
+	boolean hasRequestHead() {
+		byte[] b = buffer.array();
+		int start = buffer.position();
+		int end = buffer.limit();
+		// empty lines before the request-line are skipped by the parser
+		while (start + 1 < end && b[start] == '\r' && b[start + 1] == '\n') {
+			start += 2;
+		}
+		for (int i = Math.max(buffer.position() + scanned - 3, start); i + 3 < end; i++) {
+			if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r'
+					&& b[i + 3] == '\n') {
+				return true;
+			}
+		}
+		scanned = buffer.remaining();
+		return false;
+	}
+
+	/**
+	 * moves the bytes which a stream reading from this one has buffered, but
+	 * not returned, back into this stream, ahead of the bytes not yet
+	 * returned. Afterwards all bytes received and not yet read are held here
+	 * 
+	 * @param reader
+	 *            buffered stream reading from this stream. may be null
+	 * @throws IOException
+	 *             when there is error in read of the reader
+	 */
+	void takeBack(BufferedInputStream reader) throws IOException {
+		if (reader == null) {
+			return;
+		}
+		int count = reader.available() - buffer.remaining();
+		if (count <= 0) {
+			return;
+		}
+		ensureCapacity(count + buffer.remaining());
+		byte[] b = buffer.array();
+		int remaining = buffer.remaining();
+		System.arraycopy(b, buffer.position(), b, count, remaining);
+		int taken = 0;
+		while (taken < count) {
+			// served from the buffer of reader, which does not read this stream
+			taken += reader.read(b, taken, count - taken);
+		}
+		buffer.limit(count + remaining).position(0);
+		scanned = 0;
+	}
+
+	/**
+	 * replaces the buffer with a bigger one, if it can't hold capacity bytes.
+	 * Bytes not yet returned are kept
+	 */
+	private void ensureCapacity(int capacity) {
+		if (buffer.capacity() >= capacity) {
+			return;
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(capacity);
+		bigger.put(buffer);
+		bigger.flip();
+		buffer = bigger;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int len = read(b, 0, 1);
+		return len < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			if (buffer.capacity() > size) {
+				buffer = ByteBuffer.allocate(size);
+			}
+			buffer.clear();
+			int count;
+			try {
+				count = connection.complete(connection.getChannel().read(
+						buffer));
+			} finally {
+				buffer.flip();
+			}
+			if (count < 0) {
+				return -1;
+			}
+		}
+		int count = Math.min(len, buffer.remaining());
+		buffer.get(b, off, count);
+		scanned = Math.max(scanned - count, 0);
+		return count;
+	}
+
+	/**
+	 * only the bytes already read from channel are reported as available
+	 */
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+}
@@ -0,0 +1,247 @@
+package com.adobe.webserver.aio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.adobe.webserver.Listener;
+import com.adobe.webserver.ServerParams;
+import com.adobe.webserver.util.AdaptiveConcurrencyLimit;
+import com.adobe.webserver.util.ClientLimiter;
+import com.adobe.webserver.util.ThreadPoolExecutorBuilder;
+
+/**
+ * An AIOListener is the asynchronous (completion handler) alternative of
+ * {@link Listener}. It is used when property "engine" is set to "aio".
+ * 
+ * Connections are accepted on an {@link AsynchronousServerSocketChannel} of
+ * an {@link AsynchronousChannelGroup} with {@link ServerParams#AIO_THREADS}
+ * threads. These threads only run completion handlers - they accept
+ * connections and find out when a request arrives. The request itself is
+ * served by the {@link ExecutorService} built by
+ * {@link ThreadPoolExecutorBuilder} (see {@link AIOConnection}), so an idle
+ * client does not hold a pool thread.
+ * 
+ * A client holding {@link ServerParams#CLIENT_MAX_CONNECTIONS} connections
+ * has its further connections dropped as soon as they are accepted.
+ * 
+ * On Interrupt it closes the server channel at once and drains the
+ * connections - idle connections are closed, requests in progress are
+ * finished (with "Connection: close"). Connections still open after
+ * {@link ServerParams#SHUTDOWN_TIMEOUT} are closed.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public class AIOListener implements Runnable {
+
+	private static Logger logger = Logger
+			.getLogger(AIOListener.class.getName());
+	ExecutorService threadPool;
+	private AdaptiveConcurrencyLimit concurrencyLimit;
+
+	/**
+	 * per client limits. null if clients are not limited
+	 */
+	private ClientLimiter clientLimiter;
+
+	/**
+	 * connections accepted and not yet closed
+	 */
+	private final Set<AIOConnection> connections = Collections
+			.newSetFromMap(new ConcurrentHashMap<AIOConnection, Boolean>());
+
+	private volatile boolean draining = false;
+	private AsynchronousServerSocketChannel serverChannel;
+
+	/**
+	 * this is a default constructor
+	 */
+	public AIOListener() {
+		this.concurrencyLimit = ThreadPoolExecutorBuilder.newConcurrencyLimit(1);
+		this.threadPool = ThreadPoolExecutorBuilder.newCustomThreadPool(1,
+				concurrencyLimit);
+		this.clientLimiter = ClientLimiter.newClientLimiter();
+	}
+
+	ExecutorService getWorkers() {
+		return threadPool;
+	}
+
+	AdaptiveConcurrencyLimit getConcurrencyLimit() {
+		return concurrencyLimit;
+	}
+
+	ClientLimiter getClientLimiter() {
+		return clientLimiter;
+	}
+
+	/**
+	 * @return true if the server is stopping
+	 */
+	boolean isDraining() {
+		return draining;
+	}
+
+	/**
+	 * called once by a connection when it is closed
+	 */
+	void onClosed(AIOConnection connection, InetAddress address) {
+		connections.remove(connection);
+		if (clientLimiter != null) {
+			clientLimiter.closeConnection(address);
+		}
+	}
+
+	/**
+	 * binds the server channel and accepts connections till the thread is
+	 * interrupted
+	 */
+	public void run() {
+		AsynchronousChannelGroup group = null;
+		try {
+			group = AsynchronousChannelGroup.withFixedThreadPool(
+					Math.max(1, ServerParams.AIO_THREADS), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						public Thread newThread(Runnable r) {
+							return new Thread(r, "aio-group-"
+									+ count.getAndIncrement());
+						}
+					});
+			serverChannel = AsynchronousServerSocketChannel.open(group);
+			serverChannel.bind(
+					(ServerParams.HOSTNAME != null) ? new InetSocketAddress(
+							ServerParams.HOSTNAME, ServerParams.PORT)
+							: new InetSocketAddress(ServerParams.PORT),
+					ServerParams.QUEUE_SIZE);
+		} catch (IOException e) {
+			logger.fatal("server socket could not be created - \r\n"
+					+ e.getMessage() + "\r\n" + e.toString());
+			if (group != null) {
+				group.shutdown();
+			}
+			ThreadPoolExecutorBuilder.shutdownAndAwaitTermination(threadPool);
+			return;
+		}
+
+		serverChannel.accept(null, new AcceptHandler());
+		try {
+			// the channel group does all the work till the thread is interrupted
+			new CountDownLatch(1).await();
+		} catch (InterruptedException e) {
+			logger.info("stopping aio listener");
+		}
+
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			logger.warn("server channel could not be closed - "
+					+ e.getMessage());
+		}
+
+		// idle connections are closed, in-flight requests are finished
+		draining = true;
+		logger.info("draining " + connections.size() + " connections");
+		for (AIOConnection connection : connections) {
+			connection.drain();
+		}
+		ThreadPoolExecutorBuilder.shutdownAndAwaitTermination(threadPool,
+				new Runnable() {
+					public void run() {
+						for (AIOConnection connection : connections) {
+							connection.close();
+						}
+					}
+				});
+		try {
+			group.shutdownNow();
+			group.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (IOException e) {
+			logger.warn("channel group could not be stopped - "
+					+ e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		logger.info("exiting listener thread");
+	}
+
+	/**
+	 * accepts next connection as soon as one is accepted
+	 */
+	private class AcceptHandler implements
+			CompletionHandler<AsynchronousSocketChannel, Void> {
+
+		public void completed(AsynchronousSocketChannel client,
+				Void attachment) {
+			serverChannel.accept(null, this);
+			onAccepted(client);
+		}
+
+		public void failed(Throwable e, Void attachment) {
+			if (e instanceof AsynchronousCloseException
+					|| !serverChannel.isOpen()) {
+				return;
+			}
+			logger.warn("  serverchannel.accept error occured - \r\n"
+					+ e.getMessage() + "\r\n" + e.toString());
+			serverChannel.accept(null, this);
+		}
+	}
+
+	private void onAccepted(AsynchronousSocketChannel client) {
+		InetAddress address;
+		try {
+			address = ((InetSocketAddress) client.getRemoteAddress())
+					.getAddress();
+		} catch (IOException e) {
+			logger.warn("client closed connection before it was served");
+			close(client);
+			return;
+		}
+		if (clientLimiter != null && !clientLimiter.tryOpenConnection(address)) {
+			logger.warn("too many connections from " + address
+					+ " .. dropping connection");
+			try {
+				client.setOption(StandardSocketOptions.SO_LINGER, 0);
+			} catch (IOException e) {
+				logger.warn("error in dropping connection - " + e.getMessage());
+			}
+			close(client);
+			return;
+		}
+
+		AIOConnection connection = new AIOConnection(client, address, this);
+		connections.add(connection);
+		// accepted while the server was stopping
+		if (draining) {
+			connection.close();
+			return;
+		}
+		connection.awaitRequest();
+	}
+
+	private static void close(AsynchronousSocketChannel client) {
+		try {
+			client.close();
+		} catch (IOException e) {
+			logger.error("error in closing connection" + e.getMessage());
+		}
+	}
+}
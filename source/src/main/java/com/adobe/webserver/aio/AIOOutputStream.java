@@ -0,0 +1,112 @@
+package com.adobe.webserver.aio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.adobe.webserver.ServerParams;
+import com.adobe.webserver.util.GatheringWriter;
+
+/**
+ * An OutputStream writing to the asynchronous channel of an
+ * {@link AIOConnection}. The writing thread waits for every write to
+ * complete.
+ * 
+ * It does not buffer anything, so it should be wrapped in a buffered stream.
+ * Several buffers can be written with one gathering write of the channel
+ * (see {@link GatheringWriter}). Closing the stream does not close the
+ * channel.
+ * 
+ * @author KHEMKA
+ * 
+ */
+class AIOOutputStream extends OutputStream implements GatheringWriter {
+
+	private final AIOConnection connection;
+
+	/**
+	 * a pending gathering write, which the writing thread waits for. The
+	 * channel fails it with {@link InterruptedByTimeoutException} if it does
+	 * not complete in {@link ServerParams#SocketSoTimeout}
+	 */
+	private static class GatheringWrite implements
+			CompletionHandler<Long, Void> {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		private long written;
+		private Throwable failure;
+
+		public void completed(Long result, Void attachment) {
+			written = result;
+			done.countDown();
+		}
+
+		public void failed(Throwable exc, Void attachment) {
+			failure = exc;
+			done.countDown();
+		}
+	}
+
+	AIOOutputStream(AIOConnection connection) {
+		this.connection = connection;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ByteBuffer source = ByteBuffer.wrap(b, off, len);
+		while (source.hasRemaining()) {
+			connection.complete(connection.getChannel().write(source));
+		}
+	}
+
+	public void write(ByteBuffer[] buffers) throws IOException {
+		long remaining = 0;
+		for (ByteBuffer buffer : buffers) {
+			remaining += buffer.remaining();
+		}
+		while (remaining > 0) {
+			GatheringWrite write = new GatheringWrite();
+			connection.getChannel().write(buffers, 0, buffers.length,
+					ServerParams.SocketSoTimeout, TimeUnit.MILLISECONDS, null,
+					write);
+			remaining -= complete(write);
+		}
+	}
+
+	/**
+	 * waits for a gathering write to complete, as
+	 * {@link AIOConnection#complete} does for other operations
+	 */
+	private long complete(GatheringWrite write) throws IOException {
+		try {
+			write.done.await();
+		} catch (InterruptedException e) {
+			connection.close();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted in read/write");
+		}
+		if (write.failure == null) {
+			return write.written;
+		}
+		if (write.failure instanceof InterruptedByTimeoutException) {
+			connection.close();
+			throw new SocketTimeoutException("client did not respond in "
+					+ ServerParams.SocketSoTimeout + " ms");
+		}
+		if (write.failure instanceof IOException) {
+			throw (IOException) write.failure;
+		}
+		throw new IOException(write.failure);
+	}
+}
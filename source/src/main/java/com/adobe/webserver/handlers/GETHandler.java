@@ -1,28 +1,54 @@
 package com.adobe.webserver.handlers;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.text.ParseException;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
 
 import org.apache.log4j.Logger;
 
 import com.adobe.webserver.IllegalRequestException;
 import com.adobe.webserver.ServerParams;
+import com.adobe.webserver.util.ByteRange;
+import com.adobe.webserver.util.ChunkedOutputStream;
+import com.adobe.webserver.util.ContentCache;
+import com.adobe.webserver.util.ContentEncoding;
+import com.adobe.webserver.util.GzipCache;
+import com.adobe.webserver.util.HeaderName;
 import com.adobe.webserver.util.Helper;
+import com.adobe.webserver.util.MappedFileCache;
 import com.adobe.webserver.util.MimeTypes;
+import com.adobe.webserver.util.Preconditions;
+import com.adobe.webserver.util.RequestHeaders;
+import com.adobe.webserver.util.ResponseTemplates;
+import com.adobe.webserver.util.Validators;
+import com.adobe.webserver.util.WebrootIndex;
 
 /**
  * The Handler class for HTTP GET Request GETHandler reads Header from client.
  * Analyses header and then sends approppriate response.
  * 
- * It Checks the header - If-Modified-Since
+ * It Checks the conditional headers - If-Match, If-Unmodified-Since,
+ * If-None-Match and If-Modified-Since (see {@link Preconditions}), and sends
+ * the ETag and Last-Modified of files. A Range is served as 206 (Partial
+ * Content), see {@link ByteRange}
+ * 
+ * Files of a compressible type are sent gzip encoded to clients accepting
+ * gzip (see {@link ContentEncoding}) - their precompressed "name.gz" file, if
+ * it is not older than the file, otherwise the copy compressed in the
+ * background. Both are held by the {@link GzipCache}, which is looked at
+ * before the disk. Ranges are served from the file as it is
  * 
  * @author KHEMKA
  * 
@@ -31,6 +57,21 @@ public class GETHandler extends HTTPMethodHandler {
 
 	private static Logger logger = Logger.getLogger(GETHandler.class.getName());
 
+	/**
+	 * boundary of multipart/byteranges bodies. Random, so it is not found in
+	 * the files sent
+	 */
+	private static final String byteRangesBoundary = UUID.randomUUID()
+			.toString().replace("-", "");
+	private static final String multipartContentType = "multipart/byteranges; boundary="
+			+ byteRangesBoundary;
+	private static final byte[] partDelimiter = (ServerParams.CRLF + "--"
+			+ byteRangesBoundary + ServerParams.CRLF).getBytes(Charset
+			.forName(ServerParams.HTTPHeadersEncoding));
+	private static final byte[] multipartEnd = (ServerParams.CRLF + "--"
+			+ byteRangesBoundary + "--" + ServerParams.CRLF).getBytes(Charset
+			.forName(ServerParams.HTTPHeadersEncoding));
+
 	/**
 	 * creates a GETHandler object.
 	 * 
@@ -38,14 +79,16 @@ public class GETHandler extends HTTPMethodHandler {
 	 *            stream connected to client
 	 * @param byteStreamBufferedOut
 	 *            stream connected to client
-	 * @param charStreamBufferedOut
-	 *            stream connected to client
+	 * @param httpVersion
+	 *            HTTP-Version of request-line
+	 * @param keepAliveAllowed
+	 *            false if the connection must be closed after this request
 	 */
 	public GETHandler(BufferedInputStream byteStreamBufferedIn,
-			BufferedOutputStream byteStreamBufferedOut,
-			BufferedWriter charStreamBufferedOut) {
-		super(byteStreamBufferedIn, byteStreamBufferedOut,
-				charStreamBufferedOut);
+			OutputStream byteStreamBufferedOut, String httpVersion,
+			boolean keepAliveAllowed) {
+		super(byteStreamBufferedIn, byteStreamBufferedOut, httpVersion,
+				keepAliveAllowed);
 
 	}
 
@@ -54,166 +97,485 @@ public class GETHandler extends HTTPMethodHandler {
 	 */
 	public void handle(String requestURI) throws IOException,
 			IllegalRequestException {
-		HashMap<String, String> header = getHeader();
+		RequestHeaders header = getHeader();
+
+		WebrootIndex.Entry entity = null;
+		if (WebrootIndex.getInstance() != null) {
+			// answered from memory, so a removed file is not served from the
+			// caches till they check it
+			entity = findRquestedEntity(requestURI);
+			if (entity == null) {
+				sendNotFound(requestURI);
+				return;
+			}
+		}
 
-		if ((requestURI = decodeURI(requestURI)) == null) {
+		String contentType = (entity != null) ? entity.getContentType()
+				: MimeTypes.getInstance().guessMimeTypeFromFileName(
+						resolvePath(requestURI));
+		if (ContentEncoding.isNegotiated(contentType)
+				&& header.get(HeaderName.RANGE) == null
+				&& ContentEncoding.acceptsGzip(header
+						.get(HeaderName.ACCEPT_ENCODING))) {
+			if (sendCompressed(header, requestURI, entity, contentType)) {
+				return;
+			}
+		}
+
+		ContentCache contentCache = ContentCache.getInstance();
+		ContentCache.Entry cached = contentCache.get(requestURI);
+		if (cached != null) {
+			if (checkPreconditions(header, cached.getValidators(),
+					cached.getContentType())) {
+				sendCachedContent(header, cached);
+			}
+			return;
+		}
+		MappedFileCache mappedCache = MappedFileCache.getInstance();
+		MappedFileCache.Entry mapped = mappedCache.acquire(requestURI);
+		if (mapped != null) {
+			try {
+				if (checkPreconditions(header, mapped.getValidators(),
+						mapped.getContentType())) {
+					sendMappedContent(header, mapped);
+				}
+			} finally {
+				mappedCache.release(mapped);
+			}
 			return;
 		}
 
-		File file = findRquestedEntity(requestURI);
+		if (entity == null) {
+			entity = findRquestedEntity(requestURI);
+		}
 
 		// resource not found on server
-		if (file == null) {
-			Helper.sendClientMessage("404", "Not Found", null,
-					"the file you requested - " + requestURI
-							+ " does not exist on server" + "<hr>",
-					charStreamBufferedOut, byteStreamBufferedOut);
-			logger.info("file requested does not exist - " + requestURI);
+		if (entity == null) {
+			sendNotFound(requestURI);
 			return;
 		}
 
 		// resource is a directory
-		if (file.isDirectory()) {
-			sendDirContentList(file, requestURI);
+		if (entity.isDirectory()) {
+			sendDirContentList(entity, requestURI);
 			return;
 		}
 
-		if (isModified(header, file) == false) {
+		if (checkPreconditions(header, entity.getValidators(),
+				entity.getContentType()) == false) {
 			return;
 		}
 
-		BufferedInputStream resourceIS = null;
+		File file = entity.getFile();
+
+		FileInputStream resourceIS = null;
 		try {
 			resourceIS = getResourceStream(file);
 
 			if (resourceIS == null)
 				return;
 
-			int checkByte = getCheckByte(resourceIS, requestURI);
-
-			if (checkByte >= -1) {
-				sendClientMessage(file, resourceIS, checkByte);
+			cached = contentCache.load(requestURI, file, resourceIS,
+					entity.getContentType());
+			if (cached != null) {
+				sendCachedContent(header, cached);
+				return;
+			}
+			mapped = mappedCache.load(requestURI, file, resourceIS,
+					entity.getContentType());
+			if (mapped != null) {
+				try {
+					sendMappedContent(header, mapped);
+				} finally {
+					mappedCache.release(mapped);
+				}
+			} else {
+				sendClientMessage(header, entity, resourceIS);
 			}
 
 		} finally {
-			resourceIS.close();
+			if (resourceIS != null)
+				resourceIS.close();
 		}
 
 	}
 
+	private void sendNotFound(String requestURI) throws IOException {
+		Helper.sendClientMessage("404", "Not Found", null,
+				"the file you requested - " + requestURI
+						+ " does not exist on server" + "<hr>",
+				byteStreamBufferedOut, keepAlive);
+		logger.info("file requested does not exist - " + requestURI);
+	}
+
 	/**
 	 * looks request URI and tries to find out the corresponding file requested
 	 * in the GET request. Used to find the resource by GET handler. if the
 	 * requested resource is not found it returns null If requestURI equals "/"
 	 * it return index.html
 	 * 
+	 * The path is looked up in the {@link WebrootIndex}, if the server keeps
+	 * one, otherwise on the disk
+	 * 
 	 * @param requestURI
+	 *            normalized path, which can't leave the webroot
 	 * @return the resource identified by requestURI, if it exist . null
 	 *         otherwise
 	 */
-	private static File findRquestedEntity(String requestURI) {
-		File requestedEntity = null;
+	private static WebrootIndex.Entry findRquestedEntity(String requestURI) {
+		requestURI = resolvePath(requestURI);
+
+		WebrootIndex index = WebrootIndex.getInstance();
+		if (index != null) {
+			return index.get(requestURI);
+		}
+		return WebrootIndex.readEntry(new File(ServerParams.WWW_PATH,
+				requestURI.replace('/', File.separatorChar)));
+	}
 
+	/**
+	 * @return path of the file requested - the request URI, or /index.html
+	 *         for "/"
+	 */
+	private static String resolvePath(String requestURI) {
 		if (requestURI.equals(ServerParams.URISeparator)) {
-			requestedEntity = new File(ServerParams.WWW_PATH + File.separator
-					+ "index.html");
-		} else {
-			String[] pathList = requestURI.split(ServerParams.URISeparator);
-			StringBuffer path = new StringBuffer(50);
-			for (int i = 0; i < pathList.length; i++) {
-				if (pathList[i] != null && pathList[i].length() > 0)
-					path.append(File.separator + pathList[i]);
-			}
-			requestedEntity = new File(ServerParams.WWW_PATH + path.toString());
+			return ServerParams.URISeparator + "index.html";
 		}
+		return requestURI;
+	}
 
-		if (requestedEntity != null && requestedEntity.exists()) {
-			return requestedEntity;
+	/**
+	 * sends the file gzip encoded from the {@link GzipCache}. A file not
+	 * found there (nor being compressed) is looked up on the disk once - its
+	 * precompressed "name.gz" file is read into the cache, or the file is
+	 * queued for compression, and sent as it is meanwhile
+	 * 
+	 * @param entity
+	 *            the file requested, null if it is not looked up yet
+	 * @return false if the file is to be sent as it is
+	 */
+	private boolean sendCompressed(RequestHeaders header, String requestURI,
+			WebrootIndex.Entry entity, String contentType) throws IOException {
+		GzipCache gzipCache = GzipCache.getInstance();
+		GzipCache.Entry gzipped = gzipCache.get(requestURI);
+		if (gzipped == null) {
+			if (gzipCache.isPending(requestURI)) {
+				return false;
+			}
+			if (entity == null) {
+				entity = findRquestedEntity(requestURI);
+				if (entity == null || entity.isDirectory()) {
+					return false;
+				}
+			}
+			if (ServerParams.GZIP_STATIC) {
+				WebrootIndex.Entry precompressed = findRquestedEntity(resolvePath(requestURI)
+						+ ".gz");
+				// an older one is left from a previous version of the file
+				if (precompressed != null && !precompressed.isDirectory()
+						&& precompressed.getLastModified() >= entity
+								.getLastModified()) {
+					try {
+						gzipped = gzipCache.load(requestURI,
+								precompressed.getFile(), entity.getFile(),
+								contentType);
+					} catch (FileNotFoundException e) {
+						return false; // removed since it was looked up
+					}
+					if (gzipped == null) {
+						return sendPrecompressed(header, precompressed,
+								contentType);
+					}
+				}
+			}
+			if (gzipped == null) {
+				gzipCache.compressLater(requestURI, entity.getFile(),
+						entity.getLastModified(), entity.getSize(),
+						contentType);
+				return false;
+			}
 		}
-		return null;
 
+		if (!gzipped.isCompressed()) {
+			return false;
+		}
+		if (checkPreconditions(header, gzipped.getValidators(), contentType)) {
+			ResponseTemplates.writeHead(byteStreamBufferedOut, "200", "OK",
+					keepAlive);
+			byteStreamBufferedOut.write(gzipped.getHeaders());
+			byteStreamBufferedOut.write(gzipped.getBody());
+		}
+		return true;
 	}
 
-	private void sendDirContentList(File directory, String requestURI)
+	/**
+	 * sends the "name.gz" file of a file from the disk, when it is not held
+	 * by the {@link GzipCache}, with the media type of the file. Its
+	 * validators are those of the "name.gz" file
+	 * 
+	 * @return false if it can't be opened
+	 */
+	private boolean sendPrecompressed(RequestHeaders header,
+			WebrootIndex.Entry precompressed, String contentType)
 			throws IOException {
-		File[] list = directory.listFiles();
-		StringBuffer htmlLinks = new StringBuffer(100);
-		for (int i = 0; i < list.length; i++) {
-			htmlLinks.append("<a href=\"" + requestURI
-					+ ServerParams.URISeparator + list[i].getName() + "\">"
-					+ list[i].getName() + "</a></BR>");
+		FileInputStream fileIS;
+		try {
+			fileIS = new FileInputStream(precompressed.getFile());
+		} catch (FileNotFoundException e) {
+			return false; // removed since it was looked up
 		}
-
-		Helper.sendClientMessage(
-				"200",
-				"OK",
-				null,
-				"The location you requested is a folder. Please follow links below to browse through the files .. <hr>"
-						+ htmlLinks.toString(), charStreamBufferedOut,
-				byteStreamBufferedOut);
-		return;
+		try {
+			if (checkPreconditions(header, precompressed.getValidators(),
+					contentType) == false) {
+				return true;
+			}
+			long length = fileIS.getChannel().size();
+			ResponseTemplates.writeHead(byteStreamBufferedOut, "200", "OK",
+					keepAlive);
+			ResponseTemplates.writeContentLength(byteStreamBufferedOut, length);
+			if (contentType != null) {
+				ResponseTemplates.writeContentType(byteStreamBufferedOut,
+						contentType);
+			}
+			ResponseTemplates.writeGzipEncoding(byteStreamBufferedOut);
+			ResponseTemplates.writeVary(byteStreamBufferedOut);
+			byteStreamBufferedOut.write(precompressed.getValidators()
+					.getHeaders());
+			ResponseTemplates.endHead(byteStreamBufferedOut);
+			Helper.writeFile(fileIS, 0, length, byteStreamBufferedOut);
+		} finally {
+			fileIS.close();
+		}
+		return true;
 	}
 
-	private int getCheckByte(InputStream resourceIS, String requestURI)
-			throws IOException {
-		int checkByte = -1;
+	/**
+	 * sends links to the entries of the directory. The names are taken from
+	 * the index, or read from the disk while the page is sent, so a huge
+	 * directory is never held in memory
+	 */
+	private void sendDirContentList(WebrootIndex.Entry directory,
+			String requestURI) throws IOException {
+		ChunkedOutputStream body = startStreamedMessage("200", "OK");
 		try {
-			checkByte = resourceIS.read();
-		} catch (IOException e) {
-			Helper.sendClientMessage("404", "Not Found", null,
-					"the file you requested - " + requestURI
-							+ " does not exist on server" + "<hr>",
-					charStreamBufferedOut, byteStreamBufferedOut);
-			logger.info("file requested does not exist - " + requestURI);
-			return -2;
+			body.print("The location you requested is a folder. Please follow links below to browse through the files .. <hr>");
+			Iterable<String> names = directory.getChildren();
+			if (names != null) {
+				for (String name : names) {
+					printLink(body, requestURI, name);
+				}
+			} else {
+				DirectoryStream<Path> list = Files.newDirectoryStream(directory
+						.getFile().toPath());
+				try {
+					for (Path entry : list) {
+						printLink(body, requestURI, entry.getFileName()
+								.toString());
+					}
+				} catch (DirectoryIteratorException e) {
+					throw e.getCause();
+				} finally {
+					list.close();
+				}
+			}
+			Helper.endClientMessage(body);
+		} finally {
+			body.finish();
 		}
-		return checkByte;
+	}
 
+	private static void printLink(ChunkedOutputStream body, String requestURI,
+			String name) throws IOException {
+		body.print("<a href=\"" + requestURI + ServerParams.URISeparator
+				+ name + "\">" + name + "</a></BR>");
 	}
 
-	private void sendClientMessage(File file, InputStream fileIS, int checkByte)
+	/**
+	 * sends the file, or the ranges of it requested. Its bytes go from the
+	 * file to the connection without crossing the heap, if the connection
+	 * allows (see {@link Helper#writeFile})
+	 */
+	private void sendClientMessage(RequestHeaders header,
+			WebrootIndex.Entry entity, final FileInputStream fileIS)
 			throws IOException {
-		charStreamBufferedOut.write("HTTP/1.1 200 OK");
-		charStreamBufferedOut.write(ServerParams.CRLF);
+		// length of the open file, which the bytes sent match
+		long length = fileIS.getChannel().size();
+		String contentType = entity.getContentType();
+		FileBody body = new FileBody() {
+			public void write(long position, long count) throws IOException {
+				Helper.writeFile(fileIS, position, count,
+						byteStreamBufferedOut);
+			}
+		};
+		if (sendRanges(header, length, contentType, entity.getValidators(),
+				body)) {
+			return;
+		}
 
-		charStreamBufferedOut.write(Helper.getCommonHeaders());
+		ResponseTemplates.writeHead(byteStreamBufferedOut, "200", "OK",
+				keepAlive);
+		ResponseTemplates.writeContentLength(byteStreamBufferedOut, length);
 
-		charStreamBufferedOut.write("Content-length: " + file.length());
-		charStreamBufferedOut.write(ServerParams.CRLF);
+		if (contentType != null) {
+			ResponseTemplates.writeContentType(byteStreamBufferedOut,
+					contentType);
+		}
+		ResponseTemplates.writeAcceptRanges(byteStreamBufferedOut);
+		writeVary(contentType);
+		byteStreamBufferedOut.write(entity.getValidators().getHeaders());
 
-		String contentType = null;
-		if (file.getName() != null) {
-			try {
-				contentType = MimeTypes.getInstance()
-						.guessMimeTypeFromFileName(file.getName());
-			} catch (IOException e) {
-				logger.error("mime type could not be determined");
-			}
+		ResponseTemplates.endHead(byteStreamBufferedOut);
+
+		body.write(0, length);
+	}
+
+	/**
+	 * sends a file held by the {@link ContentCache}, or the ranges of it
+	 * requested
+	 */
+	private void sendCachedContent(RequestHeaders header,
+			ContentCache.Entry cached) throws IOException {
+		final byte[] content = cached.getBody();
+		if (sendRanges(header, content.length, cached.getContentType(),
+				cached.getValidators(), new FileBody() {
+					public void write(long position, long count)
+							throws IOException {
+						byteStreamBufferedOut.write(content, (int) position,
+								(int) count);
+					}
+				})) {
+			return;
+		}
+		ResponseTemplates.writeHead(byteStreamBufferedOut, "200", "OK",
+				keepAlive);
+		byteStreamBufferedOut.write(cached.getHeaders());
+		byteStreamBufferedOut.write(content);
+	}
+
+	/**
+	 * sends a file mapped by the {@link MappedFileCache}, or the ranges of it
+	 * requested. The entry must be held till this returns
+	 */
+	private void sendMappedContent(RequestHeaders header,
+			MappedFileCache.Entry mapped) throws IOException {
+		final ByteBuffer content = mapped.getBody();
+		if (sendRanges(header, content.capacity(), mapped.getContentType(),
+				mapped.getValidators(), new FileBody() {
+					public void write(long position, long count)
+							throws IOException {
+						content.limit((int) (position + count));
+						content.position((int) position);
+						Helper.writeBuffer(content, byteStreamBufferedOut);
+					}
+				})) {
+			return;
 		}
+		ResponseTemplates.writeHead(byteStreamBufferedOut, "200", "OK",
+				keepAlive);
+		byteStreamBufferedOut.write(mapped.getHeaders());
+		Helper.writeBuffer(content, byteStreamBufferedOut);
+	}
 
-		if (contentType != null) {
-			charStreamBufferedOut.write("Content-Type: " + contentType);
-			charStreamBufferedOut.write(ServerParams.CRLF);
+	/**
+	 * bytes of a file sent, wherever the server holds them
+	 */
+	private interface FileBody {
+
+		/**
+		 * writes bytes [position, position + count) of the file to the
+		 * client
+		 */
+		void write(long position, long count) throws IOException;
+	}
+
+	/**
+	 * sends the ranges of the file asked for by the Range header (see
+	 * {@link ByteRange}) - one range as the body of a 206, several as a
+	 * multipart/byteranges body - or 416 if none is in the file
+	 * 
+	 * @return false if the whole file is to be sent - there is no Range, it
+	 *         is ignored, or If-Range names another version of the file
+	 */
+	private boolean sendRanges(RequestHeaders header, long length,
+			String contentType, Validators validators, FileBody body)
+			throws IOException {
+		String range = header.get(HeaderName.RANGE);
+		if (range == null
+				|| !Preconditions.isRangeApplicable(header, validators)) {
+			return false;
+		}
+		List<ByteRange> ranges = ByteRange.parse(range, length);
+		if (ranges == null) {
+			return false;
+		}
+		if (ranges.isEmpty()) {
+			Helper.sendClientMessage("416", "Range Not Satisfiable",
+					new String[] { "Content-Range: bytes */" + length },
+					"the range you requested is not in the file<hr>",
+					byteStreamBufferedOut, keepAlive);
+			return true;
 		}
 
-		charStreamBufferedOut.write(ServerParams.CRLF);
-		charStreamBufferedOut.flush();
+		ResponseTemplates.writeHead(byteStreamBufferedOut, "206",
+				"Partial Content", keepAlive);
+		if (ranges.size() == 1) {
+			ByteRange part = ranges.get(0);
+			ResponseTemplates.writeContentRange(byteStreamBufferedOut,
+					part.getStart(), part.getEnd(), length);
+			ResponseTemplates.writeContentLength(byteStreamBufferedOut,
+					part.getLength());
+			if (contentType != null) {
+				ResponseTemplates.writeContentType(byteStreamBufferedOut,
+						contentType);
+			}
+			writeVary(contentType);
+			byteStreamBufferedOut.write(validators.getHeaders());
+			ResponseTemplates.endHead(byteStreamBufferedOut);
+			body.write(part.getStart(), part.getLength());
+			return true;
+		}
 
-		if (checkByte > -1) {
-			byteStreamBufferedOut.write(checkByte);
-			Helper.readAndWriteByteStream(fileIS, byteStreamBufferedOut, -1L);
+		// heads of the parts, so the length of the body is known
+		byte[][] partHeads = new byte[ranges.size()][];
+		long bodyLength = multipartEnd.length;
+		ByteArrayOutputStream partHead = new ByteArrayOutputStream(128);
+		for (int i = 0; i < partHeads.length; i++) {
+			ByteRange part = ranges.get(i);
+			partHead.reset();
+			partHead.write(partDelimiter);
+			if (contentType != null) {
+				ResponseTemplates.writeContentType(partHead, contentType);
+			}
+			ResponseTemplates.writeContentRange(partHead, part.getStart(),
+					part.getEnd(), length);
+			ResponseTemplates.endHead(partHead);
+			partHeads[i] = partHead.toByteArray();
+			bodyLength += partHeads[i].length + part.getLength();
+		}
+		ResponseTemplates.writeContentType(byteStreamBufferedOut,
+				multipartContentType);
+		ResponseTemplates.writeContentLength(byteStreamBufferedOut, bodyLength);
+		writeVary(contentType);
+		byteStreamBufferedOut.write(validators.getHeaders());
+		ResponseTemplates.endHead(byteStreamBufferedOut);
+		for (int i = 0; i < partHeads.length; i++) {
+			ByteRange part = ranges.get(i);
+			byteStreamBufferedOut.write(partHeads[i]);
+			body.write(part.getStart(), part.getLength());
 		}
+		byteStreamBufferedOut.write(multipartEnd);
+		return true;
 	}
 
-	private BufferedInputStream getResourceStream(File file) throws IOException {
-		BufferedInputStream fileIS = null;
+	private FileInputStream getResourceStream(File file) throws IOException {
+		FileInputStream fileIS = null;
 		try {
-			fileIS = new BufferedInputStream(new FileInputStream(file));
+			fileIS = new FileInputStream(file);
 		} catch (FileNotFoundException e1) {
 			Helper.sendClientMessage("404", "Not Found", null,
 					"the file you requested - " + file.getName()
 							+ " does not exist on server" + "<hr>",
-					charStreamBufferedOut, byteStreamBufferedOut);
+					byteStreamBufferedOut, keepAlive);
 			logger.info("file requested does not exist - " + file.getName());
 
 			return null;
@@ -223,33 +585,44 @@ public class GETHandler extends HTTPMethodHandler {
 
 	}
 
-	private boolean isModified(HashMap<String, String> headerMap, File file)
-			throws IOException {
-
-		if (headerMap.containsKey("If-Modified-Since"))
-
-		{
-			try {
-				long clientCopyDate = Helper.parseHTTPdate(
-						headerMap.get("If-Modified-Since")).getTime();
-				long serverCopyDate = file.lastModified();
-				if (clientCopyDate > serverCopyDate) {
-					charStreamBufferedOut.write(Helper
-							.createResponseMessageWithoutBody("304",
-									"Not Modified", null));
-					charStreamBufferedOut.flush();
-					return false;
-				}
-			} catch (ParseException e) {
-				logger.error("could not verify 'If-Modified-Since' header .. sending the file");
-				Helper.sendClientMessage("400", " Bad Request", null,
-						"date value in if-Modified-Since can't be parsed - "
-								+ headerMap.get("If-Modified-Since") + "<hr>",
-						charStreamBufferedOut, byteStreamBufferedOut);
-				return false;
-			}
+	/**
+	 * evaluates the conditional headers of the request (see
+	 * {@link Preconditions}), and sends 304 or 412 if the file is not to be
+	 * sent. A 304 carries the validators of the file, so the client keeps
+	 * them current, and Vary as the file would
+	 * 
+	 * @param contentType
+	 *            media type of the file, null if not known
+	 * @return true if the file is to be sent
+	 */
+	private boolean checkPreconditions(RequestHeaders headers,
+			Validators validators, String contentType) throws IOException {
+		int status = Preconditions.evaluate(headers, validators);
+		if (status == 304) {
+			ResponseTemplates.writeHead(byteStreamBufferedOut, "304",
+					"Not Modified", keepAlive);
+			writeVary(contentType);
+			byteStreamBufferedOut.write(validators.getHeaders());
+			ResponseTemplates.endHead(byteStreamBufferedOut);
+			byteStreamBufferedOut.flush();
+			return false;
+		}
+		if (status == 412) {
+			Helper.sendClientMessage("412", "Precondition Failed", null,
+					"the file you requested has changed<hr>",
+					byteStreamBufferedOut, keepAlive);
+			return false;
 		}
 		return true;
 	}
 
+	/**
+	 * writes "Vary: Accept-Encoding" if the file may be sent compressed
+	 */
+	private void writeVary(String contentType) throws IOException {
+		if (ContentEncoding.isNegotiated(contentType)) {
+			ResponseTemplates.writeVary(byteStreamBufferedOut);
+		}
+	}
+
 }
@@ -1,19 +1,17 @@
 package com.adobe.webserver.handlers;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.util.HashMap;
+import java.io.OutputStream;
 
 import org.apache.log4j.Logger;
 
 import com.adobe.webserver.ClientHandler;
 import com.adobe.webserver.IllegalRequestException;
-import com.adobe.webserver.ServerParams;
+import com.adobe.webserver.util.ChunkedOutputStream;
+import com.adobe.webserver.util.HTTPRequestParser;
 import com.adobe.webserver.util.Helper;
+import com.adobe.webserver.util.RequestHeaders;
 
 /**
  * It Is the base class for all Handlers for specific HTTP Methods
@@ -26,14 +24,40 @@ import com.adobe.webserver.util.Helper;
  * 
  * they must implement the handle method(which is a abstract method)
  * 
+ * The connection is kept open for further requests if {@link #isKeepAlive()}
+ * returns true after handle. It is decided by {@link #getHeader()} from the
+ * request header. An implementor must set {@link #keepAlive} to false if it
+ * responds without reading the complete request body.
+ * 
+ * A handler may be reused for next requests (see
+ * {@link #reset(String, boolean)}), so an implementor must not keep state of
+ * a request in its fields beyond handle.
+ * 
  * @author KHEMKA
  * 
  */
 public abstract class HTTPMethodHandler {
 
 	protected BufferedInputStream byteStreamBufferedIn;
-	protected BufferedOutputStream byteStreamBufferedOut;
-	protected BufferedWriter charStreamBufferedOut;
+	protected OutputStream byteStreamBufferedOut;
+
+	/**
+	 * HTTP-Version of request-line
+	 */
+	protected String httpVersion;
+
+	/**
+	 * true if the connection is kept open after the response. It is used for
+	 * the Connection header of the response.
+	 */
+	protected boolean keepAlive = false;
+
+	private boolean keepAliveAllowed;
+
+	/**
+	 * request-line and header of the request. null till the header is read
+	 */
+	private HTTPRequestParser requestHead = null;
 
 	private static Logger logger = Logger.getLogger(ClientHandler.class
 			.getName());
@@ -43,62 +67,119 @@ public abstract class HTTPMethodHandler {
 	 * 
 	 * @param byteStreamBufferedIn
 	 * @param byteStreamBufferedOut
-	 * @param charStreamBufferedOut
+	 * @param httpVersion
+	 *            HTTP-Version of request-line
+	 * @param keepAliveAllowed
+	 *            false if the connection must be closed after this request,
+	 *            whatever the client asks for
 	 */
 	public HTTPMethodHandler(BufferedInputStream byteStreamBufferedIn,
-			BufferedOutputStream byteStreamBufferedOut,
-			BufferedWriter charStreamBufferedOut) {
+			OutputStream byteStreamBufferedOut, String httpVersion,
+			boolean keepAliveAllowed) {
 		this.byteStreamBufferedIn = byteStreamBufferedIn;
 		this.byteStreamBufferedOut = byteStreamBufferedOut;
-		this.charStreamBufferedOut = charStreamBufferedOut;
+		this.httpVersion = httpVersion;
+		this.keepAliveAllowed = keepAliveAllowed;
+	}
+
+	/**
+	 * prepares the handler for next request, so one handler serves all
+	 * requests of its method on a connection
+	 * 
+	 * @param httpVersion
+	 *            HTTP-Version of request-line
+	 * @param keepAliveAllowed
+	 *            false if the connection must be closed after this request,
+	 *            whatever the client asks for
+	 */
+	public void reset(String httpVersion, boolean keepAliveAllowed) {
+		this.httpVersion = httpVersion;
+		this.keepAliveAllowed = keepAliveAllowed;
+		this.keepAlive = false;
+		this.requestHead = null;
+	}
+
+	/**
+	 * moves the handler to another connection
+	 * 
+	 * @param byteStreamBufferedIn
+	 *            stream connected to client
+	 */
+	public void setInputStream(BufferedInputStream byteStreamBufferedIn) {
+		this.byteStreamBufferedIn = byteStreamBufferedIn;
 	}
 
 	/**
-	 * reads header from client and stores it into a HashMap.
+	 * @param requestHead
+	 *            request-line and header of the request, already read from
+	 *            client. If not set, {@link #getHeader()} reads the header
+	 *            from the input stream
+	 */
+	public void setRequestHead(HTTPRequestParser requestHead) {
+		this.requestHead = requestHead;
+	}
+
+	/**
+	 * @return true if the connection can be used for next request after this
+	 *         request is handled
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * gets header of the request, reading it from client unless it is
+	 * already read. It also decides if the connection is kept open after the
+	 * response
 	 * 
-	 * @return the HashMap of key value pairs of header
+	 * @return the header fields, valid till the request is handled
 	 * @throws IOException
 	 *             when read/write error occurs
 	 * @throws IllegalRequestException
 	 *             if an invalid header is sent
 	 */
-	protected HashMap<String, String> getHeader() throws IOException,
+	protected RequestHeaders getHeader() throws IOException,
 			IllegalRequestException {
-		String messageHeader = Helper
-				.readHeaderFromClient(this.byteStreamBufferedIn);
-		return Helper.convertHTTPHeaderToHashMap(messageHeader);
+		if (requestHead == null) {
+			requestHead = new HTTPRequestParser();
+			requestHead.parseHeader(this.byteStreamBufferedIn);
+		}
+		RequestHeaders headers = requestHead.getHeaders();
+		keepAlive = keepAliveAllowed
+				&& Helper.isPersistentConnection(httpVersion, headers);
+		return headers;
 	}
 
 	/**
-	 * URI passed in request-line is generally encoded. for processing request
-	 * this must be decoded This method decodes such URI.
+	 * starts a message whose body message is generated while it is sent (see
+	 * {@link Helper#startClientMessage}), so it is never held whole in
+	 * memory. The body is chunked, unless the client is HTTP/1.0, whose
+	 * connection is then closed after the response
 	 * 
-	 * @param requestURI
-	 *            the uri to decode
-	 * @return decoded uri. null if it can't decode.
-	 * @throws IOException when some read write occurs
+	 * @param statusCode
+	 *            http response code
+	 * @param statusMessage
+	 *            http response message
+	 * @return the stream to write the body message to
+	 * @throws IOException
+	 *             when read/write error occurs
 	 */
-	protected String decodeURI(String requestURI) throws IOException {
-		String decodedURI = null;
-		try {
-			decodedURI = URLDecoder
-					.decode(requestURI, ServerParams.URLEncoding);
-		} catch (UnsupportedEncodingException e2) {
-			logger.error("request uri could not decoded . " + e2.getMessage());
-			Helper.sendClientMessage("500", "Internal Server Error", null,
-					"url could not be decoded .. thats all we know",
-					charStreamBufferedOut, byteStreamBufferedOut);
+	protected ChunkedOutputStream startStreamedMessage(String statusCode,
+			String statusMessage) throws IOException {
+		boolean chunked = !"HTTP/1.0".equals(httpVersion);
+		if (!chunked) {
+			keepAlive = false;
 		}
-
-		return decodedURI;
-
+		return Helper.startClientMessage(statusCode, statusMessage, null,
+				byteStreamBufferedOut, chunked, keepAlive);
 	}
-	
+
 	/**
 	 * this method reads header/ analyses header and responds accordingly.
 	 * don't close the streams . 
 	 * 
-	 * @param requestURI the request-uri in request-line
+	 * @param requestURI the path requested, decoded and normalized, see
+	 *            {@link HTTPRequestParser#getRequestPath()}
 	 * @throws IOException if some read/write error occurs
 	 * @throws IllegalRequestException when request is not properly formed
 	 */
@@ -2,7 +2,6 @@ package com.adobe.webserver.handlers;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -16,7 +15,10 @@ import java.util.HashMap;
 import org.apache.log4j.Logger;
 
 import com.adobe.webserver.IllegalRequestException;
+import com.adobe.webserver.util.HTTPRequestParser;
+import com.adobe.webserver.util.HeaderName;
 import com.adobe.webserver.util.Helper;
+import com.adobe.webserver.util.RequestHeaders;
 
 /**
  * handles multipart body in POST request by client
@@ -27,18 +29,15 @@ import com.adobe.webserver.util.Helper;
 class MultipartHandler {
 
 	protected BufferedInputStream byteStreamBufferedIn;
-	protected BufferedOutputStream byteStreamBufferedOut;
-	protected BufferedWriter charStreamBufferedOut;
+	protected OutputStream byteStreamBufferedOut;
 
 	private static Logger logger = Logger.getLogger(MultipartHandler.class
 			.getName());
 
 	public MultipartHandler(BufferedInputStream byteStreamBufferedIn,
-			BufferedOutputStream byteStreamBufferedOut,
-			BufferedWriter charStreamBufferedOut) {
+			OutputStream byteStreamBufferedOut) {
 		this.byteStreamBufferedIn = byteStreamBufferedIn;
 		this.byteStreamBufferedOut = byteStreamBufferedOut;
-		this.charStreamBufferedOut = charStreamBufferedOut;
 	}
 
 	/**
@@ -177,14 +176,15 @@ class MultipartHandler {
 		}
 	}
 
-	private String analyseHeaders(HashMap<String, String> headerMap)
+	private String analyseHeaders(RequestHeaders headers)
 			throws IOException {
 		String fileName = "";
 		// in case there is an error
 		String errorText = null;
 
-		if (headerMap.containsKey("Content-Disposition")) {
-			String contentDisposition = headerMap.get("Content-Disposition");
+		if (headers.contains(HeaderName.CONTENT_DISPOSITION)) {
+			String contentDisposition = headers
+					.get(HeaderName.CONTENT_DISPOSITION);
 
 			if (contentDisposition != null) {
 				HashMap<String, String> contentDispositionMap = Helper
@@ -210,7 +210,7 @@ class MultipartHandler {
 		if (fileName == null) {
 			logger.error(errorText);
 			Helper.sendClientMessage("400", " Bad Request", null, errorText
-					+ "<hr>", charStreamBufferedOut, byteStreamBufferedOut);
+					+ "<hr>", byteStreamBufferedOut, false);
 			return null;
 		}
 
@@ -275,7 +275,6 @@ class MultipartHandler {
 	 * provided.
 	 * 
 	 * @param byteStreamBufferedIn
-	 * @param charStreamBufferedOut
 	 * @param byteStreamBufferedOut
 	 * @param boundary
 	 *            is '--' + boundary(from header)
@@ -291,15 +290,12 @@ class MultipartHandler {
 		int[] next = prekmp(boundary);
 		seakBoundary(byteStreamBufferedIn, boundary, next);
 		ArrayList<String> filesUploaded = new ArrayList<String>(5);
+		HTTPRequestParser partHeader = new HTTPRequestParser();
 
 		while (!isMessageBodyEnd(byteStreamBufferedIn)) {
 
-			String messageHeader = Helper
-					.readHeaderFromClient(this.byteStreamBufferedIn);
-			HashMap<String, String> headerMap = Helper
-					.convertHTTPHeaderToHashMap(messageHeader);
-
-			String fileName = analyseHeaders(headerMap);
+			partHeader.parseHeader(this.byteStreamBufferedIn);
+			String fileName = analyseHeaders(partHeader.getHeaders());
 			if (fileName == null)
 				return null;
 
@@ -1,10 +1,9 @@
 package com.adobe.webserver.handlers;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -13,7 +12,12 @@ import org.apache.log4j.Logger;
 
 import com.adobe.webserver.IllegalRequestException;
 import com.adobe.webserver.ServerParams;
+import com.adobe.webserver.util.BufferPool;
+import com.adobe.webserver.util.ChunkedOutputStream;
+import com.adobe.webserver.util.HeaderName;
 import com.adobe.webserver.util.Helper;
+import com.adobe.webserver.util.RequestHeaders;
+import com.adobe.webserver.util.WebrootIndex;
 
 /**
  * POSTHandler handles all POST requests.
@@ -41,13 +45,14 @@ public class POSTHandler extends HTTPMethodHandler {
 	 * creates a POSTHandler
 	 * @param byteStreamBufferedIn stream connected to client
 	 * @param byteStreamBufferedOut stream connected to client
-	 * @param charStreamBufferedOut stream connected to client
+	 * @param httpVersion HTTP-Version of request-line
+	 * @param keepAliveAllowed false if the connection must be closed after this request
 	 */
 	public POSTHandler(BufferedInputStream byteStreamBufferedIn,
-			BufferedOutputStream byteStreamBufferedOut,
-			BufferedWriter charStreamBufferedOut) {
-		super(byteStreamBufferedIn, byteStreamBufferedOut,
-				charStreamBufferedOut);
+			OutputStream byteStreamBufferedOut, String httpVersion,
+			boolean keepAliveAllowed) {
+		super(byteStreamBufferedIn, byteStreamBufferedOut, httpVersion,
+				keepAliveAllowed);
 	}
 
 	/**
@@ -102,7 +107,7 @@ public class POSTHandler extends HTTPMethodHandler {
 	 * analyses header and extracts required information out of it.
 	 * 
 	 * 
-	 * @param headerMap
+	 * @param headers
 	 * @return some properties(extracted from header) to be used by caller - 
 	 * 1. Content-Length
 	 * 2. multipart
@@ -117,7 +122,7 @@ public class POSTHandler extends HTTPMethodHandler {
 	 * @throws IOException
 	 */
 	private HashMap<String, Object> analyseHeaders(
-			HashMap<String, String> headerMap) throws IOException {
+			RequestHeaders headers) throws IOException {
 		HashMap<String, Object> properties = new HashMap<String, Object>(5);
 
 		boolean isMultipart = false;
@@ -125,9 +130,10 @@ public class POSTHandler extends HTTPMethodHandler {
 		String[] contentTypeSplitted = null;
 
 		long length = -1;
-		if (headerMap.containsKey(_contentLengthHeaderKey)) {
+		String contentLength = headers.get(HeaderName.CONTENT_LENGTH);
+		if (contentLength != null) {
 			try {
-				length = Long.parseLong(headerMap.get(_contentLengthHeaderKey));
+				length = Long.parseLong(contentLength);
 			} catch (NumberFormatException e) {
 
 			}
@@ -135,17 +141,18 @@ public class POSTHandler extends HTTPMethodHandler {
 
 		if (length < 0) {
 			logger.error(_contentLengthHeaderKey + " should be properly set ");
+			// body can't be skipped without its length
+			keepAlive = false;
 			Helper.sendClientMessage("400", " Bad Request", null,
 					_contentLengthHeaderKey + " should be properly set"
-							+ "<hr>", charStreamBufferedOut,
-					byteStreamBufferedOut);
+							+ "<hr>", byteStreamBufferedOut, keepAlive);
 			return null;
 		}
 
 		properties.put(_contentLengthHeaderKey, length);
 
-		if (headerMap.containsKey("Content-Type")) {
-			String contentType = headerMap.get("Content-Type");
+		String contentType = headers.get(HeaderName.CONTENT_TYPE);
+		if (contentType != null) {
 			contentTypeSplitted = contentType.split(";");
 			String[] mediaType = contentTypeSplitted[0].split("/");
 
@@ -169,10 +176,10 @@ public class POSTHandler extends HTTPMethodHandler {
 
 				if (boundary == null) {
 					logger.error("boundary parameter not available in multipart post request");
+					keepAlive = false;
 					Helper.sendClientMessage("400", " Bad Request", null,
 							"boundary parameter not available  in multipart post request - "
-									+ "<hr>", charStreamBufferedOut,
-							byteStreamBufferedOut);
+									+ "<hr>", byteStreamBufferedOut, keepAlive);
 					return null;
 				}
 			}// if multipart
@@ -189,40 +196,45 @@ public class POSTHandler extends HTTPMethodHandler {
 
 	private void send201Response(ArrayList<String> listOfFilesUploaded,
 			String relativePath) throws IOException {
-		StringBuffer linkTags = new StringBuffer(100);
-		Iterator<String> itr = listOfFilesUploaded.iterator();
-		while (itr.hasNext()) {
-			String name = itr.next();
-			linkTags.append("<a href=" + "\""
-					+ (relativePath + ServerParams.URISeparator + name) + "\""
-					+ ">" + name + "</a>" + "</BR>");
+		ChunkedOutputStream body = startStreamedMessage("201", "Created");
+		try {
+			body.print("your data has been uploaded to the server. please follow the below links to check uploaded data<hr>");
+			Iterator<String> itr = listOfFilesUploaded.iterator();
+			while (itr.hasNext()) {
+				String name = itr.next();
+				body.print("<a href=" + "\""
+						+ (relativePath + ServerParams.URISeparator + name)
+						+ "\"" + ">" + name + "</a>" + "</BR>");
+			}
+			Helper.endClientMessage(body);
+		} finally {
+			body.finish();
 		}
-
-		Helper.sendClientMessage(
-				"201",
-				"Created",
-				null,
-				"your data has been uploaded to the server. please follow the below links to check uploaded data<hr>"
-						+ linkTags.toString(), charStreamBufferedOut,
-				byteStreamBufferedOut);
 	}
 
 	private void logPOSTDataFromNonMultipartReq(long size) throws IOException {
 
-		byte[] messageBody = new byte[1024];
-
-		while (size > 0) {
-			int len = (int) (size > 1024 ? 1024 : size);
-			len = byteStreamBufferedIn.read(messageBody, 0, len);
-			for (int i = 0; i < len; i++)
-				logger.trace((char) messageBody[i]);
-			size -= len;
-
-			Helper.sendClientMessage("200", "OK", null,
-					"request received and analysed successfully<hr>",
-					charStreamBufferedOut, byteStreamBufferedOut);
-
+		BufferPool bufferPool = BufferPool.getInstance();
+		byte[] messageBody = bufferPool.acquire();
+		try {
+			while (size > 0) {
+				int len = (int) Math.min(size, messageBody.length);
+				len = byteStreamBufferedIn.read(messageBody, 0, len);
+				if (len < 0) {
+					throw new IOException(
+							"client closed connection before sending complete body");
+				}
+				for (int i = 0; i < len; i++)
+					logger.trace((char) messageBody[i]);
+				size -= len;
+			}
+		} finally {
+			bufferPool.release(messageBody);
 		}
+
+		Helper.sendClientMessage("200", "OK", null,
+				"request received and analysed successfully<hr>",
+				byteStreamBufferedOut, keepAlive);
 	}
 
 	
@@ -231,17 +243,19 @@ public class POSTHandler extends HTTPMethodHandler {
 	 */
 	public void handle(String requestURI) throws IOException,
 			IllegalRequestException {
-		HashMap<String, String> header = getHeader();
+		RequestHeaders header = getHeader();
 
-		if ((requestURI = decodeURI(requestURI)) == null) {
+		HashMap<String, Object> properties = analyseHeaders(header);
+		if (properties == null) {
 			return;
 		}
-
-		HashMap<String, Object> properties = analyseHeaders(header);
 		boolean isMultipart = (Boolean) properties.get(_mediaTypeMultipartName);
 
 		if (isMultipart) { // if multipart
 
+			// the epilogue after the last boundary is not read
+			keepAlive = false;
+
 			String path = findLocationToUpload(requestURI);
 			if (path == null) {
 
@@ -250,8 +264,7 @@ public class POSTHandler extends HTTPMethodHandler {
 						"Not Found",
 						null,
 						"neither the location requested nor default location is available for upload of files"
-								+ "<hr>", charStreamBufferedOut,
-						byteStreamBufferedOut);
+								+ "<hr>", byteStreamBufferedOut, keepAlive);
 				logger.info("upload location could not be created - ");
 				return;
 			}
@@ -263,13 +276,18 @@ public class POSTHandler extends HTTPMethodHandler {
 
 			String boundary = (String) properties.get(_boundaryParameterName);
 
-			ArrayList<String> listOfFilesUploaded = new MultipartHandler(byteStreamBufferedIn, byteStreamBufferedOut, 
-					charStreamBufferedOut).handleMultipartBody("--"+boundary, uploadDir);
+			ArrayList<String> listOfFilesUploaded = new MultipartHandler(byteStreamBufferedIn, byteStreamBufferedOut)
+					.handleMultipartBody("--"+boundary, uploadDir);
 					
 //					MultipartHandler
 //					.handleMultipartBody(byteStreamBufferedIn,
 //							charStreamBufferedOut, byteStreamBufferedOut, "--"
 //									+ boundary, uploadDir);
+			WebrootIndex index = WebrootIndex.getInstance();
+			if (index != null) {
+				// seen by the next request, not after the watcher's event
+				index.update(uploadDir);
+			}
 			if(listOfFilesUploaded==null){
 				return;
 			}
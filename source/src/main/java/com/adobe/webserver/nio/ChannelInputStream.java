@@ -0,0 +1,99 @@
+package com.adobe.webserver.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+
+/**
+ * An InputStream over exactly one request read by an {@link EventLoop}.
+ * 
+ * It first returns the bytes already read by the event loop and then, if the
+ * request body was too big to be read by the event loop, the rest of the body
+ * directly from the channel. It returns end of stream at the end of the
+ * request, so a handler can never read into the next request.
+ * 
+ * @author KHEMKA
+ * 
+ */
+class ChannelInputStream extends InputStream {
+
+	private final NIOConnection connection;
+	private final byte[] buffered;
+	private int position;
+	private final int limit;
+	private long remaining;
+
+	/**
+	 * @param connection
+	 *            the connection to read remaining bytes from
+	 * @param buffered
+	 *            bytes already read from connection
+	 * @param offset
+	 *            start of the request in buffered
+	 * @param limit
+	 *            end of the request (exclusive) in buffered
+	 * @param remaining
+	 *            number of bytes of this request still to be read from
+	 *            channel
+	 */
+	ChannelInputStream(NIOConnection connection, byte[] buffered, int offset,
+			int limit, long remaining) {
+		this.connection = connection;
+		this.buffered = buffered;
+		this.position = offset;
+		this.limit = limit;
+		this.remaining = remaining;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int len = read(b, 0, 1);
+		return len < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (position < limit) {
+			int count = Math.min(len, limit - position);
+			System.arraycopy(buffered, position, b, off, count);
+			position += count;
+			return count;
+		}
+		if (remaining <= 0) {
+			return -1;
+		}
+
+		ByteBuffer target = ByteBuffer.wrap(b, off,
+				(int) Math.min(len, remaining));
+		int count;
+		while ((count = connection.getChannel().read(target)) == 0) {
+			connection.await(SelectionKey.OP_READ);
+		}
+		if (count < 0) {
+			remaining = 0;
+			return -1;
+		}
+		remaining -= count;
+		return count;
+	}
+
+	/**
+	 * @return true if no byte of the request is left unread in the channel
+	 */
+	boolean isComplete() {
+		return remaining <= 0;
+	}
+
+	/**
+	 * only the bytes already read by event loop are reported as available
+	 */
+	@Override
+	public int available() {
+		return limit - position;
+	}
+}
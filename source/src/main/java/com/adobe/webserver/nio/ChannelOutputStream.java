@@ -0,0 +1,81 @@
+package com.adobe.webserver.nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+
+import com.adobe.webserver.util.FileTransferWriter;
+import com.adobe.webserver.util.GatheringWriter;
+
+/**
+ * An OutputStream writing to the non blocking channel of a
+ * {@link NIOConnection}. If the socket send buffer is full, the writing thread
+ * waits until the channel becomes writable again.
+ * 
+ * It does not buffer anything, so it should be wrapped in a buffered stream.
+ * Several buffers can be written with one gathering write of the channel
+ * (see {@link GatheringWriter}), and files are transferred to the channel
+ * without copying (see {@link FileTransferWriter}). Closing the stream does
+ * not close the channel.
+ * 
+ * @author KHEMKA
+ * 
+ */
+class ChannelOutputStream extends OutputStream implements GatheringWriter,
+		FileTransferWriter {
+
+	private final NIOConnection connection;
+
+	ChannelOutputStream(NIOConnection connection) {
+		this.connection = connection;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ByteBuffer source = ByteBuffer.wrap(b, off, len);
+		while (source.hasRemaining()) {
+			if (connection.getChannel().write(source) == 0) {
+				connection.await(SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	public void write(ByteBuffer[] buffers) throws IOException {
+		long remaining = 0;
+		for (ByteBuffer buffer : buffers) {
+			remaining += buffer.remaining();
+		}
+		while (remaining > 0) {
+			long written = connection.getChannel().write(buffers);
+			if (written == 0) {
+				connection.await(SelectionKey.OP_WRITE);
+			}
+			remaining -= written;
+		}
+	}
+
+	public boolean transferFrom(FileChannel file, long position, long count)
+			throws IOException {
+		while (count > 0) {
+			long written = file.transferTo(position, count,
+					connection.getChannel());
+			if (written == 0) {
+				if (position >= file.size()) {
+					throw new IOException("file ended " + count
+							+ " bytes before expected");
+				}
+				connection.await(SelectionKey.OP_WRITE);
+			}
+			position += written;
+			count -= written;
+		}
+		return true;
+	}
+}
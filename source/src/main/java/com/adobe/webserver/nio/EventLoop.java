@@ -0,0 +1,266 @@
+package com.adobe.webserver.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.log4j.Logger;
+
+import com.adobe.webserver.ServerParams;
+import com.adobe.webserver.util.AdaptiveConcurrencyLimit;
+import com.adobe.webserver.util.ClientLimiter;
+
+/**
+ * An EventLoop owns a selector and serves all connections registered with it
+ * on a single thread. It reads requests from connections, without ever
+ * blocking, until a request is complete. Then it hands the request over to the
+ * worker thread pool.
+ * 
+ * Connections idle for more than {@link ServerParams#SocketSoTimeout} (or
+ * {@link ServerParams#KEEP_ALIVE_TIMEOUT} between two requests) are closed.
+ * 
+ * Other threads interact with an event loop only through
+ * {@link #register(SocketChannel)}, {@link #execute(Runnable)} and
+ * {@link #stop()}
+ * 
+ * @author KHEMKA
+ * 
+ */
+class EventLoop implements Runnable {
+
+	private static Logger logger = Logger.getLogger(EventLoop.class.getName());
+
+	/**
+	 * interval (in milliseconds) at which idle connections are looked for
+	 */
+	private static final int idleCheckInterval = 1000;
+
+	/**
+	 * in milliseconds
+	 */
+	static final int drainCheckInterval = 50;
+
+	private final Selector selector;
+	private final ExecutorService workers;
+	private final AdaptiveConcurrencyLimit concurrencyLimit;
+	private final ClientLimiter clientLimiter;
+	private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16384);
+	private volatile boolean running = true;
+	private volatile boolean draining = false;
+
+	/**
+	 * number of open connections, as seen in last iteration of the loop
+	 */
+	private volatile int connectionCount = 0;
+
+	/**
+	 * creates an event loop
+	 * 
+	 * @param workers
+	 *            the executor service to which complete requests are handed
+	 * @param concurrencyLimit
+	 *            adaptive limit of workers, told the latency of requests.
+	 *            null if there is none
+	 * @param clientLimiter
+	 *            per client limits, which have counted the channels
+	 *            registered. null if clients are not limited
+	 * @throws IOException
+	 *             if selector could not be opened
+	 */
+	EventLoop(ExecutorService workers,
+			AdaptiveConcurrencyLimit concurrencyLimit,
+			ClientLimiter clientLimiter) throws IOException {
+		this.selector = Selector.open();
+		this.workers = workers;
+		this.concurrencyLimit = concurrencyLimit;
+		this.clientLimiter = clientLimiter;
+	}
+
+	ExecutorService getWorkers() {
+		return workers;
+	}
+
+	AdaptiveConcurrencyLimit getConcurrencyLimit() {
+		return concurrencyLimit;
+	}
+
+	ClientLimiter getClientLimiter() {
+		return clientLimiter;
+	}
+
+	/**
+	 * registers a newly accepted channel with this event loop. can be called
+	 * from any thread
+	 * 
+	 * @param channel
+	 *            a non blocking channel
+	 */
+	void register(SocketChannel channel) {
+		newChannels.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * runs a task on the event loop thread. can be called from any thread
+	 * 
+	 * @param task
+	 *            the task to run
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * asks the event loop to close its idle connections, and to close other
+	 * connections as soon as their requests are served. can be called from
+	 * any thread
+	 */
+	void drain() {
+		execute(new Runnable() {
+			public void run() {
+				draining = true;
+				for (SelectionKey key : selector.keys()) {
+					NIOConnection connection = (NIOConnection) key
+							.attachment();
+					if (connection.isIdle()) {
+						connection.close();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return number of open connections. it is updated at least every
+	 *         {@link #drainCheckInterval} ms while draining
+	 */
+	int getConnectionCount() {
+		return connectionCount;
+	}
+
+	/**
+	 * @return true if the server is stopping
+	 */
+	boolean isDraining() {
+		return draining;
+	}
+
+	/**
+	 * asks the event loop to close all its connections and exit
+	 */
+	void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public void run() {
+		long lastIdleCheck = System.currentTimeMillis();
+		try {
+			while (running) {
+				try {
+					selector.select(draining ? drainCheckInterval
+							: idleCheckInterval);
+				} catch (IOException e) {
+					logger.error("select failed on event loop - "
+							+ e.getMessage());
+					continue;
+				}
+
+				registerNewChannels();
+				runTasks();
+				connectionCount = selector.keys().size();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					NIOConnection connection = (NIOConnection) key
+							.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.onReadable(readBuffer);
+						}
+					} catch (CancelledKeyException e) {
+						connection.close();
+					} catch (IOException e) {
+						logger.error("error in read/write of connection"
+								+ e.getMessage());
+						connection.close();
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastIdleCheck >= idleCheckInterval) {
+					closeIdleConnections(now);
+					lastIdleCheck = now;
+				}
+			}
+		} finally {
+			closeAll();
+		}
+	}
+
+	private void registerNewChannels() {
+		SocketChannel channel;
+		while ((channel = newChannels.poll()) != null) {
+			NIOConnection connection = new NIOConnection(channel, this);
+			try {
+				connection.setKey(channel.register(selector,
+						SelectionKey.OP_READ, connection));
+			} catch (ClosedChannelException e) {
+				logger.warn("client closed connection before registration");
+				connection.close();
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (CancelledKeyException e) {
+				logger.trace("connection closed before task could run");
+			}
+		}
+	}
+
+	private void closeIdleConnections(long now) {
+		for (SelectionKey key : selector.keys()) {
+			NIOConnection connection = (NIOConnection) key.attachment();
+			if (!connection.isInProgress()
+					&& now - connection.getLastActivity() > connection
+							.getIdleTimeout()) {
+				logger.trace("closing idle connection");
+				connection.close();
+			}
+		}
+	}
+
+	private void closeAll() {
+		SocketChannel channel;
+		while ((channel = newChannels.poll()) != null) {
+			new NIOConnection(channel, this).close();
+		}
+		for (SelectionKey key : selector.keys()) {
+			((NIOConnection) key.attachment()).close();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.error("selector could not be closed - " + e.getMessage());
+		}
+		logger.info("exiting event loop thread");
+	}
+}
@@ -0,0 +1,436 @@
+package com.adobe.webserver.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import com.adobe.webserver.ServerParams;
+import com.adobe.webserver.util.AdaptiveConcurrencyLimit;
+import com.adobe.webserver.util.ClientLimiter;
+import com.adobe.webserver.util.Helper;
+
+/**
+ * State of one client connection served by an {@link EventLoop}.
+ * 
+ * The event loop feeds it the bytes read from channel. It scans them
+ * incrementally for the end of the request header and reads the body (if its
+ * size permits). As soon as the request is complete, it stops reading and
+ * hands the request to a pool thread. An idle connection holds no buffer.
+ * 
+ * A request with a Transfer-Encoding is not framed. It gets 400 Bad Request
+ * and the connection is closed, as its end can't be trusted.
+ * 
+ * If the connection is persistent, the pool thread serves the requests the
+ * client has already sent (pipelined) and then gives the connection back to
+ * the event loop through {@link #resume()}. Bytes read beyond a request are
+ * kept for the next request.
+ * 
+ * If clients are limited, every request takes a token of the client before it
+ * is served. A client out of tokens gets 429 Too Many Requests and the
+ * connection is closed. The connection is released from the
+ * {@link ClientLimiter} when closed.
+ * 
+ * @author KHEMKA
+ * 
+ */
+class NIOConnection implements Closeable {
+
+	private static Logger logger = Logger.getLogger(NIOConnection.class
+			.getName());
+
+	private final SocketChannel channel;
+	private final EventLoop eventLoop;
+	private final InetAddress address;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private SelectionKey key;
+
+	private byte[] data = null;
+	private int length = 0;
+	private int scanned = 0;
+	private int headerLength = -1;
+
+	/**
+	 * length of the body. -1 if the request has a Transfer-Encoding
+	 */
+	private long contentLength = 0;
+	private int requestLength = 0;
+	private int requestsServed = 0;
+
+	private long lastActivity;
+	private volatile boolean inProgress = false;
+
+	NIOConnection(SocketChannel channel, EventLoop eventLoop) {
+		this.channel = channel;
+		this.eventLoop = eventLoop;
+		this.address = channel.socket().getInetAddress();
+		this.lastActivity = System.currentTimeMillis();
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * @return true if the request is being handled by a pool thread
+	 */
+	boolean isInProgress() {
+		return inProgress;
+	}
+
+	/**
+	 * @return true if no request is in progress and no part of a request has
+	 *         been received
+	 */
+	boolean isIdle() {
+		return !inProgress && length == 0;
+	}
+
+	long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * called by event loop when channel is readable.
+	 * 
+	 * @param readBuffer
+	 *            buffer of the event loop, used for reading from channel
+	 * @throws IOException
+	 *             if the channel could not be read
+	 */
+	void onReadable(ByteBuffer readBuffer) throws IOException {
+		readBuffer.clear();
+		int count = channel.read(readBuffer);
+		if (count < 0) {
+			close();
+			return;
+		}
+		if (count == 0) {
+			return;
+		}
+		lastActivity = System.currentTimeMillis();
+		readBuffer.flip();
+		append(readBuffer);
+		processBuffered();
+	}
+
+	/**
+	 * dispatches the request if the buffered bytes make a complete request
+	 */
+	private void processBuffered() {
+		ChannelInputStream request = nextRequest();
+		if (request != null) {
+			dispatch(request);
+		} else if (headerLength >= 0 && contentLength < 0) {
+			logger.error("request with Transfer-Encoding .. sending 400 bad request");
+			sendAndClose(Helper.createResponseMessageWithoutBody("400",
+					"Bad Request", null, false));
+		} else if (headerLength < 0
+				&& length > ServerParams.MaxRequestHeaderSize) {
+			logger.error("request header too large .. sending 400 bad request");
+			sendAndClose(Helper.createResponseMessageWithoutBody("400",
+					"Bad Request", null, false));
+		}
+	}
+
+	/**
+	 * checks if the buffered bytes make a complete request (or a complete
+	 * header followed by a body too big to be buffered)
+	 * 
+	 * @return stream over the request. null if the request is not complete,
+	 *         or can't be framed
+	 */
+	private ChannelInputStream nextRequest() {
+		if (headerLength < 0 && !scanHeader()) {
+			return null;
+		}
+		if (contentLength < 0) {
+			return null;
+		}
+		if (length - headerLength < contentLength
+				&& contentLength <= ServerParams.NIOMaxBufferedBodySize) {
+			return null;
+		}
+		requestLength = (int) Math.min(length, headerLength + contentLength);
+		long remaining = headerLength + contentLength - requestLength;
+		return new ChannelInputStream(this, data, 0, requestLength, remaining);
+	}
+
+	private void append(ByteBuffer source) {
+		int count = source.remaining();
+		if (data == null) {
+			data = new byte[Math.max(count, 1024)];
+		} else if (data.length - length < count) {
+			byte[] bigger = new byte[Math.max(data.length * 2, length + count)];
+			System.arraycopy(data, 0, bigger, 0, length);
+			data = bigger;
+		}
+		source.get(data, length, count);
+		length += count;
+	}
+
+	/**
+	 * looks for CRLF CRLF in bytes not scanned yet.
+	 * 
+	 * @return true if the end of header is found
+	 */
+	private boolean scanHeader() {
+		for (int i = Math.max(scanned - 3, 0); i + 3 < length; i++) {
+			if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r'
+					&& data[i + 3] == '\n') {
+				headerLength = i + 4;
+				contentLength = (findField(data, headerLength,
+						"transfer-encoding") >= 0) ? -1 : parseContentLength(
+						data, headerLength);
+				return true;
+			}
+		}
+		scanned = length;
+		return false;
+	}
+
+	/**
+	 * finds the value of Content-Length in header. The header is parsed
+	 * properly later by the request handler, so an ill formed value is treated
+	 * as no body.
+	 * 
+	 * @return the content length, 0 if not found
+	 */
+	private static long parseContentLength(byte[] header, int headerLength) {
+		int position = findField(header, headerLength, "content-length");
+		if (position < 0) {
+			return 0;
+		}
+		long value = 0;
+		while (position < headerLength && header[position] >= '0'
+				&& header[position] <= '9') {
+			value = value * 10 + (header[position] - '0');
+			position++;
+		}
+		return value;
+	}
+
+	/**
+	 * finds a field in header
+	 * 
+	 * @param name
+	 *            the field-name, in lower case
+	 * @return position of the value of the first such field, -1 if there is
+	 *         none
+	 */
+	private static int findField(byte[] header, int headerLength, String name) {
+		int lineStart = 0;
+		while (lineStart < headerLength) {
+			int i = 0;
+			while (i < name.length() && lineStart + i < headerLength
+					&& Character.toLowerCase((char) header[lineStart + i]) == name
+							.charAt(i)) {
+				i++;
+			}
+			int position = lineStart + i;
+			if (i == name.length()) {
+				while (position < headerLength
+						&& (header[position] == ' ' || header[position] == '\t')) {
+					position++;
+				}
+				if (position < headerLength && header[position] == ':') {
+					position++;
+					while (position < headerLength
+							&& (header[position] == ' ' || header[position] == '\t')) {
+						position++;
+					}
+					return position;
+				}
+			}
+			while (position < headerLength && header[position] != '\n') {
+				position++;
+			}
+			lineStart = position + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the connection can be kept open after the request in
+	 *         progress
+	 */
+	boolean isKeepAliveAllowed() {
+		return requestsServed + 1 < ServerParams.MAX_KEEP_ALIVE_REQUESTS
+				&& !eventLoop.isDraining();
+	}
+
+	/**
+	 * @return the time (in milliseconds) after which the connection is closed
+	 *         if no byte is received
+	 */
+	int getIdleTimeout() {
+		return (requestsServed > 0 && length == 0) ? ServerParams.KEEP_ALIVE_TIMEOUT
+				: ServerParams.SocketSoTimeout;
+	}
+
+	/**
+	 * called by pool thread after the response of a persistent connection has
+	 * been written. It drops the request from buffer and looks for a next
+	 * request the client has already sent (pipelined).
+	 * 
+	 * @return stream over next request. null if no complete request is
+	 *         buffered
+	 */
+	ChannelInputStream nextPipelinedRequest() {
+		requestsServed++;
+		length -= requestLength;
+		if (length > 0) {
+			System.arraycopy(data, requestLength, data, 0, length);
+		} else {
+			data = null;
+		}
+		scanned = 0;
+		headerLength = -1;
+		contentLength = 0;
+		requestLength = 0;
+		lastActivity = System.currentTimeMillis();
+
+		ChannelInputStream next = (length > 0) ? nextRequest() : null;
+		// a request over the rate goes back to the event loop, which refuses it
+		if (next != null && retryAfter() > 0) {
+			return null;
+		}
+		return next;
+	}
+
+	/**
+	 * gives the connection back to its event loop, after
+	 * {@link #nextPipelinedRequest()} found no complete request. Called by
+	 * pool thread.
+	 */
+	void resume() {
+		eventLoop.execute(new Runnable() {
+			public void run() {
+				onResume();
+			}
+		});
+	}
+
+	private void onResume() {
+		inProgress = false;
+		if (!key.isValid()) {
+			return;
+		}
+		if (eventLoop.isDraining()) {
+			close();
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+		if (length > 0) {
+			processBuffered();
+		}
+	}
+
+	/**
+	 * stops reading from channel and hands the request to a pool thread
+	 */
+	AdaptiveConcurrencyLimit getConcurrencyLimit() {
+		return eventLoop.getConcurrencyLimit();
+	}
+
+	private void dispatch(ChannelInputStream request) {
+		int retryAfter = retryAfter();
+		if (retryAfter > 0) {
+			logger.warn("too many requests from " + address
+					+ " .. sending 429");
+			sendAndClose(Helper.createTooManyRequestsMessage(retryAfter));
+			return;
+		}
+		key.interestOps(0);
+		inProgress = true;
+		try {
+			eventLoop.getWorkers().execute(new NIORequestTask(this, request));
+		} catch (RejectedExecutionException e) {
+			logger.warn("request could not be handed to a pool thread .. sending 503");
+			sendAndClose(Helper.createServiceUnavailableMessage());
+		}
+	}
+
+	/**
+	 * takes a token of the client for a request
+	 * 
+	 * @return 0 if the request can be served, otherwise seconds after which
+	 *         the client may try again
+	 */
+	private int retryAfter() {
+		ClientLimiter clientLimiter = eventLoop.getClientLimiter();
+		if (clientLimiter == null || address == null) {
+			return 0;
+		}
+		return clientLimiter.tryRequest(address);
+	}
+
+	/**
+	 * makes a best effort to write a short message without blocking, and
+	 * closes the connection. Used from event loop only.
+	 */
+	private void sendAndClose(byte[] message) {
+		try {
+			channel.write(ByteBuffer.wrap(message));
+		} catch (IOException e) {
+			logger.error("error in read/write of connection" + e.getMessage());
+		}
+		close();
+	}
+
+	/**
+	 * blocks the calling thread until the channel is ready for an operation, or
+	 * until the socket timeout elapses. Used by pool threads only.
+	 * 
+	 * @param operation
+	 *            {@link SelectionKey#OP_READ} or {@link SelectionKey#OP_WRITE}
+	 * @throws IOException
+	 *             if the channel is not ready before timeout
+	 */
+	void await(int operation) throws IOException {
+		Selector selector = TemporarySelectors.acquire();
+		SelectionKey temporaryKey = null;
+		try {
+			temporaryKey = channel.register(selector, operation);
+			if (selector.select(ServerParams.SocketSoTimeout) == 0) {
+				throw new SocketTimeoutException("client did not respond in "
+						+ ServerParams.SocketSoTimeout + " ms");
+			}
+		} finally {
+			if (temporaryKey != null) {
+				temporaryKey.cancel();
+				selector.selectNow();
+			}
+			TemporarySelectors.release(selector);
+		}
+	}
+
+	/**
+	 * closes the channel. Its key is cancelled as well. Can be called from
+	 * any thread, more than once
+	 */
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error("error in closing connection" + e.getMessage());
+		}
+		ClientLimiter clientLimiter = eventLoop.getClientLimiter();
+		if (clientLimiter != null && address != null
+				&& closed.compareAndSet(false, true)) {
+			clientLimiter.closeConnection(address);
+		}
+	}
+}
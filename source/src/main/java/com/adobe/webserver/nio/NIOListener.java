@@ -0,0 +1,232 @@
+package com.adobe.webserver.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.log4j.Logger;
+
+import com.adobe.webserver.Listener;
+import com.adobe.webserver.ServerParams;
+import com.adobe.webserver.util.AdaptiveConcurrencyLimit;
+import com.adobe.webserver.util.ClientLimiter;
+import com.adobe.webserver.util.ThreadPoolExecutorBuilder;
+
+/**
+ * A NIOListener is the non blocking alternative of {@link Listener}. It is
+ * used when property "engine" is set to "nio".
+ * 
+ * It accepts connections on a non blocking server channel and distributes them
+ * (round robin) among {@link ServerParams#NIO_EVENT_LOOPS} {@link EventLoop}s.
+ * The event loops read requests, and only complete requests are handed to the
+ * {@link ExecutorService} built by {@link ThreadPoolExecutorBuilder}. So a
+ * slow or idle client does not hold a pool thread, and a few threads can hold
+ * a large number of connections.
+ * 
+ * A client holding {@link ServerParams#CLIENT_MAX_CONNECTIONS} connections
+ * has its further connections dropped as soon as they are accepted. The rate
+ * of its requests is checked by its {@link NIOConnection}s.
+ * 
+ * On Interrupt it closes the server channel at once and drains the event
+ * loops - idle connections are closed, requests in progress are finished
+ * (with "Connection: close"). Then it stops the event loops. Connections still
+ * open after {@link ServerParams#SHUTDOWN_TIMEOUT} are closed.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public class NIOListener implements Runnable {
+
+	private static Logger logger = Logger
+			.getLogger(NIOListener.class.getName());
+	ExecutorService threadPool;
+	private AdaptiveConcurrencyLimit concurrencyLimit;
+
+	/**
+	 * per client limits. null if clients are not limited
+	 */
+	private ClientLimiter clientLimiter;
+
+	/**
+	 * this is a default constructor
+	 */
+	public NIOListener() {
+		this.concurrencyLimit = ThreadPoolExecutorBuilder.newConcurrencyLimit(1);
+		this.threadPool = ThreadPoolExecutorBuilder.newCustomThreadPool(1,
+				concurrencyLimit);
+		this.clientLimiter = ClientLimiter.newClientLimiter();
+	}
+
+	/**
+	 * binds the server channel and accepts connections till the thread is
+	 * interrupted
+	 */
+	public void run() {
+		ServerSocketChannel serverChannel = null;
+		Selector acceptSelector = null;
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.configureBlocking(false);
+			serverChannel.socket().bind(
+					(ServerParams.HOSTNAME != null) ? new InetSocketAddress(
+							ServerParams.HOSTNAME, ServerParams.PORT)
+							: new InetSocketAddress(ServerParams.PORT),
+					ServerParams.QUEUE_SIZE);
+			acceptSelector = Selector.open();
+			serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			logger.fatal("server socket could not be created - \r\n"
+					+ e.getMessage() + "\r\n" + e.toString());
+			close(serverChannel, acceptSelector);
+			ThreadPoolExecutorBuilder.shutdownAndAwaitTermination(threadPool);
+			return;
+		}
+
+		EventLoop[] eventLoops = new EventLoop[Math.max(1,
+				ServerParams.NIO_EVENT_LOOPS)];
+		Thread[] eventLoopThreads = new Thread[eventLoops.length];
+		try {
+			for (int i = 0; i < eventLoops.length; i++) {
+				eventLoops[i] = new EventLoop(threadPool, concurrencyLimit,
+						clientLimiter);
+				eventLoopThreads[i] = new Thread(eventLoops[i],
+						"nio-event-loop-" + i);
+				eventLoopThreads[i].start();
+			}
+
+			int next = 0;
+			while (!Thread.interrupted()) {
+				try {
+					acceptSelector.select();
+					acceptSelector.selectedKeys().clear();
+
+					SocketChannel client;
+					while ((client = serverChannel.accept()) != null) {
+						InetAddress address = client.socket().getInetAddress();
+						if (clientLimiter != null
+								&& !clientLimiter.tryOpenConnection(address)) {
+							logger.warn("too many connections from " + address
+									+ " .. dropping connection");
+							drop(client);
+							continue;
+						}
+						client.configureBlocking(false);
+						eventLoops[next].register(client);
+						next = (next + 1) % eventLoops.length;
+					}
+				} catch (IOException e) {
+					logger.warn("  serverchannel.accept error occured - \r\n"
+							+ e.getMessage() + "\r\n" + e.toString());
+				}
+			}
+		} catch (IOException e) {
+			logger.fatal("event loop could not be created - \r\n"
+					+ e.getMessage() + "\r\n" + e.toString());
+		} finally {
+			close(serverChannel, acceptSelector);
+
+			// idle connections are closed, in-flight requests are finished
+			for (int i = 0; i < eventLoops.length; i++) {
+				if (eventLoops[i] != null) {
+					eventLoops[i].drain();
+				}
+			}
+			long deadline = System.currentTimeMillis()
+					+ ServerParams.SHUTDOWN_TIMEOUT;
+			awaitDrained(eventLoops, deadline);
+			final EventLoop[] loops = eventLoops;
+			ThreadPoolExecutorBuilder.shutdownAndAwaitTermination(threadPool,
+					Math.max(0, deadline - System.currentTimeMillis()),
+					new Runnable() {
+						public void run() {
+							stop(loops);
+						}
+					});
+			stop(eventLoops);
+			for (int i = 0; i < eventLoopThreads.length; i++) {
+				try {
+					if (eventLoopThreads[i] != null) {
+						eventLoopThreads[i].join();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			logger.info("exiting listener thread");
+		}
+	}
+
+	/**
+	 * waits till connections of the event loops are closed, or till the
+	 * deadline. A connection which has received a
+	 * part of a request stays open till its request is served, so pool keeps
+	 * running meanwhile
+	 */
+	private static void awaitDrained(EventLoop[] eventLoops, long deadline) {
+		try {
+			// let the event loops close idle connections first
+			Thread.sleep(EventLoop.drainCheckInterval);
+			while (System.currentTimeMillis() < deadline) {
+				int open = 0;
+				for (int i = 0; i < eventLoops.length; i++) {
+					if (eventLoops[i] != null) {
+						open += eventLoops[i].getConnectionCount();
+					}
+				}
+				if (open == 0) {
+					return;
+				}
+				Thread.sleep(EventLoop.drainCheckInterval);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * asks the event loops to close all their connections and exit
+	 */
+	private static void stop(EventLoop[] eventLoops) {
+		for (int i = 0; i < eventLoops.length; i++) {
+			if (eventLoops[i] != null) {
+				eventLoops[i].stop();
+			}
+		}
+	}
+
+	/**
+	 * closes a connection with a reset, so it costs neither a response nor a
+	 * TIME_WAIT socket
+	 */
+	private static void drop(SocketChannel client) {
+		try {
+			client.socket().setSoLinger(true, 0);
+			client.close();
+		} catch (IOException e) {
+			logger.warn("error in dropping connection - " + e.getMessage());
+		}
+	}
+
+	private static void close(ServerSocketChannel serverChannel,
+			Selector acceptSelector) {
+		try {
+			if (acceptSelector != null)
+				acceptSelector.close();
+		} catch (IOException e) {
+			logger.warn("accept selector could not be closed - "
+					+ e.getMessage());
+		}
+		try {
+			if (serverChannel != null)
+				serverChannel.close();
+		} catch (IOException e) {
+			logger.warn("server channel could not be closed - "
+					+ e.getMessage());
+		}
+	}
+}
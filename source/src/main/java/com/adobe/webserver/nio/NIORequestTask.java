@@ -0,0 +1,72 @@
+package com.adobe.webserver.nio;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import com.adobe.webserver.ClientHandler;
+import com.adobe.webserver.ServerParams;
+import com.adobe.webserver.util.ResponseWriter;
+
+/**
+ * Handles a complete request read by an {@link EventLoop}, on a pool thread.
+ * It lets a {@link ClientHandler} read the request and write the response
+ * through streams over the connection channel. The handler gives its pooled
+ * streams back after every request.
+ * 
+ * After the response, requests the client has already sent (pipelined) are
+ * served on the same thread, their responses held and sent together in order.
+ * Then the connection goes back to its event loop if it is persistent, or is
+ * closed.
+ * 
+ * @author KHEMKA
+ * 
+ */
+class NIORequestTask implements Runnable {
+
+	private static Logger logger = Logger.getLogger(NIORequestTask.class
+			.getName());
+
+	private final NIOConnection connection;
+	private final ChannelInputStream request;
+
+	NIORequestTask(NIOConnection connection, ChannelInputStream request) {
+		this.connection = connection;
+		this.request = request;
+	}
+
+	public void run() {
+		ResponseWriter responseOut = new ResponseWriter(
+				new ChannelOutputStream(connection),
+				ServerParams.ResponseBufferSize);
+		ChannelInputStream next = request;
+		try {
+			while (next != null) {
+				ChannelInputStream current = next;
+				ClientHandler handler = new ClientHandler(current, responseOut);
+				handler.setConcurrencyLimit(connection.getConcurrencyLimit());
+				boolean keepAlive;
+				try {
+					keepAlive = handler.handleRequest(connection
+							.isKeepAliveAllowed());
+				} finally {
+					// the request has been read completely from its stream
+					handler.releaseContext();
+				}
+
+				// an unread body would be taken as next request
+				if (!keepAlive || !current.isComplete()) {
+					responseOut.send();
+					connection.close();
+					return;
+				}
+				next = connection.nextPipelinedRequest();
+			}
+			responseOut.send();
+			connection.resume();
+		} catch (IOException e) {
+			logger.error("error in read/write of connection" + e.getMessage());
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.adobe.webserver.nio;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A small pool of selectors used by pool threads to wait until a non blocking
+ * channel becomes readable/writable, while the channel stays registered with
+ * its event loop.
+ * 
+ * @author KHEMKA
+ * 
+ */
+final class TemporarySelectors {
+
+	/**
+	 * Maximum number of idle selectors kept in pool
+	 */
+	private static final int maxPooledSelectors = 64;
+
+	private static final ConcurrentLinkedQueue<Selector> selectors = new ConcurrentLinkedQueue<Selector>();
+	private static final AtomicInteger pooledCount = new AtomicInteger();
+
+	private static Logger logger = Logger.getLogger(TemporarySelectors.class
+			.getName());
+
+	private TemporarySelectors() {
+
+	}
+
+	/**
+	 * returns an idle selector from pool, opens a new one if pool is empty
+	 * 
+	 * @return a selector with no registered channel
+	 * @throws IOException
+	 *             if a selector could not be opened
+	 */
+	static Selector acquire() throws IOException {
+		Selector selector = selectors.poll();
+		if (selector == null) {
+			return Selector.open();
+		}
+		pooledCount.decrementAndGet();
+		return selector;
+	}
+
+	/**
+	 * gives back a selector taken by {@link #acquire()}. All channels must have
+	 * been deregistered from it.
+	 * 
+	 * @param selector
+	 *            the selector to release
+	 */
+	static void release(Selector selector) {
+		if (pooledCount.incrementAndGet() <= maxPooledSelectors) {
+			selectors.offer(selector);
+			return;
+		}
+		pooledCount.decrementAndGet();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.warn("temporary selector could not be closed - "
+					+ e.getMessage());
+		}
+	}
+}
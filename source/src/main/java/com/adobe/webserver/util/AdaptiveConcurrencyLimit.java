@@ -0,0 +1,200 @@
+package com.adobe.webserver.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An adaptive limit for the number of requests served at the same time. It
+ * measures latency of requests and grows or shrinks the limit between a
+ * minimum and a maximum (gradient algorithm).
+ * 
+ * Latency samples are collected in windows of at least
+ * {@link #WINDOW_MILLIS} and {@link #WINDOW_MIN_SAMPLES} samples. At the end
+ * of a window the average latency of the window (short term) is compared with
+ * a slowly moving average of past windows (long term). Their ratio, the
+ * gradient, is 1 when latency is steady and falls towards 0.5 as latency
+ * rises, i.e. when requests start to queue up for disk, network or cpu. The
+ * new limit is
+ * 
+ * limit * gradient + sqrt(limit)
+ * 
+ * so it grows slowly while latency is steady, and shrinks when latency rises.
+ * The limit does not grow while less than half of it is used.
+ * 
+ * Whoever enforces the limit registers a {@link LimitListener}, which is
+ * told about every change of the limit, in order and while the limit is
+ * locked, so it must be quick. Changes are logged too.
+ * 
+ * This class is thread safe.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public class AdaptiveConcurrencyLimit {
+
+	private static Logger logger = Logger
+			.getLogger(AdaptiveConcurrencyLimit.class.getName());
+
+	private static final long WINDOW_MILLIS = 500;
+	private static final int WINDOW_MIN_SAMPLES = 10;
+
+	/**
+	 * latency may rise by this factor before the limit shrinks
+	 */
+	private static final double TOLERANCE = 1.5;
+
+	/**
+	 * weight of new limit in limit
+	 */
+	private static final double SMOOTHING = 0.2;
+
+	/**
+	 * weight of a window in the long term latency
+	 */
+	private static final double LONG_TERM_WEIGHT = 0.05;
+
+	/**
+	 * notified when the limit changes
+	 */
+	public interface LimitListener {
+		/**
+		 * @param limit
+		 *            the new limit
+		 */
+		void onLimitChanged(int limit);
+	}
+
+	private final int minLimit;
+	private final int maxLimit;
+	private volatile LimitListener listener;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private double limit;
+	private volatile int currentLimit;
+	private double longTermLatency = 0;
+
+	private long windowStart = System.nanoTime();
+	private long windowLatencySum = 0;
+	private int windowSamples = 0;
+	private int windowMaxInFlight = 0;
+
+	/**
+	 * creates a limit, which starts at maxLimit
+	 * 
+	 * @param minLimit
+	 *            the smallest limit
+	 * @param maxLimit
+	 *            the largest limit
+	 */
+	public AdaptiveConcurrencyLimit(int minLimit, int maxLimit) {
+		this.maxLimit = Math.max(1, maxLimit);
+		this.minLimit = Math.max(1, Math.min(minLimit, this.maxLimit));
+		this.limit = this.maxLimit;
+		this.currentLimit = this.maxLimit;
+	}
+
+	/**
+	 * @param listener
+	 *            notified when the limit changes
+	 */
+	public void setLimitListener(LimitListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return the current limit
+	 */
+	public int getLimit() {
+		return currentLimit;
+	}
+
+	/**
+	 * @return number of requests being served
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * to be called when serving of a request starts
+	 * 
+	 * @return the start time, to be passed to {@link #onRequestComplete(long)}
+	 */
+	public long onRequestStart() {
+		inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * to be called when serving of a request is over (successfully or not)
+	 * 
+	 * @param startTime
+	 *            returned by {@link #onRequestStart()}
+	 */
+	public void onRequestComplete(long startTime) {
+		long now = System.nanoTime();
+		int running = inFlight.getAndDecrement();
+		synchronized (this) {
+			windowLatencySum += now - startTime;
+			windowSamples++;
+			windowMaxInFlight = Math.max(windowMaxInFlight, running);
+			if (windowSamples < WINDOW_MIN_SAMPLES
+					|| now - windowStart < TimeUnit.MILLISECONDS
+							.toNanos(WINDOW_MILLIS)) {
+				return;
+			}
+			int newLimit = update();
+			windowStart = now;
+			windowLatencySum = 0;
+			windowSamples = 0;
+			windowMaxInFlight = 0;
+			if (newLimit == currentLimit) {
+				return;
+			}
+			logger.info("concurrency limit changed from " + currentLimit
+					+ " to " + newLimit + " .. latency "
+					+ TimeUnit.NANOSECONDS.toMillis((long) longTermLatency)
+					+ " ms (long term)");
+			currentLimit = newLimit;
+			// told under the lock, so that changes are applied in order
+			if (listener != null) {
+				listener.onLimitChanged(newLimit);
+			}
+		}
+	}
+
+	/**
+	 * applies the gradient of the window which just ended to the limit
+	 * 
+	 * @return the new limit
+	 */
+	private int update() {
+		double shortTermLatency = Math.max(1,
+				(double) windowLatencySum / windowSamples);
+		if (longTermLatency == 0) {
+			longTermLatency = shortTermLatency;
+		} else {
+			longTermLatency = longTermLatency * (1 - LONG_TERM_WEIGHT)
+					+ shortTermLatency * LONG_TERM_WEIGHT;
+		}
+		// latency has dropped a lot (e.g. after a burst), so recover faster
+		if (longTermLatency > 2 * shortTermLatency) {
+			longTermLatency *= 0.95;
+		}
+
+		// the limit is not in use, so latency says nothing about it
+		if (windowMaxInFlight < limit / 2) {
+			return currentLimit;
+		}
+
+		double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE
+				* longTermLatency / shortTermLatency));
+		double newLimit = limit * gradient + Math.sqrt(limit);
+		limit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+		limit = Math.max(minLimit, Math.min(maxLimit, limit));
+		return (int) limit;
+	}
+}
@@ -0,0 +1,58 @@
+package com.adobe.webserver.util;
+
+import com.adobe.webserver.ServerParams;
+
+/**
+ * The pool of byte arrays used to copy bytes between streams (e.g. a file to
+ * the client, see {@link Helper#readAndWriteByteStream}), so a copy doesn't
+ * allocate its own array. Arrays are of {@link ServerParams#IOBufferSize}
+ * bytes, and at most {@link ServerParams#BUFFER_POOL_SIZE} idle arrays are
+ * kept.
+ * 
+ * A buffer taken must be given back in a finally block. The content of a
+ * buffer is not cleared.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public class BufferPool extends Pool<byte[]> {
+
+	private final int bufferSize;
+
+	/**
+	 * holds the shared instance, created on first use of
+	 * {@link #getInstance()}
+	 */
+	private static class InstanceHolder {
+		private static final BufferPool sharedInstance = new BufferPool(
+				ServerParams.BUFFER_POOL_SIZE, ServerParams.IOBufferSize);
+	}
+
+	/**
+	 * @return the pool shared by the server
+	 */
+	public static BufferPool getInstance() {
+		return InstanceHolder.sharedInstance;
+	}
+
+	/**
+	 * @param capacity
+	 *            maximum number of idle buffers held
+	 * @param bufferSize
+	 *            size of the buffers
+	 */
+	public BufferPool(int capacity, int bufferSize) {
+		super(capacity);
+		this.bufferSize = bufferSize;
+	}
+
+	@Override
+	protected byte[] create() {
+		return new byte[bufferSize];
+	}
+
+	@Override
+	protected boolean recycle(byte[] buffer) {
+		return buffer.length == bufferSize;
+	}
+}
@@ -0,0 +1,181 @@
+package com.adobe.webserver.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A range of bytes of a file, asked for by the Range header of a request
+ * (RFC 7233), e.g. "bytes=0-499, 1000-, -500".
+ *
+ * {@link #parse(String, long)} resolves the ranges against the length of the
+ * file. Ranges which overlap or touch are coalesced into one, so a request
+ * can't make the server send a byte twice.
+ *
+ * @author KHEMKA
+ *
+ */
+public class ByteRange {
+
+	/**
+	 * most ranges served in one response. A Range with more (after
+	 * coalescing) is ignored and the whole file is sent
+	 */
+	private static final int maxRanges = 64;
+
+	private static final Comparator<ByteRange> byStart = new Comparator<ByteRange>() {
+		public int compare(ByteRange a, ByteRange b) {
+			return (a.start < b.start) ? -1 : ((a.start == b.start) ? 0 : 1);
+		}
+	};
+
+	private final long start;
+	private long end;
+
+	ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * @return position of first byte
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * @return position of last byte
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	public long getLength() {
+		return end - start + 1;
+	}
+
+	/**
+	 * @param value
+	 *            value of the Range header
+	 * @param length
+	 *            length of the file
+	 * @return the ranges, in the order asked for (sorted if some were
+	 *         coalesced). Empty if none can be satisfied. null if the header is
+	 *         to be ignored - it is ill formed, has a unit other than bytes, or
+	 *         asks for too many ranges
+	 */
+	public static List<ByteRange> parse(String value, long length) {
+		int i = 0;
+		int end = value.length();
+		while (i < end && value.charAt(i) == ' ') {
+			i++;
+		}
+		if (!value.regionMatches(true, i, "bytes=", 0, 6)) {
+			return null;
+		}
+		i += 6;
+
+		List<ByteRange> ranges = new ArrayList<ByteRange>(2);
+		while (i < end) {
+			int specEnd = value.indexOf(',', i);
+			if (specEnd < 0) {
+				specEnd = end;
+			}
+			int start = skipSpaces(value, i, specEnd);
+			int stop = specEnd;
+			while (stop > start && value.charAt(stop - 1) == ' ') {
+				stop--;
+			}
+			i = specEnd + 1;
+			if (start == stop) {
+				continue; // empty element of the list
+			}
+
+			int dash = value.indexOf('-', start);
+			if (dash < 0 || dash >= stop) {
+				return null;
+			}
+			ByteRange range;
+			if (dash == start) {
+				// suffix, "-500"
+				long suffix = number(value, dash + 1, stop);
+				if (suffix < 0) {
+					return null;
+				}
+				if (suffix == 0 || length == 0) {
+					continue;
+				}
+				range = new ByteRange(Math.max(0, length - suffix), length - 1);
+			} else {
+				long first = number(value, start, dash);
+				long last = (dash + 1 == stop) ? Long.MAX_VALUE : number(
+						value, dash + 1, stop);
+				if (first < 0 || last < 0 || last < first) {
+					return null;
+				}
+				if (first >= length) {
+					continue;
+				}
+				range = new ByteRange(first, Math.min(last, length - 1));
+			}
+			ranges.add(range);
+		}
+
+		if (ranges.size() > 1) {
+			List<ByteRange> coalesced = coalesce(ranges);
+			if (coalesced.size() < ranges.size()) {
+				ranges = coalesced;
+			}
+		}
+		return (ranges.size() > maxRanges) ? null : ranges;
+	}
+
+	/**
+	 * @return the ranges sorted, those which overlap or touch made one
+	 */
+	private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+		List<ByteRange> sorted = new ArrayList<ByteRange>(ranges);
+		Collections.sort(sorted, byStart);
+		List<ByteRange> coalesced = new ArrayList<ByteRange>(sorted.size());
+		ByteRange last = null;
+		for (ByteRange range : sorted) {
+			if (last != null && range.start <= last.end + 1) {
+				last.end = Math.max(last.end, range.end);
+			} else {
+				last = new ByteRange(range.start, range.end);
+				coalesced.add(last);
+			}
+		}
+		return coalesced;
+	}
+
+	private static int skipSpaces(String value, int i, int end) {
+		while (i < end && value.charAt(i) == ' ') {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the number written by the digits in [start, end), Long.MAX_VALUE
+	 *         if it is bigger, -1 if there are none or a character is not a
+	 *         digit
+	 */
+	private static long number(String value, int start, int end) {
+		if (start == end) {
+			return -1;
+		}
+		long n = 0;
+		for (int i = start; i < end; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			n = (n > (Long.MAX_VALUE - 9) / 10) ? Long.MAX_VALUE : n * 10
+					+ (c - '0');
+		}
+		return n;
+	}
+}
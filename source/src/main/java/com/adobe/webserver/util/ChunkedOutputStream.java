@@ -0,0 +1,155 @@
+package com.adobe.webserver.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.adobe.webserver.ServerParams;
+
+/**
+ * ChunkedOutputStream writes a message body whose length is not known when
+ * the head is sent, e.g. a generated html page. With the chunked
+ * transfer-coding (HTTP/1.1), the body is sent in chunks as it is generated,
+ * so the whole body is never held in memory. Otherwise (an HTTP/1.0 client)
+ * the bytes are written as they are, and the end of body is told by closing
+ * the connection.
+ *
+ * Bytes are gathered in a buffer of the shared {@link BufferPool}, so a chunk
+ * is as big as a buffer, except the last one. {@link #flush()} sends the
+ * gathered bytes as a chunk at once.
+ *
+ * {@link #finish()} must be called after the body, in a finally block, to
+ * send the last chunk and give the buffer back. The underlying stream is not
+ * closed.
+ *
+ * This class is not thread safe.
+ *
+ * @author KHEMKA
+ *
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+	private static final byte[] hexDigits = { '0', '1', '2', '3', '4', '5',
+			'6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+	private static final byte[] crlf = { '\r', '\n' };
+	private static final byte[] lastChunk = { '0', '\r', '\n', '\r', '\n' };
+
+	private final OutputStream out;
+	private final boolean chunked;
+	private byte[] buffer;
+	private int count = 0;
+
+	/**
+	 * @param out
+	 *            the stream connected to client, after the head of response
+	 * @param chunked
+	 *            true if the head has "Transfer-Encoding: chunked". false if
+	 *            the connection is closed after the body
+	 */
+	public ChunkedOutputStream(OutputStream out, boolean chunked) {
+		this.out = out;
+		this.chunked = chunked;
+		this.buffer = BufferPool.getInstance().acquire();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buffer.length) {
+			writeChunk();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len > buffer.length - count) {
+			writeChunk();
+			if (len >= buffer.length) {
+				writeChunk(b, off, len);
+				return;
+			}
+		}
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	/**
+	 * writes the string in ISO-8859-1, the encoding of headers and generated
+	 * bodies (see {@link ServerParams#HTTPHeadersEncoding}), without encoding
+	 * it to a new array. Characters out of ISO-8859-1 are written as '?'
+	 *
+	 * @param s
+	 *            the string to write
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public void print(String s) throws IOException {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			write((c < 256) ? c : '?');
+		}
+	}
+
+	/**
+	 * sends the gathered bytes as a chunk and flushes the underlying stream
+	 */
+	@Override
+	public void flush() throws IOException {
+		writeChunk();
+		out.flush();
+	}
+
+	/**
+	 * sends the gathered bytes and the last chunk, and gives the buffer back
+	 * to the pool. Does nothing if already finished
+	 *
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public void finish() throws IOException {
+		if (buffer == null) {
+			return;
+		}
+		try {
+			writeChunk();
+			if (chunked) {
+				out.write(lastChunk);
+			}
+		} finally {
+			BufferPool.getInstance().release(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * same as {@link #finish()}. The underlying stream is not closed
+	 */
+	@Override
+	public void close() throws IOException {
+		finish();
+	}
+
+	private void writeChunk() throws IOException {
+		if (count > 0) {
+			writeChunk(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	private void writeChunk(byte[] b, int off, int len) throws IOException {
+		if (!chunked) {
+			out.write(b, off, len);
+			return;
+		}
+		// chunk-size in hex, without leading zeros
+		int shift = 28;
+		while (shift > 0 && (len >>> shift) == 0) {
+			shift -= 4;
+		}
+		for (; shift >= 0; shift -= 4) {
+			out.write(hexDigits[(len >>> shift) & 0xf]);
+		}
+		out.write(crlf);
+		out.write(b, off, len);
+		out.write(crlf);
+	}
+}
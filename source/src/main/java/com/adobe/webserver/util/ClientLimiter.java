@@ -0,0 +1,225 @@
+package com.adobe.webserver.util;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.adobe.webserver.ServerParams;
+
+/**
+ * ClientLimiter limits what a single client (IP address) can take from the
+ * server - the number of connections it holds open at the same time, and the
+ * rate of its requests (token bucket).
+ * 
+ * State of clients is kept in a fixed number of stripes, each a map guarded by
+ * its own lock, so acceptors and pool threads rarely wait for each other. A
+ * stripe is kept in access order. A client without open connections which has
+ * not been seen for {@link ServerParams#ClientEntryTimeout} (by then its bucket
+ * is full again) is removed, and a stripe drops its least recently seen idle
+ * clients when it grows beyond its share of
+ * {@link ServerParams#ClientLimiterMaxEntries}. Only a few entries are looked
+ * at per call, so memory stays bounded without a sweeper thread.
+ * 
+ * A limit of 0 disables the corresponding check.
+ * 
+ * This class is thread safe.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public class ClientLimiter {
+
+	/**
+	 * number of entries looked at for expiry per call
+	 */
+	private static final int expiryScanLength = 4;
+
+	private final int maxConnections;
+	private final double requestRate;
+	private final double burst;
+	private final long entryTimeout;
+	private final int maxEntriesPerStripe;
+	private final Stripe[] stripes;
+
+	/**
+	 * @param maxConnections
+	 *            maximum number of connections a client can hold open. 0 for
+	 *            no limit
+	 * @param requestRate
+	 *            requests per second a client can make in the long run. 0 for
+	 *            no limit
+	 * @param burst
+	 *            number of requests a client can make at once. At least 1
+	 */
+	public ClientLimiter(int maxConnections, double requestRate, int burst) {
+		this.maxConnections = maxConnections;
+		this.requestRate = requestRate;
+		this.burst = Math.max(1, burst);
+		this.entryTimeout = Math.max(ServerParams.ClientEntryTimeout,
+				(requestRate > 0) ? (long) (1000 * this.burst / requestRate) : 0);
+		int stripeCount = ServerParams.ClientLimiterStripes;
+		this.stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe();
+		}
+		this.maxEntriesPerStripe = Math.max(1,
+				ServerParams.ClientLimiterMaxEntries / stripeCount);
+	}
+
+	/**
+	 * @return a limiter configured by {@link ServerParams}. null if neither
+	 *         limit is set
+	 */
+	public static ClientLimiter newClientLimiter() {
+		if (ServerParams.CLIENT_MAX_CONNECTIONS <= 0
+				&& ServerParams.CLIENT_REQUEST_RATE <= 0) {
+			return null;
+		}
+		return new ClientLimiter(ServerParams.CLIENT_MAX_CONNECTIONS,
+				ServerParams.CLIENT_REQUEST_RATE,
+				(ServerParams.CLIENT_REQUEST_BURST > 0) ? ServerParams.CLIENT_REQUEST_BURST
+						: 2 * ServerParams.CLIENT_REQUEST_RATE);
+	}
+
+	/**
+	 * counts a new connection of the client, unless it already holds the
+	 * maximum number of connections. A counted connection must be released by
+	 * {@link #closeConnection(InetAddress)}
+	 * 
+	 * @param client
+	 *            address of the client
+	 * @return true if the connection is counted, false if it should be dropped
+	 */
+	public boolean tryOpenConnection(InetAddress client) {
+		Stripe stripe = stripeOf(client);
+		synchronized (stripe) {
+			ClientState state = stripe.get(client, System.currentTimeMillis());
+			if (maxConnections > 0 && state.connections >= maxConnections) {
+				return false;
+			}
+			state.connections++;
+			return true;
+		}
+	}
+
+	/**
+	 * @param client
+	 *            address of a client whose counted connection is closed
+	 */
+	public void closeConnection(InetAddress client) {
+		Stripe stripe = stripeOf(client);
+		synchronized (stripe) {
+			ClientState state = stripe.get(client, System.currentTimeMillis());
+			if (state.connections > 0) {
+				state.connections--;
+			}
+		}
+	}
+
+	/**
+	 * takes a token from the bucket of the client for a request
+	 * 
+	 * @param client
+	 *            address of the client
+	 * @return 0 if the request can be served. otherwise the number of seconds
+	 *         after which the client may try again
+	 */
+	public int tryRequest(InetAddress client) {
+		if (requestRate <= 0) {
+			return 0;
+		}
+		long now = System.currentTimeMillis();
+		Stripe stripe = stripeOf(client);
+		synchronized (stripe) {
+			ClientState state = stripe.get(client, now);
+			state.tokens = Math.min(burst, state.tokens
+					+ (now - state.lastRefill) * requestRate / 1000);
+			state.lastRefill = now;
+			if (state.tokens >= 1) {
+				state.tokens -= 1;
+				return 0;
+			}
+			return (int) Math.ceil((1 - state.tokens) / requestRate);
+		}
+	}
+
+	/**
+	 * @return number of clients tracked
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	private Stripe stripeOf(InetAddress client) {
+		int hash = client.hashCode();
+		hash ^= (hash >>> 16);
+		return stripes[(hash & 0x7fffffff) % stripes.length];
+	}
+
+	/**
+	 * state of a client
+	 */
+	private static class ClientState {
+		int connections = 0;
+		double tokens;
+		long lastRefill;
+		long lastSeen;
+	}
+
+	/**
+	 * clients of a stripe, in access order
+	 */
+	private class Stripe {
+		private final LinkedHashMap<InetAddress, ClientState> clients = new LinkedHashMap<InetAddress, ClientState>(
+				16, 0.75f, true);
+
+		/**
+		 * returns state of the client, creating it if needed. Removes a few
+		 * expired clients on the way
+		 */
+		ClientState get(InetAddress client, long now) {
+			ClientState state = clients.get(client);
+			if (state == null) {
+				expire(now);
+				state = new ClientState();
+				state.tokens = burst;
+				state.lastRefill = now;
+				clients.put(client, state);
+			}
+			state.lastSeen = now;
+			return state;
+		}
+
+		/**
+		 * removes least recently seen clients which are idle, if they have
+		 * expired or the stripe is full
+		 */
+		private void expire(long now) {
+			Iterator<Map.Entry<InetAddress, ClientState>> entries = clients
+					.entrySet().iterator();
+			for (int i = 0; i < expiryScanLength && entries.hasNext(); i++) {
+				ClientState state = entries.next().getValue();
+				if (state.connections > 0) {
+					continue;
+				}
+				if (now - state.lastSeen > entryTimeout
+						|| clients.size() >= maxEntriesPerStripe) {
+					entries.remove();
+				} else {
+					return;
+				}
+			}
+		}
+
+		int size() {
+			return clients.size();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.adobe.webserver.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A fixed size thread pool with a bounded queue, which sheds new tasks when
+ * tasks wait too long in the queue.
+ * 
+ * The decision is based on the time tasks spend queued (CoDel - controlled
+ * delay), not on the length of the queue. Queue delay is sampled whenever a
+ * task is taken from the queue and whenever a task is offered (age of the
+ * oldest queued task). If it stays above the target for a whole interval, the
+ * pool is overloaded and {@link #execute(Runnable)} throws
+ * {@link RejectedExecutionException} without queuing the task, till a sample
+ * falls below the target again. So a burst is absorbed, but a standing queue,
+ * which only adds latency for everybody, is not.
+ * 
+ * Tasks are also rejected when the queue is full. A rejected task is left to
+ * the caller, which is expected to turn it down cheaply on its own thread.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public class CoDelThreadPoolExecutor extends ThreadPoolExecutor {
+
+	private static Logger logger = Logger
+			.getLogger(CoDelThreadPoolExecutor.class.getName());
+
+	private final long targetNanos;
+	private final long intervalNanos;
+
+	/**
+	 * time till which queue delay may stay above target. 0 if queue delay is
+	 * below target
+	 */
+	private long firstAboveTime = 0;
+	private volatile boolean overloaded = false;
+	private final AtomicLong shedCount = new AtomicLong();
+
+	/**
+	 * @param poolSize
+	 *            number of threads
+	 * @param queueCapacity
+	 *            maximum number of queued tasks
+	 * @param targetMillis
+	 *            acceptable queue delay in milliseconds
+	 * @param intervalMillis
+	 *            time in milliseconds for which queue delay may stay above
+	 *            target before tasks are shed
+	 */
+	public CoDelThreadPoolExecutor(int poolSize, int queueCapacity,
+			long targetMillis, long intervalMillis) {
+		super(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)));
+		this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+	}
+
+	/**
+	 * queues the task unless the pool is overloaded or queue is full
+	 * 
+	 * @throws RejectedExecutionException
+	 *             if the task is shed
+	 */
+	public void execute(Runnable command) {
+		long now = System.nanoTime();
+		QueuedTask oldest = (QueuedTask) getQueue().peek();
+		onQueueDelay((oldest == null) ? 0 : now - oldest.queuedAt, now);
+
+		if (overloaded) {
+			shedCount.incrementAndGet();
+			throw new RejectedExecutionException("queue delay is above target");
+		}
+		try {
+			super.execute(new QueuedTask(command, now));
+		} catch (RejectedExecutionException e) {
+			shedCount.incrementAndGet();
+			throw e;
+		}
+	}
+
+	protected void beforeExecute(Thread t, Runnable r) {
+		long now = System.nanoTime();
+		onQueueDelay(now - ((QueuedTask) r).queuedAt, now);
+		super.beforeExecute(t, r);
+	}
+
+	private synchronized void onQueueDelay(long delay, long now) {
+		if (delay < targetNanos) {
+			firstAboveTime = 0;
+			if (overloaded) {
+				overloaded = false;
+				logger.info("queue delay is back below target .. accepting tasks. tasks shed so far - "
+						+ shedCount.get());
+			}
+			return;
+		}
+		if (firstAboveTime == 0) {
+			firstAboveTime = now + intervalNanos;
+		} else if (!overloaded && now - firstAboveTime >= 0) {
+			overloaded = true;
+			logger.warn("queue delay is above target for "
+					+ TimeUnit.NANOSECONDS.toMillis(intervalNanos)
+					+ " ms .. shedding new tasks");
+		}
+	}
+
+	/**
+	 * changes the number of threads. When it shrinks, busy threads finish
+	 * their tasks before they exit
+	 * 
+	 * @param poolSize
+	 *            the new number of threads
+	 */
+	public synchronized void setPoolSize(int poolSize) {
+		if (poolSize > getMaximumPoolSize()) {
+			setMaximumPoolSize(poolSize);
+			setCorePoolSize(poolSize);
+		} else {
+			setCorePoolSize(poolSize);
+			setMaximumPoolSize(poolSize);
+		}
+	}
+
+	/**
+	 * @return true if new tasks are being shed because of queue delay
+	 */
+	public boolean isOverloaded() {
+		return overloaded;
+	}
+
+	/**
+	 * @return number of tasks rejected so far
+	 */
+	public long getShedCount() {
+		return shedCount.get();
+	}
+
+	/**
+	 * a task with the time it was queued at
+	 */
+	private static class QueuedTask implements Runnable {
+		private final Runnable task;
+		private final long queuedAt;
+
+		QueuedTask(Runnable task, long queuedAt) {
+			this.task = task;
+			this.queuedAt = queuedAt;
+		}
+
+		public void run() {
+			task.run();
+		}
+	}
+}
@@ -0,0 +1,403 @@
+package com.adobe.webserver.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.adobe.webserver.ServerParams;
+
+/**
+ * ContentCache holds small static files in memory, keyed by the normalized
+ * request path (see {@link RequestPathDecoder}), so a GET of a cached file
+ * neither touches the file system nor builds the headers of the file.
+ *
+ * An entry holds the body, and the Content-length and Content-Type header
+ * lines encoded once. The status line and the common headers are written by
+ * {@link ResponseTemplates#writeHead}, as for any response.
+ *
+ * The cache holds at most {@link ServerParams#CONTENT_CACHE_SIZE} bytes.
+ * Files bigger than {@link ServerParams#CONTENT_CACHE_MAX_FILE_SIZE} are not
+ * cached. Eviction is segmented LRU - a new entry is put on probation, and an
+ * entry hit while on probation is moved to the protected segment (at most 80%
+ * of the cache). Entries are evicted from the least recently used end of
+ * probation first, so a scan of files read once does not flush the files
+ * read often.
+ *
+ * An entry is checked against its file (modification time and length, read
+ * with one call) when it is used, at most once in
+ * {@link ServerParams#CONTENT_CACHE_VALIDATE_INTERVAL}. A changed or removed
+ * file is dropped from the cache, and the request is served from the file
+ * system.
+ *
+ * Hits, misses, evictions and invalidations are counted, see
+ * {@link #toString()}.
+ *
+ * This class is thread safe.
+ *
+ * @author KHEMKA
+ *
+ */
+public class ContentCache {
+
+	/**
+	 * bytes taken by an entry besides its content
+	 */
+	private static final int entryOverhead = 128;
+
+	/**
+	 * a cached file
+	 */
+	public static class Entry {
+		private final String requestPath;
+		private final Path file;
+		private final long lastModified;
+		private final String contentType;
+		private final Validators validators;
+		private final byte[] headers;
+		private final byte[] body;
+		private volatile long validated;
+
+		Entry(String requestPath, Path file, long lastModified,
+				String contentType, Validators validators, byte[] headers,
+				byte[] body, long validated) {
+			this.requestPath = requestPath;
+			this.file = file;
+			this.lastModified = lastModified;
+			this.contentType = contentType;
+			this.validators = validators;
+			this.headers = headers;
+			this.body = body;
+			this.validated = validated;
+		}
+
+		/**
+		 * @return modification time of the file when it was read
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return media type of the file, null if not known
+		 */
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * @return entity-tag and modification time of the file
+		 */
+		public Validators getValidators() {
+			return validators;
+		}
+
+		/**
+		 * @return the Content-length, Content-Type, Accept-Ranges, Vary (if
+		 *         the file may be sent compressed), ETag and Last-Modified
+		 *         header lines of the whole file, and the CRLF ending the
+		 *         head. Must not be modified
+		 */
+		public byte[] getHeaders() {
+			return headers;
+		}
+
+		/**
+		 * @return content of the file. Must not be modified
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+
+		private long size() {
+			return headers.length + body.length + entryOverhead;
+		}
+	}
+
+	/**
+	 * holds the shared instance, created on first use of
+	 * {@link #getInstance()}
+	 */
+	private static class InstanceHolder {
+		private static final ContentCache sharedInstance = new ContentCache(
+				ServerParams.CONTENT_CACHE_SIZE,
+				ServerParams.CONTENT_CACHE_MAX_FILE_SIZE,
+				ServerParams.CONTENT_CACHE_VALIDATE_INTERVAL);
+	}
+
+	/**
+	 * @return the cache shared by the server
+	 */
+	public static ContentCache getInstance() {
+		return InstanceHolder.sharedInstance;
+	}
+
+	private final long capacity;
+	private final long protectedCapacity;
+	private final long maxFileSize;
+	private final long validateInterval;
+
+	/**
+	 * segments, in access order - least recently used first
+	 */
+	private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private long probationBytes = 0;
+	private long protectedBytes = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+	/**
+	 * @param capacity
+	 *            most bytes held. 0 or less disables the cache
+	 * @param maxFileSize
+	 *            size of the biggest file cached
+	 * @param validateInterval
+	 *            time in milliseconds for which an entry is used without
+	 *            checking its file. 0 or less checks on every use
+	 */
+	public ContentCache(long capacity, long maxFileSize, long validateInterval) {
+		this.capacity = capacity;
+		this.protectedCapacity = capacity / 5 * 4;
+		this.maxFileSize = maxFileSize;
+		this.validateInterval = validateInterval;
+	}
+
+	/**
+	 * @return true if files are cached
+	 */
+	public boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	/**
+	 * @param requestPath
+	 *            normalized path of a request
+	 * @return the entry of the path, null if it is not cached or its file has
+	 *         changed
+	 */
+	public Entry get(String requestPath) {
+		if (!isEnabled()) {
+			return null;
+		}
+		Entry entry = lookup(requestPath);
+		if (entry == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if (now - entry.validated >= validateInterval) {
+			if (!isValid(entry)) {
+				invalidate(entry);
+				return null;
+			}
+			entry.validated = now;
+		}
+		synchronized (this) {
+			hits++;
+		}
+		return entry;
+	}
+
+	/**
+	 * reads a file into the cache
+	 *
+	 * @param requestPath
+	 *            normalized path of a request
+	 * @param file
+	 *            the file requested
+	 * @param in
+	 *            stream of the file, not read yet. It is not closed
+	 * @param contentType
+	 *            media type of the file, null if not known
+	 * @return the entry of the file, or null if the file is not cached (too
+	 *         big, or the cache is disabled)
+	 * @throws IOException
+	 *             when some read error occurs
+	 */
+	public Entry load(String requestPath, File file, FileInputStream in,
+			String contentType) throws IOException {
+		if (!isEnabled()) {
+			return null;
+		}
+		FileChannel channel = in.getChannel();
+		// taken before the read, so a change during the read is seen later
+		long lastModified = file.lastModified();
+		long length = channel.size();
+		if (length > maxFileSize || length + entryOverhead > capacity) {
+			return null;
+		}
+
+		ByteBuffer body = ByteBuffer.allocate((int) length);
+		while (body.hasRemaining()) {
+			if (channel.read(body, body.position()) < 0) {
+				return null; // truncated while read
+			}
+		}
+		ByteArrayOutputStream headers = new ByteArrayOutputStream(80);
+		ResponseTemplates.writeContentLength(headers, length);
+		if (contentType != null) {
+			ResponseTemplates.writeContentType(headers, contentType);
+		}
+		ResponseTemplates.writeAcceptRanges(headers);
+		if (ContentEncoding.isNegotiated(contentType)) {
+			ResponseTemplates.writeVary(headers);
+		}
+		Validators validators = new Validators(lastModified, length);
+		headers.write(validators.getHeaders());
+		ResponseTemplates.endHead(headers);
+
+		Entry entry = new Entry(requestPath, file.toPath(), lastModified,
+				contentType, validators, headers.toByteArray(), body.array(),
+				System.currentTimeMillis());
+		put(entry);
+		return entry;
+	}
+
+	private synchronized Entry lookup(String requestPath) {
+		Entry entry = protectedSegment.get(requestPath);
+		if (entry != null) {
+			return entry;
+		}
+		entry = probation.remove(requestPath);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		// hit on probation - promoted
+		probationBytes -= entry.size();
+		protectedSegment.put(requestPath, entry);
+		protectedBytes += entry.size();
+		Iterator<Entry> lru = protectedSegment.values().iterator();
+		while (protectedBytes > protectedCapacity) {
+			Entry demoted = lru.next();
+			lru.remove();
+			protectedBytes -= demoted.size();
+			probation.put(demoted.requestPath, demoted);
+			probationBytes += demoted.size();
+		}
+		return entry;
+	}
+
+	private synchronized void put(Entry entry) {
+		remove(entry.requestPath);
+		probation.put(entry.requestPath, entry);
+		probationBytes += entry.size();
+		evict(probation);
+		evict(protectedSegment);
+	}
+
+	/**
+	 * evicts least recently used entries of the segment till the cache is
+	 * within its capacity
+	 */
+	private void evict(Map<String, Entry> segment) {
+		Iterator<Entry> lru = segment.values().iterator();
+		while (probationBytes + protectedBytes > capacity && lru.hasNext()) {
+			Entry evicted = lru.next();
+			lru.remove();
+			if (segment == probation) {
+				probationBytes -= evicted.size();
+			} else {
+				protectedBytes -= evicted.size();
+			}
+			evictions++;
+		}
+	}
+
+	private Entry remove(String requestPath) {
+		Entry entry = probation.remove(requestPath);
+		if (entry != null) {
+			probationBytes -= entry.size();
+			return entry;
+		}
+		entry = protectedSegment.remove(requestPath);
+		if (entry != null) {
+			protectedBytes -= entry.size();
+		}
+		return entry;
+	}
+
+	/**
+	 * drops the entry, unless it has been replaced already
+	 */
+	private synchronized void invalidate(Entry entry) {
+		Entry current = probation.get(entry.requestPath);
+		if (current == null) {
+			current = protectedSegment.get(entry.requestPath);
+		}
+		if (current == entry) {
+			remove(entry.requestPath);
+		}
+		invalidations++;
+		misses++;
+	}
+
+	private static boolean isValid(Entry entry) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(entry.file,
+					BasicFileAttributes.class);
+			return attributes.isRegularFile()
+					&& attributes.lastModifiedTime().toMillis() == entry.lastModified
+					&& attributes.size() == entry.body.length;
+		} catch (IOException e) {
+			return false; // removed
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * @return bytes held by the entries
+	 */
+	public synchronized long getBytesUsed() {
+		return probationBytes + protectedBytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return probation.size() + protectedSegment.size();
+	}
+
+	/**
+	 * @return share of lookups which were hits, 0 if there was none
+	 */
+	public synchronized double getHitRatio() {
+		long lookups = hits + misses;
+		return (lookups == 0) ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "hits: " + hits + ", misses: " + misses + ", hit ratio: "
+				+ Math.round(getHitRatio() * 100) + "%, entries: "
+				+ getEntryCount() + ", bytes used: " + getBytesUsed() + "/"
+				+ capacity + ", evictions: " + evictions + ", invalidations: "
+				+ invalidations;
+	}
+}
@@ -0,0 +1,116 @@
+package com.adobe.webserver.util;
+
+import com.adobe.webserver.ServerParams;
+
+/**
+ * ContentEncoding negotiates the content-coding of a file sent - gzip or none
+ * (identity) - from the Accept-Encoding header of the request (RFC 7231
+ * section 5.3.4).
+ *
+ * Files of a compressible type (see {@link MimeTypes#isCompressible}) are
+ * sent gzip encoded to clients accepting gzip, from a precompressed "name.gz"
+ * file next to the file ({@link ServerParams#GZIP_STATIC}) or from the
+ * {@link GzipCache}. Every response of such a file, encoded or not, carries
+ * "Vary: Accept-Encoding".
+ *
+ * Header values are scanned in place, nothing is allocated.
+ *
+ * @author KHEMKA
+ *
+ */
+public class ContentEncoding {
+
+	private ContentEncoding() {
+	}
+
+	/**
+	 * @param contentType
+	 *            media type of a file, null if not known
+	 * @return true if the file may be sent gzip encoded, so its responses
+	 *         vary by Accept-Encoding
+	 */
+	public static boolean isNegotiated(String contentType) {
+		return (ServerParams.GZIP_STATIC || ServerParams.GZIP_CACHE_SIZE > 0)
+				&& MimeTypes.isCompressible(contentType);
+	}
+
+	/**
+	 * @param acceptEncoding
+	 *            value of the Accept-Encoding header, e.g.
+	 *            "gzip, deflate;q=0.5". null if there is none
+	 * @return true if the client accepts gzip - it is listed (or x-gzip is)
+	 *         with a quality above 0, or it is not listed and "*" is
+	 */
+	public static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		int length = acceptEncoding.length();
+		boolean anyAccepted = false;
+		int i = 0;
+		while (i < length) {
+			int end = acceptEncoding.indexOf(',', i);
+			if (end < 0) {
+				end = length;
+			}
+			int start = skipSpaces(acceptEncoding, i, end);
+			int nameEnd = start;
+			while (nameEnd < end) {
+				char c = acceptEncoding.charAt(nameEnd);
+				if (c == ';' || c == ' ' || c == '\t') {
+					break;
+				}
+				nameEnd++;
+			}
+			boolean accepted = !isZeroQuality(acceptEncoding, nameEnd, end);
+			int nameLength = nameEnd - start;
+			if ((nameLength == 4 && acceptEncoding.regionMatches(true, start,
+					"gzip", 0, 4))
+					|| (nameLength == 6 && acceptEncoding.regionMatches(true,
+							start, "x-gzip", 0, 6))) {
+				return accepted;
+			}
+			if (nameLength == 1 && acceptEncoding.charAt(start) == '*') {
+				anyAccepted = accepted;
+			}
+			i = end + 1;
+		}
+		return anyAccepted;
+	}
+
+	/**
+	 * @return true if the parameters in [start, end), e.g. ";q=0.0", give a
+	 *         quality of 0
+	 */
+	static boolean isZeroQuality(String value, int start, int end) {
+		int i = value.indexOf(';', start);
+		while (i >= 0 && i < end) {
+			int name = skipSpaces(value, i + 1, end);
+			if (end - name >= 2 && value.regionMatches(true, name, "q=", 0, 2)) {
+				for (int j = name + 2; j < end; j++) {
+					char c = value.charAt(j);
+					if (c >= '1' && c <= '9') {
+						return false;
+					}
+					if (c != '0' && c != '.') {
+						break;
+					}
+				}
+				return true;
+			}
+			i = value.indexOf(';', i + 1);
+		}
+		return false;
+	}
+
+	private static int skipSpaces(String value, int i, int end) {
+		while (i < end) {
+			char c = value.charAt(i);
+			if (c != ' ' && c != '\t') {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+}
@@ -0,0 +1,39 @@
+package com.adobe.webserver.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A stream to the client which can send bytes of a file straight from its
+ * channel, see {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)}. On Linux the bytes go from the
+ * page cache to the socket (sendfile) and never cross the heap.
+ *
+ * Whether a transfer is possible may only be known at runtime, e.g. a stream
+ * over a stream of the connection, so {@link #transferFrom} can refuse it.
+ * See {@link Helper#writeFile} for a copy when it does.
+ *
+ * @author KHEMKA
+ *
+ */
+public interface FileTransferWriter {
+
+	/**
+	 * writes bytes of the file to the client. Returns when all are written.
+	 * Bytes written to the stream before are sent first
+	 *
+	 * @param file
+	 *            channel of the file
+	 * @param position
+	 *            position in the file of first byte
+	 * @param count
+	 *            number of bytes to write
+	 * @return false if the connection can't take a transfer. Nothing is
+	 *         written then
+	 * @throws IOException
+	 *             when some read/write error occurs, or the file is shorter
+	 *             than expected
+	 */
+	boolean transferFrom(FileChannel file, long position, long count)
+			throws IOException;
+}
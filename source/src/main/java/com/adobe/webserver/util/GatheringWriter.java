@@ -0,0 +1,28 @@
+package com.adobe.webserver.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A stream to the client which can write several buffers with one operation
+ * of its channel - a gathering write, see
+ * {@link java.nio.channels.GatheringByteChannel#write(ByteBuffer[])}. The
+ * {@link ResponseWriter} uses it to send the held bytes of a response and a
+ * big chunk of its body together, without copying the chunk.
+ *
+ * @author KHEMKA
+ *
+ */
+public interface GatheringWriter {
+
+	/**
+	 * writes the remaining bytes of all the buffers, in order. Returns when
+	 * all are written
+	 *
+	 * @param buffers
+	 *            the bytes to write
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	void write(ByteBuffer[] buffers) throws IOException;
+}
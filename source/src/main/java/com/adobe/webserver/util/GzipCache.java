@@ -0,0 +1,570 @@
+package com.adobe.webserver.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.adobe.webserver.ServerParams;
+
+/**
+ * GzipCache holds gzip compressed copies of static files of a compressible
+ * type (see {@link MimeTypes#isCompressible}), keyed by the normalized request
+ * path. A request finding its file here is served without looking at the
+ * disk.
+ *
+ * The precompressed "name.gz" file of a file is read into the cache as it is
+ * (see {@link #load}), and tagged with its own validators. Its entry is valid
+ * while the "name.gz" file is unchanged and not older than the file.
+ *
+ * A file is never compressed by the request asking for it. The request asks
+ * for it by {@link #compressLater} and is sent the file as it is, while a
+ * background thread compresses it (best compression, as it is done once per
+ * version of the file). Later requests are sent the compressed copy. A file
+ * which does not get smaller, or whose size is out of the range of the cache,
+ * is remembered as such (an entry without a body), so it is not looked at
+ * again.
+ *
+ * An entry holds the compressed body, and its Content-length, Content-Type,
+ * Content-Encoding, Vary, ETag and Last-Modified header lines encoded once.
+ * The entity-tag of the copy is the tag of the file with "-gzip" appended
+ * (see {@link Validators}). An entry is checked against its file as in
+ * {@link ContentCache}, at most once in
+ * {@link ServerParams#CONTENT_CACHE_VALIDATE_INTERVAL}.
+ *
+ * The cache holds at most {@link ServerParams#GZIP_CACHE_SIZE} bytes, least
+ * recently used entries are evicted first. Files bigger than
+ * {@link ServerParams#GZIP_MAX_FILE_SIZE} are not compressed. Compressions
+ * wait in a bounded queue, a request finding it full is not compressed.
+ *
+ * Hits, misses, compressions, loads of "name.gz" files, evictions and
+ * invalidations are counted, see
+ * {@link #toString()}.
+ *
+ * This class is thread safe.
+ *
+ * @author KHEMKA
+ *
+ */
+public class GzipCache {
+
+	private static Logger logger = Logger.getLogger(GzipCache.class.getName());
+
+	/**
+	 * bytes taken by an entry besides its content
+	 */
+	private static final int entryOverhead = 128;
+
+	/**
+	 * files of this size or smaller are not compressed - the gain is less
+	 * than the headers added
+	 */
+	private static final long minFileSize = 256;
+
+	/**
+	 * most compressions waiting for the background thread
+	 */
+	private static final int maxPendingCompressions = 256;
+
+	/**
+	 * a compressed file
+	 */
+	public static class Entry {
+		private final String requestPath;
+		private final Path file;
+		private final long lastModified;
+		private final long length;
+
+		/**
+		 * the file a precompressed file was made from. null if the entry is
+		 * not a precompressed file
+		 */
+		private final Path source;
+		private final Validators validators;
+		private final byte[] headers;
+		private final byte[] body;
+		private volatile long validated;
+
+		Entry(String requestPath, Path file, long lastModified, long length,
+				Path source, Validators validators, byte[] headers,
+				byte[] body, long validated) {
+			this.requestPath = requestPath;
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.source = source;
+			this.validators = validators;
+			this.headers = headers;
+			this.body = body;
+			this.validated = validated;
+		}
+
+		/**
+		 * @return false if the file does not get smaller by compression, or
+		 *         is out of the size range of the cache, so it is sent as it
+		 *         is
+		 */
+		public boolean isCompressed() {
+			return body != null;
+		}
+
+		/**
+		 * @return entity-tag and modification time of the compressed copy.
+		 *         null if it is not compressed
+		 */
+		public Validators getValidators() {
+			return validators;
+		}
+
+		/**
+		 * @return the Content-length, Content-Type, Content-Encoding, Vary,
+		 *         ETag and Last-Modified header lines of the compressed copy,
+		 *         and the CRLF ending the head. null if it is not compressed.
+		 *         Must not be modified
+		 */
+		public byte[] getHeaders() {
+			return headers;
+		}
+
+		/**
+		 * @return the compressed copy. null if it is not compressed. Must not
+		 *         be modified
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+
+		private long size() {
+			return ((body != null) ? headers.length + body.length : 0)
+					+ entryOverhead;
+		}
+	}
+
+	/**
+	 * holds the shared instance, created on first use of
+	 * {@link #getInstance()}
+	 */
+	private static class InstanceHolder {
+		private static final GzipCache sharedInstance = new GzipCache(
+				ServerParams.GZIP_CACHE_SIZE, ServerParams.GZIP_MAX_FILE_SIZE,
+				ServerParams.CONTENT_CACHE_VALIDATE_INTERVAL);
+	}
+
+	/**
+	 * @return the cache shared by the server
+	 */
+	public static GzipCache getInstance() {
+		return InstanceHolder.sharedInstance;
+	}
+
+	private final long capacity;
+	private final long maxFileSize;
+	private final long validateInterval;
+
+	/**
+	 * entries in access order - least recently used first
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private long bytesUsed = 0;
+
+	/**
+	 * paths queued or being compressed, so a file is compressed once however
+	 * many requests ask for it meanwhile
+	 */
+	private final Set<String> pending = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ThreadPoolExecutor compressor;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long compressions = 0;
+	private long loads = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+	/**
+	 * @param capacity
+	 *            most bytes held. 0 or less disables the cache
+	 * @param maxFileSize
+	 *            size of the biggest file compressed
+	 * @param validateInterval
+	 *            time in milliseconds for which an entry is used without
+	 *            checking its file. 0 or less checks on every use
+	 */
+	public GzipCache(long capacity, long maxFileSize, long validateInterval) {
+		this.capacity = capacity;
+		this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE / 2);
+		this.validateInterval = validateInterval;
+		// one thread, which ends when idle, so it does not keep the jvm alive
+		this.compressor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(maxPendingCompressions),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "gzip-compressor");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.compressor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return true if files are compressed
+	 */
+	public boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	/**
+	 * @param requestPath
+	 *            normalized path of a request
+	 * @return the entry of the path, null if the file is not compressed yet
+	 *         or has changed
+	 */
+	public Entry get(String requestPath) {
+		if (!isEnabled()) {
+			return null;
+		}
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(requestPath);
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+		}
+		long now = System.currentTimeMillis();
+		if (now - entry.validated >= validateInterval) {
+			if (!isValid(entry)) {
+				synchronized (this) {
+					if (entries.get(requestPath) == entry) {
+						entries.remove(requestPath);
+						bytesUsed -= entry.size();
+					}
+					invalidations++;
+					misses++;
+				}
+				return null;
+			}
+			entry.validated = now;
+		}
+		synchronized (this) {
+			hits++;
+		}
+		return entry;
+	}
+
+	/**
+	 * @param requestPath
+	 *            normalized path of a request
+	 * @return true if the file of the path is queued or being compressed
+	 */
+	public boolean isPending(String requestPath) {
+		return pending.contains(requestPath);
+	}
+
+	/**
+	 * queues the compression of a file, unless it is queued already, or the
+	 * queue is full. A file whose size is out of the range of the cache is
+	 * remembered as not compressed instead
+	 *
+	 * @param requestPath
+	 *            normalized path of a request
+	 * @param file
+	 *            the file requested
+	 * @param lastModified
+	 *            modification time of the file
+	 * @param length
+	 *            length of the file
+	 * @param contentType
+	 *            media type of the file
+	 */
+	public void compressLater(final String requestPath, final File file,
+			long lastModified, long length, final String contentType) {
+		if (!isEnabled()) {
+			return;
+		}
+		if (length <= minFileSize || length > maxFileSize
+				|| length + entryOverhead > capacity) {
+			put(new Entry(requestPath, file.toPath(), lastModified, length,
+					null, null, null, null, System.currentTimeMillis()));
+			return;
+		}
+		if (!pending.add(requestPath)) {
+			return;
+		}
+		try {
+			compressor.execute(new Runnable() {
+				public void run() {
+					try {
+						compress(requestPath, file, contentType);
+					} catch (IOException e) {
+						logger.debug("file could not be compressed - "
+								+ requestPath + " - " + e);
+					} finally {
+						pending.remove(requestPath);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.remove(requestPath);
+		}
+	}
+
+	/**
+	 * compresses a file into the cache, on the calling thread
+	 *
+	 * @param requestPath
+	 *            normalized path of a request
+	 * @param file
+	 *            the file requested
+	 * @param contentType
+	 *            media type of the file
+	 * @return the entry of the file, or null if it is not cached (out of the
+	 *         size range of the cache, or the cache is disabled)
+	 * @throws IOException
+	 *             when some read error occurs
+	 */
+	public Entry compress(String requestPath, File file, String contentType)
+			throws IOException {
+		if (!isEnabled()) {
+			return null;
+		}
+		FileInputStream in = new FileInputStream(file);
+		long lastModified;
+		long length;
+		ByteArrayOutputStream compressed;
+		try {
+			// taken before the read, so a change during the read is seen later
+			lastModified = file.lastModified();
+			length = in.getChannel().size();
+			if (length <= minFileSize || length > maxFileSize
+					|| length + entryOverhead > capacity) {
+				return null;
+			}
+			compressed = new ByteArrayOutputStream((int) (length / 4) + 64);
+			OutputStream gzip = new GZIPOutputStream(compressed, 8192) {
+				{
+					def.setLevel(Deflater.BEST_COMPRESSION);
+				}
+			};
+			byte[] buffer = new byte[8192];
+			long remaining = length;
+			while (remaining > 0) {
+				int read = in.read(buffer, 0,
+						(int) Math.min(buffer.length, remaining));
+				if (read < 0) {
+					return null; // truncated while read
+				}
+				gzip.write(buffer, 0, read);
+				remaining -= read;
+			}
+			gzip.close();
+		} finally {
+			in.close();
+		}
+
+		Entry entry;
+		if (compressed.size() >= length) {
+			entry = new Entry(requestPath, file.toPath(), lastModified, length,
+					null, null, null, null, System.currentTimeMillis());
+		} else {
+			entry = createEntry(requestPath, file.toPath(), lastModified,
+					length, null, new Validators(lastModified, length, "gzip"),
+					compressed.toByteArray(), contentType);
+		}
+		synchronized (this) {
+			compressions++;
+		}
+		put(entry);
+		return entry;
+	}
+
+	/**
+	 * reads the precompressed "name.gz" file of a file into the cache, on the
+	 * calling thread
+	 *
+	 * @param requestPath
+	 *            normalized path of a request
+	 * @param precompressed
+	 *            the "name.gz" file
+	 * @param source
+	 *            the file requested, which must not be newer than
+	 *            precompressed
+	 * @param contentType
+	 *            media type of the file requested
+	 * @return the entry of the file, or null if it is not cached (bigger than
+	 *         the size range of the cache, or the cache is disabled)
+	 * @throws IOException
+	 *             when some read error occurs
+	 */
+	public Entry load(String requestPath, File precompressed, File source,
+			String contentType) throws IOException {
+		if (!isEnabled()) {
+			return null;
+		}
+		FileInputStream in = new FileInputStream(precompressed);
+		long lastModified;
+		byte[] body;
+		try {
+			lastModified = precompressed.lastModified();
+			long length = in.getChannel().size();
+			if (length > maxFileSize || length + entryOverhead > capacity) {
+				return null;
+			}
+			body = new byte[(int) length];
+			if (!readFully(in, body)) {
+				return null; // truncated while read
+			}
+		} finally {
+			in.close();
+		}
+
+		Entry entry = createEntry(requestPath, precompressed.toPath(),
+				lastModified, body.length, source.toPath(), new Validators(
+						lastModified, body.length), body, contentType);
+		synchronized (this) {
+			loads++;
+		}
+		put(entry);
+		return entry;
+	}
+
+	private static boolean readFully(InputStream in, byte[] b)
+			throws IOException {
+		int length = 0;
+		while (length < b.length) {
+			int read = in.read(b, length, b.length - length);
+			if (read < 0) {
+				return false;
+			}
+			length += read;
+		}
+		return true;
+	}
+
+	/**
+	 * creates an entry holding a gzip encoded body, and its header lines
+	 */
+	private static Entry createEntry(String requestPath, Path file,
+			long lastModified, long length, Path source,
+			Validators validators, byte[] body, String contentType)
+			throws IOException {
+		ByteArrayOutputStream headers = new ByteArrayOutputStream(160);
+		ResponseTemplates.writeContentLength(headers, body.length);
+		if (contentType != null) {
+			ResponseTemplates.writeContentType(headers, contentType);
+		}
+		ResponseTemplates.writeGzipEncoding(headers);
+		ResponseTemplates.writeVary(headers);
+		headers.write(validators.getHeaders());
+		ResponseTemplates.endHead(headers);
+		return new Entry(requestPath, file, lastModified, length, source,
+				validators, headers.toByteArray(), body,
+				System.currentTimeMillis());
+	}
+
+	private synchronized void put(Entry entry) {
+		Entry replaced = entries.remove(entry.requestPath);
+		if (replaced != null) {
+			bytesUsed -= replaced.size();
+		}
+		entries.put(entry.requestPath, entry);
+		bytesUsed += entry.size();
+		Iterator<Entry> lru = entries.values().iterator();
+		while (bytesUsed > capacity && lru.hasNext()) {
+			Entry evicted = lru.next();
+			if (evicted == entry) {
+				continue;
+			}
+			lru.remove();
+			bytesUsed -= evicted.size();
+			evictions++;
+		}
+	}
+
+	private static boolean isValid(Entry entry) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(entry.file,
+					BasicFileAttributes.class);
+			if (!attributes.isRegularFile()
+					|| attributes.lastModifiedTime().toMillis() != entry.lastModified
+					|| attributes.size() != entry.length) {
+				return false;
+			}
+			// a precompressed file older than its file is left from a
+			// previous version of the file
+			return entry.source == null
+					|| Files.getLastModifiedTime(entry.source).toMillis() <= entry.lastModified;
+		} catch (IOException e) {
+			return false; // removed
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getCompressions() {
+		return compressions;
+	}
+
+	public synchronized long getLoads() {
+		return loads;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * @return bytes held by the entries
+	 */
+	public synchronized long getBytesUsed() {
+		return bytesUsed;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		long lookups = hits + misses;
+		return "hits: " + hits + ", misses: " + misses + ", hit ratio: "
+				+ ((lookups == 0) ? 0 : Math.round(hits * 100.0 / lookups))
+				+ "%, entries: " + entries.size() + ", bytes used: "
+				+ bytesUsed + "/" + capacity + ", compressions: "
+				+ compressions + ", loads: " + loads + ", evictions: "
+				+ evictions
+				+ ", invalidations: " + invalidations;
+	}
+}
@@ -0,0 +1,177 @@
+package com.adobe.webserver.util;
+
+/**
+ * HTTPDate parses and formats the dates of HTTP headers without
+ * {@link java.text.SimpleDateFormat} - a parse reads the characters of the
+ * value in place and allocates nothing.
+ *
+ * The three formats of RFC 7231 are parsed - IMF-fixdate (e.g. "Sun, 06 Nov
+ * 1994 08:49:37 GMT"), the obsolete RFC 850 date (e.g. "Sunday, 06-Nov-94
+ * 08:49:37 GMT") and asctime (e.g. "Sun Nov  6 08:49:37 1994"). All are taken
+ * as GMT. The name of the day is not checked. A two digit year is taken as
+ * 19xx from 70 on, 20xx below. Dates are formatted as IMF-fixdate.
+ *
+ * @author KHEMKA
+ *
+ */
+public class HTTPDate {
+
+	/**
+	 * returned by {@link #parse(String)} for a value which is not a date
+	 */
+	public static final long INVALID = Long.MIN_VALUE;
+
+	private static final String months = "JanFebMarAprMayJunJulAugSepOctNovDec";
+	private static final String days = "ThuFriSatSunMonTueWed";
+
+	private HTTPDate() {
+	}
+
+	/**
+	 * @param value
+	 *            value of a date header
+	 * @return the date, in milliseconds since the epoch, or {@link #INVALID}
+	 */
+	public static long parse(String value) {
+		int length = value.length();
+		int comma = value.indexOf(',');
+		if (comma == 3 && length == 29) {
+			// IMF-fixdate, "Sun, 06 Nov 1994 08:49:37 GMT"
+			if (value.charAt(4) != ' ' || value.charAt(7) != ' '
+					|| value.charAt(11) != ' ' || value.charAt(16) != ' ') {
+				return INVALID;
+			}
+			return toMillis(number(value, 12, 4), month(value, 8), number(
+					value, 5, 2), value, 17, 25);
+		}
+		if (comma > 3 && length == comma + 24) {
+			// RFC 850, "Sunday, 06-Nov-94 08:49:37 GMT"
+			int start = comma + 2;
+			if (value.charAt(start - 1) != ' '
+					|| value.charAt(start + 2) != '-'
+					|| value.charAt(start + 6) != '-'
+					|| value.charAt(start + 9) != ' ') {
+				return INVALID;
+			}
+			int year = number(value, start + 7, 2);
+			if (year >= 0) {
+				year += (year < 70) ? 2000 : 1900;
+			}
+			return toMillis(year, month(value, start + 3), number(value,
+					start, 2), value, start + 10, start + 18);
+		}
+		if (comma < 0 && length == 24) {
+			// asctime, "Sun Nov  6 08:49:37 1994"
+			if (value.charAt(3) != ' ' || value.charAt(7) != ' '
+					|| value.charAt(10) != ' ' || value.charAt(19) != ' ') {
+				return INVALID;
+			}
+			int day = (value.charAt(8) == ' ') ? number(value, 9, 1) : number(
+					value, 8, 2);
+			return toMillis(number(value, 20, 4), month(value, 4), day, value,
+					11, -1);
+		}
+		return INVALID;
+	}
+
+	/**
+	 * @param time
+	 *            milliseconds since the epoch
+	 * @return the date as IMF-fixdate
+	 */
+	public static String format(long time) {
+		long seconds = Math.floorDiv(time, 1000);
+		long day = Math.floorDiv(seconds, 86400);
+		int secondOfDay = (int) (seconds - day * 86400);
+
+		// civil from days, see http://howardhinnant.github.io/date_algorithms.html
+		long z = day + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int monthIndex = (int) ((5 * dayOfYear + 2) / 153); // from March
+		int dayOfMonth = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+		int month = (monthIndex < 10) ? monthIndex + 3 : monthIndex - 9;
+		long year = yearOfEra + era * 400 + ((month <= 2) ? 1 : 0);
+
+		StringBuilder date = new StringBuilder(29);
+		int weekDay = (int) Math.floorMod(day, 7L);
+		date.append(days, weekDay * 3, weekDay * 3 + 3).append(", ");
+		appendTwoDigits(date, dayOfMonth).append(' ');
+		date.append(months, (month - 1) * 3, month * 3).append(' ');
+		date.append(year).append(' ');
+		appendTwoDigits(date, secondOfDay / 3600).append(':');
+		appendTwoDigits(date, secondOfDay / 60 % 60).append(':');
+		appendTwoDigits(date, secondOfDay % 60).append(" GMT");
+		return date.toString();
+	}
+
+	private static StringBuilder appendTwoDigits(StringBuilder date, int n) {
+		return date.append((char) ('0' + n / 10)).append((char) ('0' + n % 10));
+	}
+
+	/**
+	 * @param timeStart
+	 *            index of "HH:mm:ss"
+	 * @param zoneStart
+	 *            index of " GMT" after the time, -1 if there is none
+	 */
+	private static long toMillis(int year, int month, int day, String value,
+			int timeStart, int zoneStart) {
+		if (zoneStart >= 0 && !value.regionMatches(zoneStart, " GMT", 0, 4)) {
+			return INVALID;
+		}
+		if (value.charAt(timeStart + 2) != ':'
+				|| value.charAt(timeStart + 5) != ':') {
+			return INVALID;
+		}
+		int hour = number(value, timeStart, 2);
+		int minute = number(value, timeStart + 3, 2);
+		int second = number(value, timeStart + 6, 2);
+		if (year < 0 || month < 0 || day < 1 || day > 31 || hour < 0
+				|| hour > 23 || minute < 0 || minute > 59 || second < 0
+				|| second > 60) {
+			return INVALID;
+		}
+
+		// days from civil, see http://howardhinnant.github.io/date_algorithms.html
+		long y = (month <= 2) ? year - 1 : year;
+		long era = Math.floorDiv(y, 400);
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5
+				+ day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		long days = era * 146097 + dayOfEra - 719468;
+		return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+	}
+
+	/**
+	 * @return the number written by the digits, -1 if a character is not a
+	 *         digit
+	 */
+	private static int number(String value, int start, int count) {
+		int n = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			n = n * 10 + (c - '0');
+		}
+		return n;
+	}
+
+	/**
+	 * @return the month (1 to 12) named at the index, -1 if it is no month
+	 */
+	private static int month(String value, int start) {
+		for (int i = 0; i < 12; i++) {
+			if (value.regionMatches(start, months, i * 3, 3)) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+}
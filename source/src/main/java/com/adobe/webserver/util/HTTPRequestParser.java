@@ -0,0 +1,477 @@
+package com.adobe.webserver.util;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.adobe.webserver.IllegalRequestException;
+import com.adobe.webserver.ServerParams;
+
+/**
+ * HTTPRequestParser parses the request-line and the header fields of a
+ * request in a single pass.
+ * 
+ * The bytes of the request head are read in bulk into a byte array (kept and
+ * reused for the next request of the connection) and run through a state
+ * machine, which only records where the method, request-target, HTTP-Version
+ * and every field-name and field-value start and end. A String is created
+ * only when a part is asked for. Well known methods and versions are returned
+ * as constants. The fields are indexed by a {@link RequestHeaders}, see
+ * {@link #getHeaders()}.
+ * 
+ * The stream is read ahead under a mark, and reset to the end of the head, so
+ * the body is left in the stream for the method handler.
+ * 
+ * Lines must end with CRLF. A field-value folded over several lines
+ * (obs-fold) is joined with spaces. A field-name must be a token, directly
+ * followed by ':'. A request with an ill formed request-line or field, or
+ * with a head bigger than {@link ServerParams#MaxRequestHeaderSize}, is
+ * rejected with {@link IllegalRequestException}. So is a request with a
+ * Transfer-Encoding, as its body could not be framed.
+ * 
+ * This class is not thread safe.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public class HTTPRequestParser {
+
+	private static final Charset headerCharset = Charset
+			.forName(ServerParams.HTTPHeadersEncoding);
+
+	private static final String[] knownMethods = { "GET", "POST", "HEAD",
+			"PUT", "DELETE", "OPTIONS" };
+	private static final String[] knownVersions = { "HTTP/1.1", "HTTP/1.0" };
+
+	// tchar of RFC 7230 - the bytes a field-name is made of
+	private static final boolean[] tokenChars = new boolean[128];
+	static {
+		for (int c = '0'; c <= '9'; c++) {
+			tokenChars[c] = true;
+		}
+		for (int c = 'A'; c <= 'Z'; c++) {
+			tokenChars[c] = true;
+			tokenChars[c + 'a' - 'A'] = true;
+		}
+		for (char c : "!#$%&'*+-.^_`|~".toCharArray()) {
+			tokenChars[c] = true;
+		}
+	}
+
+	private static final int initialBufferSize = 1024;
+	private static final int initialFieldCount = 16;
+
+	// states of the parser
+	private static final int EMPTY_LINE = 0;
+	private static final int EMPTY_LINE_LF = 1;
+	private static final int METHOD = 2;
+	private static final int TARGET = 3;
+	private static final int VERSION = 4;
+	private static final int REQUEST_LINE_LF = 5;
+	private static final int FIELD_START = 6;
+	private static final int NAME = 7;
+	private static final int VALUE_START = 8;
+	private static final int VALUE = 9;
+	private static final int FIELD_LF = 10;
+	private static final int END_LF = 11;
+	private static final int DONE = 12;
+
+	private byte[] buffer = new byte[initialBufferSize];
+	private int state;
+	private int headLength;
+
+	private int methodStart, methodEnd;
+	private int targetStart, targetEnd;
+	private int versionStart, versionEnd;
+
+	private int fieldCount;
+	private int[] nameStart = new int[initialFieldCount];
+	private int[] nameEnd = new int[initialFieldCount];
+	private int[] valueStart = new int[initialFieldCount];
+	private int[] valueEnd = new int[initialFieldCount];
+
+	private final RequestHeaders headers = new RequestHeaders(this);
+	private final RequestPathDecoder pathDecoder = new RequestPathDecoder();
+
+	/**
+	 * reads and parses the request-line and header of a request. Empty lines
+	 * before the request-line are ignored
+	 * 
+	 * @param in
+	 *            stream connected to client. It is left at the start of body
+	 * @throws IOException
+	 *             when there is error in read
+	 * @throws IllegalRequestException
+	 *             if the request head is ill formed, too large, has a
+	 *             Transfer-Encoding, or the client closed the connection
+	 *             before sending it completely
+	 */
+	public void parseRequest(BufferedInputStream in) throws IOException,
+			IllegalRequestException {
+		parse(in, EMPTY_LINE);
+		// RFC 7230 3.3.3 - a body is framed by Content-Length only. A
+		// transfer coding would frame it differently, so the end of the
+		// request (and the start of next one) could not be trusted
+		if (headers.contains(HeaderName.TRANSFER_ENCODING)) {
+			throw new IllegalRequestException(
+					"transfer coded request bodies are not supported");
+		}
+	}
+
+	/**
+	 * reads and parses header fields (without a request-line), up to and
+	 * including the empty line ending them. Used for headers of the parts of
+	 * a multipart body
+	 * 
+	 * @param in
+	 *            stream positioned at the first field. It is left after the
+	 *            empty line
+	 * @throws IOException
+	 *             when there is error in read
+	 * @throws IllegalRequestException
+	 *             if the header is ill formed, too large, or the client
+	 *             closed the connection before sending it completely
+	 */
+	public void parseHeader(BufferedInputStream in) throws IOException,
+			IllegalRequestException {
+		parse(in, FIELD_START);
+	}
+
+	private void parse(BufferedInputStream in, int initialState)
+			throws IOException, IllegalRequestException {
+		state = initialState;
+		fieldCount = 0;
+		methodStart = methodEnd = targetStart = targetEnd = versionStart = versionEnd = 0;
+
+		int maxLength = ServerParams.MaxRequestHeaderSize;
+		in.mark(maxLength);
+		int length = 0;
+		while (state != DONE) {
+			if (length == buffer.length) {
+				if (length >= maxLength) {
+					throw new IllegalRequestException(
+							"request header is larger than " + maxLength
+									+ " bytes");
+				}
+				buffer = Arrays.copyOf(buffer,
+						Math.min(2 * buffer.length, maxLength));
+			}
+			int count = in.read(buffer, length, buffer.length - length);
+			if (count < 0) {
+				throw new IllegalRequestException(
+						"client closed connection before server could read HTTP header");
+			}
+			scan(length, length + count);
+			length += count;
+		}
+
+		// bytes read beyond the head belong to the body
+		in.reset();
+		long remaining = headLength;
+		while (remaining > 0) {
+			remaining -= in.skip(remaining);
+		}
+
+		headers.clear();
+		for (int i = 0; i < fieldCount; i++) {
+			headers.add(i);
+		}
+	}
+
+	/**
+	 * runs bytes [from, to) of the buffer through the state machine. Stops at
+	 * the end of the head. EMPTY_LINE falls through to METHOD, and
+	 * VALUE_START to VALUE, with the byte which starts the next part
+	 */
+	@SuppressWarnings("fallthrough")
+	private void scan(int from, int to) throws IllegalRequestException {
+		byte[] b = buffer;
+		for (int i = from; i < to; i++) {
+			byte c = b[i];
+			switch (state) {
+			case EMPTY_LINE:
+				if (c == '\r') {
+					state = EMPTY_LINE_LF;
+					break;
+				}
+				methodStart = i;
+				state = METHOD;
+				// fall through, c is the first byte of method
+			case METHOD:
+				if (c == ' ') {
+					if (i == methodStart) {
+						throw new IllegalRequestException(
+								"improper request line - no method");
+					}
+					methodEnd = i;
+					targetStart = i + 1;
+					state = TARGET;
+				} else if (c == '\r' || c == '\n') {
+					throw new IllegalRequestException(
+							"improper request line - no request-target");
+				}
+				break;
+			case EMPTY_LINE_LF:
+				expectLF(c);
+				state = EMPTY_LINE;
+				break;
+			case TARGET:
+				if (c == ' ') {
+					if (i == targetStart) {
+						throw new IllegalRequestException(
+								"improper request line - empty request-target");
+					}
+					targetEnd = i;
+					versionStart = i + 1;
+					state = VERSION;
+				} else if (c == '\r' || c == '\n') {
+					throw new IllegalRequestException(
+							"improper request line - no HTTP-Version");
+				}
+				break;
+			case VERSION:
+				if (c == '\r') {
+					if (i == versionStart) {
+						throw new IllegalRequestException(
+								"improper request line - empty HTTP-Version");
+					}
+					versionEnd = i;
+					state = REQUEST_LINE_LF;
+				} else if (c == ' ' || c == '\n') {
+					throw new IllegalRequestException(
+							"improper request line - ill formed HTTP-Version");
+				}
+				break;
+			case REQUEST_LINE_LF:
+				expectLF(c);
+				state = FIELD_START;
+				break;
+			case FIELD_START:
+				if (c == '\r') {
+					state = END_LF;
+				} else if (c == ' ' || c == '\t') {
+					// obs-fold - the line continues value of previous field
+					if (fieldCount == 0) {
+						throw new IllegalRequestException(
+								"header starts with a continuation line");
+					}
+					b[i - 2] = ' ';
+					b[i - 1] = ' ';
+					b[i] = ' ';
+					state = VALUE;
+				} else if (!isTokenChar(c)) {
+					throw new IllegalRequestException(
+							"ill formed header field");
+				} else {
+					if (fieldCount == nameStart.length) {
+						growFields();
+					}
+					nameStart[fieldCount] = i;
+					fieldCount++;
+					state = NAME;
+				}
+				break;
+			case NAME:
+				if (c == ':') {
+					nameEnd[fieldCount - 1] = i;
+					valueStart[fieldCount - 1] = i + 1;
+					valueEnd[fieldCount - 1] = i + 1;
+					state = VALUE_START;
+				} else if (c == '\r' || c == '\n') {
+					throw new IllegalRequestException(
+							"header field without ':'");
+				} else if (c == ' ' || c == '\t') {
+					// RFC 7230 3.2.4 - no whitespace between field-name and
+					// ':', proxies may read such a field differently
+					throw new IllegalRequestException(
+							"whitespace in header field name");
+				} else if (!isTokenChar(c)) {
+					throw new IllegalRequestException(
+							"ill formed header field name");
+				}
+				break;
+			case VALUE_START:
+				if (c == ' ' || c == '\t') {
+					valueStart[fieldCount - 1] = i + 1;
+					valueEnd[fieldCount - 1] = i + 1;
+					break;
+				}
+				state = VALUE;
+				// fall through, c is the first byte of value
+			case VALUE:
+				if (c == '\r') {
+					state = FIELD_LF;
+				} else if (c == '\n') {
+					throw new IllegalRequestException(
+							"bare LF in header field");
+				} else if (c != ' ' && c != '\t') {
+					valueEnd[fieldCount - 1] = i + 1;
+				}
+				break;
+			case FIELD_LF:
+				expectLF(c);
+				state = FIELD_START;
+				break;
+			case END_LF:
+				expectLF(c);
+				headLength = i + 1;
+				state = DONE;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * tells whether c is a tchar of RFC 7230, i.e. may be part of a
+	 * field-name
+	 */
+	private static boolean isTokenChar(byte c) {
+		return c > 0 && tokenChars[c];
+	}
+
+	private static void expectLF(byte c) throws IllegalRequestException {
+		if (c != '\n') {
+			throw new IllegalRequestException(
+					"a \\r was found. But the character following it was not \\n");
+		}
+	}
+
+	private void growFields() {
+		int size = 2 * nameStart.length;
+		nameStart = Arrays.copyOf(nameStart, size);
+		nameEnd = Arrays.copyOf(nameEnd, size);
+		valueStart = Arrays.copyOf(valueStart, size);
+		valueEnd = Arrays.copyOf(valueEnd, size);
+	}
+
+	/**
+	 * @return the method of request-line
+	 */
+	public String getMethod() {
+		return toString(methodStart, methodEnd, knownMethods);
+	}
+
+	/**
+	 * @return the request-target of request-line, as sent
+	 */
+	public String getRequestTarget() {
+		return toString(targetStart, targetEnd, null);
+	}
+
+	/**
+	 * @return the path requested by request-target, decoded and normalized
+	 *         by {@link RequestPathDecoder}. null if the target is rejected
+	 */
+	public String getRequestPath() {
+		return pathDecoder.decode(buffer, targetStart, targetEnd);
+	}
+
+	/**
+	 * @return the HTTP-Version of request-line
+	 */
+	public String getHttpVersion() {
+		return toString(versionStart, versionEnd, knownVersions);
+	}
+
+	/**
+	 * @return number of header fields, including repeated ones
+	 */
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * @param index
+	 *            index of the field, in the order of header
+	 * @return the field-name as sent
+	 */
+	public String getFieldName(int index) {
+		return toString(nameStart[index], nameEnd[index], null);
+	}
+
+	/**
+	 * @param index
+	 *            index of the field, in the order of header
+	 * @return the field-value without leading and trailing white space
+	 */
+	public String getFieldValue(int index) {
+		return toString(valueStart[index], valueEnd[index], null);
+	}
+
+	/**
+	 * @return the header fields of the last request parsed. Refilled by next
+	 *         parse
+	 */
+	public RequestHeaders getHeaders() {
+		return headers;
+	}
+
+	byte[] getBuffer() {
+		return buffer;
+	}
+
+	int getNameStart(int index) {
+		return nameStart[index];
+	}
+
+	int getNameEnd(int index) {
+		return nameEnd[index];
+	}
+
+	boolean isFieldValueEmpty(int index) {
+		return valueStart[index] == valueEnd[index];
+	}
+
+	/**
+	 * @return true if name of the field is bytes [start, end) of buffer,
+	 *         ignoring case
+	 */
+	boolean isFieldNamed(int index, byte[] b, int start, int end) {
+		if (end - start != nameEnd[index] - nameStart[index]) {
+			return false;
+		}
+		for (int i = 0; i < end - start; i++) {
+			if (HeaderName.toLowerCase(buffer[nameStart[index] + i] & 0xff) != HeaderName
+					.toLowerCase(b[start + i] & 0xff)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if name of the field is the input name, ignoring case
+	 */
+	boolean isFieldNamed(int index, String name) {
+		return HeaderName.equalsIgnoreCase(buffer, nameStart[index],
+				nameEnd[index], name);
+	}
+
+	/**
+	 * creates a String from bytes [start, end) of the buffer, or returns the
+	 * constant equal to them
+	 */
+	private String toString(int start, int end, String[] constants) {
+		if (constants != null) {
+			for (String constant : constants) {
+				if (equals(start, end, constant)) {
+					return constant;
+				}
+			}
+		}
+		return new String(buffer, start, end - start, headerCharset);
+	}
+
+	private boolean equals(int start, int end, String s) {
+		if (end - start != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (buffer[start + i] != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
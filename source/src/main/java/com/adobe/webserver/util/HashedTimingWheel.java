@@ -0,0 +1,267 @@
+package com.adobe.webserver.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.adobe.webserver.ServerParams;
+
+/**
+ * A hashed timing wheel runs tasks after a delay, with the precision of a
+ * tick. Scheduling and cancelling a timeout cost O(1), whatever the number of
+ * timeouts, so it can hold a timeout for every phase of every connection.
+ * 
+ * The wheel is an array of buckets. A timeout goes into the bucket of the tick
+ * in which it expires (modulo the number of buckets), with the number of
+ * rounds of the wheel left till then. A single thread advances the wheel
+ * every tick and expires the timeouts of the current bucket whose rounds are
+ * over. New and cancelled timeouts are handed to that thread through lock
+ * free queues, so the buckets are only touched by it.
+ * 
+ * Tasks run on the wheel thread, so they must be short (e.g. close a socket).
+ * 
+ * The wheel used by the server is shared - {@link #getInstance()}. Its thread
+ * is a daemon thread and lives as long as the JVM.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public class HashedTimingWheel {
+
+	private static Logger logger = Logger.getLogger(HashedTimingWheel.class
+			.getName());
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final long startTime;
+	private long tick = 0;
+
+	/**
+	 * holds the shared instance. Its thread is started by the JVM on first use
+	 * of {@link #getInstance()}
+	 */
+	private static class InstanceHolder {
+		private static final HashedTimingWheel sharedInstance = new HashedTimingWheel(
+				ServerParams.TimerTickDuration, ServerParams.TimerWheelSize,
+				"timing-wheel");
+	}
+
+	/**
+	 * @return the wheel shared by the server
+	 */
+	public static HashedTimingWheel getInstance() {
+		return InstanceHolder.sharedInstance;
+	}
+
+	/**
+	 * creates a wheel and starts its (daemon) thread
+	 * 
+	 * @param tickMillis
+	 *            duration of a tick in milliseconds
+	 * @param wheelSize
+	 *            number of buckets. rounded up to a power of two
+	 * @param threadName
+	 *            name of the wheel thread
+	 */
+	public HashedTimingWheel(long tickMillis, int wheelSize, String threadName) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+
+		Thread worker = new Thread(new Runnable() {
+			public void run() {
+				advance();
+			}
+		}, threadName);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * schedules a task. can be called from any thread
+	 * 
+	 * @param task
+	 *            run on the wheel thread when the delay has passed, unless the
+	 *            timeout is cancelled before
+	 * @param delayMillis
+	 *            the delay in milliseconds
+	 * @return the timeout, which can be cancelled
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime
+				+ TimeUnit.MILLISECONDS.toNanos(delayMillis));
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	private void advance() {
+		while (true) {
+			long deadline = tickNanos * (tick + 1);
+			long sleep = deadline - (System.nanoTime() - startTime);
+			if (sleep > 0) {
+				try {
+					Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleep) + 1);
+				} catch (InterruptedException e) {
+					logger.warn("timing wheel thread was interrupted");
+				}
+				continue;
+			}
+
+			removeCancelledTimeouts();
+			addNewTimeouts();
+			wheel[(int) (tick & mask)].expire(deadline);
+			tick++;
+		}
+	}
+
+	private void addNewTimeouts() {
+		Timeout timeout;
+		while ((timeout = newTimeouts.poll()) != null) {
+			if (timeout.state.get() != Timeout.PENDING) {
+				continue;
+			}
+			// a timeout already due goes into the current bucket
+			long expiryTick = Math.max(tick, timeout.deadline / tickNanos);
+			timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+			wheel[(int) (expiryTick & mask)].add(timeout);
+		}
+	}
+
+	private void removeCancelledTimeouts() {
+		Timeout timeout;
+		while ((timeout = cancelledTimeouts.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	/**
+	 * a scheduled task
+	 */
+	public static class Timeout {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final HashedTimingWheel timingWheel;
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+		// used by wheel thread only
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(HashedTimingWheel timingWheel, Runnable task,
+				long deadline) {
+			this.timingWheel = timingWheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * cancels the timeout. can be called from any thread
+		 * 
+		 * @return false if the task has already run (or is running)
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED)) {
+				return state.get() == CANCELLED;
+			}
+			timingWheel.cancelledTimeouts.add(this);
+			return true;
+		}
+
+		/**
+		 * @return true if the task has run (or is running)
+		 */
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			if (!state.compareAndSet(PENDING, EXPIRED)) {
+				return;
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.error("timeout task failed - " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * a doubly linked list of timeouts
+	 */
+	private static class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			} else {
+				tail = timeout.prev;
+			}
+			timeout.next = null;
+			timeout.prev = null;
+			timeout.bucket = null;
+		}
+
+		/**
+		 * expires the timeouts of the bucket which are due
+		 * 
+		 * @param deadline
+		 *            end of the current tick
+		 */
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.state.get() == Timeout.CANCELLED) {
+					remove(timeout);
+				} else if (timeout.remainingRounds > 0) {
+					timeout.remainingRounds--;
+				} else if (timeout.deadline <= deadline) {
+					remove(timeout);
+					timeout.expire();
+				}
+				timeout = next;
+			}
+		}
+	}
+}
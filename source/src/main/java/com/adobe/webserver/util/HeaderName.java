@@ -0,0 +1,127 @@
+package com.adobe.webserver.util;
+
+/**
+ * Well known request header fields. {@link RequestHeaders} keeps them in
+ * slots of their own, so they are found without hashing their names.
+ * 
+ * Names are matched ignoring case (ASCII), as field-names are case
+ * insensitive.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public enum HeaderName {
+
+	ACCEPT("Accept"), ACCEPT_ENCODING("Accept-Encoding"), CONNECTION(
+			"Connection"), CONTENT_DISPOSITION("Content-Disposition"), CONTENT_LENGTH(
+			"Content-Length"), CONTENT_TYPE("Content-Type"), COOKIE("Cookie"), EXPECT(
+			"Expect"), HOST("Host"), IF_MATCH("If-Match"), IF_MODIFIED_SINCE(
+			"If-Modified-Since"), IF_NONE_MATCH("If-None-Match"), IF_RANGE(
+			"If-Range"), IF_UNMODIFIED_SINCE("If-Unmodified-Since"), RANGE(
+			"Range"), REFERER("Referer"), TRANSFER_ENCODING("Transfer-Encoding"), USER_AGENT(
+			"User-Agent");
+
+	/**
+	 * open addressed table of the names, indexed by their hash
+	 */
+	private static final HeaderName[] table = new HeaderName[64];
+
+	static {
+		for (HeaderName name : values()) {
+			int mask = table.length - 1;
+			int i = hash(name.fieldName) & mask;
+			while (table[i] != null) {
+				i = (i + 1) & mask;
+			}
+			table[i] = name;
+		}
+	}
+
+	private final String fieldName;
+
+	private HeaderName(String fieldName) {
+		this.fieldName = fieldName;
+	}
+
+	/**
+	 * @return the field-name, as it is usually written
+	 */
+	public String getFieldName() {
+		return fieldName;
+	}
+
+	/**
+	 * @param name
+	 *            a field-name, in any case
+	 * @return the well known header of that name. null if it is not well known
+	 */
+	public static HeaderName forName(String name) {
+		int mask = table.length - 1;
+		for (int i = hash(name) & mask; table[i] != null; i = (i + 1) & mask) {
+			if (table[i].fieldName.equalsIgnoreCase(name)) {
+				return table[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the well known header named by bytes [start, end). null if it
+	 *         is not well known
+	 */
+	static HeaderName forName(byte[] b, int start, int end) {
+		int mask = table.length - 1;
+		for (int i = hash(b, start, end) & mask; table[i] != null; i = (i + 1)
+				& mask) {
+			if (equalsIgnoreCase(b, start, end, table[i].fieldName)) {
+				return table[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * hash of a field-name, same for any case
+	 */
+	static int hash(String name) {
+		int h = 0;
+		for (int i = 0; i < name.length(); i++) {
+			h = 31 * h + toLowerCase(name.charAt(i));
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * hash of the field-name in bytes [start, end), same as
+	 * {@link #hash(String)} of the name
+	 */
+	static int hash(byte[] b, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++) {
+			h = 31 * h + toLowerCase(b[i] & 0xff);
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return true if bytes [start, end) are the name, ignoring case
+	 */
+	static boolean equalsIgnoreCase(byte[] b, int start, int end, String name) {
+		if (end - start != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (toLowerCase(b[start + i] & 0xff) != toLowerCase(name.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * lower case of an ASCII letter, other characters as they are
+	 */
+	static int toLowerCase(int c) {
+		return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+	}
+}
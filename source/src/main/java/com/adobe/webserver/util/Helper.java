@@ -1,16 +1,16 @@
 package com.adobe.webserver.util;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.UUID;
@@ -22,6 +22,11 @@ import com.adobe.webserver.ServerParams;
 
 public class Helper {
 
+	/**
+	 * most bytes of a buffer written to a client by one gathering write
+	 */
+	private static final int bufferWriteSlice = 1 << 20;
+
 	private static Logger logger = Logger.getLogger(Helper.class.getName());
 
 	private Helper() {
@@ -126,7 +131,7 @@ public class Helper {
 	 */
 	public static String readRequestLineFromClient(InputStream clientInpStream)
 			throws IOException, IllegalRequestException {
-		StringBuffer requestLine = new StringBuffer(20);
+		StringBuilder requestLine = new StringBuilder(20);
 		int inp = 0;
 		while ((inp = clientInpStream.read()) > -1) {
 			if ((char) inp != '\r') {
@@ -147,6 +152,43 @@ public class Helper {
 
 	}
 
+	/**
+	 * looks ahead in the bytes already received from client, without
+	 * consuming them, for a complete request header. Used to find out if the
+	 * client has sent (pipelined) next request. It never blocks.
+	 * 
+	 * @param clientInpStream
+	 *            stream connected to client
+	 * @param lookAhead
+	 *            buffer the received bytes are copied into to be scanned.
+	 *            At most its length of bytes are looked at
+	 * @return true if a complete request header is already received
+	 * @throws IOException
+	 *             when there is error in read
+	 */
+	public static boolean isRequestBuffered(BufferedInputStream clientInpStream,
+			byte[] lookAhead) throws IOException {
+		int available = Math.min(clientInpStream.available(),
+				lookAhead.length);
+		if (available < 4) {
+			return false;
+		}
+		clientInpStream.mark(available);
+		int length = 0;
+		try {
+			length = clientInpStream.read(lookAhead, 0, available);
+		} finally {
+			clientInpStream.reset();
+		}
+		for (int i = 0; i + 3 < length; i++) {
+			if (lookAhead[i] == '\r' && lookAhead[i + 1] == '\n'
+					&& lookAhead[i + 2] == '\r' && lookAhead[i + 3] == '\n') {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * read header from client and return it as a string this method assumes
 	 * that the request line has been read from stream and is now not available
@@ -161,10 +203,12 @@ public class Helper {
 	 */
 	public static String readHeaderFromClient(InputStream clientInpStream)
 			throws IOException, IllegalRequestException {
-		StringBuffer header = new StringBuffer(500);
+		StringBuilder header = new StringBuilder(500);
 
 		int inp = 0;
-		int dfaState = 0;
+		// the CRLF ending the previous line has been read, so a header with no
+		// field ends at the first CRLF
+		int dfaState = 2;
 		int FINAL_STATE = 4; // a DFA being used with 4 states
 		while (dfaState != FINAL_STATE && (inp = clientInpStream.read()) > -1) {
 			switch ((char) inp) {
@@ -203,7 +247,8 @@ public class Helper {
 	}
 
 	/**
-	 * reads bytes from an InputStream and writes the same to an OutputStream
+	 * reads bytes from an InputStream and writes the same to an OutputStream,
+	 * through a buffer of the {@link BufferPool}
 	 * 
 	 * @param in
 	 *            the input Stream to be read
@@ -216,23 +261,105 @@ public class Helper {
 	 */
 	public static void readAndWriteByteStream(InputStream in, OutputStream out,
 			long size) throws IOException {
-		byte[] messageBody = new byte[1024];
-		if (size <= -1L) { // read until end of stream
-			int len = 0;
+		BufferPool bufferPool = BufferPool.getInstance();
+		byte[] messageBody = bufferPool.acquire();
+		try {
+			if (size <= -1L) { // read until end of stream
+				int len = 0;
 
-			while ((len = in.read(messageBody)) > -1) {
-				out.write(messageBody, 0, len);
+				while ((len = in.read(messageBody)) > -1) {
+					out.write(messageBody, 0, len);
+				}
+			} else { // read size number of bytes from inputstream
+
+				while (size > 0) {
+					int len = (int) Math.min(size, messageBody.length);
+					len = in.read(messageBody, 0, len);
+					if (len < 0) {
+						throw new IOException("stream ended " + size
+								+ " bytes before expected");
+					}
+					out.write(messageBody, 0, len);
+					size -= len;
+				}
 			}
-		} else { // read size number of bytes from inputstream
+		} finally {
+			bufferPool.release(messageBody);
+		}
+		out.flush();
+	}
 
-			while (size > 0) {
-				int len = (int) (size > 1024 ? 1024 : size);
-				len = in.read(messageBody, 0, len);
-				out.write(messageBody, 0, len);
-				size -= len;
+	/**
+	 * writes bytes of a file to the client. If the stream takes a transfer
+	 * (see {@link FileTransferWriter}), they are sent straight from the file.
+	 * Otherwise they are copied (see {@link #readAndWriteByteStream})
+	 * 
+	 * @param in
+	 *            stream of the file. Its position is changed
+	 * @param position
+	 *            position in the file of first byte
+	 * @param count
+	 *            number of bytes to write
+	 * @param out
+	 *            the stream connected to client
+	 * @throws IOException
+	 *             when some read/write error occurs, or the file is shorter
+	 *             than expected
+	 */
+	public static void writeFile(FileInputStream in, long position,
+			long count, OutputStream out) throws IOException {
+		FileChannel file = in.getChannel();
+		if (out instanceof FileTransferWriter
+				&& ((FileTransferWriter) out).transferFrom(file, position,
+						count)) {
+			return;
+		}
+		file.position(position);
+		readAndWriteByteStream(in, out, count);
+	}
+
+	/**
+	 * writes the remaining bytes of a buffer (e.g. a mapped file) to the
+	 * client. If the stream takes gathering writes (see
+	 * {@link GatheringWriter}), the buffer is written as it is, in slices of
+	 * at most 1 MB, so the write of a big buffer to a slow client is seen as
+	 * activity and is timed out per slice. Otherwise its bytes are copied
+	 * through a buffer of the {@link BufferPool}
+	 * 
+	 * @param src
+	 *            the bytes to write. Its position is moved to its limit
+	 * @param out
+	 *            the stream connected to client
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void writeBuffer(ByteBuffer src, OutputStream out)
+			throws IOException {
+		if (out instanceof GatheringWriter) {
+			GatheringWriter gatheringOut = (GatheringWriter) out;
+			ByteBuffer[] slice = { src };
+			int limit = src.limit();
+			try {
+				while (src.position() < limit) {
+					src.limit(Math.min(limit, src.position() + bufferWriteSlice));
+					gatheringOut.write(slice);
+				}
+			} finally {
+				src.limit(limit);
 			}
+			return;
+		}
+		BufferPool bufferPool = BufferPool.getInstance();
+		byte[] bytes = bufferPool.acquire();
+		try {
+			while (src.hasRemaining()) {
+				int len = Math.min(src.remaining(), bytes.length);
+				src.get(bytes, 0, len);
+				out.write(bytes, 0, len);
+			}
+		} finally {
+			bufferPool.release(bytes);
 		}
-		out.flush();
 	}
 
 	/**
@@ -319,10 +446,8 @@ public class Helper {
 	/**
 	 * used for parsing date coming with HTTP headers. it recognizes the
 	 * standard in which date is received and parses accordingly. it
-	 * differentiates only three date patters - RFC1123,Asctime,RFC850 . this
-	 * method assumes that user sends date in either of the three above
-	 * mentioned date format. In case user does not , it will fail will throw an
-	 * Exception
+	 * differentiates only three date patters - RFC1123,Asctime,RFC850 . see
+	 * {@link HTTPDate#parse(String)}, which does not allocate
 	 * 
 	 * @param dateString
 	 *            the date to be parsed
@@ -331,83 +456,123 @@ public class Helper {
 	 *             if the method could not recognize the date pattern
 	 */
 	public static Date parseHTTPdate(String dateString) throws ParseException {
-		String inputDateFormat = null;
-
-		if (dateString.charAt(3) == ',') // rfc1123-date
-			inputDateFormat = ServerParams.RFC1123DateFormat;
-		else if (dateString.charAt(3) == ' ') // asctime-date
-			inputDateFormat = ServerParams.AsctimeDateFormat;
-		else
-			// rfc850-date
-			inputDateFormat = ServerParams.RFC850DateFormat;
-
-		return new SimpleDateFormat(inputDateFormat).parse(dateString);
-
+		long time = HTTPDate.parse(dateString);
+		if (time == HTTPDate.INVALID) {
+			throw new ParseException("not an HTTP date - " + dateString, 0);
+		}
+		return new Date(time);
 	}
 
 	/**
-	 * returns a string of headers common to all responses. It includes
-	 * following headers 1. Server 2. Date 3. Connection
-	 * 
-	 * see <a href=
-	 * "http://xml.resource.org/public/rfc/html/rfc2616.html#HTTP.Message">rfc
-	 * 2616</a>
-	 * 
-	 * it sends headers in following format *(message-header CRLF)
-	 * message-header = field-name ":" [ field-value ] field-name = token
-	 * field-value = *( field-content | LWS ) field-content = <the OCTETs making
-	 * up the field-value and consisting of either *TEXT or combinations of
-	 * token, separators, and quoted-string>
+	 * decides if the connection can be kept open after the response, as per
+	 * the http version of request and its Connection header. An HTTP/1.1
+	 * connection is persistent unless client sends "Connection: close". An
+	 * HTTP/1.0 connection is persistent only if client sends
+	 * "Connection: keep-alive"
 	 * 
-	 * @return string of common headers
+	 * @param httpVersion
+	 *            the HTTP-Version of request-line
+	 * @param headers
+	 *            the request header
+	 * @return true if the connection is persistent
 	 */
-	public static String getCommonHeaders() {
-		StringBuffer message = new StringBuffer(50);
-		message.append("Server: " + ServerParams.serverHeader);
-		message.append(ServerParams.CRLF);
-		message.append("Date: "
-				+ new SimpleDateFormat(ServerParams.RFC1123DateFormat)
-						.format(new Date()));
-		message.append(ServerParams.CRLF);
-
-		message.append("Connection: close");
-		message.append(ServerParams.CRLF);
-		return message.toString();
-
+	public static boolean isPersistentConnection(String httpVersion,
+			RequestHeaders headers) {
+		String connection = headers.get(HeaderName.CONNECTION);
+		if (connection != null) {
+			String[] tokens = connection.split(",");
+			for (int i = 0; i < tokens.length; i++) {
+				String token = tokens[i].trim();
+				if (token.equalsIgnoreCase("close"))
+					return false;
+				if (token.equalsIgnoreCase("keep-alive"))
+					return true;
+			}
+		}
+		return !"HTTP/1.0".equals(httpVersion);
 	}
 
 	/**
-	 * creates a response message without message body. can be used when no
+	 * writes a response message without message body. can be used when no
 	 * message body is required
 	 * 
+	 * @param out
+	 *            the stream connected to client
 	 * @param statusCode
 	 *            the http response status code to be sent
 	 * @param statusMessage
 	 *            status message corresponding to status code
 	 * @param additionalHeaders
-	 *            any additional headers if required, other than headers
-	 *            received from {@link Helper.#getCommonHeaders()}
-	 * @return the message string
+	 *            any additional headers if required, other than the common
+	 *            headers (see {@link ResponseTemplates#writeHead})
+	 * @param keepAlive
+	 *            true if the connection is kept open after the response
+	 * @throws IOException
+	 *             when some read/write error occurs
 	 */
-	public static String createResponseMessageWithoutBody(String statusCode,
-			String statusMessage, String[] additionalHeaders) {
-		StringBuffer message = new StringBuffer(50);
-
-		// HEADERS
-		message.append("HTTP/1.1 " + statusCode + " " + statusMessage);
-		message.append(ServerParams.CRLF);
-
-		message.append(getCommonHeaders());
-
+	public static void writeResponseMessageWithoutBody(OutputStream out,
+			String statusCode, String statusMessage,
+			String[] additionalHeaders, boolean keepAlive) throws IOException {
+		ResponseTemplates.writeHead(out, statusCode, statusMessage, keepAlive);
 		if (additionalHeaders != null) {
 			for (int i = 0; i < additionalHeaders.length; i++) {
-				message.append(additionalHeaders[i]);
-				message.append(ServerParams.CRLF);
+				ResponseTemplates.writeHeader(out, additionalHeaders[i]);
 			}
 		}
+		ResponseTemplates.endHead(out);
+	}
 
-		message.append(ServerParams.CRLF);
-		return message.toString();
+	/**
+	 * creates a response message without message body. can be used when no
+	 * message body is required
+	 * 
+	 * @param statusCode
+	 *            the http response status code to be sent
+	 * @param statusMessage
+	 *            status message corresponding to status code
+	 * @param additionalHeaders
+	 *            any additional headers if required, other than the common
+	 *            headers (see {@link ResponseTemplates#writeHead})
+	 * @param keepAlive
+	 *            true if the connection is kept open after the response
+	 * @return the message bytes
+	 */
+	public static byte[] createResponseMessageWithoutBody(String statusCode,
+			String statusMessage, String[] additionalHeaders, boolean keepAlive) {
+		ByteArrayOutputStream message = new ByteArrayOutputStream(160);
+		try {
+			writeResponseMessageWithoutBody(message, statusCode,
+					statusMessage, additionalHeaders, keepAlive);
+		} catch (IOException e) {
+			// not thrown by ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return message.toByteArray();
+	}
+
+	/**
+	 * creates a 503 Service Unavailable response, sent when the server is too
+	 * busy to serve a client. Connection is closed after it
+	 * 
+	 * @return the message
+	 */
+	public static byte[] createServiceUnavailableMessage() {
+		return createResponseMessageWithoutBody("503", "Service Unavailable",
+				new String[] { "Retry-After: "
+						+ ServerParams.ServiceUnavailableRetryAfter }, false);
+	}
+
+	/**
+	 * creates a 429 Too Many Requests response, sent when a client makes
+	 * requests faster than it is allowed to. Connection is closed after it
+	 * 
+	 * @param retryAfter
+	 *            seconds after which the client may try again
+	 * @return the message
+	 */
+	public static byte[] createTooManyRequestsMessage(int retryAfter) {
+		return createResponseMessageWithoutBody("429", "Too Many Requests",
+				new String[] { "Retry-After: " + retryAfter }, false);
 	}
 
 	/**
@@ -418,57 +583,49 @@ public class Helper {
 	 * @param statusMessage
 	 *            status message corresponding to status code
 	 * @param additionalHeaders
-	 *            any additional headers if required, other than headers
-	 *            received from {@link Helper.#getCommonHeaders()}
+	 *            any additional headers if required, other than the common
+	 *            headers (see {@link ResponseTemplates#writeHead})
 	 * @param body
 	 *            to be sent as body of message
-	 * @param charStreamBufferedOut
-	 *            the stream connected to client
 	 * @param byteStreamBufferedOut
 	 *            the stream connected to client
+	 * @param keepAlive
+	 *            true if the connection is kept open after the response
 	 * @throws IOException
 	 *             when some read/write error occurs
 	 */
 	public static void sendClientMessage(String statusCode,
 			String statusMessage, String[] additionalHeaders, File body,
-			BufferedWriter charStreamBufferedOut,
-			BufferedOutputStream byteStreamBufferedOut) throws IOException {
-		StringBuffer message = new StringBuffer(50);
-
-		// HEADERS
-		message.append("HTTP/1.1 " + statusCode + " " + statusMessage);
-		message.append(ServerParams.CRLF);
-
-		message.append(getCommonHeaders());
-
-		if (additionalHeaders != null) {
-			for (int i = 0; i < additionalHeaders.length; i++) {
-				message.append(additionalHeaders[i]);
-				message.append(ServerParams.CRLF);
-			}
-		}
-
-		message.append("Content-length: " + body.length());
-		message.append(ServerParams.CRLF);
-
-		BufferedInputStream in = null;
+			OutputStream byteStreamBufferedOut, boolean keepAlive)
+			throws IOException {
+		FileInputStream in = null;
 		try {
 			try {
-				in = new BufferedInputStream(new FileInputStream(body));
+				in = new FileInputStream(body);
 			} catch (FileNotFoundException e) {
 				logger.error("error message file not found");
-				charStreamBufferedOut.write(Helper
-						.createResponseMessageWithoutBody("500",
-								"Internal Server Error", null));
+				writeResponseMessageWithoutBody(byteStreamBufferedOut, "500",
+						"Internal Server Error", null, keepAlive);
+				byteStreamBufferedOut.flush();
 				return;
 			}
 
-			charStreamBufferedOut.write(message.toString());
-			charStreamBufferedOut.flush();
+			ResponseTemplates.writeHead(byteStreamBufferedOut, statusCode,
+					statusMessage, keepAlive);
+			if (additionalHeaders != null) {
+				for (int i = 0; i < additionalHeaders.length; i++) {
+					ResponseTemplates.writeHeader(byteStreamBufferedOut,
+							additionalHeaders[i]);
+				}
+			}
+			long length = in.getChannel().size();
+			ResponseTemplates.writeContentLength(byteStreamBufferedOut, length);
+			ResponseTemplates.endHead(byteStreamBufferedOut);
 
-			Helper.readAndWriteByteStream(in, byteStreamBufferedOut, -1);
+			writeFile(in, 0, length, byteStreamBufferedOut);
 		} finally {
-			in.close();
+			if (in != null)
+				in.close();
 		}
 
 	}
@@ -486,68 +643,92 @@ public class Helper {
 	 * @param bodyMesg
 	 *            short message to be inserted in body. this is placed in tag
 	 *            <p/>
-	 * @param charStreamBufferedOut
-	 *            the stream coonected to client
 	 * @param byteStreamBufferedOut
 	 *            the stream coonected to client
+	 * @param keepAlive
+	 *            true if the connection is kept open after the response
 	 * @throws IOException
 	 *             when some read/write error occurs
 	 */
 	public static void sendClientMessage(String statusCode,
 			String statusMessage, String[] additionalHeaders, String bodyMesg,
-			BufferedWriter charStreamBufferedOut,
-			BufferedOutputStream byteStreamBufferedOut) throws IOException {
-		StringBuffer message = new StringBuffer(50);
-
-		// HEADERS
-		message.append("HTTP/1.1 " + statusCode + " " + statusMessage);
-		message.append(ServerParams.CRLF);
+			OutputStream byteStreamBufferedOut, boolean keepAlive)
+			throws IOException {
+		ResponseTemplates.writeMessage(byteStreamBufferedOut, statusCode,
+				statusMessage, additionalHeaders, bodyMesg, keepAlive);
+		byteStreamBufferedOut.flush();
 
-		message.append(getCommonHeaders());
+	}
 
+	/**
+	 * starts a message to the client with the default formatting of
+	 * {@link #sendClientMessage(String, String, String[], String, OutputStream, boolean)}
+	 * , whose body message is written by the caller as it is generated. The
+	 * head is written at once, without a Content-length. The body message is
+	 * sent in chunks if chunked, otherwise till the connection is closed.
+	 * 
+	 * @param statusCode
+	 *            http response code
+	 * @param statusMessage
+	 *            http response message
+	 * @param additionalHeaders
+	 *            any additional header if required
+	 * @param byteStreamBufferedOut
+	 *            the stream connected to client
+	 * @param chunked
+	 *            true to use the chunked transfer-coding. Only HTTP/1.1
+	 *            clients understand it
+	 * @param keepAlive
+	 *            true if the connection is kept open after the response. must
+	 *            be false if not chunked
+	 * @return the stream to write the body message to. It must be ended by
+	 *         {@link #endClientMessage(ChunkedOutputStream)}, and finished in
+	 *         a finally block
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static ChunkedOutputStream startClientMessage(String statusCode,
+			String statusMessage, String[] additionalHeaders,
+			OutputStream byteStreamBufferedOut, boolean chunked,
+			boolean keepAlive) throws IOException {
+		ResponseTemplates.writeHead(byteStreamBufferedOut, statusCode,
+				statusMessage, keepAlive);
 		if (additionalHeaders != null) {
 			for (int i = 0; i < additionalHeaders.length; i++) {
-				message.append(additionalHeaders[i]);
-				message.append(ServerParams.CRLF);
+				ResponseTemplates.writeHeader(byteStreamBufferedOut,
+						additionalHeaders[i]);
 			}
 		}
+		if (chunked) {
+			ResponseTemplates.writeChunkedEncoding(byteStreamBufferedOut);
+		}
+		ResponseTemplates.endHead(byteStreamBufferedOut);
 
-		String body = Helper.generateGenricMessageBody(statusCode,
-				statusMessage, bodyMesg);
-
-		message.append("Content-length: " + body.length());
-		message.append(ServerParams.CRLF);
-		message.append(ServerParams.CRLF);
-		message.append(body);
-
-		charStreamBufferedOut.write(message.toString());
-		charStreamBufferedOut.flush();
-
+		ChunkedOutputStream body = new ChunkedOutputStream(
+				byteStreamBufferedOut, chunked);
+		try {
+			ResponseTemplates.writeBodyPrefix(body, statusCode, statusMessage);
+		} catch (IOException e) {
+			body.finish();
+			throw e;
+		}
+		return body;
 	}
 
 	/**
-	 * generates a html with a standard format
+	 * ends a message started by
+	 * {@link #startClientMessage(String, String, String[], OutputStream, boolean, boolean)}
+	 * , after its body message
 	 * 
-	 * @param statusCode
-	 *            http statuscode
-	 * @param statusMesg
-	 *            http status mesage
-	 * @param bodyMesg
-	 *            message to be inserted into body of html
-	 * @return the html string
+	 * @param body
+	 *            the stream of the message body
+	 * @throws IOException
+	 *             when some read/write error occurs
 	 */
-	private static String generateGenricMessageBody(String statusCode,
-			String statusMesg, String bodyMesg) {
-		if (bodyMesg == null || bodyMesg.length() == 0) {
-			bodyMesg = "thats all we know<hr>";
-		}
-
-		String body = "<HTML>" + "<HEAD>" + "<TITLE>" + statusMesg + "</TITLE>"
-				+ "</HEAD>" + "<BODY>" + "<img src=\"/images/logo.jpg\">"
-				+ "<H3>" + statusCode + ". " + statusMesg + "</H3>" + "</BR>"
-				+ "<p>" + bodyMesg + "</p>" + "</BODY>" + "</HTML>";
-
-		return body;
+	public static void endClientMessage(ChunkedOutputStream body)
+			throws IOException {
+		ResponseTemplates.writeBodySuffix(body);
+		body.finish();
 	}
 
 }
@@ -0,0 +1,108 @@
+package com.adobe.webserver.util;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link ExecutorService} which lets at most a fixed number of tasks run at
+ * the same time on another executor service.
+ * 
+ * Tasks are handed to the underlying executor immediately. Each task waits for
+ * a permit of a semaphore on its own thread before running, so
+ * {@link #execute(Runnable)} never blocks the caller. It is meant to be used
+ * with a virtual thread per task executor, where a waiting task costs almost
+ * nothing.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public class LimitedConcurrencyExecutor extends AbstractExecutorService {
+
+	private final ExecutorService executor;
+	private final AdjustableSemaphore permits;
+	private int maxConcurrency;
+
+	/**
+	 * @param executor
+	 *            the executor service running the tasks
+	 * @param maxConcurrency
+	 *            maximum number of tasks running at the same time
+	 */
+	public LimitedConcurrencyExecutor(ExecutorService executor,
+			int maxConcurrency) {
+		this.executor = executor;
+		this.permits = new AdjustableSemaphore(maxConcurrency);
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	/**
+	 * changes the number of tasks running at the same time. When it shrinks,
+	 * running tasks are not disturbed, but no task starts till fewer than
+	 * maxConcurrency tasks run
+	 * 
+	 * @param maxConcurrency
+	 *            maximum number of tasks running at the same time
+	 */
+	public synchronized void setMaxConcurrency(int maxConcurrency) {
+		int change = maxConcurrency - this.maxConcurrency;
+		if (change > 0) {
+			permits.release(change);
+		} else if (change < 0) {
+			permits.reducePermits(-change);
+		}
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	public void execute(final Runnable command) {
+		executor.execute(new Runnable() {
+			public void run() {
+				permits.acquireUninterruptibly();
+				try {
+					command.run();
+				} finally {
+					permits.release();
+				}
+			}
+		});
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public List<Runnable> shutdownNow() {
+		return executor.shutdownNow();
+	}
+
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	public boolean isTerminated() {
+		return executor.isTerminated();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * a semaphore whose permits can be taken away
+	 */
+	private static class AdjustableSemaphore extends Semaphore {
+
+		private static final long serialVersionUID = 1L;
+
+		AdjustableSemaphore(int permits) {
+			super(permits);
+		}
+
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+}
@@ -0,0 +1,409 @@
+package com.adobe.webserver.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.adobe.webserver.ServerParams;
+
+/**
+ * MappedFileCache serves static files of medium size - bigger than the files
+ * held by the {@link ContentCache}, and at most
+ * {@link ServerParams#MAPPED_FILE_MAX_SIZE} - from memory mapped regions of
+ * the files, keyed by the normalized request path. A file is mapped once and
+ * the region is shared by all requests of it, so a request neither reads the
+ * file nor copies it through the heap.
+ *
+ * Regions are reference counted. A request takes an entry by
+ * {@link #acquire(String)} (or {@link #load}) and gives it back by
+ * {@link #release(Entry)} in a finally block, after its body is written. An
+ * entry is dropped from the cache when its file changes (checked as in
+ * {@link ContentCache}, at most once in
+ * {@link ServerParams#CONTENT_CACHE_VALIDATE_INTERVAL}), or when the mapped
+ * bytes exceed {@link ServerParams#MAPPED_CACHE_SIZE} (least recently used
+ * first). Its region is unmapped when the last request using it releases it,
+ * so memory of a dropped region is not left to the garbage collector.
+ *
+ * Hits, misses, evictions and invalidations are counted, see
+ * {@link #toString()}.
+ *
+ * This class is thread safe.
+ *
+ * @author KHEMKA
+ *
+ */
+public class MappedFileCache {
+
+	private static Logger logger = Logger.getLogger(MappedFileCache.class
+			.getName());
+
+	/**
+	 * a mapped file
+	 */
+	public static class Entry {
+		private final String requestPath;
+		private final Path file;
+		private final long lastModified;
+		private final String contentType;
+		private final Validators validators;
+		private final byte[] headers;
+		private final MappedByteBuffer body;
+		private volatile long validated;
+
+		/**
+		 * requests using the region. guarded by the cache
+		 */
+		private int references = 0;
+		private boolean retired = false;
+
+		Entry(String requestPath, Path file, long lastModified,
+				String contentType, Validators validators, byte[] headers,
+				MappedByteBuffer body, long validated) {
+			this.requestPath = requestPath;
+			this.file = file;
+			this.lastModified = lastModified;
+			this.contentType = contentType;
+			this.validators = validators;
+			this.headers = headers;
+			this.body = body;
+			this.validated = validated;
+		}
+
+		/**
+		 * @return modification time of the file when it was mapped
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return media type of the file, null if not known
+		 */
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * @return entity-tag and modification time of the file
+		 */
+		public Validators getValidators() {
+			return validators;
+		}
+
+		/**
+		 * @return the Content-length, Content-Type, Accept-Ranges, Vary (if
+		 *         the file may be sent compressed), ETag and Last-Modified
+		 *         header lines of the whole file, and the CRLF ending the
+		 *         head. Must not be modified
+		 */
+		public byte[] getHeaders() {
+			return headers;
+		}
+
+		/**
+		 * @return a view of the mapped file for one request. It must not be
+		 *         used after the entry is released
+		 */
+		public ByteBuffer getBody() {
+			return body.duplicate();
+		}
+	}
+
+	/**
+	 * holds the shared instance, created on first use of
+	 * {@link #getInstance()}
+	 */
+	private static class InstanceHolder {
+		private static final MappedFileCache sharedInstance = new MappedFileCache(
+				ServerParams.MAPPED_CACHE_SIZE,
+				ServerParams.CONTENT_CACHE_MAX_FILE_SIZE,
+				ServerParams.MAPPED_FILE_MAX_SIZE,
+				ServerParams.CONTENT_CACHE_VALIDATE_INTERVAL);
+	}
+
+	/**
+	 * @return the cache shared by the server
+	 */
+	public static MappedFileCache getInstance() {
+		return InstanceHolder.sharedInstance;
+	}
+
+	private final long capacity;
+	private final long minFileSize;
+	private final long maxFileSize;
+	private final long validateInterval;
+
+	/**
+	 * entries in access order - least recently used first
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private long bytesMapped = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+	/**
+	 * @param capacity
+	 *            most bytes mapped by the entries. 0 or less disables the
+	 *            cache
+	 * @param minFileSize
+	 *            files of this size or smaller are not mapped
+	 * @param maxFileSize
+	 *            size of the biggest file mapped
+	 * @param validateInterval
+	 *            time in milliseconds for which an entry is used without
+	 *            checking its file. 0 or less checks on every use
+	 */
+	public MappedFileCache(long capacity, long minFileSize, long maxFileSize,
+			long validateInterval) {
+		this.capacity = capacity;
+		this.minFileSize = minFileSize;
+		this.maxFileSize = Math.min(maxFileSize, Integer.MAX_VALUE);
+		this.validateInterval = validateInterval;
+	}
+
+	/**
+	 * @param requestPath
+	 *            normalized path of a request
+	 * @return the entry of the path, taken for the request, or null if it is
+	 *         not cached or its file has changed
+	 */
+	public Entry acquire(String requestPath) {
+		if (capacity <= 0) {
+			return null;
+		}
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(requestPath);
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			entry.references++;
+		}
+		long now = System.currentTimeMillis();
+		if (now - entry.validated >= validateInterval) {
+			if (!isValid(entry)) {
+				synchronized (this) {
+					retire(entry);
+					invalidations++;
+					misses++;
+				}
+				release(entry);
+				return null;
+			}
+			entry.validated = now;
+		}
+		synchronized (this) {
+			hits++;
+		}
+		return entry;
+	}
+
+	/**
+	 * maps a file into the cache, if its size is in the range of the cache
+	 *
+	 * @param requestPath
+	 *            normalized path of a request
+	 * @param file
+	 *            the file requested
+	 * @param in
+	 *            stream of the file. It is not read, nor closed
+	 * @param contentType
+	 *            media type of the file, null if not known
+	 * @return the entry of the file, taken for the request, or null if the
+	 *         file is not mapped
+	 * @throws IOException
+	 *             when the file can't be mapped
+	 */
+	public Entry load(String requestPath, File file, FileInputStream in,
+			String contentType) throws IOException {
+		if (capacity <= 0) {
+			return null;
+		}
+		FileChannel channel = in.getChannel();
+		// taken before mapping, so a later change is seen
+		long lastModified = file.lastModified();
+		long length = channel.size();
+		if (length <= minFileSize || length > maxFileSize
+				|| length > capacity) {
+			return null;
+		}
+
+		MappedByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				length);
+		ByteArrayOutputStream headers = new ByteArrayOutputStream(80);
+		ResponseTemplates.writeContentLength(headers, length);
+		if (contentType != null) {
+			ResponseTemplates.writeContentType(headers, contentType);
+		}
+		ResponseTemplates.writeAcceptRanges(headers);
+		if (ContentEncoding.isNegotiated(contentType)) {
+			ResponseTemplates.writeVary(headers);
+		}
+		Validators validators = new Validators(lastModified, length);
+		headers.write(validators.getHeaders());
+		ResponseTemplates.endHead(headers);
+
+		Entry entry = new Entry(requestPath, file.toPath(), lastModified,
+				contentType, validators, headers.toByteArray(), body,
+				System.currentTimeMillis());
+		entry.references = 1;
+		synchronized (this) {
+			Entry replaced = entries.get(requestPath);
+			if (replaced != null) {
+				retire(replaced);
+			}
+			entries.put(requestPath, entry);
+			bytesMapped += length;
+			Iterator<Entry> lru = entries.values().iterator();
+			while (bytesMapped > capacity && lru.hasNext()) {
+				Entry evicted = lru.next();
+				if (evicted == entry) {
+					continue;
+				}
+				lru.remove();
+				bytesMapped -= evicted.body.capacity();
+				evicted.retired = true;
+				if (evicted.references == 0) {
+					unmap(evicted.body);
+				}
+				evictions++;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * gives back an entry taken for a request. Its region is unmapped if it
+	 * was dropped from the cache and no other request uses it
+	 *
+	 * @param entry
+	 *            entry returned by {@link #acquire} or {@link #load}
+	 */
+	public void release(Entry entry) {
+		synchronized (this) {
+			entry.references--;
+			if (!entry.retired || entry.references > 0) {
+				return;
+			}
+		}
+		unmap(entry.body);
+	}
+
+	/**
+	 * drops the entry, unless it has been replaced already. Its region is
+	 * unmapped now if no request uses it, otherwise by the last release
+	 */
+	private void retire(Entry entry) {
+		if (entries.get(entry.requestPath) == entry) {
+			entries.remove(entry.requestPath);
+			bytesMapped -= entry.body.capacity();
+		}
+		entry.retired = true;
+		if (entry.references == 0) {
+			unmap(entry.body);
+		}
+	}
+
+	private static boolean isValid(Entry entry) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(entry.file,
+					BasicFileAttributes.class);
+			return attributes.isRegularFile()
+					&& attributes.lastModifiedTime().toMillis() == entry.lastModified
+					&& attributes.size() == entry.body.capacity();
+		} catch (IOException e) {
+			return false; // removed
+		}
+	}
+
+	/**
+	 * the unmapper of the running JVM, null if it has none. There is no API
+	 * to unmap a region, so sun.misc.Unsafe.invokeCleaner (java 9 and later)
+	 * is used
+	 */
+	private static final Object unsafe;
+	private static final Method invokeCleaner;
+
+	static {
+		Object theUnsafe = null;
+		Method cleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			theUnsafe = field.get(null);
+			cleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			logger.info("mapped files can't be unmapped, they are left to the garbage collector - "
+					+ e);
+		}
+		unsafe = theUnsafe;
+		invokeCleaner = cleaner;
+	}
+
+	private static void unmap(MappedByteBuffer buffer) {
+		if (invokeCleaner == null) {
+			return;
+		}
+		try {
+			invokeCleaner.invoke(unsafe, buffer);
+		} catch (Exception e) {
+			logger.error("mapped file could not be unmapped - " + e);
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * @return bytes mapped by the entries of the cache
+	 */
+	public synchronized long getBytesMapped() {
+		return bytesMapped;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		long lookups = hits + misses;
+		return "hits: " + hits + ", misses: " + misses + ", hit ratio: "
+				+ ((lookups == 0) ? 0 : Math.round(hits * 100.0 / lookups))
+				+ "%, entries: " + entries.size() + ", bytes mapped: "
+				+ bytesMapped + "/" + capacity + ", evictions: " + evictions
+				+ ", invalidations: " + invalidations;
+	}
+}
@@ -9,14 +9,35 @@ import java.util.HashMap;
  * this class determines mime type of a file using its extension.
  * It reads mime type list from a file called mime.type and structures it into a HashMap
  * This is a singleton class
+ *
+ * {@link #isCompressible(String)} tells which types are sent gzip encoded, see {@link GzipCache}
  * @author khemka
  *
  */
 public class MimeTypes {
 	
-	private static MimeTypes singleInstance = null;
 	private HashMap<String,String> mimeTypesMapping = null;
 	
+	/**
+	 * holds the single instance. The class is initialized (and mime.types read) by the JVM on first use
+	 * of {@link #getInstance()}, without a synchronized block around the file read.
+	 */
+	private static class InstanceHolder {
+		private static final MimeTypes singleInstance;
+		private static final IOException loadError;
+		static {
+			MimeTypes instance = null;
+			IOException error = null;
+			try {
+				instance = new MimeTypes();
+			} catch (IOException e) {
+				error = e;
+			}
+			singleInstance = instance;
+			loadError = error;
+		}
+	}
+	
 	
 	/**
 	 * return the instance of MimeTypes. This is a singleton class so new instances can't be created
@@ -24,15 +45,11 @@ public class MimeTypes {
 	 * @throws IOException if some error occurs read/write of mime.types
 	 */
 	public static MimeTypes getInstance() throws IOException{
-		if(singleInstance==null){
-			synchronized (MimeTypes.class) {
-				if(singleInstance==null){
-					singleInstance = new MimeTypes();
-				}
-			}
+		if(InstanceHolder.singleInstance==null){
+			throw InstanceHolder.loadError;
 		}
 		
-		return singleInstance;
+		return InstanceHolder.singleInstance;
 	}
 	
 	private MimeTypes() throws IOException {
@@ -70,7 +87,25 @@ public class MimeTypes {
 			return mimeTypesMapping.get(fileExtension);
 		}
 		return null;
-		
+
 	}
-	
+
+	/**
+	 * tells whether files of a mime type are worth compressing - text, scripts, json, xml (svg too) and ttf
+	 * fonts. Other images, audio, video and archives are compressed already
+	 * @param mimeType a mime type returned by {@link #guessMimeTypeFromFileName(String)}, may be null
+	 * @return true if the type compresses well
+	 */
+	public static boolean isCompressible(String mimeType){
+		if(mimeType==null){
+			return false;
+		}
+		if(mimeType.startsWith("text/") || mimeType.endsWith("+xml") || mimeType.endsWith("+json")){
+			return true;
+		}
+		return mimeType.equals("application/javascript") || mimeType.equals("application/json")
+				|| mimeType.equals("application/xml") || mimeType.equals("application/xml-dtd")
+				|| mimeType.equals("application/x-font-ttf");
+	}
+
 }
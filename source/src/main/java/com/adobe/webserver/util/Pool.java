@@ -0,0 +1,112 @@
+package com.adobe.webserver.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of reusable objects.
+ * 
+ * {@link #acquire()} takes an idle object from the pool (a hit), or creates
+ * a new one if there is none (a miss). {@link #release(Object)} gives an
+ * object back; it is dropped if the pool already holds its capacity of idle
+ * objects. So the pool never blocks, and holds at most capacity objects
+ * which are not in use.
+ * 
+ * Hits and misses are counted, see {@link #getHits()} and
+ * {@link #getMisses()}.
+ * 
+ * This class is thread safe.
+ * 
+ * @author KHEMKA
+ * 
+ * @param <T>
+ *            type of the pooled objects
+ */
+public abstract class Pool<T> {
+
+	/**
+	 * idle objects. null if nothing is pooled
+	 */
+	private final ArrayBlockingQueue<T> idle;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            maximum number of idle objects held. 0 or less creates
+	 *            every object on acquire
+	 */
+	public Pool(int capacity) {
+		this.idle = (capacity > 0) ? new ArrayBlockingQueue<T>(capacity)
+				: null;
+	}
+
+	/**
+	 * @return a new object for the pool
+	 */
+	protected abstract T create();
+
+	/**
+	 * prepares an object given back for reuse
+	 * 
+	 * @param object
+	 *            an object given back
+	 * @return false if the object can't be reused, and must be dropped
+	 */
+	protected boolean recycle(T object) {
+		return true;
+	}
+
+	/**
+	 * @return an idle object of the pool, or a new one
+	 */
+	public T acquire() {
+		T object = (idle != null) ? idle.poll() : null;
+		if (object != null) {
+			hits.incrementAndGet();
+			return object;
+		}
+		misses.incrementAndGet();
+		return create();
+	}
+
+	/**
+	 * gives an object back to the pool. It must not be used after this
+	 * 
+	 * @param object
+	 *            object taken by {@link #acquire()}
+	 */
+	public void release(T object) {
+		if (idle != null && recycle(object)) {
+			idle.offer(object);
+		}
+	}
+
+	/**
+	 * @return number of acquires served by an idle object
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of acquires which had to create an object
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of idle objects held
+	 */
+	public int getIdleCount() {
+		return (idle != null) ? idle.size() : 0;
+	}
+
+	@Override
+	public String toString() {
+		return "hits: " + getHits() + ", misses: " + getMisses() + ", idle: "
+				+ getIdleCount();
+	}
+}
@@ -0,0 +1,137 @@
+package com.adobe.webserver.util;
+
+/**
+ * Preconditions evaluates the conditional headers of a GET against the
+ * {@link Validators} of the file requested, in the order of RFC 7232
+ * section 6 -
+ * <ol>
+ * <li>If-Match, else If-Unmodified-Since - 412 if it fails</li>
+ * <li>If-None-Match, else If-Modified-Since - 304 if it fails</li>
+ * </ol>
+ * and If-Range, which decides whether a Range is served (see
+ * {@link #isRangeApplicable}).
+ *
+ * If-Match and If-Range compare entity-tags strongly, If-None-Match weakly.
+ * A date which can't be parsed makes its header ignored. Header values are
+ * scanned in place, nothing is allocated.
+ *
+ * @author KHEMKA
+ *
+ */
+public class Preconditions {
+
+	/**
+	 * returned by {@link #evaluate} if the file is to be sent
+	 */
+	public static final int PROCEED = 200;
+
+	private Preconditions() {
+	}
+
+	/**
+	 * @param headers
+	 *            headers of the request
+	 * @param validators
+	 *            validators of the file requested
+	 * @return {@link #PROCEED}, 304 (not modified) or 412 (precondition
+	 *         failed)
+	 */
+	public static int evaluate(RequestHeaders headers, Validators validators) {
+		String ifMatch = headers.get(HeaderName.IF_MATCH);
+		if (ifMatch != null) {
+			if (!matches(ifMatch, validators.getEntityTag(), false)) {
+				return 412;
+			}
+		} else {
+			long date = parseDate(headers.get(HeaderName.IF_UNMODIFIED_SINCE));
+			if (date != HTTPDate.INVALID
+					&& validators.getLastModified() > date) {
+				return 412;
+			}
+		}
+
+		String ifNoneMatch = headers.get(HeaderName.IF_NONE_MATCH);
+		if (ifNoneMatch != null) {
+			if (matches(ifNoneMatch, validators.getEntityTag(), true)) {
+				return 304;
+			}
+		} else {
+			long date = parseDate(headers.get(HeaderName.IF_MODIFIED_SINCE));
+			if (date != HTTPDate.INVALID
+					&& validators.getLastModified() <= date) {
+				return 304;
+			}
+		}
+		return PROCEED;
+	}
+
+	/**
+	 * @param headers
+	 *            headers of a request with a Range
+	 * @param validators
+	 *            validators of the file requested
+	 * @return false if If-Range names another version of the file, so the
+	 *         whole file is to be sent
+	 */
+	public static boolean isRangeApplicable(RequestHeaders headers,
+			Validators validators) {
+		String ifRange = headers.get(HeaderName.IF_RANGE);
+		if (ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return ifRange.equals(validators.getEntityTag());
+		}
+		return HTTPDate.parse(ifRange) == validators.getLastModified();
+	}
+
+	private static long parseDate(String value) {
+		return (value == null) ? HTTPDate.INVALID : HTTPDate.parse(value
+				.trim());
+	}
+
+	/**
+	 * @param list
+	 *            "*" or a list of entity-tags, e.g. "\"a\", W/\"b\""
+	 * @param entityTag
+	 *            a strong entity-tag, quoted
+	 * @param weak
+	 *            true for weak comparison - a weak tag of the list matches
+	 *            if its opaque part is equal
+	 * @return true if the list matches the entity-tag
+	 */
+	static boolean matches(String list, String entityTag, boolean weak) {
+		int length = list.length();
+		int i = 0;
+		while (i < length) {
+			char c = list.charAt(i);
+			if (c == ' ' || c == '\t' || c == ',') {
+				i++;
+				continue;
+			}
+			if (c == '*') {
+				return true;
+			}
+			boolean weakTag = false;
+			if (c == 'W' && list.startsWith("W/", i)) {
+				weakTag = true;
+				i += 2;
+			}
+			if (i >= length || list.charAt(i) != '"') {
+				return false; // ill formed
+			}
+			int end = list.indexOf('"', i + 1);
+			if (end < 0) {
+				return false;
+			}
+			int tagLength = end + 1 - i;
+			if ((weak || !weakTag) && tagLength == entityTag.length()
+					&& list.regionMatches(i, entityTag, 0, tagLength)) {
+				return true;
+			}
+			i = end + 1;
+		}
+		return false;
+	}
+}
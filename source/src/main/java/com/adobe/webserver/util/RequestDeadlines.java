@@ -0,0 +1,290 @@
+package com.adobe.webserver.util;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import org.apache.log4j.Logger;
+
+import com.adobe.webserver.ServerParams;
+
+/**
+ * RequestDeadlines enforces the deadlines of the phases of requests on a
+ * connection, using a {@link HashedTimingWheel}. When a deadline passes, the
+ * connection is closed, so that a read/write blocked on it fails.
+ * 
+ * The phases are
+ * 1. waiting for first byte of a request - {@link #awaitRequest(long)}
+ * 2. reading request-line and header, from first byte till end of header - 
+ * {@link ServerParams#HEADER_TIMEOUT} in total
+ * 3. reading body and writing response - the connection may stay without any
+ * read/write for at most {@link ServerParams#BODY_IDLE_TIMEOUT}
+ * 
+ * In addition a request must be over in {@link ServerParams#REQUEST_TIMEOUT}
+ * from its first byte.
+ * 
+ * Read/write activity is seen through the streams returned by
+ * {@link #wrap(InputStream)} and {@link #wrap(OutputStream, SocketChannel)}.
+ * It is only recorded, and checked when the idle timeout expires, so a read
+ * does not reschedule a timeout.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public class RequestDeadlines {
+
+	private static Logger logger = Logger.getLogger(RequestDeadlines.class
+			.getName());
+
+	/**
+	 * most bytes of a file sent by one transfer
+	 */
+	private static final long transferSlice = 1 << 20;
+
+	private final Closeable connection;
+	private final HashedTimingWheel timingWheel;
+
+	private HashedTimingWheel.Timeout phaseTimeout = null;
+	private HashedTimingWheel.Timeout requestTimeout = null;
+
+	/**
+	 * the expiries of current deadlines. An expiry which is already running
+	 * when its deadline is cancelled does nothing
+	 */
+	private PhaseExpiry phaseExpiry = null;
+	private PhaseExpiry requestExpiry = null;
+
+	private volatile long lastActivity = System.currentTimeMillis();
+	private volatile String expiredPhase = null;
+
+	/**
+	 * @param connection
+	 *            closed when a deadline passes
+	 * @param timingWheel
+	 *            the wheel tracking the deadlines
+	 */
+	public RequestDeadlines(Closeable connection,
+			HashedTimingWheel timingWheel) {
+		this.connection = connection;
+		this.timingWheel = timingWheel;
+	}
+
+	/**
+	 * starts waiting for first byte of a request
+	 * 
+	 * @param timeout
+	 *            time in milliseconds to wait for
+	 */
+	public synchronized void awaitRequest(long timeout) {
+		cancel();
+		startPhase(new PhaseExpiry("first byte", timeout, false));
+	}
+
+	/**
+	 * to be called when first byte of a request has arrived
+	 */
+	public synchronized void onRequestStart() {
+		cancel();
+		startPhase(new PhaseExpiry("header", ServerParams.HEADER_TIMEOUT,
+				false));
+		requestExpiry = new PhaseExpiry("request", ServerParams.REQUEST_TIMEOUT,
+				false);
+		requestTimeout = timingWheel.schedule(requestExpiry,
+				ServerParams.REQUEST_TIMEOUT);
+	}
+
+	/**
+	 * to be called when the header of request has been read
+	 */
+	public synchronized void onHeaderComplete() {
+		lastActivity = System.currentTimeMillis();
+		startPhase(new PhaseExpiry("body idle", ServerParams.BODY_IDLE_TIMEOUT,
+				true));
+	}
+
+	/**
+	 * cancels the deadlines of the request (or of waiting for it)
+	 */
+	public synchronized void cancel() {
+		if (phaseTimeout != null) {
+			phaseTimeout.cancel();
+			phaseTimeout = null;
+		}
+		if (requestTimeout != null) {
+			requestTimeout.cancel();
+			requestTimeout = null;
+		}
+		phaseExpiry = null;
+		requestExpiry = null;
+	}
+
+	/**
+	 * replaces the deadline of current phase
+	 */
+	private void startPhase(PhaseExpiry expiry) {
+		if (phaseTimeout != null) {
+			phaseTimeout.cancel();
+		}
+		phaseExpiry = expiry;
+		phaseTimeout = timingWheel.schedule(expiry, expiry.timeout);
+	}
+
+	/**
+	 * @return true if a deadline has passed, and the connection is closed
+	 */
+	public boolean isExpired() {
+		return expiredPhase != null;
+	}
+
+	/**
+	 * @return the phase whose deadline passed. null if none
+	 */
+	public String getExpiredPhase() {
+		return expiredPhase;
+	}
+
+	/**
+	 * @param in
+	 *            stream of the connection
+	 * @return a stream recording read activity
+	 */
+	public InputStream wrap(InputStream in) {
+		return new FilterInputStream(in) {
+			public int read() throws IOException {
+				int b = super.read();
+				lastActivity = System.currentTimeMillis();
+				return b;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				int count = super.read(b, off, len);
+				lastActivity = System.currentTimeMillis();
+				return count;
+			}
+		};
+	}
+
+	/**
+	 * @param out
+	 *            stream of the connection
+	 * @param channel
+	 *            blocking channel of the connection, null if it has none
+	 * @return a stream recording write activity. If there is a channel, files
+	 *         are transferred to it without copying (see
+	 *         {@link FileTransferWriter}), and buffers are written to it
+	 *         with gathering writes (see {@link GatheringWriter})
+	 */
+	public OutputStream wrap(OutputStream out, SocketChannel channel) {
+		return new ActivityOutputStream(out,
+				(channel != null && channel.isBlocking()) ? channel : null);
+	}
+
+	/**
+	 * records write activity. A file is transferred in slices, so activity is
+	 * recorded while a big file is sent to a slow client
+	 */
+	private class ActivityOutputStream extends FilterOutputStream implements
+			FileTransferWriter, GatheringWriter {
+
+		private final SocketChannel channel;
+
+		ActivityOutputStream(OutputStream out, SocketChannel channel) {
+			super(out);
+			this.channel = channel;
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			lastActivity = System.currentTimeMillis();
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			lastActivity = System.currentTimeMillis();
+		}
+
+		public void write(ByteBuffer[] buffers) throws IOException {
+			if (channel == null) {
+				for (ByteBuffer buffer : buffers) {
+					Helper.writeBuffer(buffer, this);
+				}
+				return;
+			}
+			out.flush();
+			long remaining = 0;
+			for (ByteBuffer buffer : buffers) {
+				remaining += buffer.remaining();
+			}
+			while (remaining > 0) {
+				remaining -= channel.write(buffers);
+				lastActivity = System.currentTimeMillis();
+			}
+		}
+
+		public boolean transferFrom(FileChannel file, long position,
+				long count) throws IOException {
+			if (channel == null) {
+				return false;
+			}
+			out.flush();
+			while (count > 0) {
+				long written = file.transferTo(position,
+						Math.min(count, transferSlice), channel);
+				if (written == 0 && position >= file.size()) {
+					throw new IOException("file ended " + count
+							+ " bytes before expected");
+				}
+				lastActivity = System.currentTimeMillis();
+				position += written;
+				count -= written;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * closes the connection when deadline of a phase passes. An idle timeout
+	 * is rescheduled if there was activity since it was scheduled
+	 */
+	private class PhaseExpiry implements Runnable {
+		private final String phase;
+		private final long timeout;
+		private final boolean idle;
+
+		PhaseExpiry(String phase, long timeout, boolean idle) {
+			this.phase = phase;
+			this.timeout = timeout;
+			this.idle = idle;
+		}
+
+		public void run() {
+			synchronized (RequestDeadlines.this) {
+				if (this != phaseExpiry && this != requestExpiry) {
+					return;
+				}
+				if (idle) {
+					long idleTime = System.currentTimeMillis() - lastActivity;
+					if (idleTime < timeout) {
+						phaseTimeout = timingWheel.schedule(this, timeout
+								- idleTime);
+						return;
+					}
+				}
+				expiredPhase = phase;
+			}
+			logger.info("closing connection .. " + phase + " deadline of "
+					+ timeout + " ms passed");
+			try {
+				connection.close();
+			} catch (IOException e) {
+				logger.error("error in closing connection" + e.getMessage());
+			}
+		}
+	}
+}
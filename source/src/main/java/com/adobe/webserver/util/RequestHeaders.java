@@ -0,0 +1,199 @@
+package com.adobe.webserver.util;
+
+import java.util.Arrays;
+
+/**
+ * Header fields of a request, as parsed by {@link HTTPRequestParser}.
+ * 
+ * It does not copy the header. A well known field ({@link HeaderName}) is
+ * kept in the slot of its name, other fields in a small open addressed table
+ * hashed on the name ignoring case. Both only hold the index of the field in
+ * the parser, and the value String is created when it is first asked for.
+ * Lookups are case insensitive and create no objects.
+ * 
+ * Values of a repeated field are joined with ",". Fields with an empty value
+ * are left out.
+ * 
+ * A RequestHeaders belongs to its parser and is refilled for every request it
+ * parses, so it must not be kept beyond the request. This class is not thread
+ * safe.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public class RequestHeaders {
+
+	private static final int initialTableSize = 16;
+
+	private final HTTPRequestParser parser;
+
+	/**
+	 * index (plus 1) in parser of the first field of every well known name. 0
+	 * if absent
+	 */
+	private final int[] knownFields = new int[HeaderName.values().length];
+	private final String[] knownValues = new String[knownFields.length];
+
+	/**
+	 * index (plus 1) in parser of the first field of other names, placed by
+	 * hash of the name. 0 for an empty place
+	 */
+	private int[] otherFields = new int[initialTableSize];
+	private String[] otherValues = new String[initialTableSize];
+	private int otherCount = 0;
+
+	RequestHeaders(HTTPRequestParser parser) {
+		this.parser = parser;
+	}
+
+	/**
+	 * forgets the fields of the previous request
+	 */
+	void clear() {
+		Arrays.fill(knownFields, 0);
+		Arrays.fill(knownValues, null);
+		if (otherCount > 0) {
+			Arrays.fill(otherFields, 0);
+			Arrays.fill(otherValues, null);
+			otherCount = 0;
+		}
+	}
+
+	/**
+	 * adds a field parsed by the parser
+	 * 
+	 * @param field
+	 *            index of the field in parser
+	 */
+	void add(int field) {
+		if (parser.isFieldValueEmpty(field)) {
+			return;
+		}
+		byte[] buffer = parser.getBuffer();
+		int start = parser.getNameStart(field);
+		int end = parser.getNameEnd(field);
+
+		HeaderName known = HeaderName.forName(buffer, start, end);
+		if (known != null) {
+			int slot = known.ordinal();
+			if (knownFields[slot] == 0) {
+				knownFields[slot] = field + 1;
+			} else {
+				knownValues[slot] = get(known) + ","
+						+ parser.getFieldValue(field);
+			}
+			return;
+		}
+
+		if (2 * (otherCount + 1) > otherFields.length) {
+			growTable();
+		}
+		int mask = otherFields.length - 1;
+		for (int i = HeaderName.hash(buffer, start, end) & mask;; i = (i + 1)
+				& mask) {
+			if (otherFields[i] == 0) {
+				otherFields[i] = field + 1;
+				otherCount++;
+				return;
+			}
+			if (parser.isFieldNamed(otherFields[i] - 1, buffer, start, end)) {
+				otherValues[i] = getOther(i) + ","
+						+ parser.getFieldValue(field);
+				return;
+			}
+		}
+	}
+
+	private void growTable() {
+		int[] fields = otherFields;
+		String[] values = otherValues;
+		otherFields = new int[2 * fields.length];
+		otherValues = new String[2 * fields.length];
+		int mask = otherFields.length - 1;
+		byte[] buffer = parser.getBuffer();
+		for (int j = 0; j < fields.length; j++) {
+			if (fields[j] == 0) {
+				continue;
+			}
+			int field = fields[j] - 1;
+			int i = HeaderName.hash(buffer, parser.getNameStart(field),
+					parser.getNameEnd(field)) & mask;
+			while (otherFields[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			otherFields[i] = fields[j];
+			otherValues[i] = values[j];
+		}
+	}
+
+	/**
+	 * @param name
+	 *            a well known field-name
+	 * @return value of the field. null if it was not sent
+	 */
+	public String get(HeaderName name) {
+		int slot = name.ordinal();
+		if (knownValues[slot] == null && knownFields[slot] != 0) {
+			knownValues[slot] = parser.getFieldValue(knownFields[slot] - 1);
+		}
+		return knownValues[slot];
+	}
+
+	/**
+	 * @param name
+	 *            a field-name, in any case
+	 * @return value of the field. null if it was not sent
+	 */
+	public String get(String name) {
+		HeaderName known = HeaderName.forName(name);
+		if (known != null) {
+			return get(known);
+		}
+		int i = findOther(name);
+		return (i < 0) ? null : getOther(i);
+	}
+
+	/**
+	 * @return place of the field in table of other fields. -1 if it was not
+	 *         sent
+	 */
+	private int findOther(String name) {
+		int mask = otherFields.length - 1;
+		for (int i = HeaderName.hash(name) & mask; otherFields[i] != 0; i = (i + 1)
+				& mask) {
+			if (parser.isFieldNamed(otherFields[i] - 1, name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private String getOther(int i) {
+		if (otherValues[i] == null) {
+			otherValues[i] = parser.getFieldValue(otherFields[i] - 1);
+		}
+		return otherValues[i];
+	}
+
+	/**
+	 * @param name
+	 *            a well known field-name
+	 * @return true if the field was sent
+	 */
+	public boolean contains(HeaderName name) {
+		return knownFields[name.ordinal()] != 0;
+	}
+
+	/**
+	 * @param name
+	 *            a field-name, in any case
+	 * @return true if the field was sent
+	 */
+	public boolean contains(String name) {
+		HeaderName known = HeaderName.forName(name);
+		if (known != null) {
+			return contains(known);
+		}
+		return findOther(name) >= 0;
+	}
+}
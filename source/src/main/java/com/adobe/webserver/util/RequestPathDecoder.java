@@ -0,0 +1,187 @@
+package com.adobe.webserver.util;
+
+import java.nio.charset.Charset;
+
+import com.adobe.webserver.ServerParams;
+
+/**
+ * RequestPathDecoder turns the request-target of a request-line into the
+ * path of the requested resource, relative to the webroot, in a single pass
+ * over its bytes.
+ *
+ * The pass percent-decodes the path, stops at the query or fragment,
+ * collapses empty and "." segments, and removes the segment before every
+ * ".." segment. The result always starts with "/" and has no trailing "/",
+ * e.g. "/a/./b//c/../d%20e/?x=1" becomes "/a/b/d e".
+ *
+ * A target is rejected (null is returned) if
+ * <ul>
+ * <li>a ".." segment would leave the webroot</li>
+ * <li>a percent-escape is ill formed</li>
+ * <li>it has control characters or space, or a segment decodes to "/" or
+ * NUL</li>
+ * <li>it has "\" or ":", raw or percent-encoded, which the file system of
+ * windows takes as a separator, a drive or a stream</li>
+ * <li>it is neither a path nor an absolute URI of http(s)</li>
+ * </ul>
+ *
+ * The decoded bytes are kept in a buffer reused for next requests. A path of
+ * ASCII only is copied into the String as is, otherwise the bytes are decoded
+ * as {@link ServerParams#URLEncoding}. "+" is not a space in a path and is
+ * kept.
+ *
+ * This class is not thread safe.
+ *
+ * @author KHEMKA
+ *
+ */
+public class RequestPathDecoder {
+
+	private static final Charset asciiCharset = Charset.forName("ISO-8859-1");
+	private static final Charset pathCharset = Charset
+			.forName(ServerParams.URLEncoding);
+
+	private static final String rootPath = ServerParams.URISeparator;
+
+	private byte[] path = new byte[256];
+
+	/**
+	 * decodes and normalizes the request-target held in bytes [start, end) of
+	 * the input
+	 *
+	 * @param b
+	 *            the bytes holding the request-target
+	 * @param start
+	 *            index of first byte of the request-target
+	 * @param end
+	 *            index after last byte of the request-target
+	 * @return the path, relative to webroot, or null if the target is rejected
+	 */
+	public String decode(byte[] b, int start, int end) {
+		if (start < end && b[start] != '/') {
+			start = skipSchemeAndAuthority(b, start, end);
+			if (start < 0) {
+				return null;
+			}
+		}
+		if (path.length < end - start + 1) {
+			path = new byte[end - start + 1];
+		}
+
+		int length = 0; // decoded bytes in path
+		int segmentStart = 0; // index after the '/' of current segment
+		boolean ascii = true;
+		int i = start;
+		while (true) {
+			int c = (i < end) ? b[i] & 0xff : -1;
+			if (c == -1 || c == '/' || c == '?' || c == '#') {
+				int segmentLength = length - segmentStart;
+				if (segmentLength == 0 && segmentStart > 0) {
+					length--; // empty segment
+				} else if (segmentLength == 1 && path[segmentStart] == '.') {
+					length = segmentStart - 1;
+				} else if (segmentLength == 2 && path[segmentStart] == '.'
+						&& path[segmentStart + 1] == '.') {
+					if (segmentStart == 1) {
+						return null; // traversal out of webroot
+					}
+					length = segmentStart - 2;
+					while (path[length] != '/') {
+						length--;
+					}
+				}
+				if (c != '/') {
+					break;
+				}
+				path[length++] = '/';
+				segmentStart = length;
+				i++;
+				continue;
+			}
+
+			if (c == '%') {
+				if (i + 2 >= end) {
+					return null;
+				}
+				int high = hexValue(b[i + 1]);
+				int low = hexValue(b[i + 2]);
+				if (high < 0 || low < 0) {
+					return null;
+				}
+				c = (high << 4) | low;
+				if (c == '/' || c == 0) {
+					return null;
+				}
+				i += 3;
+			} else {
+				if (c <= ' ' || c == 0x7f) {
+					return null;
+				}
+				i++;
+			}
+			// separators of windows paths - a drive, a stream, or a segment
+			// which File would split (e.g. "..\..")
+			if (c == '\\' || c == ':') {
+				return null;
+			}
+			if (c >= 0x80) {
+				ascii = false;
+			}
+			path[length++] = (byte) c;
+		}
+
+		if (length <= 1) {
+			return rootPath;
+		}
+		return new String(path, 0, length, ascii ? asciiCharset : pathCharset);
+	}
+
+	/**
+	 * @return index of the path in an absolute URI (e.g.
+	 *         http://host:port/path), index of its end if it has no path, or
+	 *         -1 if the target is not an absolute URI of http(s)
+	 */
+	private static int skipSchemeAndAuthority(byte[] b, int start, int end) {
+		int i = start;
+		if (!matches(b, i, end, "http")) {
+			return -1;
+		}
+		i += 4;
+		if (matches(b, i, end, "s")) {
+			i++;
+		}
+		if (!matches(b, i, end, "://")) {
+			return -1;
+		}
+		i += 3;
+		while (i < end && b[i] != '/' && b[i] != '?' && b[i] != '#') {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean matches(byte[] b, int start, int end, String s) {
+		if (end - start < s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (HeaderName.toLowerCase(b[start + i] & 0xff) != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hexValue(byte c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,453 @@
+package com.adobe.webserver.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.adobe.webserver.ServerParams;
+
+/**
+ * ResponseTemplates writes response heads, and the generic html bodies of
+ * messages (see {@link Helper#sendClientMessage}), from bytes encoded once.
+ * 
+ * Status lines of the statuses sent by the server, the Server and Connection
+ * headers, the Content-Type header of every media type, and the start of the message body of every such status are
+ * encoded when the class is loaded. The message body without a message of its
+ * own (e.g. a plain 404) is pre-rendered completely. A status not known is
+ * encoded when it is written.
+ * 
+ * The Date header is formatted once per second, by a task on the shared
+ * {@link HashedTimingWheel}, so a response only copies its bytes.
+ * 
+ * Header values are encoded as {@link ServerParams#HTTPHeadersEncoding}.
+ * 
+ * @author KHEMKA
+ * 
+ */
+public class ResponseTemplates {
+
+	private static final Charset headerCharset = Charset
+			.forName(ServerParams.HTTPHeadersEncoding);
+
+	/**
+	 * statuses sent by the server, with their reason phrase
+	 */
+	private static final String[][] knownStatuses = { { "200", "OK" },
+			{ "201", "Created" }, { "206", "Partial Content" },
+			{ "304", "Not Modified" },
+			{ "400", "Bad Request" }, { "404", "Not Found" },
+			{ "405", "Method Not Allowed" }, { "412", "Precondition Failed" },
+			{ "416", "Range Not Satisfiable" }, { "429", "Too Many Requests" },
+			{ "500", "Internal Server Error" },
+			{ "503", "Service Unavailable" } };
+
+	/**
+	 * body message of a generic message body, if the caller has none
+	 */
+	private static final String defaultBodyMessage = "thats all we know<hr>";
+
+	private static final byte[] crlf = encode(ServerParams.CRLF);
+	private static final byte[] serverHeader = encode("Server: "
+			+ ServerParams.serverHeader + ServerParams.CRLF);
+	private static final byte[] keepAliveHeader = encode("Connection: keep-alive"
+			+ ServerParams.CRLF);
+	private static final byte[] closeHeader = encode("Connection: close"
+			+ ServerParams.CRLF);
+	private static final byte[] contentLengthPrefix = encode("Content-length: ");
+	private static final byte[] acceptRangesHeader = encode("Accept-Ranges: bytes"
+			+ ServerParams.CRLF);
+	private static final byte[] gzipEncodingHeader = encode("Content-Encoding: gzip"
+			+ ServerParams.CRLF);
+	private static final byte[] varyHeader = encode("Vary: Accept-Encoding"
+			+ ServerParams.CRLF);
+	private static final byte[] contentRangePrefix = encode("Content-Range: bytes ");
+	private static final byte[] chunkedHeader = encode("Transfer-Encoding: chunked"
+			+ ServerParams.CRLF);
+	private static final byte[] bodySuffix = encode("</p></BODY></HTML>");
+
+	/**
+	 * pre-encoded parts of a known status
+	 */
+	private static class Status {
+		private final String reasonPhrase;
+		private final byte[] statusLine;
+		private final byte[] bodyPrefix;
+		private final byte[] defaultBody;
+
+		Status(String statusCode, String reasonPhrase) {
+			this.reasonPhrase = reasonPhrase;
+			this.statusLine = encodeStatusLine(statusCode, reasonPhrase);
+			this.bodyPrefix = encodeBodyPrefix(statusCode, reasonPhrase);
+			this.defaultBody = encode(new String(bodyPrefix, headerCharset)
+					+ defaultBodyMessage + new String(bodySuffix, headerCharset));
+		}
+	}
+
+	/**
+	 * "Content-Type: ..." header lines, by media type. There are only as
+	 * many as the types in {@link MimeTypes}
+	 */
+	private static final ConcurrentHashMap<String, byte[]> contentTypeHeaders = new ConcurrentHashMap<String, byte[]>();
+
+	/**
+	 * known statuses, indexed by status code
+	 */
+	private static final Status[] statuses = new Status[600];
+
+	static {
+		for (String[] status : knownStatuses) {
+			statuses[Integer.parseInt(status[0])] = new Status(status[0],
+					status[1]);
+		}
+	}
+
+	/**
+	 * "Date: ..." header line of the current second
+	 */
+	private static volatile byte[] dateHeader;
+
+	/**
+	 * formats the Date header and schedules itself for the start of next
+	 * second. Runs on the timing wheel thread
+	 */
+	private static class DateTicker implements Runnable {
+
+		private final SimpleDateFormat format = new SimpleDateFormat(
+				ServerParams.RFC1123DateFormat, Locale.US);
+
+		DateTicker() {
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		}
+
+		public void run() {
+			long now = System.currentTimeMillis();
+			dateHeader = encode("Date: " + format.format(new Date(now))
+					+ ServerParams.CRLF);
+			HashedTimingWheel.getInstance().schedule(this, 1000 - now % 1000);
+		}
+	}
+
+	static {
+		new DateTicker().run();
+	}
+
+	private ResponseTemplates() {
+	}
+
+	private static byte[] encode(String s) {
+		return s.getBytes(headerCharset);
+	}
+
+	private static byte[] encodeStatusLine(String statusCode,
+			String reasonPhrase) {
+		return encode("HTTP/1.1 " + statusCode + " " + reasonPhrase
+				+ ServerParams.CRLF);
+	}
+
+	private static byte[] encodeBodyPrefix(String statusCode,
+			String reasonPhrase) {
+		return encode("<HTML>" + "<HEAD>" + "<TITLE>" + reasonPhrase
+				+ "</TITLE>" + "</HEAD>" + "<BODY>"
+				+ "<img src=\"/images/logo.jpg\">" + "<H3>" + statusCode
+				+ ". " + reasonPhrase + "</H3>" + "</BR>" + "<p>");
+	}
+
+	/**
+	 * @return the known status of the code, if the reason phrase is its
+	 *         phrase (ignoring surrounding spaces). null otherwise
+	 */
+	private static Status getStatus(String statusCode, String reasonPhrase) {
+		if (statusCode.length() != 3) {
+			return null;
+		}
+		int code = 0;
+		for (int i = 0; i < 3; i++) {
+			char c = statusCode.charAt(i);
+			if (c < '0' || c > '9') {
+				return null;
+			}
+			code = code * 10 + (c - '0');
+		}
+		Status status = (code < statuses.length) ? statuses[code] : null;
+		if (status == null || !status.reasonPhrase.equals(reasonPhrase.trim())) {
+			return null;
+		}
+		return status;
+	}
+
+	/**
+	 * writes the status line and the headers common to all responses -
+	 * Server, Date and Connection
+	 * 
+	 * @param out
+	 *            the stream connected to client
+	 * @param statusCode
+	 *            the http response status code
+	 * @param reasonPhrase
+	 *            status message corresponding to status code
+	 * @param keepAlive
+	 *            true if the connection is kept open after the response
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void writeHead(OutputStream out, String statusCode,
+			String reasonPhrase, boolean keepAlive) throws IOException {
+		Status status = getStatus(statusCode, reasonPhrase);
+		out.write((status != null) ? status.statusLine : encodeStatusLine(
+				statusCode, reasonPhrase));
+		out.write(serverHeader);
+		out.write(dateHeader);
+		out.write(keepAlive ? keepAliveHeader : closeHeader);
+	}
+
+	/**
+	 * writes a header line
+	 * 
+	 * @param out
+	 *            the stream connected to client
+	 * @param header
+	 *            the header, without CRLF
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void writeHeader(OutputStream out, String header)
+			throws IOException {
+		out.write(encode(header));
+		out.write(crlf);
+	}
+
+	/**
+	 * writes the Content-length header
+	 * 
+	 * @param out
+	 *            the stream connected to client
+	 * @param length
+	 *            length of the body
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void writeContentLength(OutputStream out, long length)
+			throws IOException {
+		out.write(contentLengthPrefix);
+		writeNumber(out, length);
+		out.write(crlf);
+	}
+
+	/**
+	 * writes the digits of a number, without creating a String
+	 */
+	private static void writeNumber(OutputStream out, long n)
+			throws IOException {
+		long divisor = 1;
+		while (divisor <= n / 10) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			out.write('0' + (int) (n / divisor % 10));
+		}
+	}
+
+	/**
+	 * writes the "Accept-Ranges: bytes" header, sent with files
+	 * 
+	 * @param out
+	 *            the stream connected to client
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void writeAcceptRanges(OutputStream out) throws IOException {
+		out.write(acceptRangesHeader);
+	}
+
+	/**
+	 * writes the "Content-Encoding: gzip" header, sent with gzip compressed
+	 * files
+	 * 
+	 * @param out
+	 *            the stream connected to client
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void writeGzipEncoding(OutputStream out) throws IOException {
+		out.write(gzipEncodingHeader);
+	}
+
+	/**
+	 * writes the "Vary: Accept-Encoding" header, sent with files which may be
+	 * sent compressed, so caches don't give one encoding to a client asking
+	 * for another
+	 * 
+	 * @param out
+	 *            the stream connected to client
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void writeVary(OutputStream out) throws IOException {
+		out.write(varyHeader);
+	}
+
+	/**
+	 * writes the Content-Range header of a part of a file
+	 * 
+	 * @param out
+	 *            the stream connected to client
+	 * @param start
+	 *            position of first byte of the part. -1 for an unsatisfiable
+	 *            range ("*")
+	 * @param end
+	 *            position of last byte of the part
+	 * @param length
+	 *            length of the file
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void writeContentRange(OutputStream out, long start,
+			long end, long length) throws IOException {
+		out.write(contentRangePrefix);
+		if (start < 0) {
+			out.write('*');
+		} else {
+			writeNumber(out, start);
+			out.write('-');
+			writeNumber(out, end);
+		}
+		out.write('/');
+		writeNumber(out, length);
+		out.write(crlf);
+	}
+
+	/**
+	 * writes the Content-Type header. The header line of a type is encoded
+	 * once
+	 * 
+	 * @param out
+	 *            the stream connected to client
+	 * @param contentType
+	 *            media type of the body
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void writeContentType(OutputStream out, String contentType)
+			throws IOException {
+		byte[] header = contentTypeHeaders.get(contentType);
+		if (header == null) {
+			header = encode("Content-Type: " + contentType + ServerParams.CRLF);
+			contentTypeHeaders.put(contentType, header);
+		}
+		out.write(header);
+	}
+
+	/**
+	 * writes the "Transfer-Encoding: chunked" header, for a body sent with
+	 * {@link ChunkedOutputStream}
+	 * 
+	 * @param out
+	 *            the stream connected to client
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void writeChunkedEncoding(OutputStream out)
+			throws IOException {
+		out.write(chunkedHeader);
+	}
+
+	/**
+	 * writes the CRLF ending the head
+	 * 
+	 * @param out
+	 *            the stream connected to client
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void endHead(OutputStream out) throws IOException {
+		out.write(crlf);
+	}
+
+	/**
+	 * writes the start of a generic html body, up to the body message. The
+	 * body is ended by {@link #writeBodySuffix(OutputStream)}
+	 * 
+	 * @param out
+	 *            the stream of the message body
+	 * @param statusCode
+	 *            the http response status code
+	 * @param reasonPhrase
+	 *            status message corresponding to status code
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void writeBodyPrefix(OutputStream out, String statusCode,
+			String reasonPhrase) throws IOException {
+		Status status = getStatus(statusCode, reasonPhrase);
+		out.write((status != null) ? status.bodyPrefix : encodeBodyPrefix(
+				statusCode, reasonPhrase));
+	}
+
+	/**
+	 * writes the end of a generic html body, after the body message
+	 * 
+	 * @param out
+	 *            the stream of the message body
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void writeBodySuffix(OutputStream out) throws IOException {
+		out.write(bodySuffix);
+	}
+
+	/**
+	 * writes a response with a generic html body, from the status line to
+	 * the end of body
+	 * 
+	 * @param out
+	 *            the stream connected to client
+	 * @param statusCode
+	 *            the http response status code
+	 * @param reasonPhrase
+	 *            status message corresponding to status code
+	 * @param additionalHeaders
+	 *            headers other than the common ones, without CRLF. may be
+	 *            null
+	 * @param bodyMessage
+	 *            message placed in the body. null or empty for a default one
+	 * @param keepAlive
+	 *            true if the connection is kept open after the response
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public static void writeMessage(OutputStream out, String statusCode,
+			String reasonPhrase, String[] additionalHeaders,
+			String bodyMessage, boolean keepAlive) throws IOException {
+		writeHead(out, statusCode, reasonPhrase, keepAlive);
+		if (additionalHeaders != null) {
+			for (int i = 0; i < additionalHeaders.length; i++) {
+				writeHeader(out, additionalHeaders[i]);
+			}
+		}
+
+		boolean defaultMessage = (bodyMessage == null || bodyMessage.length() == 0);
+		Status status = getStatus(statusCode, reasonPhrase);
+		if (status != null && defaultMessage) {
+			writeContentLength(out, status.defaultBody.length);
+			endHead(out);
+			out.write(status.defaultBody);
+			return;
+		}
+
+		byte[] bodyPrefix = (status != null) ? status.bodyPrefix
+				: encodeBodyPrefix(statusCode, reasonPhrase);
+		byte[] message = encode(defaultMessage ? defaultBodyMessage
+				: bodyMessage);
+		writeContentLength(out, bodyPrefix.length + message.length
+				+ bodySuffix.length);
+		endHead(out);
+		out.write(bodyPrefix);
+		out.write(message);
+		out.write(bodySuffix);
+	}
+}
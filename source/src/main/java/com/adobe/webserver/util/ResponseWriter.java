@@ -0,0 +1,185 @@
+package com.adobe.webserver.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * ResponseWriter is the single stream through which a response, head and
+ * body, is written to the client. It holds responses until they are
+ * explicitly sent with {@link #send()}.
+ *
+ * {@link #flush()} does not write anything to the underlying stream, so the
+ * head and the body of a small response leave in a single write. Responses
+ * of pipelined requests can also be held and sent together, in order. Bytes
+ * are written to the underlying stream only when the buffer is full or on
+ * {@link #send()}/{@link #close()}.
+ *
+ * A write which does not fit in the buffer (e.g. a chunk of a file) is not
+ * copied. If the underlying stream is a {@link GatheringWriter}, the held
+ * bytes (e.g. the head) and the chunk leave together in one gathering write.
+ * Otherwise the held bytes are written, then the chunk.
+ *
+ * A file is sent without copying if the underlying stream takes transfers
+ * (see {@link FileTransferWriter}). The held bytes are written first.
+ *
+ * Buffers (e.g. a mapped file) which do not fit in the buffer are written
+ * together with the held bytes, in one gathering write, if the underlying
+ * stream takes them. Otherwise they are copied.
+ *
+ * @author KHEMKA
+ *
+ */
+public class ResponseWriter extends OutputStream implements
+		GatheringWriter, FileTransferWriter {
+
+	private OutputStream out;
+	private GatheringWriter gatheringOut;
+	private FileTransferWriter transferOut;
+	private final byte[] buffer;
+	private final ByteBuffer heldBytes;
+	private final ByteBuffer[] gather = new ByteBuffer[2];
+	private int count = 0;
+
+	/**
+	 * @param out
+	 *            the stream connected to client
+	 * @param size
+	 *            size of the buffer
+	 */
+	public ResponseWriter(OutputStream out, int size) {
+		this.buffer = new byte[size];
+		this.heldBytes = ByteBuffer.wrap(buffer);
+		reset(out);
+	}
+
+	/**
+	 * discards the held bytes and makes the stream write to another
+	 * underlying stream, so the buffer is reused for another connection
+	 *
+	 * @param out
+	 *            the stream connected to client
+	 */
+	public void reset(OutputStream out) {
+		this.out = out;
+		this.gatheringOut = (out instanceof GatheringWriter) ? (GatheringWriter) out
+				: null;
+		this.transferOut = (out instanceof FileTransferWriter) ? (FileTransferWriter) out
+				: null;
+		this.count = 0;
+	}
+
+	private void writeBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buffer.length) {
+			writeBuffer();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len > buffer.length - count) {
+			if (count > 0 && gatheringOut != null) {
+				heldBytes.limit(count).position(0);
+				gather[0] = heldBytes;
+				gather[1] = ByteBuffer.wrap(b, off, len);
+				try {
+					gatheringOut.write(gather);
+				} finally {
+					gather[1] = null;
+				}
+				count = 0;
+				return;
+			}
+			writeBuffer();
+			if (len >= buffer.length) {
+				out.write(b, off, len);
+				return;
+			}
+		}
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	public void write(ByteBuffer[] buffers) throws IOException {
+		long length = 0;
+		for (ByteBuffer b : buffers) {
+			length += b.remaining();
+		}
+		if (length <= buffer.length - count) {
+			for (ByteBuffer b : buffers) {
+				int len = b.remaining();
+				b.get(buffer, count, len);
+				count += len;
+			}
+			return;
+		}
+		if (gatheringOut == null) {
+			writeBuffer();
+			for (ByteBuffer b : buffers) {
+				Helper.writeBuffer(b, out);
+			}
+			return;
+		}
+		ByteBuffer[] all = (buffers.length == 1) ? gather
+				: new ByteBuffer[buffers.length + 1];
+		heldBytes.limit(count).position(0);
+		all[0] = heldBytes;
+		System.arraycopy(buffers, 0, all, 1, buffers.length);
+		try {
+			gatheringOut.write(all);
+		} finally {
+			Arrays.fill(all, 1, all.length, null);
+		}
+		count = 0;
+	}
+
+	public boolean transferFrom(FileChannel file, long position, long count)
+			throws IOException {
+		if (transferOut == null) {
+			return false;
+		}
+		writeBuffer();
+		return transferOut.transferFrom(file, position, count);
+	}
+
+	/**
+	 * does nothing. responses are sent by {@link #send()}
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * writes the held bytes to the underlying stream and flushes it
+	 *
+	 * @throws IOException
+	 *             when some read/write error occurs
+	 */
+	public void send() throws IOException {
+		writeBuffer();
+		out.flush();
+	}
+
+	/**
+	 * sends the held bytes and closes the underlying stream
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			send();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -1,8 +1,8 @@
 package com.adobe.webserver.util;
 
+import java.lang.reflect.InvocationTargetException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
@@ -15,6 +15,16 @@ import com.adobe.webserver.ServerParams;
  * ThreadPoolExecutorBuilder provides utilities for creation of threadPool and also for stopping of a thread pool.
  * 
  * {@link Listener} uses this class for creating thread pool for serving client requests.
+ * 
+ * The kind of executor is chosen by {@link ServerParams#EXECUTOR_MODE}. In "virtual" mode every task runs
+ * on its own virtual thread (java 21 or later). A blocked virtual thread does not hold a platform thread, so
+ * blocking reads/writes of clients don't eat into the pool. 
+ * 
+ * Otherwise a fixed pool with a bounded queue is created, which sheds clients when they wait too long in 
+ * the queue (see {@link CoDelThreadPoolExecutor}). 
+ * 
+ * If {@link ServerParams#ADAPTIVE_CONCURRENCY} is on, the number of clients served at the same time follows an 
+ * {@link AdaptiveConcurrencyLimit}, which the caller feeds with latency of requests.
  * @author KHEMKA
  *
  */
@@ -23,7 +33,7 @@ public class ThreadPoolExecutorBuilder {
 	/**
 	 * in seconds
 	 */
-	private static final int timeToWaitForNormalShutdown = 60;
+	private static final int timeToWaitForCancelledTasks = 5;
 	
 	private static Logger logger = Logger.getLogger(ThreadPoolExecutorBuilder.class.getName());
 	
@@ -35,34 +45,173 @@ public class ThreadPoolExecutorBuilder {
 	
 	
 	/**
-	 * creates a thread pool with default settings
+	 * creates a thread pool with default settings.
+	 * In "virtual" mode it creates a virtual thread per task executor, whose concurrency is capped by 
+	 * {@link ServerParams#VIRTUAL_THREAD_MAX_CONCURRENCY} if it is positive. If the JVM does not 
+	 * support virtual threads, a fixed thread pool is created.
 	 * @return a threadpool
 	 */
 	public static ExecutorService newCustomThreadPool(){
-		ThreadPoolExecutor tPool = (ThreadPoolExecutor)Executors.newFixedThreadPool(ServerParams.THREAD_POOL_SIZE);
+		return newCustomThreadPool(1);
+	}
+	
+	/**
+	 * creates one of several thread pools sharing the configured concurrency. Each gets an equal part 
+	 * (rounded up) of {@link ServerParams#THREAD_POOL_SIZE} (or {@link ServerParams#VIRTUAL_THREAD_MAX_CONCURRENCY}) 
+	 * @param partitions number of thread pools sharing the concurrency
+	 * @return a threadpool
+	 */
+	public static ExecutorService newCustomThreadPool(int partitions){
+		return newCustomThreadPool(partitions, null);
+	}
+	
+	/**
+	 * creates one of several thread pools sharing the configured concurrency, whose concurrency follows 
+	 * the input limit. 
+	 * @param partitions number of thread pools sharing the concurrency
+	 * @param concurrencyLimit adaptive limit created by {@link #newConcurrencyLimit(int)}. null for a fixed concurrency
+	 * @return a threadpool
+	 */
+	public static ExecutorService newCustomThreadPool(int partitions, AdaptiveConcurrencyLimit concurrencyLimit){
+		if (ServerParams.EXECUTOR_MODE.equals("virtual") && !isVirtualThreadSupported()) {
+			logger.warn("virtual threads are not supported by this jvm (java 21 or later required) .. using a fixed thread pool");
+		} else if (ServerParams.EXECUTOR_MODE.equals("virtual")) {
+			ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+			if (virtualThreads != null) {
+				if (ServerParams.VIRTUAL_THREAD_MAX_CONCURRENCY > 0 || concurrencyLimit != null) {
+					final LimitedConcurrencyExecutor limitedThreads = new LimitedConcurrencyExecutor(virtualThreads,
+							divide(getMaxConcurrency(), partitions));
+					if (concurrencyLimit != null) {
+						concurrencyLimit.setLimitListener(new AdaptiveConcurrencyLimit.LimitListener() {
+							public void onLimitChanged(int limit) {
+								limitedThreads.setMaxConcurrency(limit);
+							}
+						});
+					}
+					return limitedThreads;
+				}
+				return virtualThreads;
+			}
+		}
+		
+		final CoDelThreadPoolExecutor tPool = new CoDelThreadPoolExecutor(divide(ServerParams.THREAD_POOL_SIZE, partitions), 
+				divide(ServerParams.QUEUE_SIZE, partitions), ServerParams.QUEUE_DELAY_TARGET, ServerParams.QUEUE_DELAY_INTERVAL);
+		if (concurrencyLimit != null) {
+			concurrencyLimit.setLimitListener(new AdaptiveConcurrencyLimit.LimitListener() {
+				public void onLimitChanged(int limit) {
+					tPool.setPoolSize(limit);
+				}
+			});
+		}
 		
 		return tPool;
 	}
 	
+	/**
+	 * creates an adaptive concurrency limit for one of several thread pools, if 
+	 * {@link ServerParams#ADAPTIVE_CONCURRENCY} is on. The limit moves between {@link ServerParams#MIN_CONCURRENCY} 
+	 * and the configured concurrency (both divided among the thread pools).
+	 * @param partitions number of thread pools sharing the concurrency
+	 * @return the limit. null if concurrency is fixed
+	 */
+	public static AdaptiveConcurrencyLimit newConcurrencyLimit(int partitions){
+		if (!ServerParams.ADAPTIVE_CONCURRENCY) {
+			return null;
+		}
+		return new AdaptiveConcurrencyLimit(divide(ServerParams.MIN_CONCURRENCY, partitions), 
+				divide(getMaxConcurrency(), partitions));
+	}
+	
+	private static boolean isVirtualThreadSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @return the configured number of clients served at the same time
+	 */
+	private static int getMaxConcurrency() {
+		if (ServerParams.EXECUTOR_MODE.equals("virtual") && isVirtualThreadSupported() 
+				&& ServerParams.VIRTUAL_THREAD_MAX_CONCURRENCY > 0) {
+			return ServerParams.VIRTUAL_THREAD_MAX_CONCURRENCY;
+		}
+		return ServerParams.THREAD_POOL_SIZE;
+	}
+	
+	private static int divide(int total, int partitions) {
+		return Math.max(1, (total + partitions - 1) / Math.max(1, partitions));
+	}
+	
+	/**
+	 * looks up Executors.newVirtualThreadPerTaskExecutor() by reflection, so that the server still 
+	 * compiles and runs on JVMs older than java 21
+	 * @return a virtual thread per task executor. null if not supported by the JVM
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			logger.error("virtual thread executor could not be created - " + e.getMessage());
+			return null;
+		} catch (InvocationTargetException e) {
+			logger.error("virtual thread executor could not be created - " + e.getCause());
+			return null;
+		}
+	}
+	
 	
 
 	/**
 	 * It shuts down a executor service. 
-	 * First of all it disables new taks from being submitted, and waits for 60 seconds for normal shutdown.
-	 * if it does not shutdown till then,it Cancels currently executing tasks
+	 * First of all it disables new taks from being submitted, and waits for {@link ServerParams#SHUTDOWN_TIMEOUT} 
+	 * for normal shutdown. if it does not shutdown till then,it Cancels currently executing tasks
 	 * 
 	 * code copied from "http://docs.oracle.com/javase/6/docs/api/java/util/concurrent/ExecutorService.html" 
 	 * used to shutdown an executor service properly .. slightly modified to use logger instead of System.err
 	 * @param pool
 	 */
 	public static void  shutdownAndAwaitTermination(ExecutorService pool) {
+		shutdownAndAwaitTermination(pool, null);
+	}
+	
+	/**
+	 * It shuts down a executor service like {@link #shutdownAndAwaitTermination(ExecutorService)}. 
+	 * If tasks are still running after {@link ServerParams#SHUTDOWN_TIMEOUT}, the input task is run after 
+	 * cancelling them. It should release whatever the tasks are blocked on, e.g. close their connections, 
+	 * since cancelling only interrupts the threads.
+	 * @param pool
+	 * @param onTimeout run if the tasks don't finish in time. can be null
+	 */
+	public static void  shutdownAndAwaitTermination(ExecutorService pool, Runnable onTimeout) {
+		shutdownAndAwaitTermination(pool, ServerParams.SHUTDOWN_TIMEOUT, onTimeout);
+	}
+	
+	/**
+	 * It shuts down a executor service like {@link #shutdownAndAwaitTermination(ExecutorService, Runnable)}, 
+	 * waiting for the input time before cancelling the tasks.
+	 * @param pool
+	 * @param timeout time in milliseconds to wait for normal shutdown
+	 * @param onTimeout run if the tasks don't finish in time. can be null
+	 */
+	public static void  shutdownAndAwaitTermination(ExecutorService pool, long timeout, Runnable onTimeout) {
 		   pool.shutdown(); // Disable new tasks from being submitted
 		   try {
 		     // Wait a while for existing tasks to terminate
-		     if (!pool.awaitTermination(timeToWaitForNormalShutdown, TimeUnit.SECONDS)) {
+		     if (!pool.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+		       logger.warn("in-flight requests did not finish in " + timeout + " ms .. cancelling them");
 		       pool.shutdownNow(); // Cancel currently executing tasks
+		       if (onTimeout != null) {
+		    	   onTimeout.run();
+		       }
 		       // Wait a while for tasks to respond to being cancelled
-		       if (!pool.awaitTermination(60, TimeUnit.SECONDS))
+		       if (!pool.awaitTermination(timeToWaitForCancelledTasks, TimeUnit.SECONDS))
 		           logger.error("Pool did not terminate");
 		     }
 		   } catch (InterruptedException ie) {
@@ -0,0 +1,81 @@
+package com.adobe.webserver.util;
+
+import java.nio.charset.Charset;
+
+import com.adobe.webserver.ServerParams;
+
+/**
+ * Validators of a version of a file - its strong entity-tag and its
+ * modification time - with their ETag and Last-Modified header lines encoded
+ * once. An index or cache entry of the file holds them, so a version is
+ * described once, however often it is requested.
+ *
+ * The entity-tag is made of the modification time and the size of the file,
+ * e.g. "16a3b1c2d40-1e240", so it changes with every version the server can
+ * tell apart. The tag of a content-coding of the file has the coding appended,
+ * e.g. "16a3b1c2d40-1e240-gzip", so it differs from the tag of the file
+ * itself.
+ *
+ * @author KHEMKA
+ *
+ */
+public class Validators {
+
+	private static final Charset headerCharset = Charset
+			.forName(ServerParams.HTTPHeadersEncoding);
+
+	private final String entityTag;
+	private final long lastModified;
+	private final byte[] headers;
+
+	/**
+	 * @param lastModified
+	 *            modification time of the file, in milliseconds
+	 * @param size
+	 *            size of the file
+	 */
+	public Validators(long lastModified, long size) {
+		this(lastModified, size, null);
+	}
+
+	/**
+	 * @param lastModified
+	 *            modification time of the file, in milliseconds
+	 * @param size
+	 *            size of the file
+	 * @param contentCoding
+	 *            content-coding of the body sent, e.g. "gzip". null if the
+	 *            file is sent as it is
+	 */
+	public Validators(long lastModified, long size, String contentCoding) {
+		this.entityTag = "\"" + Long.toHexString(lastModified) + "-"
+				+ Long.toHexString(size)
+				+ ((contentCoding != null) ? "-" + contentCoding : "") + "\"";
+		// dates of headers have seconds only
+		this.lastModified = Math.floorDiv(lastModified, 1000) * 1000;
+		this.headers = ("ETag: " + entityTag + ServerParams.CRLF
+				+ "Last-Modified: " + HTTPDate.format(lastModified) + ServerParams.CRLF)
+				.getBytes(headerCharset);
+	}
+
+	/**
+	 * @return the strong entity-tag, quoted
+	 */
+	public String getEntityTag() {
+		return entityTag;
+	}
+
+	/**
+	 * @return modification time, in milliseconds, truncated to the second
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return the ETag and Last-Modified header lines. Must not be modified
+	 */
+	public byte[] getHeaders() {
+		return headers;
+	}
+}
@@ -0,0 +1,579 @@
+package com.adobe.webserver.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+
+import com.adobe.webserver.ServerParams;
+
+/**
+ * WebrootIndex holds the entries of the webroot in memory, keyed by the
+ * normalized request path (see {@link RequestPathDecoder}), so a GET learns
+ * whether its path exists, whether it is a directory, its size, modification
+ * time and media type, and the names in a directory, without a system call.
+ * Requests of paths which don't exist, e.g. scans by bots, never touch the
+ * disk.
+ *
+ * The index is built when the server starts, one task per directory in a
+ * {@link ForkJoinPool}, and kept current by a {@link WatchService} on every
+ * directory. Changes are seen once the watcher reports them, which is a few
+ * milliseconds after the change on Linux. An overflow of events is handled
+ * by reading the directory again.
+ *
+ * {@link #update(File)} applies a change made by the server itself (an
+ * upload) at once, so the next request sees it.
+ *
+ * A symbolic link to a directory is indexed, but not what is under it, so a
+ * link can't make the index loop. Paths under such a link are looked up on
+ * the disk.
+ *
+ * This class is thread safe.
+ *
+ * @author KHEMKA
+ *
+ */
+public class WebrootIndex {
+
+	private static Logger logger = Logger.getLogger(WebrootIndex.class
+			.getName());
+
+	/**
+	 * an entry of the webroot, a file or a directory
+	 */
+	public static class Entry {
+		private final Path path;
+		private final boolean directory;
+		private final long size;
+		private final long lastModified;
+		private final String contentType;
+		private final Validators validators;
+
+		/**
+		 * names in the directory, in order. null if the entry is a file, or
+		 * what is under it is not indexed
+		 */
+		private final NavigableSet<String> children;
+
+		Entry(Path path, BasicFileAttributes attributes,
+				NavigableSet<String> children) {
+			this.path = path;
+			this.directory = attributes.isDirectory();
+			this.size = attributes.size();
+			this.lastModified = attributes.lastModifiedTime().toMillis();
+			this.contentType = directory ? null : guessContentType(path);
+			this.validators = directory ? null : new Validators(lastModified,
+					size);
+			this.children = children;
+		}
+
+		public File getFile() {
+			return path.toFile();
+		}
+
+		public boolean isDirectory() {
+			return directory;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return media type of the file, null if it is not known
+		 */
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * @return entity-tag and modification time of the file, null for a
+		 *         directory
+		 */
+		public Validators getValidators() {
+			return validators;
+		}
+
+		/**
+		 * @return names in the directory, in order, null if they are to be
+		 *         read from the disk
+		 */
+		public Iterable<String> getChildren() {
+			return (children == null) ? null : Collections
+					.unmodifiableSet(children);
+		}
+	}
+
+	/**
+	 * reads an entry from the disk, with one system call
+	 *
+	 * @return the entry, null if the file does not exist
+	 */
+	public static Entry readEntry(File file) {
+		Path path = file.toPath();
+		try {
+			return new Entry(path, Files.readAttributes(path,
+					BasicFileAttributes.class), null);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static String guessContentType(Path path) {
+		try {
+			return MimeTypes.getInstance().guessMimeTypeFromFileName(
+					path.getFileName().toString());
+		} catch (IOException e) {
+			logger.error("mime type could not be determined");
+			return null;
+		}
+	}
+
+	private static volatile WebrootIndex sharedInstance;
+
+	/**
+	 * @return the index of the running server, null if there is none (files
+	 *         are looked up on the disk then)
+	 */
+	public static WebrootIndex getInstance() {
+		return sharedInstance;
+	}
+
+	/**
+	 * builds the index of the webroot, starts watching it and makes it the
+	 * index of the server
+	 *
+	 * @param root
+	 *            the webroot
+	 * @return the index
+	 * @throws IOException
+	 *             when the watch service can't be created
+	 */
+	public static WebrootIndex open(File root) throws IOException {
+		WebrootIndex index = new WebrootIndex(root.toPath());
+		long start = System.currentTimeMillis();
+		index.build();
+		logger.info("webroot indexed - " + index.getEntryCount()
+				+ " entries in " + (System.currentTimeMillis() - start)
+				+ " ms");
+		index.watcherThread.start();
+		sharedInstance = index;
+		return index;
+	}
+
+	private final Path root;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final WatchService watcher;
+	private final Thread watcherThread;
+
+	/**
+	 * directories watched, and their request paths. Written by the build
+	 * tasks, so concurrent
+	 */
+	private final ConcurrentHashMap<WatchKey, String> watchedDirectories = new ConcurrentHashMap<WatchKey, String>();
+
+	WebrootIndex(Path root) throws IOException {
+		this.root = root;
+		this.watcher = root.getFileSystem().newWatchService();
+		this.watcherThread = new Thread(new Runnable() {
+			public void run() {
+				watch();
+			}
+		}, "webroot-watcher");
+		this.watcherThread.setDaemon(true);
+	}
+
+	/**
+	 * @param requestPath
+	 *            normalized path of a request
+	 * @return the entry of the path, null if it does not exist
+	 */
+	public Entry get(String requestPath) {
+		Entry entry = entries.get(requestPath);
+		if (entry != null) {
+			return entry;
+		}
+		// under a directory which is not indexed?
+		String path = requestPath;
+		int separator;
+		while ((separator = path.lastIndexOf('/')) > 0) {
+			path = path.substring(0, separator);
+			Entry ancestor = entries.get(path);
+			if (ancestor != null) {
+				if (ancestor.isDirectory() && ancestor.children == null) {
+					return readEntry(new File(ancestor.getFile(), requestPath
+							.substring(path.length() + 1).replace('/',
+									File.separatorChar)));
+				}
+				return null;
+			}
+		}
+		return null;
+	}
+
+	public int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * stops watching the webroot. The index is no longer the index of the
+	 * server
+	 */
+	public void close() throws InterruptedException {
+		if (sharedInstance == this) {
+			sharedInstance = null;
+		}
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			logger.error("webroot watcher could not be closed - " + e);
+		}
+		watcherThread.join();
+	}
+
+	/**
+	 * reads the file, or the directory and all under it, into the index.
+	 * Called after the server changed it
+	 *
+	 * @param file
+	 *            a file or directory in the webroot
+	 */
+	public synchronized void update(File file) {
+		String requestPath = toRequestPath(file.toPath());
+		if (requestPath != null) {
+			refresh(requestPath, file.toPath());
+		}
+	}
+
+	private void build() {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(root, BasicFileAttributes.class);
+		} catch (IOException e) {
+			logger.error("webroot can't be read, nothing is indexed - " + root);
+			return;
+		}
+		if (!attributes.isDirectory()) {
+			logger.error("webroot is not a directory, nothing is indexed - "
+					+ root);
+			return;
+		}
+		NavigableSet<String> children = new ConcurrentSkipListSet<String>();
+		entries.put(ServerParams.URISeparator, new Entry(root, attributes,
+				children));
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new IndexTask(ServerParams.URISeparator, root,
+					children));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * indexes the entries of a directory, and forks a task for every
+	 * directory in it
+	 */
+	private class IndexTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String requestPath;
+		private final Path directory;
+		private final NavigableSet<String> children;
+
+		IndexTask(String requestPath, Path directory,
+				NavigableSet<String> children) {
+			this.requestPath = requestPath;
+			this.directory = directory;
+			this.children = children;
+		}
+
+		@Override
+		protected void compute() {
+			List<IndexTask> subdirectories = new ArrayList<IndexTask>();
+			try {
+				register(requestPath, directory);
+				DirectoryStream<Path> list = Files
+						.newDirectoryStream(directory);
+				try {
+					for (Path path : list) {
+						String name = path.getFileName().toString();
+						String childPath = childPath(requestPath, name);
+						BasicFileAttributes attributes;
+						try {
+							attributes = Files.readAttributes(path,
+									BasicFileAttributes.class);
+						} catch (IOException e) {
+							continue; // removed, or a broken link
+						}
+						NavigableSet<String> grandChildren = null;
+						if (isIndexedDirectory(path, attributes)) {
+							grandChildren = new ConcurrentSkipListSet<String>();
+							subdirectories.add(new IndexTask(childPath, path,
+									grandChildren));
+						}
+						entries.put(childPath, new Entry(path, attributes,
+								grandChildren));
+						children.add(name);
+					}
+				} finally {
+					list.close();
+				}
+			} catch (DirectoryIteratorException e) {
+				logger.error("directory could not be indexed - " + directory
+						+ " - " + e.getCause());
+			} catch (IOException e) {
+				logger.error("directory could not be indexed - " + directory
+						+ " - " + e);
+			}
+			invokeAll(subdirectories);
+		}
+	}
+
+	/**
+	 * @return true if what is under the entry is to be indexed
+	 */
+	private static boolean isIndexedDirectory(Path path,
+			BasicFileAttributes attributes) {
+		return attributes.isDirectory() && !Files.isSymbolicLink(path);
+	}
+
+	private void register(String requestPath, Path directory)
+			throws IOException {
+		WatchKey key = directory.register(watcher,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		watchedDirectories.put(key, requestPath);
+	}
+
+	/**
+	 * applies the events reported by the watch service, till it is closed
+	 */
+	private void watch() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (ClosedWatchServiceException e) {
+				return;
+			} catch (InterruptedException e) {
+				return;
+			}
+			String directoryPath = watchedDirectories.get(key);
+			Path directory = (Path) key.watchable();
+			synchronized (this) {
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (directoryPath == null) {
+						break;
+					}
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						refresh(directoryPath, directory);
+						continue;
+					}
+					String name = ((Path) event.context()).toString();
+					if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+						refreshAttributes(childPath(directoryPath, name),
+								directory.resolve(name));
+					} else {
+						refresh(childPath(directoryPath, name),
+								directory.resolve(name));
+					}
+				}
+				if (!key.reset()) {
+					// the directory is gone, or can no longer be watched
+					watchedDirectories.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * reads the path into the index again - or removes it, with all under it,
+	 * if it no longer exists. A directory is read with all under it, keeping
+	 * the entries which have not changed
+	 */
+	private void refresh(String requestPath, Path path) {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException e) {
+			remove(requestPath);
+			return;
+		}
+		Entry old = entries.get(requestPath);
+		if (!isIndexedDirectory(path, attributes)) {
+			if (old != null && old.children != null) {
+				remove(requestPath);
+			}
+			entries.put(requestPath, new Entry(path, attributes, null));
+			addToParent(requestPath, path);
+			return;
+		}
+
+		NavigableSet<String> children;
+		if (old != null && old.children != null) {
+			children = old.children;
+		} else {
+			if (old != null) {
+				remove(requestPath);
+			}
+			children = new ConcurrentSkipListSet<String>();
+			try {
+				register(requestPath, path);
+			} catch (IOException e) {
+				logger.error("directory can't be watched - " + path + " - "
+						+ e);
+			}
+		}
+		entries.put(requestPath, new Entry(path, attributes, children));
+		addToParent(requestPath, path);
+
+		Set<String> names = new HashSet<String>();
+		try {
+			DirectoryStream<Path> list = Files.newDirectoryStream(path);
+			try {
+				for (Path child : list) {
+					names.add(child.getFileName().toString());
+				}
+			} finally {
+				list.close();
+			}
+		} catch (DirectoryIteratorException e) {
+			logger.error("directory could not be indexed - " + path + " - "
+					+ e.getCause());
+			return;
+		} catch (IOException e) {
+			logger.error("directory could not be indexed - " + path + " - "
+					+ e);
+			return;
+		}
+		for (String name : new ArrayList<String>(children)) {
+			if (!names.contains(name)) {
+				remove(childPath(requestPath, name));
+			}
+		}
+		for (String name : names) {
+			String childPath = childPath(requestPath, name);
+			refresh(childPath, path.resolve(name));
+		}
+	}
+
+	/**
+	 * reads the attributes of the path into the index again. What is under a
+	 * directory is kept, as changes to it have their own events
+	 */
+	private void refreshAttributes(String requestPath, Path path) {
+		Entry old = entries.get(requestPath);
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException e) {
+			remove(requestPath);
+			return;
+		}
+		if (old == null || (old.children != null) != isIndexedDirectory(path, attributes)) {
+			refresh(requestPath, path);
+			return;
+		}
+		entries.put(requestPath, new Entry(path, attributes, old.children));
+	}
+
+	/**
+	 * removes the entry, and all under it if it is a directory
+	 */
+	private void remove(String requestPath) {
+		if (!entries.containsKey(requestPath)) {
+			return;
+		}
+		// out of the listing of its parent first, so a request which finds
+		// the entry removed does not find it listed
+		int separator = requestPath.lastIndexOf('/');
+		if (separator >= 0 && requestPath.length() > 1) {
+			Entry parent = entries.get((separator == 0) ? ServerParams.URISeparator
+					: requestPath.substring(0, separator));
+			if (parent != null && parent.children != null) {
+				parent.children.remove(requestPath.substring(separator + 1));
+			}
+		}
+		Entry entry = entries.remove(requestPath);
+		if (entry != null && entry.children != null) {
+			for (String name : entry.children) {
+				remove(childPath(requestPath, name));
+			}
+		}
+	}
+
+	/**
+	 * adds the name of the entry to its parent, reading the parent first if
+	 * it is not indexed (a directory created with its parents)
+	 */
+	private void addToParent(String requestPath, Path path) {
+		if (requestPath.equals(ServerParams.URISeparator)) {
+			return;
+		}
+		int separator = requestPath.lastIndexOf('/');
+		String parentPath = (separator == 0) ? ServerParams.URISeparator
+				: requestPath.substring(0, separator);
+		Entry parent = entries.get(parentPath);
+		if (parent == null || parent.children == null) {
+			refresh(parentPath, path.getParent());
+			return;
+		}
+		parent.children.add(requestPath.substring(separator + 1));
+	}
+
+	/**
+	 * @return request path of a file in the webroot, null if it is not in it
+	 */
+	private String toRequestPath(Path path) {
+		Path relative;
+		try {
+			relative = root.toAbsolutePath().normalize()
+					.relativize(path.toAbsolutePath().normalize());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (relative.startsWith("..")) {
+			return null;
+		}
+		StringBuilder requestPath = new StringBuilder();
+		for (Path name : relative) {
+			if (name.toString().length() > 0) {
+				requestPath.append(ServerParams.URISeparator).append(name);
+			}
+		}
+		return (requestPath.length() == 0) ? ServerParams.URISeparator
+				: requestPath.toString();
+	}
+
+	private static String childPath(String directoryPath, String name) {
+		return directoryPath.equals(ServerParams.URISeparator) ? directoryPath
+				+ name : directoryPath + ServerParams.URISeparator + name;
+	}
+}
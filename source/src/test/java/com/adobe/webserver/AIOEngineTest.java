@@ -0,0 +1,158 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AIOEngineTest {
+
+	static ServerMain server = new ServerMain();
+	private static Logger logger = Logger.getLogger(AIOEngineTest.class);
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+
+		server.init(new File("src" + File.separator + "test" + File.separator
+				+ "resources" + File.separator + "conf" + File.separator
+				+ "properties.xml"));
+		ServerParams.ENGINE = "aio";
+		server.start();
+		NIOEngineTest.awaitListening();
+
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		server.stop();
+		ServerParams.ENGINE = "blocking";
+	}
+
+	private static void write(Socket client, String request)
+			throws IOException {
+		OutputStream out = client.getOutputStream();
+		out.write(request.getBytes(ServerParams.HTTPHeadersEncoding));
+		out.flush();
+	}
+
+	/**
+	 * connections waiting for a request must not hold pool threads
+	 */
+	@Test
+	public void testRequestWhileManyClientsAreIdle() throws Exception {
+		List<Socket> idleClients = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < ServerParams.THREAD_POOL_SIZE + 10; i++) {
+				idleClients.add(new Socket(ServerParams.HOSTNAME,
+						ServerParams.PORT));
+			}
+
+			Socket client = new Socket(ServerParams.HOSTNAME,
+					ServerParams.PORT);
+			try {
+				client.setSoTimeout(ServerParams.SocketSoTimeout);
+				write(client, "FAKE / HTTP/1.1\r\nConnection: close\r\n\r\n");
+				String statusLine = IncorrectRequestTest
+						.readRequestLineFromClient(client.getInputStream());
+				assertEquals("the method is not supported", "405",
+						statusLine.split(" ")[1]);
+			} finally {
+				client.close();
+			}
+		} finally {
+			for (Socket idle : idleClients) {
+				try {
+					idle.close();
+				} catch (IOException e) {
+					logger.error("socket could not be closed - "
+							+ e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * connections which have sent part of a request head must not hold pool
+	 * threads either
+	 */
+	@Test
+	public void testRequestWhileManyClientsSendHeadSlowly() throws Exception {
+		List<Socket> slowClients = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < ServerParams.THREAD_POOL_SIZE + 10; i++) {
+				Socket slow = new Socket(ServerParams.HOSTNAME,
+						ServerParams.PORT);
+				slowClients.add(slow);
+				write(slow, "GET /keep_this_folder_empty/test.html HTTP/1.1\r\nHo");
+			}
+
+			Socket client = new Socket(ServerParams.HOSTNAME,
+					ServerParams.PORT);
+			try {
+				client.setSoTimeout(5000);
+				write(client, "FAKE / HTTP/1.1\r\nConnection: close\r\n\r\n");
+				String statusLine = IncorrectRequestTest
+						.readRequestLineFromClient(client.getInputStream());
+				assertEquals("the method is not supported", "405",
+						statusLine.split(" ")[1]);
+			} finally {
+				client.close();
+			}
+
+			// the rest of a head is read by the completion handler
+			Socket slow = slowClients.get(0);
+			slow.setSoTimeout(ServerParams.SocketSoTimeout);
+			write(slow, "st: localhost\r\nConnection: close\r\n\r\n");
+			assertEquals("404", KeepAliveTest.readResponse(new BufferedInputStream(
+					slow.getInputStream()))[0]);
+		} finally {
+			for (Socket slow : slowClients) {
+				try {
+					slow.close();
+				} catch (IOException e) {
+					logger.error("socket could not be closed - "
+							+ e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * requests sent one by one and pipelined are served on one connection,
+	 * in order
+	 */
+	@Test
+	public void testPersistentAndPipelinedRequests() throws Exception {
+		Socket client = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		try {
+			client.setSoTimeout(ServerParams.SocketSoTimeout);
+			InputStream is = new BufferedInputStream(client.getInputStream());
+
+			write(client, "GET /keep_this_folder_empty/test.html HTTP/1.1\r\n\r\n");
+			assertEquals("404", KeepAliveTest.readResponse(is)[0]);
+
+			write(client, "POST /keep_this_folder_empty/ HTTP/1.1\r\nContent-Length: 4\r\n\r\nabcd"
+					+ "GET /keep_this_folder_empty/test.html HTTP/1.1\r\n\r\n"
+					+ "GET /keep_this_folder_empty/test.html HTTP/1.1\r\nConnection: close\r\n\r\n");
+			assertEquals("200", KeepAliveTest.readResponse(is)[0]);
+			assertEquals("404", KeepAliveTest.readResponse(is)[0]);
+			String[] last = KeepAliveTest.readResponse(is);
+			assertEquals("404", last[0]);
+			assertEquals("close", last[1]);
+			assertEquals(-1, is.read());
+		} finally {
+			client.close();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class AcceptorsTest {
+
+	static ServerMain server = new ServerMain();
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+
+		server.init(new File("src" + File.separator + "test" + File.separator
+				+ "resources" + File.separator + "conf" + File.separator
+				+ "properties.xml"));
+		ServerParams.ACCEPTOR_THREADS = 3;
+		server.start();
+		NIOEngineTest.awaitListening();
+
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		server.stop();
+		ServerParams.ACCEPTOR_THREADS = 1;
+	}
+
+	/**
+	 * every connection must be served, whichever acceptor gets it
+	 */
+	@Test
+	public void testManyConnections() throws Exception {
+		List<Socket> clients = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < 30; i++) {
+				Socket client = new Socket(ServerParams.HOSTNAME,
+						ServerParams.PORT);
+				client.setSoTimeout(ServerParams.SocketSoTimeout);
+				clients.add(client);
+			}
+			for (Socket client : clients) {
+				OutputStream out = client.getOutputStream();
+				out.write("GET /keep_this_folder_empty/test.html HTTP/1.0\r\n\r\n"
+						.getBytes(ServerParams.HTTPHeadersEncoding));
+				out.flush();
+			}
+			for (Socket client : clients) {
+				String[] response = KeepAliveTest
+						.readResponse(new BufferedInputStream(client
+								.getInputStream()));
+				assertEquals("404", response[0]);
+			}
+		} finally {
+			for (Socket client : clients) {
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * stop must not wait for any acceptor
+	 */
+	@Test
+	public void testStopAndRestart() throws Exception {
+		long start = System.currentTimeMillis();
+		server.stop();
+		assertTrue(System.currentTimeMillis() - start < 1000);
+
+		server.start();
+		NIOEngineTest.awaitListening();
+		Socket client = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		client.close();
+	}
+}
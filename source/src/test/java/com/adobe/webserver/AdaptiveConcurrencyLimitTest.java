@@ -0,0 +1,71 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.AdaptiveConcurrencyLimit;
+
+public class AdaptiveConcurrencyLimitTest {
+
+	/**
+	 * serves a window of requests, all running at the same time, with the
+	 * input latency
+	 */
+	private static void serveWindow(AdaptiveConcurrencyLimit limit,
+			int concurrency, long latencyMillis) throws InterruptedException {
+		Thread.sleep(510);
+		for (int i = 0; i < concurrency; i++) {
+			limit.onRequestStart();
+		}
+		for (int i = 0; i < concurrency; i++) {
+			limit.onRequestComplete(System.nanoTime()
+					- TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+		}
+	}
+
+	@Test
+	public void testShrinksWhenLatencyRises() throws InterruptedException {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 20);
+		final AtomicInteger notified = new AtomicInteger();
+		limit.setLimitListener(new AdaptiveConcurrencyLimit.LimitListener() {
+			public void onLimitChanged(int newLimit) {
+				notified.set(newLimit);
+			}
+		});
+
+		serveWindow(limit, 20, 1);
+		assertEquals(20, limit.getLimit());
+
+		serveWindow(limit, 20, 50);
+		serveWindow(limit, 20, 50);
+		assertTrue(limit.getLimit() < 20);
+		assertTrue(limit.getLimit() >= 2);
+		assertEquals(limit.getLimit(), notified.get());
+		assertEquals(0, limit.getInFlight());
+	}
+
+	/**
+	 * latency says nothing about a limit which is not in use
+	 */
+	@Test
+	public void testUnusedLimitIsKept() throws InterruptedException {
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 20);
+
+		serveWindow(limit, 1, 1);
+		for (int i = 0; i < 10; i++) {
+			limit.onRequestComplete(limit.onRequestStart()
+					- TimeUnit.MILLISECONDS.toNanos(50));
+		}
+		serveWindow(limit, 3, 50);
+		for (int i = 0; i < 10; i++) {
+			limit.onRequestComplete(limit.onRequestStart()
+					- TimeUnit.MILLISECONDS.toNanos(50));
+		}
+		assertEquals(20, limit.getLimit());
+	}
+}
@@ -0,0 +1,65 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.ByteRange;
+
+public class ByteRangeTest {
+
+	private static String toString(List<ByteRange> ranges) {
+		StringBuilder s = new StringBuilder();
+		for (ByteRange range : ranges) {
+			s.append(range.getStart()).append('-').append(range.getEnd())
+					.append(' ');
+		}
+		return s.toString().trim();
+	}
+
+	@Test
+	public void testRangesAreResolved() {
+		assertEquals("0-499", toString(ByteRange.parse("bytes=0-499", 10000)));
+		assertEquals("9500-9999",
+				toString(ByteRange.parse("bytes=-500", 10000)));
+		assertEquals("9500-9999",
+				toString(ByteRange.parse("bytes=9500-", 10000)));
+		assertEquals("0-9999",
+				toString(ByteRange.parse("bytes=0-99999999999999999999", 10000)));
+		assertEquals("0-9999", toString(ByteRange.parse("bytes=-20000", 10000)));
+		// in the order asked for
+		assertEquals("500-599 0-99",
+				toString(ByteRange.parse("Bytes= 500-599 , ,0-99", 10000)));
+		// unsatisfiable ones are dropped
+		assertEquals("0-0", toString(ByteRange.parse("bytes=10000-,0-0", 10000)));
+	}
+
+	@Test
+	public void testOverlapsAreCoalesced() {
+		assertEquals("0-199 500-599", toString(ByteRange.parse(
+				"bytes=500-599,100-199,0-99,50-150", 10000)));
+		assertEquals("0-9999", toString(ByteRange.parse(
+				"bytes=0-5000,5001-,-3", 10000)));
+	}
+
+	@Test
+	public void testUnsatisfiableAndIgnored() {
+		assertTrue(ByteRange.parse("bytes=10000-", 10000).isEmpty());
+		assertTrue(ByteRange.parse("bytes=-0", 10000).isEmpty());
+		assertTrue(ByteRange.parse("bytes=0-", 0).isEmpty());
+		assertNull(ByteRange.parse("items=0-1", 10000));
+		assertNull(ByteRange.parse("bytes=5-1", 10000));
+		assertNull(ByteRange.parse("bytes=a-b", 10000));
+		assertNull(ByteRange.parse("bytes=1", 10000));
+
+		StringBuilder many = new StringBuilder("bytes=0-0");
+		for (int i = 1; i <= 64; i++) {
+			many.append(',').append(i * 2).append('-').append(i * 2);
+		}
+		assertNull(ByteRange.parse(many.toString(), 10000));
+	}
+}
@@ -0,0 +1,82 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.ChunkedOutputStream;
+import com.adobe.webserver.util.Helper;
+
+public class ChunkedOutputStreamTest {
+
+	/**
+	 * decodes a chunked body, checking the framing
+	 */
+	private static String dechunk(String body) {
+		StringBuilder decoded = new StringBuilder();
+		int pos = 0;
+		while (true) {
+			int lineEnd = body.indexOf("\r\n", pos);
+			int size = Integer.parseInt(body.substring(pos, lineEnd), 16);
+			pos = lineEnd + 2;
+			if (size == 0) {
+				assertEquals("\r\n", body.substring(pos));
+				return decoded.toString();
+			}
+			decoded.append(body, pos, pos + size);
+			pos += size;
+			assertEquals("\r\n", body.substring(pos, pos + 2));
+			pos += 2;
+		}
+	}
+
+	@Test
+	public void testChunks() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChunkedOutputStream body = new ChunkedOutputStream(out, true);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			body.print("<a href=\"/dir/" + i + "\">" + i + "</a></BR>");
+			expected.append("<a href=\"/dir/" + i + "\">" + i + "</a></BR>");
+		}
+		body.write(new byte[20000]);
+		expected.append(new String(new byte[20000], "ISO-8859-1"));
+		body.finish();
+		body.finish();
+
+		String chunked = out.toString("ISO-8859-1");
+		assertEquals(expected.toString(), dechunk(chunked));
+		assertTrue(chunked.startsWith(Integer.toHexString(ServerParams.IOBufferSize)
+				+ "\r\n"));
+	}
+
+	@Test
+	public void testStreamedMessage() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChunkedOutputStream body = Helper.startClientMessage("200", "OK",
+				null, out, true, true);
+		body.print("links<hr>");
+		Helper.endClientMessage(body);
+		String response = out.toString("ISO-8859-1");
+		int end = response.indexOf("\r\n\r\n");
+		String head = response.substring(0, end);
+		assertTrue(head.contains("\r\nTransfer-Encoding: chunked"));
+		assertTrue(!head.contains("Content-length"));
+		String page = dechunk(response.substring(end + 4));
+		assertTrue(page.startsWith("<HTML>"));
+		assertTrue(page.endsWith("links<hr></p></BODY></HTML>"));
+
+		// HTTP/1.0 - the body is written as it is, till the connection closes
+		out = new ByteArrayOutputStream();
+		body = Helper.startClientMessage("200", "OK", null, out, false, false);
+		body.print("links<hr>");
+		Helper.endClientMessage(body);
+		response = out.toString("ISO-8859-1");
+		end = response.indexOf("\r\n\r\n");
+		assertTrue(!response.substring(0, end).contains("Transfer-Encoding"));
+		assertTrue(response.endsWith("links<hr></p></BODY></HTML>"));
+	}
+}
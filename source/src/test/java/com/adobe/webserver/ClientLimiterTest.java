@@ -0,0 +1,71 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.ClientLimiter;
+
+public class ClientLimiterTest {
+
+	private static InetAddress address(int i) throws Exception {
+		return InetAddress.getByAddress(new byte[] { 10, (byte) (i >> 16),
+				(byte) (i >> 8), (byte) i });
+	}
+
+	@Test
+	public void testConnectionLimit() throws Exception {
+		ClientLimiter limiter = new ClientLimiter(2, 0, 0);
+		InetAddress client = address(1);
+		assertTrue(limiter.tryOpenConnection(client));
+		assertTrue(limiter.tryOpenConnection(client));
+		assertFalse(limiter.tryOpenConnection(client));
+
+		// other clients are not affected
+		assertTrue(limiter.tryOpenConnection(address(2)));
+
+		limiter.closeConnection(client);
+		assertTrue(limiter.tryOpenConnection(client));
+	}
+
+	@Test
+	public void testRequestRate() throws Exception {
+		ClientLimiter limiter = new ClientLimiter(0, 10, 3);
+		InetAddress client = address(1);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, limiter.tryRequest(client));
+		}
+		assertEquals(1, limiter.tryRequest(client));
+		assertEquals(0, limiter.tryRequest(address(2)));
+
+		// a token is back after 1/10 second
+		Thread.sleep(150);
+		assertEquals(0, limiter.tryRequest(client));
+	}
+
+	@Test
+	public void testIdleClientsAreBounded() throws Exception {
+		ClientLimiter limiter = new ClientLimiter(0, 10, 10);
+		int clients = 2 * ServerParams.ClientLimiterMaxEntries;
+		for (int i = 0; i < clients; i++) {
+			limiter.tryRequest(address(i));
+		}
+		assertTrue(limiter.size() <= ServerParams.ClientLimiterMaxEntries);
+	}
+
+	@Test
+	public void testClientsWithConnectionsAreKept() throws Exception {
+		ClientLimiter limiter = new ClientLimiter(1, 0, 0);
+		InetAddress client = address(1);
+		assertTrue(limiter.tryOpenConnection(client));
+		for (int i = 2; i < 2 * ServerParams.ClientLimiterMaxEntries; i++) {
+			limiter.tryOpenConnection(address(i));
+			limiter.closeConnection(address(i));
+		}
+		assertFalse(limiter.tryOpenConnection(client));
+	}
+}
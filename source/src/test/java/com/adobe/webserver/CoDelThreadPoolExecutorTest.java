@@ -0,0 +1,88 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.CoDelThreadPoolExecutor;
+
+public class CoDelThreadPoolExecutorTest {
+
+	private static Runnable await(final CountDownLatch latch) {
+		return new Runnable() {
+			public void run() {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+
+	/**
+	 * tasks are shed once queue delay stays above target for an interval, not
+	 * when queue is long
+	 */
+	@Test
+	public void testShedsOnStandingQueue() throws Exception {
+		CoDelThreadPoolExecutor pool = new CoDelThreadPoolExecutor(1, 100,
+				10, 50);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			pool.execute(await(release));
+			for (int i = 0; i < 10; i++) {
+				pool.execute(await(release));
+			}
+			assertFalse(pool.isOverloaded());
+
+			Thread.sleep(20);
+			pool.execute(await(release));
+			Thread.sleep(60);
+			try {
+				pool.execute(await(release));
+				fail("task should have been shed");
+			} catch (RejectedExecutionException e) {
+			}
+			assertTrue(pool.isOverloaded());
+			assertEquals(1, pool.getShedCount());
+
+			// tasks are accepted again once the queue is drained
+			release.countDown();
+			for (int i = 0; i < 100 && !pool.getQueue().isEmpty(); i++) {
+				Thread.sleep(10);
+			}
+			pool.execute(await(release));
+			assertFalse(pool.isOverloaded());
+		} finally {
+			release.countDown();
+			pool.shutdown();
+			pool.awaitTermination(5, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void testRejectsWhenQueueIsFull() {
+		CoDelThreadPoolExecutor pool = new CoDelThreadPoolExecutor(1, 1,
+				1000, 1000);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			pool.execute(await(release));
+			pool.execute(await(release));
+			pool.execute(await(release));
+			fail("queue should be full");
+		} catch (RejectedExecutionException e) {
+			assertEquals(1, pool.getShedCount());
+		} finally {
+			release.countDown();
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.ContentCache;
+
+public class ContentCacheTest {
+
+	private static File createFile(String content) throws Exception {
+		File file = File.createTempFile("cached", ".html");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content.getBytes("ISO-8859-1"));
+		out.close();
+		return file;
+	}
+
+	private static ContentCache.Entry load(ContentCache cache, String path,
+			File file) throws Exception {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return cache.load(path, file, in, "text/html");
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testFrequentFilesSurviveScan() throws Exception {
+		// room for about 10 entries of 100 bytes
+		ContentCache cache = new ContentCache(2500, 1000, 60000);
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			content.append('x');
+		}
+		File hot = createFile(content.toString());
+		ContentCache.Entry entry = load(cache, "/hot.html", hot);
+		assertNotNull(entry);
+		assertTrue(new String(entry.getHeaders(), "ISO-8859-1")
+				.contains("Content-length: 100\r\n"));
+		assertArrayEquals(content.toString().getBytes("ISO-8859-1"),
+				entry.getBody());
+		assertNotNull(cache.get("/hot.html"));
+
+		// files read once
+		for (int i = 0; i < 50; i++) {
+			load(cache, "/cold" + i + ".html", createFile(content.toString()));
+		}
+		assertNotNull(cache.get("/hot.html"));
+		assertNull(cache.get("/cold0.html"));
+		assertNotNull(cache.get("/cold49.html"));
+		assertTrue(cache.getBytesUsed() <= 2500);
+		assertTrue(cache.getEvictions() > 0);
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		// too big
+		content.append(new char[1000]);
+		assertNull(load(cache, "/big.html", createFile(content.toString())));
+	}
+
+	@Test
+	public void testChangedFileIsInvalidated() throws Exception {
+		ContentCache cache = new ContentCache(10000, 1000, 0);
+		File file = createFile("first");
+		assertNotNull(load(cache, "/", file));
+		assertNotNull(cache.get("/"));
+
+		FileOutputStream out = new FileOutputStream(file);
+		out.write("second version".getBytes("ISO-8859-1"));
+		out.close();
+		assertNull(cache.get("/"));
+		assertEquals(1, cache.getInvalidations());
+		assertEquals(0, cache.getEntryCount());
+
+		assertNotNull(load(cache, "/", file));
+		file.delete();
+		assertNull(cache.get("/"));
+		assertEquals(2, cache.getInvalidations());
+	}
+}
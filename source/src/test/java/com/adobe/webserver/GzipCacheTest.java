@@ -0,0 +1,186 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.ContentEncoding;
+import com.adobe.webserver.util.GzipCache;
+import com.adobe.webserver.util.MimeTypes;
+import com.adobe.webserver.util.Validators;
+
+public class GzipCacheTest {
+
+	private static File createFile(byte[] content) throws Exception {
+		File file = File.createTempFile("gzipped", ".css");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+		return file;
+	}
+
+	private static byte[] text(int length) {
+		StringBuilder text = new StringBuilder();
+		while (text.length() < length) {
+			text.append("body { margin: 0; padding: ").append(text.length())
+					.append("px; }\n");
+		}
+		return text.substring(0, length).getBytes();
+	}
+
+	private static byte[] gunzip(byte[] compressed) throws Exception {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(
+				compressed));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testNegotiation() {
+		assertTrue(ContentEncoding.acceptsGzip("gzip"));
+		assertTrue(ContentEncoding.acceptsGzip("deflate, GZIP;q=0.5, br"));
+		assertTrue(ContentEncoding.acceptsGzip("x-gzip"));
+		assertTrue(ContentEncoding.acceptsGzip("identity, *"));
+		assertFalse(ContentEncoding.acceptsGzip(null));
+		assertFalse(ContentEncoding.acceptsGzip(""));
+		assertFalse(ContentEncoding.acceptsGzip("deflate, br"));
+		assertFalse(ContentEncoding.acceptsGzip("gzip;q=0"));
+		assertFalse(ContentEncoding.acceptsGzip("gzip ; Q=0.000, *"));
+		assertFalse(ContentEncoding.acceptsGzip("*;q=0"));
+		assertFalse(ContentEncoding.acceptsGzip("gzips"));
+
+		assertTrue(MimeTypes.isCompressible("text/html"));
+		assertTrue(MimeTypes.isCompressible("application/javascript"));
+		assertTrue(MimeTypes.isCompressible("image/svg+xml"));
+		assertFalse(MimeTypes.isCompressible("image/png"));
+		assertFalse(MimeTypes.isCompressible("application/zip"));
+		assertFalse(MimeTypes.isCompressible(null));
+	}
+
+	@Test
+	public void testCompress() throws Exception {
+		GzipCache cache = new GzipCache(100000, 50000, 0);
+		byte[] content = text(20000);
+		File file = createFile(content);
+		assertNull(cache.get("/site.css"));
+
+		GzipCache.Entry entry = cache.compress("/site.css", file, "text/css");
+		assertTrue(entry.isCompressed());
+		assertTrue(entry.getBody().length < content.length / 2);
+		assertArrayEquals(content, gunzip(entry.getBody()));
+		String headers = new String(entry.getHeaders(), "ISO-8859-1");
+		assertTrue(headers.contains("Content-length: "
+				+ entry.getBody().length + "\r\n"));
+		assertTrue(headers.contains("Content-Encoding: gzip\r\n"));
+		assertTrue(headers.contains("Vary: Accept-Encoding\r\n"));
+		// the copy is tagged apart from the file
+		Validators identity = new Validators(file.lastModified(),
+				content.length);
+		assertFalse(identity.getEntityTag().equals(
+				entry.getValidators().getEntityTag()));
+		assertEquals(identity.getLastModified(), entry.getValidators()
+				.getLastModified());
+		assertEquals(entry, cache.get("/site.css"));
+
+		// changed, so dropped
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write('\n');
+		out.close();
+		assertNull(cache.get("/site.css"));
+		assertEquals(1, cache.getInvalidations());
+
+		// random bytes don't get smaller, they are remembered as such
+		byte[] random = new byte[2000];
+		new Random(7).nextBytes(random);
+		entry = cache.compress("/random.css", createFile(random), "text/css");
+		assertFalse(entry.isCompressed());
+		assertFalse(cache.get("/random.css").isCompressed());
+
+		// out of the size range
+		assertNull(cache.compress("/small.css", createFile(text(100)),
+				"text/css"));
+		assertNull(cache.compress("/big.css", createFile(text(60000)),
+				"text/css"));
+	}
+
+	@Test
+	public void testCompressLater() throws Exception {
+		GzipCache cache = new GzipCache(100000, 50000, 60000);
+		byte[] content = text(10000);
+		File file = createFile(content);
+		cache.compressLater("/later.css", file, file.lastModified(),
+				content.length, "text/css");
+		GzipCache.Entry entry = null;
+		for (int i = 0; i < 100 && entry == null; i++) {
+			Thread.sleep(20);
+			entry = cache.get("/later.css");
+		}
+		assertNotNull(entry);
+		assertArrayEquals(content, gunzip(entry.getBody()));
+		assertEquals(1, cache.getCompressions());
+
+		// disabled
+		cache = new GzipCache(0, 50000, 60000);
+		cache.compressLater("/later.css", file, file.lastModified(),
+				content.length, "text/css");
+		assertNull(cache.get("/later.css"));
+	}
+
+	@Test
+	public void testLoadPrecompressed() throws Exception {
+		GzipCache cache = new GzipCache(100000, 50000, 0);
+		File source = createFile(text(20000));
+		File precompressed = createFile(new byte[] { 31, -117, 8, 0, 1, 2, 3 });
+		precompressed.setLastModified(source.lastModified() + 2000);
+
+		GzipCache.Entry entry = cache.load("/site.css", precompressed, source,
+				"text/css");
+		assertTrue(entry.isCompressed());
+		assertEquals(7, entry.getBody().length);
+		// tagged as the "name.gz" file
+		assertEquals(new Validators(precompressed.lastModified(), 7)
+				.getEntityTag(), entry.getValidators().getEntityTag());
+		assertTrue(new String(entry.getHeaders(), "ISO-8859-1")
+				.contains("Content-Encoding: gzip\r\n"));
+		assertEquals(entry, cache.get("/site.css"));
+		assertEquals(1, cache.getLoads());
+
+		// the file became newer than its "name.gz"
+		source.setLastModified(precompressed.lastModified() + 2000);
+		assertNull(cache.get("/site.css"));
+	}
+
+	/**
+	 * a file out of the size range is remembered, so it is not looked at
+	 * again
+	 */
+	@Test
+	public void testOutOfRangeIsRemembered() throws Exception {
+		GzipCache cache = new GzipCache(100000, 50000, 60000);
+		File file = createFile(text(100));
+		cache.compressLater("/small.css", file, file.lastModified(), 100,
+				"text/css");
+		assertFalse(cache.isPending("/small.css"));
+		assertFalse(cache.get("/small.css").isCompressed());
+		assertEquals(0, cache.getCompressions());
+	}
+}
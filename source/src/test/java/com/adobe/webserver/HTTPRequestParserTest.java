@@ -0,0 +1,128 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.HTTPRequestParser;
+import com.adobe.webserver.util.RequestHeaders;
+
+public class HTTPRequestParserTest {
+
+	private static BufferedInputStream stream(String s) throws Exception {
+		return new BufferedInputStream(new ByteArrayInputStream(
+				s.getBytes(ServerParams.HTTPHeadersEncoding)));
+	}
+
+	/**
+	 * an input stream returning one byte per read, like a slow client
+	 */
+	private static BufferedInputStream trickle(String s) throws Exception {
+		final byte[] bytes = s.getBytes(ServerParams.HTTPHeadersEncoding);
+		return new BufferedInputStream(new InputStream() {
+			int position = 0;
+
+			@Override
+			public int read() {
+				return position < bytes.length ? bytes[position++] & 0xff : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (position >= bytes.length) {
+					return -1;
+				}
+				b[off] = bytes[position++];
+				return 1;
+			}
+		});
+	}
+
+	@Test
+	public void testRequestLineAndFields() throws Exception {
+		HTTPRequestParser parser = new HTTPRequestParser();
+		BufferedInputStream in = stream("\r\nPOST /a%20b?x=1 HTTP/1.1\r\n"
+				+ "Host: localhost\r\nContent-Length:  4 \r\nAccept: a\r\n"
+				+ "Accept: b\r\nX-Empty:\r\nX-Folded: one\r\n\t two\r\n\r\nbody");
+		parser.parseRequest(in);
+
+		assertSame("POST", parser.getMethod());
+		assertEquals("/a%20b?x=1", parser.getRequestTarget());
+		assertSame("HTTP/1.1", parser.getHttpVersion());
+		assertEquals(6, parser.getFieldCount());
+		assertEquals("Content-Length", parser.getFieldName(1));
+		assertEquals("4", parser.getFieldValue(1));
+
+		RequestHeaders header = parser.getHeaders();
+		assertEquals("localhost", header.get("Host"));
+		assertEquals("a,b", header.get("Accept"));
+		assertNull(header.get("X-Empty"));
+		assertEquals("one    two", header.get("X-Folded"));
+
+		// body is left in the stream
+		byte[] body = new byte[5];
+		assertEquals(4, in.read(body));
+		assertEquals("body", new String(body, 0, 4,
+				ServerParams.HTTPHeadersEncoding));
+	}
+
+	@Test
+	public void testPipelinedRequestsInPieces() throws Exception {
+		HTTPRequestParser parser = new HTTPRequestParser();
+		BufferedInputStream in = trickle("GET /one HTTP/1.1\r\nA: 1\r\n\r\n"
+				+ "FAKE /two HTTP/1.0\r\n\r\n");
+		parser.parseRequest(in);
+		assertEquals("/one", parser.getRequestTarget());
+		assertEquals("1", parser.getHeaders().get("A"));
+
+		parser.parseRequest(in);
+		assertEquals("FAKE", parser.getMethod());
+		assertEquals("/two", parser.getRequestTarget());
+		assertSame("HTTP/1.0", parser.getHttpVersion());
+		assertEquals(0, parser.getFieldCount());
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testIllFormedRequests() throws Exception {
+		String[] requests = { "GET /\r\n\r\n", "GET / HTTP/1.1\nHost: x\r\n\r\n",
+				"GET / HTTP/1.1\r\nHost\r\n\r\n",
+				"GET / HTTP/1.1\r\n folded: x\r\n\r\n",
+				"GET / HTTP/1.1\r\nHost: x\r\n",
+				"GET / HTTP/1.1\r\nHost: x\r\r\n\r\n",
+				"POST / HTTP/1.1\r\nContent-Length : 5\r\n\r\n",
+				"POST / HTTP/1.1\r\nContent-Length\t: 5\r\n\r\n",
+				"GET / HTTP/1.1\r\nX(y): z\r\n\r\n",
+				"GET / HTTP/1.1\r\n\"X\": z\r\n\r\n",
+				"GET / HTTP/1.1\r\nX\u00e9: z\r\n\r\n",
+				"POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" };
+		for (String request : requests) {
+			try {
+				new HTTPRequestParser().parseRequest(stream(request));
+				fail("request should be rejected - " + request);
+			} catch (IllegalRequestException e) {
+			}
+		}
+	}
+
+	@Test
+	public void testHeaderTooLarge() throws Exception {
+		StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+		while (request.length() <= ServerParams.MaxRequestHeaderSize) {
+			request.append("X-Padding: 0123456789012345678901234567890123456789\r\n");
+		}
+		request.append("\r\n");
+		try {
+			new HTTPRequestParser().parseRequest(stream(request.toString()));
+			fail("header should be too large");
+		} catch (IllegalRequestException e) {
+		}
+	}
+}
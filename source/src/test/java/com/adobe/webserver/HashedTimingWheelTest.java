@@ -0,0 +1,57 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.HashedTimingWheel;
+
+public class HashedTimingWheelTest {
+
+	private static Runnable countDown(final CountDownLatch latch) {
+		return new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		};
+	}
+
+	/**
+	 * a timeout longer than a round of the wheel expires neither early nor
+	 * much late
+	 */
+	@Test
+	public void testExpiresAfterSeveralRounds() throws InterruptedException {
+		HashedTimingWheel wheel = new HashedTimingWheel(10, 8, "test-wheel");
+		CountDownLatch expired = new CountDownLatch(1);
+		long start = System.currentTimeMillis();
+		HashedTimingWheel.Timeout timeout = wheel.schedule(
+				countDown(expired), 300);
+
+		assertTrue(expired.await(2, TimeUnit.SECONDS));
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue("expired after " + elapsed + " ms", elapsed >= 300);
+		assertTrue("expired after " + elapsed + " ms", elapsed < 1000);
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+	}
+
+	@Test
+	public void testCancelledTimeoutDoesNotExpire() throws InterruptedException {
+		HashedTimingWheel wheel = new HashedTimingWheel(10, 8, "test-wheel");
+		CountDownLatch cancelled = new CountDownLatch(1);
+		CountDownLatch expired = new CountDownLatch(1);
+		HashedTimingWheel.Timeout timeout = wheel.schedule(
+				countDown(cancelled), 50);
+		wheel.schedule(countDown(expired), 150);
+
+		assertTrue(timeout.cancel());
+		assertTrue(expired.await(2, TimeUnit.SECONDS));
+		assertFalse(cancelled.await(100, TimeUnit.MILLISECONDS));
+		assertFalse(timeout.isExpired());
+	}
+}
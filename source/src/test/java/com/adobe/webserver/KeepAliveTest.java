@@ -0,0 +1,168 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.adobe.webserver.util.Helper;
+
+public class KeepAliveTest {
+
+	static ServerMain server = new ServerMain();
+
+	/**
+	 * a POST whose body is both chunked and 3 bytes long, followed by a GET
+	 */
+	static final String SMUGGLING_REQUEST = "POST / HTTP/1.1\r\nContent-Length: 3\r\n"
+			+ "Transfer-Encoding: chunked\r\n\r\n0\r\n\r\n"
+			+ "GET /keep_this_folder_empty/test.html HTTP/1.1\r\n\r\n";
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+
+		server.init(new File("src" + File.separator + "test" + File.separator
+				+ "resources" + File.separator + "conf" + File.separator
+				+ "properties.xml"));
+		server.start();
+		NIOEngineTest.awaitListening();
+
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		server.stop();
+	}
+
+	/**
+	 * reads a response and skips its body.
+	 * 
+	 * @return status code and value of Connection header
+	 */
+	static String[] readResponse(InputStream is) throws IOException,
+			IllegalRequestException {
+		String statusLine = Helper.readRequestLineFromClient(is);
+		HashMap<String, String> header = Helper
+				.convertHTTPHeaderToHashMap(Helper.readHeaderFromClient(is));
+		if (header.containsKey("Content-length")) {
+			long length = Long.parseLong(header.get("Content-length"));
+			while (length > 0) {
+				length -= is.skip(length);
+			}
+		}
+		return new String[] { statusLine.split(" ")[1],
+				header.get("Connection") };
+	}
+
+	private static void write(Socket client, String request)
+			throws IOException {
+		OutputStream out = client.getOutputStream();
+		out.write(request.getBytes(ServerParams.HTTPHeadersEncoding));
+		out.flush();
+	}
+
+	@Test
+	public void testSeveralRequestsOnOneConnection() throws IOException,
+			IllegalRequestException {
+		Socket client = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		try {
+			client.setSoTimeout(ServerParams.SocketSoTimeout);
+			InputStream is = new BufferedInputStream(client.getInputStream());
+
+			write(client, "GET /keep_this_folder_empty/test.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+			String[] response = readResponse(is);
+			assertEquals("404", response[0]);
+			assertEquals("keep-alive", response[1]);
+
+			write(client, "GET /keep_this_folder_empty/test.html HTTP/1.1\r\nConnection: close\r\n\r\n");
+			response = readResponse(is);
+			assertEquals("404", response[0]);
+			assertEquals("close", response[1]);
+
+			assertEquals("connection should be closed by server", -1,
+					is.read());
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void testHTTP10ConnectionIsClosed() throws IOException,
+			IllegalRequestException {
+		Socket client = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		try {
+			client.setSoTimeout(ServerParams.SocketSoTimeout);
+			InputStream is = new BufferedInputStream(client.getInputStream());
+
+			write(client, "GET /keep_this_folder_empty/test.html HTTP/1.0\r\n\r\n");
+			String[] response = readResponse(is);
+			assertEquals("404", response[0]);
+			assertEquals("close", response[1]);
+			assertEquals("connection should be closed by server", -1,
+					is.read());
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * requests sent back to back, without waiting for responses, are answered
+	 * in order
+	 */
+	@Test
+	public void testPipelinedRequests() throws IOException,
+			IllegalRequestException {
+		Socket client = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		try {
+			client.setSoTimeout(ServerParams.SocketSoTimeout);
+			InputStream is = new BufferedInputStream(client.getInputStream());
+
+			write(client,
+					"GET /keep_this_folder_empty/test.html HTTP/1.1\r\n\r\n"
+							+ "POST / HTTP/1.1\r\nContent-Length: 4\r\n\r\ntest"
+							+ "GET /keep_this_folder_empty/test.html HTTP/1.1\r\nConnection: close\r\n\r\n");
+
+			assertEquals("404", readResponse(is)[0]);
+			assertEquals("200", readResponse(is)[0]);
+			String[] response = readResponse(is);
+			assertEquals("404", response[0]);
+			assertEquals("close", response[1]);
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * a body framed by Transfer-Encoding and Content-Length could hide a
+	 * request behind it, so such a request is refused and the connection
+	 * closed
+	 */
+	@Test
+	public void testTransferEncodingIsRejected() throws IOException,
+			IllegalRequestException {
+		Socket client = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		try {
+			client.setSoTimeout(ServerParams.SocketSoTimeout);
+			InputStream is = new BufferedInputStream(client.getInputStream());
+
+			write(client, SMUGGLING_REQUEST);
+			String[] response = readResponse(is);
+			assertEquals("400", response[0]);
+			assertEquals("close", response[1]);
+			assertEquals("connection should be closed by server", -1,
+					is.read());
+		} finally {
+			client.close();
+		}
+	}
+
+}
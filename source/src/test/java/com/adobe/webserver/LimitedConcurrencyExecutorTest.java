@@ -0,0 +1,94 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.LimitedConcurrencyExecutor;
+
+public class LimitedConcurrencyExecutorTest {
+
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+	private final AtomicInteger completed = new AtomicInteger();
+
+	/**
+	 * finishes a running task for every permit
+	 */
+	private final Semaphore finish = new Semaphore(0);
+
+	private Runnable task() {
+		return new Runnable() {
+			public void run() {
+				int now = running.incrementAndGet();
+				int max;
+				while ((max = peak.get()) < now
+						&& !peak.compareAndSet(max, now)) {
+				}
+				finish.acquireUninterruptibly();
+				running.decrementAndGet();
+				completed.incrementAndGet();
+			}
+		};
+	}
+
+	/**
+	 * waits for a counter to reach the value, then a while longer for tasks
+	 * which should not start
+	 */
+	private static void await(AtomicInteger counter, int value)
+			throws InterruptedException {
+		for (int i = 0; i < 200 && counter.get() != value; i++) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(100);
+		assertEquals(value, counter.get());
+	}
+
+	/**
+	 * tasks run on a thread per task executor, as with virtual threads
+	 */
+	@Test
+	public void testCapIsNeverExceeded() throws Exception {
+		LimitedConcurrencyExecutor executor = new LimitedConcurrencyExecutor(
+				Executors.newCachedThreadPool(), 3);
+		try {
+			for (int i = 0; i < 12; i++) {
+				executor.execute(task());
+			}
+			await(running, 3);
+			assertEquals(3, peak.get());
+
+			// shrinks, the running tasks are not disturbed
+			executor.setMaxConcurrency(1);
+			assertEquals(3, running.get());
+			finish.release(3);
+			await(completed, 3);
+			await(running, 1);
+			peak.set(1);
+			finish.release(2);
+			await(completed, 5);
+			await(running, 1);
+			assertEquals(1, peak.get());
+
+			executor.setMaxConcurrency(4);
+			await(running, 4);
+			assertEquals(4, peak.get());
+			finish.release(3);
+			await(completed, 8);
+			await(running, 4);
+			assertEquals(4, peak.get());
+		} finally {
+			finish.release(100);
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		}
+		assertEquals(12, completed.get());
+	}
+}
@@ -0,0 +1,98 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.MappedFileCache;
+
+public class MappedFileCacheTest {
+
+	private static File createFile(int length) throws Exception {
+		File file = File.createTempFile("mapped", ".bin");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		byte[] content = new byte[length];
+		for (int i = 0; i < length; i++) {
+			content[i] = (byte) i;
+		}
+		out.write(content);
+		out.close();
+		return file;
+	}
+
+	private static MappedFileCache.Entry load(MappedFileCache cache,
+			String path, File file) throws Exception {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return cache.load(path, file, in, "application/octet-stream");
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testSizeRangeAndBudget() throws Exception {
+		// files of 101 to 1000 bytes, at most 2500 bytes mapped
+		MappedFileCache cache = new MappedFileCache(2500, 100, 1000, 60000);
+		assertNull(load(cache, "/small.bin", createFile(100)));
+		assertNull(load(cache, "/big.bin", createFile(1001)));
+
+		MappedFileCache.Entry entry = load(cache, "/first.bin", createFile(1000));
+		assertNotNull(entry);
+		assertTrue(new String(entry.getHeaders(), "ISO-8859-1")
+				.contains("Content-length: 1000\r\n"));
+		ByteBuffer body = entry.getBody();
+		assertEquals(1000, body.remaining());
+		assertEquals((byte) 999, body.get(999));
+		cache.release(entry);
+
+		cache.release(load(cache, "/second.bin", createFile(1000)));
+		cache.release(cache.acquire("/first.bin"));
+		// the least recently used, second, goes
+		cache.release(load(cache, "/third.bin", createFile(1000)));
+		assertEquals(2000, cache.getBytesMapped());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.acquire("/second.bin"));
+		MappedFileCache.Entry first = cache.acquire("/first.bin");
+		assertSame(entry, first);
+		cache.release(first);
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testChangedFileIsUnmappedAfterRelease() throws Exception {
+		MappedFileCache cache = new MappedFileCache(10000, 100, 1000, 0);
+		File file = createFile(500);
+		MappedFileCache.Entry held = load(cache, "/", file);
+		assertNotNull(held);
+
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[600]);
+		out.close();
+		assertNull(cache.acquire("/"));
+		assertEquals(1, cache.getInvalidations());
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, cache.getBytesMapped());
+
+		// still usable by the request holding it
+		assertEquals(500, held.getBody().remaining());
+		cache.release(held);
+
+		MappedFileCache.Entry entry = load(cache, "/", file);
+		assertEquals(600, entry.getBody().remaining());
+		cache.release(entry);
+		assertSame(entry, cache.acquire("/"));
+		cache.release(entry);
+	}
+}
@@ -0,0 +1,158 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class NIOEngineTest {
+
+	static ServerMain server = new ServerMain();
+	private static Logger logger = Logger.getLogger(NIOEngineTest.class);
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+
+		server.init(new File("src" + File.separator + "test" + File.separator
+				+ "resources" + File.separator + "conf" + File.separator
+				+ "properties.xml"));
+		ServerParams.ENGINE = "nio";
+		server.start();
+		awaitListening();
+
+	}
+
+	/**
+	 * the listener binds its socket on its own thread, so waits till server
+	 * accepts connections
+	 */
+	static void awaitListening() throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			try {
+				new Socket(ServerParams.HOSTNAME, ServerParams.PORT).close();
+				return;
+			} catch (IOException e) {
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		server.stop();
+		ServerParams.ENGINE = "blocking";
+	}
+
+	/**
+	 * sends a raw request and returns the status code of the response
+	 */
+	private static String sendRequest(String request) throws IOException {
+		Socket client = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		try {
+			client.setSoTimeout(ServerParams.SocketSoTimeout);
+			OutputStream out = client.getOutputStream();
+			out.write(request.getBytes(ServerParams.HTTPHeadersEncoding));
+			out.flush();
+			InputStream is = client.getInputStream();
+			String statusLine = IncorrectRequestTest
+					.readRequestLineFromClient(is);
+			return statusLine.split(" ")[1];
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * idle connections must not hold pool threads. so a request must be served
+	 * even if more clients than pool threads are sending partial requests
+	 */
+	@Test
+	public void testRequestWhileManyClientsAreIdle() throws IOException {
+		List<Socket> idleClients = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < ServerParams.THREAD_POOL_SIZE + 10; i++) {
+				Socket idle = new Socket(ServerParams.HOSTNAME,
+						ServerParams.PORT);
+				idle.getOutputStream().write(
+						"GET / HTTP/1.1\r\nHost: ".getBytes(ServerParams.HTTPHeadersEncoding));
+				idleClients.add(idle);
+			}
+
+			assertEquals("the method is not supported", "405",
+					sendRequest("FAKE / HTTP/1.1\r\nConnection: close\r\n\r\n"));
+		} finally {
+			for (Socket idle : idleClients) {
+				try {
+					idle.close();
+				} catch (IOException e) {
+					logger.error("socket could not be closed - "
+							+ e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * a request which arrives in several pieces is read completely before
+	 * being handled
+	 */
+	@Test
+	public void testRequestInPieces() throws IOException,
+			InterruptedException {
+		Socket client = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		try {
+			client.setSoTimeout(ServerParams.SocketSoTimeout);
+			OutputStream out = client.getOutputStream();
+			String request = "GET /keep_this_folder_empty/test.html HTTP/1.1\r\nConnection: close\r\n\r\n";
+			for (int i = 0; i < request.length(); i += 7) {
+				out.write(request.substring(i,
+						Math.min(request.length(), i + 7)).getBytes(
+						ServerParams.HTTPHeadersEncoding));
+				out.flush();
+				Thread.sleep(5);
+			}
+			String statusLine = IncorrectRequestTest
+					.readRequestLineFromClient(client.getInputStream());
+			assertEquals("the file does not exist", "404",
+					statusLine.split(" ")[1]);
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * the event loop does not frame a request with a Transfer-Encoding
+	 */
+	@Test
+	public void testTransferEncodingIsRejected() throws IOException,
+			IllegalRequestException {
+		Socket client = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		try {
+			client.setSoTimeout(ServerParams.SocketSoTimeout);
+			OutputStream out = client.getOutputStream();
+			out.write(KeepAliveTest.SMUGGLING_REQUEST
+					.getBytes(ServerParams.HTTPHeadersEncoding));
+			out.flush();
+			InputStream is = new BufferedInputStream(client.getInputStream());
+			String[] response = KeepAliveTest.readResponse(is);
+			assertEquals("400", response[0]);
+			assertEquals("close", response[1]);
+			assertEquals("connection should be closed by server", -1,
+					is.read());
+		} finally {
+			client.close();
+		}
+	}
+
+}
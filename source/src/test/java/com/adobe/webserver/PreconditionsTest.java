@@ -0,0 +1,113 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.HTTPDate;
+import com.adobe.webserver.util.HTTPRequestParser;
+import com.adobe.webserver.util.Preconditions;
+import com.adobe.webserver.util.RequestHeaders;
+import com.adobe.webserver.util.Validators;
+
+public class PreconditionsTest {
+
+	/**
+	 * Sun, 06 Nov 1994 08:49:37 GMT
+	 */
+	private static final long date = 784111777000L;
+
+	private static RequestHeaders headers(String... lines) throws Exception {
+		StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+		for (String line : lines) {
+			request.append(line).append("\r\n");
+		}
+		request.append("\r\n");
+		HTTPRequestParser parser = new HTTPRequestParser();
+		parser.parseRequest(new BufferedInputStream(new ByteArrayInputStream(
+				request.toString().getBytes(ServerParams.HTTPHeadersEncoding))));
+		return parser.getHeaders();
+	}
+
+	@Test
+	public void testDates() throws Exception {
+		assertEquals(date, HTTPDate.parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+		assertEquals(date, HTTPDate.parse("Sunday, 06-Nov-94 08:49:37 GMT"));
+		assertEquals(date, HTTPDate.parse("Sun Nov  6 08:49:37 1994"));
+		assertEquals(HTTPDate.INVALID,
+				HTTPDate.parse("Sun, 06 Nov 1994 08:49:37 CET"));
+		assertEquals(HTTPDate.INVALID,
+				HTTPDate.parse("Sun, 32 Nov 1994 08:49:37 GMT"));
+		assertEquals(HTTPDate.INVALID, HTTPDate.parse("yesterday"));
+		assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HTTPDate.format(date));
+
+		SimpleDateFormat format = new SimpleDateFormat(
+				"EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		for (long time = 0; time < 4000000000000L; time += 86399999L * 37) {
+			String formatted = format.format(time);
+			assertEquals(formatted, HTTPDate.format(time));
+			assertEquals(time / 1000 * 1000, HTTPDate.parse(formatted));
+		}
+	}
+
+	@Test
+	public void testEvaluationOrder() throws Exception {
+		// 500 ms after the second of the date
+		Validators validators = new Validators(date + 500, 1234);
+		String tag = validators.getEntityTag();
+		String lastModified = HTTPDate.format(date);
+		String before = HTTPDate.format(date - 1000);
+
+		assertEquals(Preconditions.PROCEED,
+				Preconditions.evaluate(headers(), validators));
+		// seconds only, so not modified since its own Last-Modified
+		assertEquals(304, Preconditions.evaluate(
+				headers("If-Modified-Since: " + lastModified), validators));
+		assertEquals(Preconditions.PROCEED, Preconditions.evaluate(
+				headers("If-Modified-Since: " + before), validators));
+		assertEquals(Preconditions.PROCEED, Preconditions.evaluate(
+				headers("If-Modified-Since: not a date"), validators));
+
+		assertEquals(304, Preconditions.evaluate(
+				headers("If-None-Match: \"x\", W/" + tag), validators));
+		// If-None-Match wins over If-Modified-Since
+		assertEquals(Preconditions.PROCEED, Preconditions.evaluate(
+				headers("If-None-Match: \"x\"", "If-Modified-Since: "
+						+ lastModified), validators));
+		assertEquals(304, Preconditions.evaluate(headers("If-None-Match: *"),
+				validators));
+
+		assertEquals(Preconditions.PROCEED, Preconditions.evaluate(
+				headers("If-Match: \"x\" , " + tag), validators));
+		assertEquals(412, Preconditions.evaluate(
+				headers("If-Match: W/" + tag), validators));
+		assertEquals(412, Preconditions.evaluate(
+				headers("If-Unmodified-Since: " + before), validators));
+		// If-Match wins over If-Unmodified-Since
+		assertEquals(Preconditions.PROCEED, Preconditions.evaluate(
+				headers("If-Match: " + tag, "If-Unmodified-Since: " + before),
+				validators));
+		assertEquals(412, Preconditions.evaluate(
+				headers("If-Match: \"x\"", "If-None-Match: " + tag),
+				validators));
+
+		assertTrue(Preconditions.isRangeApplicable(headers(), validators));
+		assertTrue(Preconditions.isRangeApplicable(
+				headers("If-Range: " + tag), validators));
+		assertTrue(Preconditions.isRangeApplicable(
+				headers("If-Range: " + lastModified), validators));
+		assertFalse(Preconditions.isRangeApplicable(
+				headers("If-Range: W/" + tag), validators));
+		assertFalse(Preconditions.isRangeApplicable(
+				headers("If-Range: " + before), validators));
+	}
+}
@@ -0,0 +1,164 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.adobe.webserver.util.Helper;
+
+/**
+ * Range requests, answered on one kept alive connection, so a wrong
+ * Content-length breaks the responses following it
+ */
+public class RangeRequestTest {
+
+	static ServerMain server = new ServerMain();
+
+	private static final String webroot = "src" + File.separator + "test"
+			+ File.separator + "resources" + File.separator + "webapps";
+
+	private static String wwwPath;
+	private static byte[] pdf;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+
+		server.init(new File("src" + File.separator + "test" + File.separator
+				+ "resources" + File.separator + "conf" + File.separator
+				+ "properties.xml"));
+		wwwPath = ServerParams.WWW_PATH;
+		ServerParams.WWW_PATH = webroot;
+		server.start();
+		NIOEngineTest.awaitListening();
+
+		File file = new File(webroot, "test.pdf");
+		pdf = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(pdf);
+		} finally {
+			in.close();
+		}
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		server.stop();
+		ServerParams.WWW_PATH = wwwPath;
+	}
+
+	/**
+	 * a response, its body read by Content-length
+	 */
+	private static class Response {
+		String status;
+		HashMap<String, String> header;
+		byte[] body;
+	}
+
+	private static Response readResponse(InputStream is) throws IOException,
+			IllegalRequestException {
+		Response response = new Response();
+		response.status = Helper.readRequestLineFromClient(is).split(" ")[1];
+		response.header = Helper.convertHTTPHeaderToHashMap(Helper
+				.readHeaderFromClient(is));
+		response.body = new byte[Integer.parseInt(response.header
+				.get("Content-length"))];
+		new DataInputStream(is).readFully(response.body);
+		return response;
+	}
+
+	private static void write(Socket client, String request)
+			throws IOException {
+		OutputStream out = client.getOutputStream();
+		out.write(request.getBytes(ServerParams.HTTPHeadersEncoding));
+		out.flush();
+	}
+
+	private static String rangeRequest(String range) {
+		return "GET /test.pdf HTTP/1.1\r\nHost: localhost\r\nRange: " + range
+				+ "\r\n\r\n";
+	}
+
+	/**
+	 * the part of a multipart/byteranges body holding [start, end] of the pdf
+	 */
+	private static void writePart(ByteArrayOutputStream body, String boundary,
+			String contentType, int start, int end) throws IOException {
+		body.write(("\r\n--" + boundary + "\r\nContent-Type: " + contentType
+				+ "\r\nContent-Range: bytes " + start + "-" + end + "/"
+				+ pdf.length + "\r\n\r\n")
+				.getBytes(ServerParams.HTTPHeadersEncoding));
+		body.write(pdf, start, end - start + 1);
+	}
+
+	@Test
+	public void testRanges() throws Exception {
+		Socket client = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		try {
+			client.setSoTimeout(ServerParams.SocketSoTimeout);
+			InputStream is = new BufferedInputStream(client.getInputStream());
+
+			write(client, rangeRequest("bytes=100-199"));
+			Response single = readResponse(is);
+			assertEquals("206", single.status);
+			assertEquals("bytes 100-199/" + pdf.length,
+					single.header.get("Content-Range"));
+			assertEquals("keep-alive", single.header.get("Connection"));
+			assertArrayEquals(Arrays.copyOfRange(pdf, 100, 200), single.body);
+			String contentType = single.header.get("Content-Type");
+
+			// the first 10 bytes, a middle range and the last 10 bytes
+			write(client, rangeRequest("bytes=0-9,500-999,-10"));
+			Response multi = readResponse(is);
+			assertEquals("206", multi.status);
+			String multipart = multi.header.get("Content-Type");
+			assertTrue(multipart,
+					multipart.startsWith("multipart/byteranges; boundary="));
+			String boundary = multipart.substring(multipart.indexOf('=') + 1);
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			writePart(expected, boundary, contentType, 0, 9);
+			writePart(expected, boundary, contentType, 500, 999);
+			writePart(expected, boundary, contentType, pdf.length - 10,
+					pdf.length - 1);
+			expected.write(("\r\n--" + boundary + "--\r\n")
+					.getBytes(ServerParams.HTTPHeadersEncoding));
+			assertEquals(new String(expected.toByteArray(), "ISO-8859-1"),
+					new String(multi.body, "ISO-8859-1"));
+
+			write(client, rangeRequest("bytes=" + pdf.length + "-"));
+			Response unsatisfiable = readResponse(is);
+			assertEquals("416", unsatisfiable.status);
+			assertEquals("bytes */" + pdf.length,
+					unsatisfiable.header.get("Content-Range"));
+
+			// the connection is still in step
+			write(client,
+					"GET /test.pdf HTTP/1.1\r\nConnection: close\r\n\r\n");
+			Response whole = readResponse(is);
+			assertEquals("200", whole.status);
+			assertEquals("bytes", whole.header.get("Accept-Ranges"));
+			assertArrayEquals(pdf, whole.body);
+			assertEquals("connection should be closed by server", -1,
+					is.read());
+		} finally {
+			client.close();
+		}
+	}
+}
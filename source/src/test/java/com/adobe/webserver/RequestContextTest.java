@@ -0,0 +1,81 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.BufferPool;
+import com.adobe.webserver.util.Helper;
+import com.adobe.webserver.util.ResponseWriter;
+
+public class RequestContextTest {
+
+	@Test
+	public void testPoolCounts() throws Exception {
+		BufferPool pool = new BufferPool(1, 16);
+		byte[] first = pool.acquire();
+		byte[] second = pool.acquire();
+		assertEquals(0, pool.getHits());
+		assertEquals(2, pool.getMisses());
+
+		pool.release(first);
+		pool.release(second); // over capacity, dropped
+		pool.release(new byte[8]); // wrong size, dropped
+		assertEquals(1, pool.getIdleCount());
+
+		assertSame(first, pool.acquire());
+		assertNotSame(second, pool.acquire());
+		assertEquals(1, pool.getHits());
+		assertEquals(3, pool.getMisses());
+	}
+
+	@Test
+	public void testReleaseDiscardsConnectionState() throws Exception {
+		RequestContext context = RequestContext.acquire();
+		ByteArrayOutputStream firstOut = new ByteArrayOutputStream();
+		context.bind(new ByteArrayInputStream("first".getBytes()),
+				context.getResponseOutputStream(firstOut));
+		assertEquals('f', context.getInputStream().read());
+		context.getOutputStream().write("not sent".getBytes());
+		context.getOutputStream().flush();
+		context.release();
+		assertEquals(0, firstOut.size());
+
+		context = RequestContext.acquire();
+		ByteArrayOutputStream secondOut = new ByteArrayOutputStream();
+		ResponseWriter responseOut = context.getResponseOutputStream(secondOut);
+		context.bind(new ByteArrayInputStream("second".getBytes()), responseOut);
+		assertEquals('s', context.getInputStream().read());
+		context.getOutputStream().write("sent".getBytes());
+		responseOut.send();
+		assertEquals("sent", secondOut.toString());
+		context.release();
+	}
+
+	@Test
+	public void testLookAheadThroughReusedBuffer() throws Exception {
+		RequestContext context = RequestContext.acquire();
+		context.bind(new ByteArrayInputStream(
+				"GET / HTTP/1.1\r\nHost: a\r\n\r\nGET".getBytes()),
+				new ByteArrayOutputStream());
+		byte[] lookAhead = context.getLookAheadBuffer();
+		assertEquals(ServerParams.PipelineLookAheadSize, lookAhead.length);
+		assertSame(lookAhead, context.getLookAheadBuffer());
+
+		// fills the stream's buffer, then looks without consuming
+		assertEquals('G', context.getInputStream().read());
+		assertTrue(Helper.isRequestBuffered(context.getInputStream(), lookAhead));
+		assertEquals('E', context.getInputStream().read());
+
+		assertFalse(Helper.isRequestBuffered(context.getInputStream(),
+				new byte[8]));
+		context.release();
+	}
+}
@@ -0,0 +1,60 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.HTTPRequestParser;
+import com.adobe.webserver.util.HeaderName;
+import com.adobe.webserver.util.RequestHeaders;
+
+public class RequestHeadersTest {
+
+	private static RequestHeaders parse(HTTPRequestParser parser,
+			String request) throws Exception {
+		parser.parseRequest(new BufferedInputStream(new ByteArrayInputStream(
+				request.getBytes(ServerParams.HTTPHeadersEncoding))));
+		return parser.getHeaders();
+	}
+
+	@Test
+	public void testLookupIgnoresCase() throws Exception {
+		RequestHeaders headers = parse(new HTTPRequestParser(),
+				"GET / HTTP/1.1\r\ncontent-length: 12\r\nIF-MODIFIED-SINCE: now\r\n"
+						+ "x-custom: a\r\nX-Custom: b\r\n\r\n");
+		assertEquals("12", headers.get(HeaderName.CONTENT_LENGTH));
+		assertEquals("12", headers.get("Content-Length"));
+		assertEquals("now", headers.get("if-modified-since"));
+		assertEquals("a,b", headers.get("X-CUSTOM"));
+		assertTrue(headers.contains("x-Custom"));
+		assertTrue(headers.contains(HeaderName.IF_MODIFIED_SINCE));
+		assertFalse(headers.contains(HeaderName.CONTENT_TYPE));
+		assertNull(headers.get("X-Other"));
+	}
+
+	@Test
+	public void testRefilledForNextRequest() throws Exception {
+		HTTPRequestParser parser = new HTTPRequestParser();
+		StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+		for (int i = 0; i < 100; i++) {
+			request.append("X-Field-" + i + ": " + i + "\r\n");
+		}
+		request.append("Connection: close\r\n\r\n");
+		RequestHeaders headers = parse(parser, request.toString());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(Integer.toString(i), headers.get("x-field-" + i));
+		}
+		assertEquals("close", headers.get(HeaderName.CONNECTION));
+
+		headers = parse(parser, "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+		assertNull(headers.get("X-Field-1"));
+		assertNull(headers.get(HeaderName.CONNECTION));
+		assertEquals("localhost", headers.get(HeaderName.HOST));
+	}
+}
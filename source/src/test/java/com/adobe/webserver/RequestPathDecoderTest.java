@@ -0,0 +1,57 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.RequestPathDecoder;
+
+public class RequestPathDecoderTest {
+
+	private final RequestPathDecoder decoder = new RequestPathDecoder();
+
+	private String decode(String target) throws Exception {
+		byte[] b = ("  " + target + " ").getBytes("ISO-8859-1");
+		return decoder.decode(b, 2, b.length - 1);
+	}
+
+	@Test
+	public void testNormalize() throws Exception {
+		assertEquals("/", decode("/"));
+		assertEquals("/", decode("//./"));
+		assertEquals("/a/b/d e", decode("/a/./b//c/../d%20e/?x=1/../.."));
+		assertEquals("/a+b", decode("/a+b#frag"));
+		assertEquals("/b", decode("/a/%2e%2E/b"));
+		assertEquals("/", decode("/a/.."));
+		assertEquals("/a/..b", decode("/a/..b"));
+		assertEquals("/x/y", decode("http://localhost:8080/x/y"));
+		assertEquals("/", decode("HTTPS://localhost?q"));
+	}
+
+	@Test
+	public void testNonASCII() throws Exception {
+		assertEquals("/caf\u00e9/\u20ac", decode("/caf%C3%A9/%E2%82%AC"));
+		assertEquals("/caf\u00e9", decode("/caf\u00c3\u00a9"));
+	}
+
+	@Test
+	public void testRejected() throws Exception {
+		assertNull(decode("/.."));
+		assertNull(decode("/a/../../etc/passwd"));
+		assertNull(decode("/a/%2e%2e/%2E%2E/b"));
+		assertNull(decode("/a%2f..%2f..%2fb"));
+		assertNull(decode("/a%5c..%5cb"));
+		assertNull(decode("/..\\..\\secret"));
+		assertNull(decode("/a\\b"));
+		assertNull(decode("/c:/windows"));
+		assertNull(decode("/a.html::$DATA"));
+		assertNull(decode("/a%3a.html"));
+		assertNull(decode("/a%00.html"));
+		assertNull(decode("/a%2"));
+		assertNull(decode("/a%zz"));
+		assertNull(decode("/a\tb"));
+		assertNull(decode("*"));
+		assertNull(decode("ftp://host/a"));
+	}
+}
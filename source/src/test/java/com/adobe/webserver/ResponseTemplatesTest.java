@@ -0,0 +1,62 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.Helper;
+import com.adobe.webserver.util.ResponseTemplates;
+
+public class ResponseTemplatesTest {
+
+	private static String[] split(ByteArrayOutputStream out) throws Exception {
+		String response = out.toString(ServerParams.HTTPHeadersEncoding);
+		int end = response.indexOf("\r\n\r\n");
+		return new String[] { response.substring(0, end),
+				response.substring(end + 4) };
+	}
+
+	@Test
+	public void testMessage() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		// a known status, with the spaces some callers add
+		ResponseTemplates.writeMessage(out, "404", " Not Found", null, null,
+				true);
+		String[] response = split(out);
+		String[] head = response[0].split("\r\n");
+		assertEquals("HTTP/1.1 404 Not Found", head[0]);
+		assertEquals("Server: " + ServerParams.serverHeader, head[1]);
+		assertTrue(head[2].matches("Date: \\w{3}, \\d{2} \\w{3} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT"));
+		assertEquals("Connection: keep-alive", head[3]);
+		assertEquals("Content-length: " + response[1].length(), head[4]);
+		assertTrue(response[1].contains("<H3>404. Not Found</H3>"));
+
+		out.reset();
+		ResponseTemplates.writeMessage(out, "418", "I'm a teapot",
+				new String[] { "X-A: b" }, "short and stout", false);
+		response = split(out);
+		head = response[0].split("\r\n");
+		assertEquals("HTTP/1.1 418 I'm a teapot", head[0]);
+		assertEquals("Connection: close", head[3]);
+		assertEquals("X-A: b", head[4]);
+		assertEquals("Content-length: " + response[1].length(), head[5]);
+		assertTrue(response[1].contains("<p>short and stout</p>"));
+	}
+
+	@Test
+	public void testWithoutBody() throws Exception {
+		String message = new String(Helper.createTooManyRequestsMessage(7),
+				ServerParams.HTTPHeadersEncoding);
+		assertTrue(message.startsWith("HTTP/1.1 429 Too Many Requests\r\n"));
+		assertTrue(message.endsWith("Connection: close\r\nRetry-After: 7\r\n\r\n"));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ResponseTemplates.writeContentLength(out, 0);
+		ResponseTemplates.writeContentLength(out, 1234567890123L);
+		assertEquals("Content-length: 0\r\nContent-length: 1234567890123\r\n",
+				out.toString(ServerParams.HTTPHeadersEncoding));
+	}
+}
@@ -0,0 +1,173 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import org.junit.Test;
+
+import com.adobe.webserver.util.FileTransferWriter;
+import com.adobe.webserver.util.GatheringWriter;
+import com.adobe.webserver.util.Helper;
+import com.adobe.webserver.util.ResponseWriter;
+
+public class ResponseWriterTest {
+
+	/**
+	 * counts the writes reaching the client
+	 */
+	private static class GatheringOut extends ByteArrayOutputStream implements
+			GatheringWriter {
+
+		int writes = 0;
+		int gatheringWrites = 0;
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			writes++;
+			super.write(b, off, len);
+		}
+
+		public void write(ByteBuffer[] buffers) throws IOException {
+			gatheringWrites++;
+			for (ByteBuffer buffer : buffers) {
+				while (buffer.hasRemaining()) {
+					super.write(buffer.get());
+				}
+			}
+		}
+	}
+
+	/**
+	 * takes transfers if allowed, counting them
+	 */
+	private static class TransferOut extends ByteArrayOutputStream implements
+			FileTransferWriter {
+
+		final boolean allowed;
+		int transfers = 0;
+
+		TransferOut(boolean allowed) {
+			this.allowed = allowed;
+		}
+
+		public boolean transferFrom(FileChannel file, long position,
+				long count) throws IOException {
+			if (!allowed) {
+				return false;
+			}
+			transfers++;
+			file.transferTo(position, count, Channels.newChannel(this));
+			return true;
+		}
+	}
+
+	private static byte[] body(int length) {
+		byte[] body = new byte[length];
+		for (int i = 0; i < length; i++) {
+			body[i] = (byte) i;
+		}
+		return body;
+	}
+
+	@Test
+	public void testHeadLeavesWithBigChunk() throws Exception {
+		GatheringOut out = new GatheringOut();
+		ResponseWriter writer = new ResponseWriter(out, 64);
+		byte[] head = "HTTP/1.1 200 OK\r\n\r\n".getBytes();
+		byte[] chunk = body(100);
+		writer.write(head);
+		writer.flush();
+		assertEquals(0, out.size());
+
+		writer.write(chunk);
+		assertEquals(1, out.gatheringWrites);
+		assertEquals(0, out.writes);
+		writer.send();
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(head);
+		expected.write(chunk);
+		assertArrayEquals(expected.toByteArray(), out.toByteArray());
+	}
+
+	@Test
+	public void testPlainStreamGetsSameBytes() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ResponseWriter writer = new ResponseWriter(out, 64);
+		byte[] head = "HTTP/1.1 200 OK\r\n\r\n".getBytes();
+		byte[] chunk = body(100);
+		writer.write(head);
+		writer.write(chunk);
+		writer.write(head);
+		writer.send();
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(head);
+		expected.write(chunk);
+		expected.write(head);
+		assertArrayEquals(expected.toByteArray(), out.toByteArray());
+	}
+
+	@Test
+	public void testBufferWrite() throws Exception {
+		byte[] head = "HTTP/1.1 200 OK\r\n\r\n".getBytes();
+		byte[] chunk = body(100);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(head);
+		expected.write(chunk);
+
+		GatheringOut gatheringOut = new GatheringOut();
+		ResponseWriter writer = new ResponseWriter(gatheringOut, 64);
+		writer.write(head);
+		Helper.writeBuffer(ByteBuffer.wrap(chunk), writer);
+		writer.send();
+		assertEquals(1, gatheringOut.gatheringWrites);
+		assertArrayEquals(expected.toByteArray(), gatheringOut.toByteArray());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writer = new ResponseWriter(out, 64);
+		writer.write(head);
+		Helper.writeBuffer(ByteBuffer.wrap(chunk), writer);
+		writer.send();
+		assertArrayEquals(expected.toByteArray(), out.toByteArray());
+	}
+
+	@Test
+	public void testFileTransfer() throws Exception {
+		File file = File.createTempFile("transfer", ".bin");
+		file.deleteOnExit();
+		byte[] content = body(30000);
+		FileOutputStream fileOut = new FileOutputStream(file);
+		fileOut.write(content);
+		fileOut.close();
+		byte[] head = "HTTP/1.1 200 OK\r\n\r\n".getBytes();
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(head);
+		expected.write(content, 100, 20000);
+
+		for (boolean allowed : new boolean[] { true, false }) {
+			TransferOut out = new TransferOut(allowed);
+			ResponseWriter writer = new ResponseWriter(out, 64);
+			writer.write(head);
+			FileInputStream in = new FileInputStream(file);
+			try {
+				Helper.writeFile(in, 100, 20000, writer);
+			} finally {
+				in.close();
+			}
+			writer.send();
+			assertEquals(allowed ? 1 : 0, out.transfers);
+			assertArrayEquals(expected.toByteArray(), out.toByteArray());
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShutdownTest {
+
+	ServerMain server = new ServerMain();
+
+	@Before
+	public void setUp() throws Exception {
+		server.init(new File("src" + File.separator + "test" + File.separator
+				+ "resources" + File.separator + "conf" + File.separator
+				+ "properties.xml"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ServerParams.ENGINE = "blocking";
+	}
+
+	private static void write(Socket client, String request) throws Exception {
+		OutputStream out = client.getOutputStream();
+		out.write(request.getBytes(ServerParams.HTTPHeadersEncoding));
+		out.flush();
+	}
+
+	/**
+	 * stops the server on another thread
+	 */
+	private Thread stopInBackground() {
+		Thread stopper = new Thread(new Runnable() {
+			public void run() {
+				try {
+					server.stop();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		stopper.start();
+		return stopper;
+	}
+
+	/**
+	 * idle connections are closed at once, a request in progress is finished
+	 * and its connection is closed after the response. The blocking engine
+	 * may have promised keep-alive before stop, so only the close is checked
+	 */
+	private void testDrain() throws Exception {
+		server.start();
+		NIOEngineTest.awaitListening();
+
+		Socket idleClient = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		Socket busyClient = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		try {
+			idleClient.setSoTimeout(ServerParams.SocketSoTimeout);
+			busyClient.setSoTimeout(ServerParams.SocketSoTimeout);
+			InputStream idleIn = new BufferedInputStream(
+					idleClient.getInputStream());
+			InputStream busyIn = new BufferedInputStream(
+					busyClient.getInputStream());
+
+			write(idleClient, "GET /keep_this_folder_empty/test.html HTTP/1.1\r\n\r\n");
+			assertEquals("keep-alive", KeepAliveTest.readResponse(idleIn)[1]);
+
+			write(busyClient, "POST /keep_this_folder_empty/ HTTP/1.1\r\nContent-Length: 4\r\n\r\nab");
+			Thread.sleep(200);
+
+			long start = System.currentTimeMillis();
+			Thread stopper = stopInBackground();
+			assertEquals(-1, idleIn.read());
+			assertTrue(System.currentTimeMillis() - start < 2000);
+
+			try {
+				new Socket(ServerParams.HOSTNAME, ServerParams.PORT).close();
+				assertFalse("server socket should be closed", true);
+			} catch (java.io.IOException e) {
+			}
+
+			write(busyClient, "cd");
+			assertEquals("200", KeepAliveTest.readResponse(busyIn)[0]);
+			assertEquals(-1, busyIn.read());
+
+			stopper.join(5000);
+			assertFalse(stopper.isAlive());
+		} finally {
+			idleClient.close();
+			busyClient.close();
+		}
+	}
+
+	@Test
+	public void testDrainBlocking() throws Exception {
+		testDrain();
+	}
+
+	@Test
+	public void testDrainNIO() throws Exception {
+		ServerParams.ENGINE = "nio";
+		testDrain();
+	}
+
+	@Test
+	public void testDrainAIO() throws Exception {
+		ServerParams.ENGINE = "aio";
+		testDrain();
+	}
+}
@@ -0,0 +1,126 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TimeoutsTest {
+
+	static ServerMain server = new ServerMain();
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws Exception {
+
+		server.init(new File("src" + File.separator + "test" + File.separator
+				+ "resources" + File.separator + "conf" + File.separator
+				+ "properties.xml"));
+		ServerParams.FIRST_BYTE_TIMEOUT = 500;
+		ServerParams.HEADER_TIMEOUT = 500;
+		ServerParams.BODY_IDLE_TIMEOUT = 500;
+		server.start();
+		NIOEngineTest.awaitListening();
+
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() throws Exception {
+		server.stop();
+		ServerParams.FIRST_BYTE_TIMEOUT = 10000;
+		ServerParams.HEADER_TIMEOUT = 10000;
+		ServerParams.BODY_IDLE_TIMEOUT = 20000;
+	}
+
+	/**
+	 * writes the input bytes one by one, with the input pause between them
+	 * 
+	 * @return time in milliseconds till server closed the connection
+	 */
+	private static long trickle(String request, long pause) throws Exception {
+		Socket client = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		long start = System.currentTimeMillis();
+		try {
+			client.setSoTimeout(ServerParams.SocketSoTimeout);
+			OutputStream out = client.getOutputStream();
+			byte[] bytes = request.getBytes(ServerParams.HTTPHeadersEncoding);
+			try {
+				for (int i = 0; i < bytes.length; i++) {
+					out.write(bytes[i]);
+					out.flush();
+					Thread.sleep(pause);
+				}
+			} catch (IOException e) {
+				// closed by server
+			}
+			InputStream in = client.getInputStream();
+			try {
+				while (in.read() >= 0) {
+				}
+			} catch (IOException e) {
+				// reset by server
+			}
+			return System.currentTimeMillis() - start;
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void testFirstByteTimeout() throws Exception {
+		long closedAfter = trickle("", 0);
+		assertTrue("closed after " + closedAfter, closedAfter >= 400);
+		assertTrue("closed after " + closedAfter, closedAfter < 2000);
+	}
+
+	/**
+	 * a client sending header slowly is closed, even though it never stays
+	 * silent for long
+	 */
+	@Test
+	public void testSlowHeader() throws Exception {
+		long closedAfter = trickle(
+				"GET /keep_this_folder_empty/test.html HTTP/1.1\r\nHost: localhost\r\n\r\n",
+				50);
+		assertTrue("closed after " + closedAfter, closedAfter < 2000);
+	}
+
+	@Test
+	public void testBodyIdleTimeout() throws Exception {
+		long closedAfter = trickle(
+				"POST /keep_this_folder_empty/ HTTP/1.1\r\nContent-Length: 10\r\n\r\nab",
+				0);
+		assertTrue("closed after " + closedAfter, closedAfter >= 400);
+		assertTrue("closed after " + closedAfter, closedAfter < 2000);
+	}
+
+	/**
+	 * a slow body is fine as long as it keeps moving
+	 */
+	@Test
+	public void testSlowBodyIsServed() throws Exception {
+		Socket client = new Socket(ServerParams.HOSTNAME, ServerParams.PORT);
+		try {
+			client.setSoTimeout(ServerParams.SocketSoTimeout);
+			OutputStream out = client.getOutputStream();
+			out.write("POST /keep_this_folder_empty/ HTTP/1.1\r\nContent-Length: 10\r\n\r\n"
+					.getBytes(ServerParams.HTTPHeadersEncoding));
+			for (int i = 0; i < 10; i++) {
+				out.write('a');
+				out.flush();
+				Thread.sleep(200);
+			}
+			assertEquals("200", KeepAliveTest.readResponse(
+					client.getInputStream())[0]);
+		} finally {
+			client.close();
+		}
+	}
+}
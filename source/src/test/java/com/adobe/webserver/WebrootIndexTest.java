@@ -0,0 +1,126 @@
+package com.adobe.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.adobe.webserver.util.WebrootIndex;
+
+public class WebrootIndexTest {
+
+	private File root;
+	private WebrootIndex index;
+
+	private static void createFile(File file, int length) throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[length]);
+		out.close();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static List<String> names(WebrootIndex.Entry directory) {
+		List<String> names = new ArrayList<String>();
+		for (String name : directory.getChildren()) {
+			names.add(name);
+		}
+		return names;
+	}
+
+	/**
+	 * waits for the watcher to report a change
+	 */
+	private WebrootIndex.Entry awaitEntry(String path, boolean exists)
+			throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			WebrootIndex.Entry entry = index.get(path);
+			if ((entry != null) == exists) {
+				return entry;
+			}
+			Thread.sleep(50);
+		}
+		return index.get(path);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		root = File.createTempFile("webroot", "");
+		root.delete();
+		File docs = new File(root, "docs");
+		new File(docs, "deep").mkdirs();
+		createFile(new File(root, "index.html"), 10);
+		createFile(new File(docs, "b.txt"), 20);
+		createFile(new File(docs, "a.txt"), 30);
+		createFile(new File(docs, "deep" + File.separator + "c.pdf"), 40);
+		index = WebrootIndex.open(root);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		index.close();
+		delete(root);
+	}
+
+	@Test
+	public void testBuiltIndex() throws Exception {
+		assertEquals(index, WebrootIndex.getInstance());
+		assertEquals(7, index.getEntryCount());
+
+		WebrootIndex.Entry docs = index.get("/docs");
+		assertTrue(docs.isDirectory());
+		assertEquals(Arrays.asList("a.txt", "b.txt", "deep"), names(docs));
+
+		WebrootIndex.Entry file = index.get("/docs/deep/c.pdf");
+		assertFalse(file.isDirectory());
+		assertEquals(40, file.getSize());
+		assertEquals("application/pdf", file.getContentType());
+		assertEquals(new File(root, "docs" + File.separator + "deep"
+				+ File.separator + "c.pdf").lastModified(),
+				file.getLastModified());
+
+		assertNull(index.get("/docs/missing.txt"));
+		assertNull(index.get("/wp-admin/install.php"));
+	}
+
+	@Test
+	public void testChangesAreSeen() throws Exception {
+		File docs = new File(root, "docs");
+		createFile(new File(docs, "new.txt"), 5);
+		assertNotNull(awaitEntry("/docs/new.txt", true));
+
+		File upload = new File(root, "upload" + File.separator + "today");
+		upload.mkdirs();
+		createFile(new File(upload, "up.txt"), 7);
+		index.update(upload);
+		assertEquals(7, index.get("/upload/today/up.txt").getSize());
+		assertTrue(names(index.get("/")).contains("upload"));
+
+		delete(new File(docs, "deep"));
+		assertNull(awaitEntry("/docs/deep", false));
+		assertNull(index.get("/docs/deep/c.pdf"));
+		assertFalse(names(index.get("/docs")).contains("deep"));
+
+		index.close();
+		assertNull(WebrootIndex.getInstance());
+	}
+}